@@ -0,0 +1,99 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.jvnet.solaris.libzfs.jna.zfs_type_t;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+
+/**
+ * Cost of a call through the {@link libzfs#LIBZFS} proxy and through {@link libzfs_direct},
+ * on functions that do little work of their own, so it's mostly the overhead of the binding.
+ *
+ * <p>
+ * On the simulated libzfs, or where direct mapping isn't available, both go through the proxy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BindingBenchmark {
+    private Fixture fixture;
+    private zfs_handle_t h;
+    private final Memory buf = new Memory(libzfs.ZFS_MAXPROPLEN);
+    private final NativeLong len = new NativeLong(libzfs.ZFS_MAXPROPLEN);
+    private final NativeLong zero = new NativeLong(0);
+    private final int used = zfs_prop_t.ZFS_PROP_USED.ordinal();
+
+    @Setup
+    public void setUp() {
+        fixture = new Fixture(1, 0);
+        h = LIBZFS.zfs_open(fixture.zfs.getHandle(), fixture.base, zfs_type_t.DATASET);
+    }
+
+    @TearDown
+    public void tearDown() {
+        LIBZFS.zfs_close(h);
+        fixture.dispose();
+    }
+
+    @Benchmark
+    public int getTypeProxy() {
+        return LIBZFS.zfs_get_type(h);
+    }
+
+    @Benchmark
+    public int getTypeDirect() {
+        return libzfs_direct.zfs_get_type(LIBZFS, h);
+    }
+
+    @Benchmark
+    public int propGetProxy() {
+        return LIBZFS.zfs_prop_get(h, new NativeLong(used), buf, libzfs.ZFS_MAXPROPLEN, null, null, zero, true);
+    }
+
+    @Benchmark
+    public int propGetDirect() {
+        return libzfs_direct.zfs_prop_get(LIBZFS, h, used, buf, len, true);
+    }
+}
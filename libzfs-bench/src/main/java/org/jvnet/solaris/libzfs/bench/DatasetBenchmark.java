@@ -0,0 +1,146 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.solaris.libzfs.ZFSFileSystem;
+import org.jvnet.solaris.libzfs.ZFSObject;
+import org.jvnet.solaris.libzfs.ZFSSnapshot;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the per-dataset calls of {@link ZFSObject} and {@link org.jvnet.solaris.libzfs.LibZFS}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DatasetBenchmark {
+    /**
+     * Number of file systems under the base.
+     */
+    @Param({"10", "100"})
+    public int width;
+
+    /**
+     * Number of snapshots of each file system.
+     */
+    @Param({"10"})
+    public int snapshots;
+
+    private static final List<zfs_prop_t> PROPS = Arrays.asList(
+        zfs_prop_t.ZFS_PROP_USED, zfs_prop_t.ZFS_PROP_AVAILABLE, zfs_prop_t.ZFS_PROP_REFERENCED,
+        zfs_prop_t.ZFS_PROP_COMPRESSION, zfs_prop_t.ZFS_PROP_MOUNTPOINT, zfs_prop_t.ZFS_PROP_QUOTA);
+
+    private Fixture fixture;
+    private ZFSFileSystem base, fs;
+    private String name, missing, scratch;
+
+    @Setup
+    public void setUp() {
+        fixture = new Fixture(width, snapshots);
+        base = fixture.open(null, ZFSFileSystem.class);
+        fs = fixture.open("d0", ZFSFileSystem.class);
+        name = fs.getName();
+        missing = fixture.base+"/nonexistent";
+        scratch = fixture.base+"/scratch";
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.dispose();
+        base.dispose();
+        fixture.dispose();
+    }
+
+    @Benchmark
+    public String getZfsProperty() {
+        return fs.getZfsProperty(zfs_prop_t.ZFS_PROP_COMPRESSION);
+    }
+
+    @Benchmark
+    public Map<zfs_prop_t,String> getZfsPropertyCollection() {
+        return fs.getZfsProperty(PROPS);
+    }
+
+    @Benchmark
+    public int snapshots() {
+        SortedSet<ZFSSnapshot> s = fs.snapshots();
+        ZFSObject.dispose(s);
+        return s.size();
+    }
+
+    @Benchmark
+    public int descendants() {
+        List<ZFSObject> d = base.descendants(ZFSObject.class);
+        ZFSObject.dispose(d);
+        return d.size();
+    }
+
+    @Benchmark
+    public boolean exists() {
+        return fixture.zfs.exists(name);
+    }
+
+    @Benchmark
+    public boolean existsMissing() {
+        return fixture.zfs.exists(missing);
+    }
+
+    @Benchmark
+    public String open() {
+        ZFSObject o = fixture.zfs.open(name);
+        String r = o.getName();
+        o.dispose();
+        return r;
+    }
+
+    /**
+     * Creates and destroys a file system, as a pair, since neither can be repeated alone.
+     */
+    @Benchmark
+    public String createAndDestroy() {
+        ZFSFileSystem o = fixture.zfs.create(scratch, ZFSFileSystem.class);
+        String r = o.getName();
+        o.destroy();
+        o.dispose();
+        return r;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import org.jvnet.solaris.libzfs.LibZFS;
+import org.jvnet.solaris.libzfs.ZFSFileSystem;
+import org.jvnet.solaris.libzfs.ZFSObject;
+import org.jvnet.solaris.libzfs.sim.SimulatedBackend;
+import org.jvnet.solaris.libzfs.sim.SimulatedZFS;
+
+/**
+ * Datasets that the benchmarks work on.
+ *
+ * <p>
+ * By default the benchmarks run against the simulated libzfs, in a pool of its own.
+ * If the system property {@value #POOL_PROPERTY} names an existing file system, like "rpool/bench",
+ * they run against the real libzfs instead, and the datasets are created in a scratch file system
+ * of their own under it, which is destroyed afterwards. Nothing else there is touched.
+ *
+ * <p>
+ * The backend is chosen when this class is initialized, so the benchmark states refer to it
+ * before anything else of libzfs.
+ */
+public final class Fixture {
+    /**
+     * System property that selects a real file system to run the benchmarks in.
+     */
+    public static final String POOL_PROPERTY = "libzfs.bench.pool";
+
+    private static final String REAL = System.getProperty(POOL_PROPERTY);
+
+    static {
+        if (REAL==null)
+            SimulatedBackend.install();
+    }
+
+    public final LibZFS zfs;
+    /**
+     * The file system that contains the benchmark datasets, "d0" to "d{width-1}".
+     */
+    public final String base;
+    /**
+     * Name of the pool that {@link #base} is in.
+     */
+    public final String pool;
+
+    /**
+     * Creates {@code width} file systems, each with {@code snapshots} snapshots.
+     */
+    public Fixture(int width, int snapshots) {
+        if (REAL==null) {
+            SimulatedZFS sim = SimulatedZFS.get();
+            sim.clear();
+            sim.createPool("bench", 1L<<40);
+        }
+        zfs = new LibZFS();
+        base = REAL==null ? "bench/jmh" : scratch(zfs, REAL);
+        pool = base.substring(0, base.indexOf('/'));
+
+        ZFSFileSystem b = zfs.create(base, ZFSFileSystem.class);
+        b.dispose();
+        for (int i=0; i<width; i++) {
+            ZFSFileSystem fs = zfs.create(base+"/d"+i, ZFSFileSystem.class);
+            fs.setProperty("com.example:index", String.valueOf(i));
+            for (int j=0; j<snapshots; j++)
+                fs.createSnapshot("s"+j).dispose();
+            fs.dispose();
+        }
+    }
+
+    /**
+     * Picks a name for the scratch file system that isn't taken yet.
+     */
+    private static String scratch(LibZFS zfs, String parent) {
+        if (!zfs.exists(parent))
+            throw new IllegalArgumentException("No such file system: "+parent);
+        String stamp = Long.toString(System.currentTimeMillis(), 36);
+        for (int i=0; ; i++) {
+            String name = parent+"/jmh-"+stamp+"-"+i;
+            if (!zfs.exists(name))
+                return name;
+        }
+    }
+
+    /**
+     * Whether the benchmarks run against the simulated libzfs. Calling this selects the backend.
+     */
+    public static boolean isSimulated() {
+        return REAL==null;
+    }
+
+    /**
+     * Opens one of the benchmark datasets, or {@link #base} for null.
+     */
+    public <T extends ZFSObject> T open(String child, Class<T> type) {
+        return zfs.open(child==null ? base : base+"/"+child, type);
+    }
+
+    /**
+     * Destroys the benchmark datasets, along with the scratch file system that holds them.
+     */
+    public void dispose() {
+        zfs.open(base).destroy(true);
+        zfs.dispose();
+    }
+}
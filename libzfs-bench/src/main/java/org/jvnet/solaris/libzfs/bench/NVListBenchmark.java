@@ -0,0 +1,94 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building and reading {@link nvlist_t}, which is how properties and batches are passed to libzfs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class NVListBenchmark {
+    private nvlist_t list;
+
+    @Setup
+    public void setUp() {
+        Fixture.isSimulated();  // before nvlist_t loads libnvpair
+        list = nvlist_t.allocMap();
+        list.put("mountpoint", "/export/home");
+        list.put("quota", 1L<<30);
+    }
+
+    @TearDown
+    public void tearDown() {
+        list.dispose();
+    }
+
+    @Benchmark
+    public void putString() {
+        list.put("compression", "lz4");
+    }
+
+    @Benchmark
+    public void putLong() {
+        list.putUInt64("reservation", 1L<<20);
+    }
+
+    @Benchmark
+    public String getString() {
+        return list.getString("mountpoint");
+    }
+
+    @Benchmark
+    public Long getLong() {
+        return list.getLong("quota");
+    }
+
+    /**
+     * A properties list as {@link org.jvnet.solaris.libzfs.LibZFS#create} builds it.
+     */
+    @Benchmark
+    public void allocPutFree() {
+        nvlist_t l = nvlist_t.allocMap();
+        l.put("mountpoint", "/export/home");
+        l.put("compression", "lz4");
+        l.put("com.example:owner", "bench");
+        l.dispose();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.solaris.libzfs.ZFSPool;
+import org.jvnet.solaris.libzfs.jna.zpool_prop_t;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of reading pool properties through {@link ZFSPool}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PoolBenchmark {
+    private Fixture fixture;
+    private ZFSPool pool;
+
+    @Setup
+    public void setUp() {
+        fixture = new Fixture(0, 0);
+        pool = fixture.zfs.getPool(fixture.pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.dispose();
+        fixture.dispose();
+    }
+
+    @Benchmark
+    public String getProperty() {
+        return pool.getProperty(zpool_prop_t.ZPOOL_PROP_HEALTH);
+    }
+
+    @Benchmark
+    public long getPropertyAsLong() {
+        return pool.getPropertyAsLong(zpool_prop_t.ZPOOL_PROP_SIZE);
+    }
+}
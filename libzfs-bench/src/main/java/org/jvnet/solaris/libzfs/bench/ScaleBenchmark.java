@@ -0,0 +1,155 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.bench;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.solaris.libzfs.ZFSFileSystem;
+import org.jvnet.solaris.libzfs.ZFSObject;
+import org.jvnet.solaris.libzfs.ZFSPropertyTable;
+import org.jvnet.solaris.libzfs.ZFSSpaceReport;
+import org.jvnet.solaris.libzfs.ZFSTraversal;
+import org.jvnet.solaris.libzfs.ZFSType;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.jvnet.solaris.libzfs.sim.SimulatedZFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How traversal, property reads and pruning scale with the number of datasets.
+ *
+ * <p>
+ * This only runs against the simulated libzfs, on a generated tree with {@code fanout} children per
+ * file system, {@code depth} levels deep, and 8 snapshots of each file system. Depth 5 is about 10^6 datasets.
+ * {@code latencyNanos} adds that much to every libzfs call, to see how the costs would add up
+ * against the ioctls of a real system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=5)
+@Fork(value=1, jvmArgsAppend="-Xmx4g")
+public class ScaleBenchmark {
+    @Param({"10"})
+    public int fanout;
+
+    @Param({"3", "4", "5"})
+    public int depth;
+
+    @Param({"0"})
+    public long latencyNanos;
+
+    private static final int SNAPSHOTS = 8;
+
+    private Fixture fixture;
+    private ZFSFileSystem base;
+
+    @Setup
+    public void setUp() {
+        if (!Fixture.isSimulated())
+            throw new IllegalStateException("ScaleBenchmark doesn't run against a real pool");
+        fixture = new Fixture(0, 0);
+        SimulatedZFS.get().generate(fixture.base, fanout, depth, SNAPSHOTS, 42);
+        SimulatedZFS.get().setLatency(latencyNanos);
+        base = fixture.open(null, ZFSFileSystem.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimulatedZFS.get().setLatency(0);
+        base.dispose();
+        fixture.zfs.dispose();
+        SimulatedZFS.get().clear();
+    }
+
+    @Benchmark
+    public int traverse() {
+        final int[] n = new int[1];
+        new ZFSTraversal<ZFSObject>(base, ZFSObject.class).visit(new ZFSTraversal.Visitor<ZFSObject>() {
+            public boolean visit(ZFSObject dataset) {
+                n[0]++;
+                return true;
+            }
+        });
+        return n[0];
+    }
+
+    @Benchmark
+    public int traverseParallel() throws InterruptedException {
+        return new ZFSTraversal<ZFSFileSystem>(base, ZFSFileSystem.class).collect(8).size();
+    }
+
+    @Benchmark
+    public ZFSPropertyTable readProperties() {
+        return fixture.zfs.getZfsProperties(base, -1, EnumSet.of(ZFSType.FILESYSTEM, ZFSType.SNAPSHOT),
+            Arrays.asList(zfs_prop_t.ZFS_PROP_USED, zfs_prop_t.ZFS_PROP_REFERENCED, zfs_prop_t.ZFS_PROP_CREATETXG));
+    }
+
+    @Benchmark
+    public ZFSSpaceReport spaceReport() throws InterruptedException {
+        return fixture.zfs.getSpaceReport(base, true, 1);
+    }
+
+    @Benchmark
+    public ZFSSpaceReport spaceReportParallel() throws InterruptedException {
+        return fixture.zfs.getSpaceReport(base, true, 8);
+    }
+
+    @Benchmark
+    public Map<String,?> readUserProperties() {
+        return fixture.zfs.getUserProperties(base, -1, EnumSet.of(ZFSType.FILESYSTEM));
+    }
+
+    /**
+     * The snapshot that {@link ScaleBenchmark#prune(Pruned)} destroys, taken across the whole tree before each call.
+     */
+    @State(Scope.Thread)
+    public static class Pruned {
+        private int n;
+        String name;
+
+        @Setup(Level.Invocation)
+        public void snapshot(ScaleBenchmark b) {
+            name = "prune"+(++n);
+            b.base.createSnapshot(name, true).dispose();
+        }
+    }
+
+    @Benchmark
+    public int prune(Pruned p) {
+        return base.destroySnapshots(p.name).size();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases native resources of objects that become unreachable without being closed.
+ *
+ * <p>
+ * This is a safety net, not the primary way to release resources. Wrappers release
+ * their native resources when explicitly closed, and register an action here
+ * in case they are not. Unlike {@link Object#finalize()}, the action runs on a single
+ * dedicated thread and the object itself is never resurrected, so objects that
+ * are properly closed cost the garbage collector nothing extra.
+ *
+ * <p>
+ * The action must not refer to the object it cleans up after, or else the object
+ * will never become unreachable.
+ */
+public final class Cleaner {
+    private Cleaner() {}
+
+    /**
+     * Handle to a registered action.
+     */
+    public interface Cleanable {
+        /**
+         * Runs the action now, unless it has already run, and unregisters it.
+         */
+        void clean();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Cleaner.class.getName());
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    /**
+     * Keeps the phantom references reachable until they are cleaned.
+     */
+    private static final Set<Ref> REFS = Collections.synchronizedSet(new HashSet<Ref>());
+
+    private static final class Ref extends PhantomReference<Object> implements Cleanable {
+        private Runnable action;
+
+        Ref(Object referent, Runnable action) {
+            super(referent, QUEUE);
+            this.action = action;
+        }
+
+        public void clean() {
+            Runnable a;
+            synchronized (this) {
+                a = action;
+                action = null;
+            }
+            if (a==null)    return;
+            REFS.remove(this);
+            a.run();
+        }
+    }
+
+    static {
+        Thread t = new Thread("libzfs native resource cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((Ref)QUEUE.remove()).clean();
+                    } catch (InterruptedException e) {
+                        // keep going. this thread lives as long as the JVM does
+                    } catch (Throwable e) {
+                        LOGGER.log(Level.WARNING, "Failed to release a native resource", e);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Registers an action to be run once the given object becomes phantom reachable.
+     */
+    public static Cleanable register(Object obj, Runnable action) {
+        Ref r = new Ref(obj,action);
+        REFS.add(r);
+        return r;
+    }
+}
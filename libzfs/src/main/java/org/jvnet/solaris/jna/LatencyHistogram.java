@@ -0,0 +1,147 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in nanoseconds, recorded without locking.
+ *
+ * <p>
+ * Like HdrHistogram, values are counted in log-linear buckets: values below 64 each have their
+ * own bucket, and every power of two above that is split into 32 buckets, so a percentile is
+ * off by at most about 3% from the actual value. That takes a fixed 1888 counters for the
+ * whole range of {@code long}, and recording a value is a single atomic increment plus
+ * the running count, sum and maximum.
+ *
+ * <p>
+ * Reading is not atomic with respect to recording, so a percentile computed while values
+ * are being recorded may not account for the latest few.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1<<SUB_BITS;
+    private static final int HALF = SUB>>1;
+    private static final int BUCKETS = SUB+(63-SUB_BITS)*HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos<0)    nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos>(m=max.get()) && !max.compareAndSet(m,nanos))
+            ;
+    }
+
+    /**
+     * Number of recorded values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Sum of the recorded values.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Largest recorded value, or 0 if there is none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Mean of the recorded values, or 0 if there is none.
+     */
+    public double getMean() {
+        long c = count.get();
+        return c==0 ? 0 : (double)sum.get()/c;
+    }
+
+    /**
+     * Gets the value below which the given percentage of the recorded values fall.
+     *
+     * @param percentile
+     *      Between 0 and 100, like 99.9.
+     * @return
+     *      The upper end of the bucket the percentile falls in, but never more than {@link #getMax()}.
+     *      0 if there is no recorded value.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] c = new long[BUCKETS];
+        for (int i=0; i<BUCKETS; i++)
+            total += c[i] = counts.get(i);
+        if (total==0)
+            return 0;
+        long target = Math.max(1,(long)Math.ceil(Math.min(percentile,100)/100*total));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += c[i];
+            if (seen>=target)
+                return Math.min(highest(i),getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Discards all the recorded values.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++)
+            counts.set(i,0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /*package*/ static int index(long v) {
+        if (v<SUB)
+            return (int)v;
+        int shift = 63-Long.numberOfLeadingZeros(v)-(SUB_BITS-1);
+        return SUB+(shift-1)*HALF+(int)((v>>>shift)-HALF);
+    }
+
+    /*package*/ static long lowest(int index) {
+        if (index<SUB)
+            return index;
+        int shift = (index-SUB)/HALF+1;
+        return ((long)((index-SUB)%HALF+HALF))<<shift;
+    }
+
+    /*package*/ static long highest(int index) {
+        return index==BUCKETS-1 ? Long.MAX_VALUE : lowest(index+1)-1;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+
+/**
+ * Loads the native libraries behind the JNA interfaces, or Java stand-ins for them.
+ *
+ * <p>
+ * The library constants, like {@code libzfs.LIBZFS}, are obtained through {@link #load(String, Class)}.
+ * Normally that loads the native library. If the system property {@value #BACKEND_PROPERTY}
+ * names a {@link Backend} class, the backend is asked first, so that the whole binding can run
+ * against an in-process implementation on a system without ZFS, such as for benchmarks.
+ *
+ * <p>
+ * The property is read once, when the first library is loaded, so it has to be set before that.
+ * {@link #setBackend(Backend)} does the same programmatically. Either way, the choice applies to
+ * the whole JVM, as the library constants are shared by all the {@link org.jvnet.solaris.libzfs.LibZFS} instances.
+ */
+public final class LibraryLoader {
+    private LibraryLoader() {}
+
+    /**
+     * Name of the system property that selects a {@link Backend}.
+     */
+    public static final String BACKEND_PROPERTY = "org.jvnet.solaris.jna.backend";
+
+    /**
+     * Supplies implementations of JNA library interfaces in place of the native libraries.
+     * The class needs a public no-argument constructor.
+     */
+    public interface Backend {
+        /**
+         * @param name
+         *      Name of the native library, like "zfs".
+         * @return
+         *      null to load the native library.
+         */
+        <T extends Library> T getLibrary(String name, Class<T> type);
+    }
+
+    private static Backend backend;
+    private static boolean initialized;
+
+    /**
+     * Gets the selected backend.
+     *
+     * @return
+     *      null if the native libraries are used.
+     */
+    public static synchronized Backend getBackend() {
+        if (!initialized) {
+            initialized = true;
+            String name = System.getProperty(BACKEND_PROPERTY);
+            if (name!=null && name.length()>0) {
+                try {
+                    backend = (Backend)Class.forName(name).newInstance();
+                } catch (Exception e) {
+                    throw (LinkageError)new LinkageError("Failed to instantiate "+name).initCause(e);
+                }
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Selects the backend to load the libraries from, in place of {@value #BACKEND_PROPERTY}.
+     *
+     * @throws IllegalStateException
+     *      if a library has already been loaded, since those can't be replaced.
+     */
+    public static synchronized void setBackend(Backend b) {
+        if (initialized)
+            throw new IllegalStateException("The libraries have already been loaded");
+        initialized = true;
+        backend = b;
+    }
+
+    /**
+     * Loads the given library, from the {@link Backend} if one is selected.
+     */
+    public static <T extends Library> T load(String name, Class<T> type) {
+        return load(name, type, null);
+    }
+
+    /**
+     * Loads the given library, from the {@link Backend} if one is selected,
+     * and wraps it for {@link NativeCalls} if that is in use.
+     *
+     * @param errors
+     *      Tells {@link NativeCalls} which calls failed. Null if that can't be told.
+     */
+    public static <T extends Library> T load(String name, Class<T> type, NativeCalls.Errors<? super T> errors) {
+        T lib = null;
+        Backend b = getBackend();
+        if (b!=null)
+            lib = b.getLibrary(name, type);
+        if (lib==null)
+            lib = type.cast(Native.loadLibrary(name, type));
+        return NativeCalls.instrument(name, type, lib, errors);
+    }
+
+    /**
+     * Is the given library object a binding to the native library, as opposed to a stand-in.
+     */
+    public static boolean isNative(Object library) {
+        return Proxy.isProxyClass(library.getClass())
+            && Proxy.getInvocationHandler(library) instanceof Library.Handler;
+    }
+
+    /**
+     * Implements a library interface by calling the public methods of the given object
+     * that have the same names and parameter types.
+     *
+     * <p>
+     * This spares a stand-in from implementing the functions it has no use for.
+     * Calling one of those throws {@link UnsupportedOperationException}.
+     */
+    public static <T extends Library> T implement(Class<T> type, final Object impl) {
+        final Map<Method,Method> targets = new ConcurrentHashMap<Method,Method>();
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                Method t = targets.get(m);
+                if (t==null) {
+                    try {
+                        t = impl.getClass().getMethod(m.getName(), m.getParameterTypes());
+                        t.setAccessible(true);  // the implementation class needn't be public
+                    } catch (NoSuchMethodException e) {
+                        if (m.getDeclaringClass()==Object.class)
+                            t = m;
+                        else
+                            throw new UnsupportedOperationException(m.getName()+" is not implemented by "+impl.getClass().getName());
+                    }
+                    targets.put(m,t);
+                }
+                try {
+                    return t.invoke(impl, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        }));
+    }
+}
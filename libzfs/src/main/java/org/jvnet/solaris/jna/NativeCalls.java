@@ -0,0 +1,263 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import com.sun.jna.Library;
+
+/**
+ * Counts and times the calls to the native libraries.
+ *
+ * <p>
+ * When the system property {@value #PROPERTY} is "true", or {@link #install()} is called, before the
+ * first library is loaded, {@link LibraryLoader} wraps every library in a proxy that records, for each
+ * function, the number of calls, the failed calls by error, and a {@link LatencyHistogram} of the time
+ * they took. The statistics are registered as MBeans in the {@value #DOMAIN} domain of the platform
+ * MBean server, one {@link NativeFunction} per function as it is first called, and this class itself,
+ * which can turn the recording off and on.
+ *
+ * <p>
+ * Otherwise the libraries are not wrapped at all, so this costs nothing. When they are wrapped and the
+ * recording is turned off, a call costs one extra volatile read. Note that the calls that
+ * {@link org.jvnet.solaris.libzfs.jna.libzfs_direct} makes directly are routed through the wrapped
+ * library instead, so that they are recorded too.
+ */
+public final class NativeCalls implements NativeCallsMBean {
+    /**
+     * Name of the system property that turns the instrumentation on.
+     */
+    public static final String PROPERTY = "org.jvnet.solaris.jna.instrument";
+
+    /**
+     * Domain of the MBeans.
+     */
+    public static final String DOMAIN = "org.jvnet.solaris";
+
+    /**
+     * Tells whether a call failed.
+     */
+    public interface Errors<T> {
+        /**
+         * Called after each recorded call.
+         *
+         * @param library
+         *      The library that isn't instrumented, to find out more about the error.
+         * @return
+         *      null if the call succeeded, else a label for the error.
+         */
+        String classify(T library, Method m, Object[] args, Object result);
+    }
+
+    /**
+     * Treats a non-zero {@code int} result as an errno value, except for the given functions.
+     */
+    public static Errors<Object> errno(String... except) {
+        final Set<String> exceptions = new HashSet<String>(Arrays.asList(except));
+        return new Errors<Object>() {
+            public String classify(Object library, Method m, Object[] args, Object result) {
+                if (m.getReturnType()!=int.class || exceptions.contains(m.getName()))
+                    return null;
+                int r = (Integer)result;
+                return r==0 ? null : "errno "+r;
+            }
+        };
+    }
+
+    private static final NativeCalls INSTANCE = new NativeCalls();
+    private static final Logger LOGGER = Logger.getLogger(NativeCalls.class.getName());
+
+    private static volatile boolean enabled = true;
+    private static boolean installed;
+    private static boolean initialized;
+
+    private final Map<String,NativeFunction> functions = new ConcurrentHashMap<String,NativeFunction>();
+
+    private NativeCalls() {}
+
+    /**
+     * Gets the instance that is registered as an MBean.
+     */
+    public static NativeCalls get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Is the instrumentation in use.
+     */
+    public static synchronized boolean isInstalled() {
+        if (!initialized) {
+            initialized = true;
+            if (Boolean.getBoolean(PROPERTY))
+                doInstall();
+        }
+        return installed;
+    }
+
+    /**
+     * Turns the instrumentation on, in place of {@value #PROPERTY}.
+     *
+     * @throws IllegalStateException
+     *      if a library has already been loaded without it.
+     */
+    public static synchronized void install() {
+        if (initialized && !installed)
+            throw new IllegalStateException("The libraries have already been loaded");
+        initialized = true;
+        if (!installed)
+            doInstall();
+    }
+
+    private static void doInstall() {
+        installed = true;
+        register(INSTANCE,DOMAIN+":type=NativeCalls");
+    }
+
+    /**
+     * Wraps the given library if the instrumentation is in use.
+     *
+     * @param errors
+     *      Tells which calls failed. Null to count no errors.
+     * @return
+     *      {@code lib} itself if the instrumentation isn't in use.
+     */
+    public static <T extends Library> T instrument(final String name, Class<T> type, final T lib, final Errors<? super T> errors) {
+        if (!isInstalled())
+            return lib;
+
+        final InvocationHandler handler = Proxy.isProxyClass(lib.getClass()) ? Proxy.getInvocationHandler(lib) : null;
+        final Map<Method,NativeFunction> stats = new ConcurrentHashMap<Method,NativeFunction>();
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if (!enabled || m.getDeclaringClass()==Object.class)
+                    return call(m,args);
+
+                NativeFunction f = stats.get(m);
+                if (f==null)
+                    stats.put(m,f=INSTANCE.getFunction(name,m.getName()));
+
+                Object r;
+                long start = System.nanoTime();
+                try {
+                    r = call(m,args);
+                } finally {
+                    f.record(System.nanoTime()-start);
+                }
+                if (errors!=null) {
+                    String e = errors.classify(lib,m,args,r);
+                    if (e!=null)
+                        f.recordError(e);
+                }
+                return r;
+            }
+
+            private Object call(Method m, Object[] args) throws Throwable {
+                // calling the handler directly skips the reflective call to the proxy
+                if (handler!=null)
+                    return handler.invoke(lib,m,args);
+                try {
+                    return m.invoke(lib,args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Gets the statistics of the given function, registering them on first use.
+     */
+    /*package*/ NativeFunction getFunction(String library, String name) {
+        String key = library+':'+name;
+        NativeFunction f = functions.get(key);
+        if (f==null) {
+            synchronized (functions) {
+                f = functions.get(key);
+                if (f==null) {
+                    functions.put(key,f=new NativeFunction(library,name));
+                    register(f,DOMAIN+":type=NativeFunction,library="+library+",name="+name);
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Gets the statistics of the functions called so far.
+     */
+    public Collection<NativeFunction> getFunctionStats() {
+        return Collections.unmodifiableCollection(functions.values());
+    }
+
+    /**
+     * Gets the statistics of the given function.
+     *
+     * @return
+     *      null if the function hasn't been called.
+     */
+    public NativeFunction getFunctionStats(String library, String name) {
+        return functions.get(library+':'+name);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean b) {
+        enabled = b;
+    }
+
+    public String[] getFunctions() {
+        List<String> r = new ArrayList<String>(functions.keySet());
+        Collections.sort(r);
+        return r.toArray(new String[r.size()]);
+    }
+
+    public void reset() {
+        for (NativeFunction f : functions.values())
+            f.reset();
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,new ObjectName(name));
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to register "+name, e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the calls to one function of an instrumented library.
+ *
+ * @see NativeCalls
+ */
+public final class NativeFunction implements NativeFunctionMBean {
+    private final String library;
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final Map<String,AtomicLong> errorCounts = new ConcurrentHashMap<String,AtomicLong>();
+
+    /*package*/ NativeFunction(String library, String name) {
+        this.library = library;
+        this.name = name;
+    }
+
+    /*package*/ void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    /*package*/ void recordError(String label) {
+        errors.incrementAndGet();
+        AtomicLong c = errorCounts.get(label);
+        if (c==null) {
+            synchronized (errorCounts) {
+                c = errorCounts.get(label);
+                if (c==null)
+                    errorCounts.put(label,c=new AtomicLong());
+            }
+        }
+        c.incrementAndGet();
+    }
+
+    public String getLibrary() {
+        return library;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Distribution of the time the calls took, including the JNA argument conversion,
+     * and for the iteration functions, the callbacks.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Number of failed calls by error label.
+     */
+    public Map<String,Long> getErrorCountMap() {
+        Map<String,Long> r = new TreeMap<String,Long>();
+        for (Map.Entry<String,AtomicLong> e : errorCounts.entrySet())
+            r.put(e.getKey(),e.getValue().get());
+        return r;
+    }
+
+    public String[] getErrorCounts() {
+        List<String> r = new ArrayList<String>();
+        for (Map.Entry<String,Long> e : getErrorCountMap().entrySet())
+            r.add(e.getKey()+"="+e.getValue());
+        return r.toArray(new String[r.size()]);
+    }
+
+    public long getTotalNanos() {
+        return latency.getSum();
+    }
+
+    public double getMeanNanos() {
+        return latency.getMean();
+    }
+
+    public long getMaxNanos() {
+        return latency.getMax();
+    }
+
+    public long getMedianNanos() {
+        return latency.getPercentile(50);
+    }
+
+    public long getPercentile90Nanos() {
+        return latency.getPercentile(90);
+    }
+
+    public long getPercentile99Nanos() {
+        return latency.getPercentile(99);
+    }
+
+    public long getPercentile999Nanos() {
+        return latency.getPercentile(99.9);
+    }
+
+    public void reset() {
+        latency.reset();
+        errors.set(0);
+        errorCounts.clear();
+    }
+
+    @Override
+    public String toString() {
+        return library+':'+name+" calls="+getCalls()+" errors="+getErrors()
+            +" mean="+(long)getMeanNanos()+"ns p99="+getPercentile99Nanos()+"ns";
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libc.jna;
+
+import java.nio.ByteBuffer;
+
+import org.jvnet.solaris.jna.LibraryLoader;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+
+/**
+ * File descriptor functions of the C library.
+ *
+ * <p>
+ * These return -1 on failure, in which case {@link Native#getLastError()} gives the errno.
+ */
+public interface libc extends Library {
+    public static final libc LIBC = LibraryLoader.load("c",libc.class);
+
+    /*
+     * open(2) flags. O_CREAT is the only one of these that differs between Solaris and Linux.
+     */
+    public static final int O_RDONLY = 0x0000;
+    public static final int O_WRONLY = 0x0001;
+    public static final int O_CREAT = Platform.isSolaris() ? 0x0100 : 0x0040;
+    public static final int O_TRUNC = 0x0200;
+
+    /*
+     * errno values used by the callers.
+     */
+    public static final int EPERM = 1;
+    public static final int ENOENT = 2;
+    public static final int EINTR = 4;
+    public static final int EIO = 5;
+    public static final int ENOMEM = 12;
+    public static final int EACCES = 13;
+    public static final int EBUSY = 16;
+    public static final int EEXIST = 17;
+    public static final int EXDEV = 18;
+    public static final int EINVAL = 22;
+    public static final int ENOSPC = 28;
+    public static final int EROFS = 30;
+    public static final int EPIPE = 32;
+
+int pipe(int[] fds);
+int open(String path, int flags, int mode);
+int close(int fd);
+
+/**
+ * The buffer needs to be a direct one.
+ */
+NativeLong read(int fd, ByteBuffer buf, NativeLong count);
+/**
+ * The buffer needs to be a direct one.
+ */
+NativeLong write(int fd, ByteBuffer buf, NativeLong count);
+
+String strerror(int errnum);
+}
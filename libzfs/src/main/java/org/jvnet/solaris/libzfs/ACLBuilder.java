@@ -27,7 +27,6 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.jvnet.solaris.jna.PtrByReference;
-import org.jvnet.solaris.libzfs.jna.libzfs;
 import org.jvnet.solaris.libzfs.jna.zfs_deleg_who_type_t;
 import org.jvnet.solaris.nvlist.jna.nvlist_t;
 
@@ -115,9 +114,9 @@ public class ACLBuilder {
                 inheritanceBits = 3;
 
             PtrByReference<nvlist_t> r = new PtrByReference<nvlist_t>();
-            if(libzfs.LIBZFS.zfs_build_perms(dataset.handle,
+            if(dataset.library.api.zfs_build_perms(dataset.handle,
                     who(), buf.toString().toLowerCase(), whoType.code, inheritanceBits, r)!=0)
-                throw new ZFSException(dataset.library);
+                throw new ZFSException(dataset);
 
             return r.getValue(nvlist_t.class);
         }
@@ -0,0 +1,202 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jna.PointerType;
+
+/**
+ * Reference-counted, LRU-bounded cache of native handles keyed by name.
+ *
+ * <p>
+ * A handle obtained from {@link #acquire(String)} may be shared with other callers,
+ * so it must be given back via {@link #release(PointerType)} rather than closed.
+ * The cache itself holds one reference to each cached handle, and the native handle
+ * is closed when the last reference goes away, so eviction and invalidation never
+ * pull a handle from under someone who is still using it.
+ *
+ * <p>
+ * Handles that didn't come from this cache (say, from an iteration) can also be passed
+ * to {@link #release(PointerType)}, in which case they are simply closed.
+ *
+ * @param <T> type of the native handle.
+ */
+/*package*/ abstract class HandleCache<T extends PointerType> {
+    private final class Entry {
+        final String name;
+        final T handle;
+        /**
+         * Number of outstanding references, including the one held by {@link #cache}.
+         */
+        int refs;
+
+        Entry(String name, T handle) {
+            this.name = name;
+            this.handle = handle;
+        }
+    }
+
+    private int capacity;
+
+    /**
+     * Cached entries in the LRU order.
+     */
+    private final LinkedHashMap<String,Entry> cache = new LinkedHashMap<String,Entry>(16,0.75f,true);
+
+    /**
+     * All the handles that this object has given out and that are not closed yet,
+     * including those already evicted from {@link #cache}.
+     */
+    private final Map<T,Entry> live = new HashMap<T,Entry>();
+
+    /**
+     * Opens a new native handle, or returns null if there's no such object.
+     */
+    protected abstract T open(String name);
+
+    /**
+     * Closes a native handle.
+     */
+    protected abstract void close(T handle);
+
+    /**
+     * Sets the maximum number of handles to keep. 0 disables caching.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity<0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        trim();
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets a handle for the object of the given name, opening one if necessary.
+     *
+     * @return null if there's no such object.
+     */
+    public T acquire(String name) {
+        synchronized (this) {
+            Entry e = cache.get(name);
+            if (e!=null) {
+                e.refs++;
+                return e.handle;
+            }
+        }
+
+        // open outside the lock, as this involves an ioctl
+        T h = open(name);
+        if (h==null)    return null;
+
+        synchronized (this) {
+            Entry e = new Entry(name,h);
+            e.refs = 1;
+            live.put(h,e);
+            if (capacity>0 && !cache.containsKey(name)) {
+                e.refs++;
+                cache.put(name,e);
+                trim();
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Gives back a handle obtained from {@link #acquire(String)}, or closes a handle
+     * that didn't come from this cache.
+     */
+    public void release(T handle) {
+        synchronized (this) {
+            Entry e = live.get(handle);
+            if (e!=null && !unref(e))
+                return;
+        }
+        close(handle);
+    }
+
+    /**
+     * Drops the cached handle of the given name, as well as those of its descendants
+     * and snapshots, so that the next {@link #acquire(String)} opens a fresh handle.
+     */
+    public void invalidate(String name) {
+        List<T> toClose = new ArrayList<T>();
+        synchronized (this) {
+            for (Iterator<Entry> itr = cache.values().iterator(); itr.hasNext();) {
+                Entry e = itr.next();
+                if (e.name.equals(name) || e.name.startsWith(name+'/') || e.name.startsWith(name+'@')) {
+                    itr.remove();
+                    if (unref(e))
+                        toClose.add(e.handle);
+                }
+            }
+        }
+        for (T h : toClose)
+            close(h);
+    }
+
+    /**
+     * Drops all the cached handles.
+     */
+    public void clear() {
+        List<T> toClose = new ArrayList<T>();
+        synchronized (this) {
+            for (Entry e : cache.values())
+                if (unref(e))
+                    toClose.add(e.handle);
+            cache.clear();
+        }
+        for (T h : toClose)
+            close(h);
+    }
+
+    /**
+     * Evicts the least recently used entries that exceed the capacity.
+     */
+    private void trim() {
+        for (Iterator<Entry> itr = cache.values().iterator(); cache.size()>capacity && itr.hasNext();) {
+            Entry e = itr.next();
+            itr.remove();
+            if (unref(e))
+                close(e.handle);
+        }
+    }
+
+    /**
+     * Drops one reference.
+     *
+     * @return true if that was the last one and the handle needs to be closed.
+     */
+    private boolean unref(Entry e) {
+        if (--e.refs>0)
+            return false;
+        live.remove(e.handle);
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.Set;
+
+import org.jvnet.solaris.jna.Cleaner;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zpool_handle_t;
+
+import com.sun.jna.PointerType;
+
+/**
+ * Gives the native handle held by a {@link ZFSObject} or a {@link ZFSPool} back to its {@link LibZFS}.
+ *
+ * <p>
+ * This is kept separate from the wrapper object so that it can be run by {@link Cleaner}
+ * after the wrapper becomes unreachable, and by {@link LibZFS#close()} for wrappers
+ * that are still around. Either way, the handle is released only once.
+ *
+ * <p>
+ * It refers to the handle caches and the set of open objects of the {@link LibZFS},
+ * but not to the {@link LibZFS} itself, which would otherwise be kept reachable from
+ * its own cleanup action through that set, and never be cleaned up.
+ */
+/*package*/ final class HandleReleaser implements Runnable {
+    private final HandleCache<zfs_handle_t> datasets;
+    private final HandleCache<zpool_handle_t> zpools;
+    private final Set<HandleReleaser> open;
+    private PointerType handle;
+
+    /*package*/ HandleReleaser(LibZFS library, PointerType handle) {
+        this.datasets = library.datasetCache();
+        this.zpools = library.poolCache();
+        this.open = library.openObjects();
+        this.handle = handle;
+        open.add(this);
+    }
+
+    /**
+     * Releases the current handle and starts tracking the given one instead.
+     */
+    /*package*/ void replace(PointerType h) {
+        PointerType old;
+        synchronized (this) {
+            old = handle;
+            handle = h;
+        }
+        if (old!=null)
+            release(old);
+    }
+
+    public void run() {
+        PointerType h;
+        synchronized (this) {
+            h = handle;
+            handle = null;
+        }
+        if (h==null)    return;
+        open.remove(this);
+        release(h);
+    }
+
+    private void release(PointerType h) {
+        if (h instanceof zfs_handle_t)
+            datasets.release((zfs_handle_t)h);
+        else
+            zpools.release((zpool_handle_t)h);
+    }
+}
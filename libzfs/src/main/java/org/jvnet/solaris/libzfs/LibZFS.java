@@ -20,40 +20,197 @@
  */
 package org.jvnet.solaris.libzfs;
 
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
 import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
 import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.jvnet.solaris.jna.Cleaner;
+import org.jvnet.solaris.libc.jna.libc;
 import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
 import org.jvnet.solaris.libzfs.jna.libzfs.zpool_iter_f;
 import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
 import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
 import org.jvnet.solaris.libzfs.jna.zfs_type_t;
 import org.jvnet.solaris.libzfs.jna.zpool_handle_t;
 import org.jvnet.solaris.nvlist.jna.nvlist_t;
 
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
 /**
  * Entry point to ZFS functionality in Java.
+ *
+ * <p>
+ * This object, as well as {@link ZFSObject}s and {@link ZFSPool}s obtained from it,
+ * hold native resources. Call {@link #close()} on them when they are no longer needed.
+ * Closing a {@link LibZFS} also releases all the objects obtained from it that are still open,
+ * so it can be used as a scope for a batch of work. Resources of objects that are
+ * simply dropped are eventually released after they are garbage collected.
+ *
+ * <h2>Concurrency</h2>
+ * <p>
+ * libzfs keeps the error of the last failed call, among other things, in its library handle,
+ * so a {@link LibZFS} created with {@link Concurrency#SHARED} (the default) must not be used
+ * from multiple threads at the same time. One created with {@link Concurrency#PER_THREAD}
+ * gives each thread its own library handle instead, so independent operations can run concurrently,
+ * and each {@link ZFSException} reports the error of the call that actually failed.
  * 
  * @author Kohsuke Kawaguchi
  */
-public class LibZFS implements ZFSContainer {
+public class LibZFS implements ZFSContainer, Closeable {
+
+    /**
+     * How {@link LibZFS} uses native library handles.
+     */
+    public enum Concurrency {
+        /**
+         * One library handle for everything. The {@link LibZFS} must be used by one thread at a time.
+         */
+        SHARED,
+        /**
+         * Each thread gets its own library handle when it first uses the {@link LibZFS}.
+         *
+         * <p>
+         * A {@link ZFSObject} or a {@link ZFSPool} is tied to the handle of the thread that obtained it,
+         * so it should be used by that thread, or handed over to another thread and no longer used by the first.
+         * The handle cache is not available in this mode, as it would share handles between threads.
+         *
+         * <p>
+         * Handles are pooled. The handle of a thread goes back to the pool when the thread calls
+         * {@link LibZFS#releaseThreadHandle()}, or once it has terminated, and is then given
+         * to the next thread that needs one. So the number of handles is bounded by the number
+         * of threads that use the library at the same time, not by all the threads that ever did.
+         */
+        PER_THREAD
+    }
+
+    /**
+     * The libzfs that this library calls, which is {@link libzfs#LIBZFS} unless another one was given.
+     */
+    /*package*/ final libzfs api;
+
+    private final Handles handles;
+
+    /**
+     * Cache of dataset handles, see {@link #setHandleCacheSize(int)}.
+     */
+    private final HandleCache<zfs_handle_t> datasets;
+
+    /**
+     * Cache of pool handles, see {@link #setHandleCacheSize(int)}.
+     */
+    private final HandleCache<zpool_handle_t> zpools;
+
+    /**
+     * Releasers of {@link ZFSObject}s and {@link ZFSPool}s created from this library that are still open.
+     */
+    private final Set<HandleReleaser> open = Collections.synchronizedSet(new HashSet<HandleReleaser>());
 
-    private libzfs_handle_t handle;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * See {@link #getPropCode(String)}.
+     */
+    private final Map<String,Integer> propCodes = new ConcurrentHashMap<String,Integer>();
+
+    /**
+     * Created on demand, see {@link #getMountIndex()}.
+     */
+    private volatile ZFSMountIndex mounts;
+
+    /**
+     * Created on demand, see {@link #getCore()}.
+     */
+    private volatile LibZFSCore core;
+
+    /**
+     * Created on demand, see {@link #workers()}.
+     */
+    private volatile LibZFS workers;
+
+    /**
+     * Closes {@link #workers} along with this library.
+     */
+    private final Cleaner.Cleanable[] workersCleanable = new Cleaner.Cleanable[1];
 
     public LibZFS() {
-        handle = LIBZFS.libzfs_init();
-        if (handle==null)
-            throw new LinkageError("Failed to initialize libzfs");
+        this(Concurrency.SHARED);
+    }
+
+    public LibZFS(Concurrency concurrency) {
+        this(LIBZFS, concurrency);
+    }
+
+    /**
+     * Calls the given implementation of libzfs instead of the native library,
+     * such as a simulated one, independently of the other {@link LibZFS} instances.
+     *
+     * <p>
+     * Name/value lists are still created and read through {@link org.jvnet.solaris.nvlist.jna.libnvpair#LIBNVPAIR},
+     * so the implementation has to use that too, for those that it takes and returns.
+     * {@link #getCore()} isn't available, as libzfs_core can't be substituted this way.
+     */
+    public LibZFS(libzfs api, Concurrency concurrency) {
+        this.api = api;
+        handles = new Handles(api, concurrency==Concurrency.PER_THREAD);
+        datasets = new DatasetHandleCache(api, handles);
+        zpools = new PoolHandleCache(api, handles);
+        cleanable = Cleaner.register(this, new Fini(handles, datasets, zpools, open, workersCleanable));
+    }
+
+    /**
+     * Sets the number of native dataset and pool handles that are kept open by name,
+     * so that {@link #open(String)}, {@link #getPool(String)}, and {@link ZFSObject#getPool()}
+     * can reuse them instead of opening new ones.
+     *
+     * <p>
+     * libzfs reads the properties of a dataset or a pool when its handle is opened,
+     * so an object obtained through a cached handle reports property values as of
+     * when the handle was first opened. Handles are dropped from the cache when
+     * this library renames, destroys, creates, or changes the properties of the dataset,
+     * but changes made outside this {@link LibZFS} instance are not noticed.
+     * For this reason, caching is off by default.
+     *
+     * @param size
+     *      Maximum number of handles of each kind to keep. The least recently used ones
+     *      are closed first. 0 disables caching.
+     * @throws IllegalStateException
+     *      if this library uses {@link Concurrency#PER_THREAD} and the size isn't 0.
+     */
+    public void setHandleCacheSize(int size) {
+        if (size>0 && handles.local!=null)
+            throw new IllegalStateException("Handles can't be cached with Concurrency.PER_THREAD");
+        datasets.setCapacity(size);
+        zpools.setCapacity(size);
+    }
+
+    public int getHandleCacheSize() {
+        return datasets.getCapacity();
     }
 
     /**
@@ -67,7 +224,7 @@ public class LibZFS implements ZFSContainer {
      */
     public List<ZFSFileSystem> roots() {
         final List<ZFSFileSystem> r = new ArrayList<ZFSFileSystem>();
-        LIBZFS.zfs_iter_root(handle, new libzfs.zfs_iter_f() {
+        libzfs_direct.zfs_iter_root(api, getHandle(), new libzfs.zfs_iter_f() {
             public int callback(zfs_handle_t handle, Pointer arg) {
                 r.add(new ZFSFileSystem(LibZFS.this, handle));
                 return 0;
@@ -83,7 +240,7 @@ public class LibZFS implements ZFSContainer {
      */
     public List<ZFSPool> pools() {
         final List<ZFSPool> r = new ArrayList<ZFSPool>();
-        LIBZFS.zpool_iter(handle, new zpool_iter_f() {
+        api.zpool_iter(getHandle(), new zpool_iter_f() {
             public int callback(zpool_handle_t handle, Pointer arg) {
                 r.add(new ZFSPool(LibZFS.this, handle));
                 return 0;
@@ -96,7 +253,7 @@ public class LibZFS implements ZFSContainer {
      * Gets the pool of the given name.
      */
     public ZFSPool getPool(String name) {
-        zpool_handle_t h = LIBZFS.zpool_open(handle, name);
+        zpool_handle_t h = zpools.acquire(name);
         if(h==null) return null;    // not found
         return new ZFSPool(this,h);
     }
@@ -128,7 +285,7 @@ public class LibZFS implements ZFSContainer {
             mask |= t.code;
         }
 
-        final boolean exists = LIBZFS.zfs_dataset_exists(handle, name, mask);
+        final boolean exists = api.zfs_dataset_exists(getHandle(), name, mask);
         return exists;
     }
 
@@ -162,6 +319,10 @@ public class LibZFS implements ZFSContainer {
 
     /**
      * Create a ZFS Data Set of a given name, zfs type and properties.
+     *
+     * <p>
+     * Missing intermediate datasets are created as file systems with default properties,
+     * like "zfs create -p" does. If the dataset already exists with the given type, it's simply opened.
      * 
      * @param dataSetName
      *            Full name of the dataset to create, like "rpool/abc/def".
@@ -173,27 +334,199 @@ public class LibZFS implements ZFSContainer {
      */
     public ZFSObject create(final String dataSetName, final ZFSType type,
             final Map<String, String> props) {
+        create(Collections.singleton(dataSetName), type, props);
+
+        final ZFSObject dataSet = open(dataSetName);
+        return dataSet;
+    }
+
+    /**
+     * Creates many datasets of the same type and properties at once.
+     *
+     * <p>
+     * This is faster than calling {@link #create(String, ZFSType, Map)} repeatedly,
+     * as the properties are converted to the native form only once, and the created
+     * datasets are not opened. Use {@link #open(String)} for those that are needed afterward.
+     * Datasets are created in the iteration order, and missing intermediate datasets
+     * are created as in {@link #create(String, ZFSType, Map)}.
+     *
+     * @param props
+     *            zfs dataset properties. Can be null.
+     * @throws ZFSException
+     *            if any of the datasets fails to be created. Those that come before it are left created.
+     */
+    public void create(Collection<String> dataSetNames, ZFSType type, Map<String, String> props) {
         final nvlist_t nvl = nvlist_t.alloc(NV_UNIQUE_NAME);
-        if(props!=null) {
-            for (Map.Entry<String, String> e : props.entrySet()) {
-                nvl.put(e.getKey(), e.getValue());
+        try {
+            if(props!=null) {
+                for (Map.Entry<String, String> e : props.entrySet()) {
+                    nvl.put(e.getKey(), e.getValue());
+                }
             }
+
+            for (String name : dataSetNames) {
+                invalidate(name);
+                createOne(name, type, nvl);
+            }
+        } finally {
+            nvl.dispose();
         }
+    }
+
+    /**
+     * Creates a dataset, assuming that its parent exists, and only if that fails,
+     * creates the missing ancestors and tries again. libzfs doesn't modify the given properties.
+     */
+    private void createOne(String dataSetName, ZFSType type, nvlist_t props) {
+        libzfs_handle_t h = getHandle();
+        if (api.zfs_create(h, dataSetName, type.code, props) == 0)
+            return;
 
-        /* create intermediate directories */
-        final String[] dirs = dataSetName.split("/");
-        final StringBuilder sb = new StringBuilder(dirs[0]);
-        for (int i = 1; i < dirs.length; i++) {
-            sb.append('/').append(dirs[i]);
-            if (!exists(sb.toString())) {
-                if (LIBZFS.zfs_create(handle, sb.toString(), type.code, nvl) != 0) {
-                    throw new ZFSException(this,"Failed to create "+dataSetName);
+        switch (ErrorCode.fromCode(libzfs_direct.libzfs_errno(api, h))) {
+        case EZFS_EXISTS:
+            if (api.zfs_dataset_exists(h, dataSetName, type.code))
+                return;
+            throw new ZFSException("Failed to create "+dataSetName+": it already exists, but isn't a "+type.name().toLowerCase(Locale.ENGLISH),
+                    ErrorCode.EZFS_EXISTS);
+        case EZFS_NOENT:
+            if (api.zfs_create_ancestors(h, dataSetName) == 0
+             && api.zfs_create(h, dataSetName, type.code, props) == 0)
+                return;
+            throw new ZFSException(this,"Failed to create "+dataSetName);
+        default:
+            throw new ZFSException(this,"Failed to create "+dataSetName);
+        }
+    }
+
+    /**
+     * Receives a stream produced by "zfs send" from the given channel, like "zfs receive".
+     *
+     * <p>
+     * libzfs reads the stream from a pipe on a helper thread, while another one feeds the channel into it.
+     * Interrupting the calling thread cancels the transfer by closing the channel. libzfs then sees
+     * a truncated stream and discards what it has received so far, and this method throws
+     * {@link InterruptedIOException}. A channel that doesn't unblock its pending read when it's closed
+     * is only noticed to be closed on the next read.
+     *
+     * @param name
+     *      Name of the file system or the snapshot to receive into. See {@link ZFSReceiveOptions#prefix(boolean)}.
+     * @param options
+     *      Can be null.
+     * @throws IOException
+     *      if reading the channel fails.
+     * @throws ZFSException
+     *      if libzfs rejects the stream.
+     */
+    public void receive(final String name, ReadableByteChannel in, ZFSReceiveOptions options) throws IOException {
+        if (options==null)
+            options = new ZFSReceiveOptions();
+        final int[] fds = StreamPump.pipe();
+        StreamPump.Fill pump = new StreamPump.Fill(in, fds[1]);
+        pump.start();
+        TransferMeter meter = TransferMeter.start(options.listener, options.interval, pump);
+
+        final ZFSReceiveOptions opts = options;
+        final RuntimeException[] failure = new RuntimeException[1];
+        // libzfs blocks in native code, which an interrupt can't reach, so the calling thread only waits
+        Thread receiver = new Thread("ZFS receive "+name) {
+            @Override
+            public void run() {
+                try {
+                    receive(name, fds[0], opts);
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    // if libzfs stopped reading halfway, this unblocks the pump
+                    LIBC.close(fds[0]);
+                    releaseThreadHandle();
                 }
             }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        boolean interrupted = false;
+        try {
+            while (receiver.isAlive()) {
+                try {
+                    receiver.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    pump.cancel();
+                }
+            }
+            try {
+                pump.finish();
+            } catch (IOException e) {
+                // a broken pipe is the result of libzfs failing, not the cause
+                if (!pump.brokenPipe || failure[0]==null)
+                    throw e;
+            }
+        } finally {
+            if (meter!=null)
+                meter.finish();
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
+        if (failure[0]!=null) {
+            if (pump.cancelled)
+                throw (InterruptedIOException)new InterruptedIOException("Cancelled receiving "+name).initCause(failure[0]);
+            throw failure[0];
+        }
+    }
 
-        final ZFSObject dataSet = open(dataSetName);
-        return dataSet;
+    /**
+     * Receives a stream produced by "zfs send" from the given stream, like "zfs receive".
+     *
+     * @see #receive(String, ReadableByteChannel, ZFSReceiveOptions)
+     */
+    public void receive(String name, InputStream in, ZFSReceiveOptions options) throws IOException {
+        receive(name, Channels.newChannel(in), options);
+    }
+
+    /**
+     * Receives a stream produced by "zfs send" from the given file, like "zfs receive &lt; file".
+     *
+     * <p>
+     * Unless a progress listener is given, libzfs reads the file directly,
+     * so the stream doesn't pass through Java at all.
+     */
+    public void receive(String name, File file, ZFSReceiveOptions options) throws IOException {
+        if (options!=null && options.listener!=null) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                receive(name, in.getChannel(), options);
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        int fd = LIBC.open(file.getPath(), libc.O_RDONLY, 0);
+        if (fd<0)
+            throw new IOException("Failed to open "+file+": errno="+Native.getLastError());
+        try {
+            receive(name, fd, options==null ? new ZFSReceiveOptions() : options);
+        } finally {
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Receives a stream from the given file descriptor on the calling thread.
+     */
+    /*package*/ void receive(String name, int fd, ZFSReceiveOptions options) {
+        // the receive may roll back or destroy the file system and its descendants
+        String fs = name.indexOf('@')<0 ? name : name.substring(0,name.indexOf('@'));
+        invalidate(fs);
+        try {
+            if (api.zfs_receive(getHandle(), name, options.toNative(), fd, null) != 0)
+                throw new ZFSException(this,"Failed to receive "+name);
+        } finally {
+            invalidate(fs);
+            // libzfs mounts what it receives
+            mountsChanged();
+        }
     }
 
     /**
@@ -218,9 +551,16 @@ public class LibZFS implements ZFSContainer {
      * @return opened dataset, or null if no such dataset exists.
      */
     public ZFSObject open(final String dataSetName, final int /* zfs_type_t */mask) {
-        zfs_handle_t h = LIBZFS.zfs_open(handle, dataSetName, mask);
+        zfs_handle_t h = datasets.acquire(dataSetName);
+        if (h!=null && (libzfs_direct.zfs_get_type(api, h)&mask)==0) {
+            // let libzfs report the type mismatch in its usual way
+            datasets.release(h);
+            h = null;
+        }
+        if (h==null)
+            h = libzfs_direct.zfs_open(api, getHandle(), dataSetName, mask);
         if(h==null) {
-            int err = LIBZFS.libzfs_errno(handle);
+            int err = libzfs_direct.libzfs_errno(api, getHandle());
             if(err==0)  return null;
             throw new ZFSException(this);
         }
@@ -239,15 +579,227 @@ public class LibZFS implements ZFSContainer {
      *
      * @return
      *      null if no such file system exists.
+     * @see ZFSMountIndex#getDataset(File)
      */
     public ZFSFileSystem getFileSystemByMountPoint(File dir) {
-        dir = dir.getAbsoluteFile();
-        for (ZFSFileSystem f : descendants(ZFSFileSystem.class)) {
-            File mp = f.getMountPoint();
-            if(mp!=null && mp.equals(dir))
-                return f;
+        return openFileSystem(getMountIndex().getDataset(dir));
+    }
+
+    /**
+     * Gets the {@link ZFSFileSystem} that the given file or directory is on.
+     *
+     * @return
+     *      null if the file isn't on a ZFS file system.
+     * @see ZFSMountIndex#findDataset(File)
+     */
+    public ZFSFileSystem getFileSystemContaining(File path) {
+        return openFileSystem(getMountIndex().findDataset(path));
+    }
+
+    private ZFSFileSystem openFileSystem(String name) {
+        if (name==null) return null;
+        ZFSObject o = open(name, ZFSType.FILESYSTEM.code);
+        return o instanceof ZFSFileSystem ? (ZFSFileSystem)o : null;
+    }
+
+    /**
+     * Gets the index of mounted ZFS file systems, creating it on the first call.
+     *
+     * <p>
+     * With {@link Concurrency#SHARED}, this also turns on the mount table cache of libzfs,
+     * which libzfs consults whenever it needs to know if a file system is mounted,
+     * and the index keeps that cache up to date. The index is then subject to the same threading
+     * rule as this library. With {@link Concurrency#PER_THREAD}, the index can be used by any thread.
+     */
+    public ZFSMountIndex getMountIndex() {
+        ZFSMountIndex m = mounts;
+        if (m==null) {
+            synchronized (this) {
+                m = mounts;
+                if (m==null)
+                    mounts = m = new ZFSMountIndex(api, handles.local==null ? getHandle() : null);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Gets the batched operations through libzfs_core, initializing it on the first call.
+     *
+     * <p>
+     * Operations done through it drop the cached handles of the affected datasets of this library.
+     * It's released when this library is closed.
+     *
+     * @throws UnsatisfiedLinkError
+     *      if the system doesn't have libzfs_core.
+     * @throws UnsupportedOperationException
+     *      if this library was created with another libzfs than {@link libzfs#LIBZFS}.
+     */
+    public LibZFSCore getCore() {
+        if (api!=LIBZFS)
+            throw new UnsupportedOperationException("libzfs_core can only be used along with the libzfs it belongs to");
+        LibZFSCore c = core;
+        if (c==null) {
+            synchronized (this) {
+                c = core;
+                if (c==null)
+                    core = c = new LibZFSCore(this);
+            }
         }
-        return null;
+        return c;
+    }
+
+    /**
+     * Gets the mount index if it's already been created.
+     */
+    /*package*/ ZFSMountIndex mounts() {
+        return mounts;
+    }
+
+    /**
+     * Marks the mount index, if any, out of date, after a file system may have been mounted or unmounted.
+     */
+    /*package*/ void mountsChanged() {
+        ZFSMountIndex m = mounts;
+        if (m!=null)
+            m.invalidate();
+    }
+
+    /**
+     * Gets the library that background and parallel operations started from this one run on.
+     *
+     * <p>
+     * That's this library itself if it uses {@link Concurrency#PER_THREAD}. Otherwise it's one
+     * in that mode created on first use, which is closed along with this library, together with
+     * the objects obtained from it. Its handles are pooled, so the number of handles is bounded
+     * by the number of threads working at the same time.
+     */
+    /*package*/ LibZFS workers() {
+        if (handles.local!=null)
+            return this;
+        LibZFS w = workers;
+        if (w==null) {
+            synchronized (workersCleanable) {
+                w = workers;
+                if (w==null) {
+                    w = new LibZFS(api, Concurrency.PER_THREAD);
+                    w.releaseThreadHandle();    // the calling thread doesn't use it itself
+                    workersCleanable[0] = w.cleanable;
+                    workers = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Fetches the given properties of many datasets at once.
+     *
+     * <p>
+     * Compared to calling {@link ZFSObject#getZfsProperty(Collection)} on each dataset,
+     * this reuses one native buffer for all the reads and returns the result in a compact table.
+     *
+     * @param datasets
+     *      Datasets to read the properties from. Each becomes a row, in the iteration order.
+     * @param props
+     *      Properties to read. Each becomes a column, in the iteration order.
+     * @return
+     *      Never null.
+     */
+    public ZFSPropertyTable getZfsProperties(Collection<? extends ZFSObject> datasets, Collection<zfs_prop_t> props) {
+        ZFSPropertyTable.Builder b = new ZFSPropertyTable.Builder(api, props);
+        for (ZFSObject o : datasets)
+            b.add(o.handle);
+        return b.build();
+    }
+
+    /**
+     * Fetches the given properties of all the datasets in a hierarchy in one pass, like "zfs get -d".
+     *
+     * <p>
+     * Unlike {@link #descendants()}, this doesn't create a {@link ZFSObject} for each dataset,
+     * and each native handle is closed right after its properties are read.
+     *
+     * @param root
+     *      Either this {@link LibZFS}, to walk all the pools, or a {@link ZFSObject}
+     *      to walk it and its descendants.
+     * @param depth
+     *      How many levels below the root to walk. 0 only reads the root itself
+     *      (or the top-level file system of each pool, if the root is {@link LibZFS}),
+     *      and -1 walks the whole hierarchy.
+     * @param types
+     *      Only datasets of these types become rows. Snapshots aren't even listed
+     *      unless {@link ZFSType#SNAPSHOT} is included.
+     * @param props
+     *      Properties to read. Each becomes a column, in the iteration order.
+     * @return
+     *      Never null. Rows are in the pre-order of the traversal.
+     */
+    public ZFSPropertyTable getZfsProperties(ZFSContainer root, int depth, Set<ZFSType> types, Collection<zfs_prop_t> props) {
+        ZFSPropertyTable.Builder b = new ZFSPropertyTable.Builder(api, props);
+        ZFSPropertyTable.Walker w = new ZFSPropertyTable.Walker(api, b, types, depth);
+        if (root instanceof ZFSObject)
+            w.walk(((ZFSObject)root).handle);
+        else
+            w.walkAll(getHandle());
+        return b.build();
+    }
+
+    /**
+     * Reads the user-defined properties of all the datasets in a hierarchy in one pass.
+     *
+     * <p>
+     * Like {@link #getZfsProperties(ZFSContainer, int, Set, Collection)}, no {@link ZFSObject} is created,
+     * and each native handle is closed right after its properties are decoded.
+     *
+     * @param root
+     *      Either this {@link LibZFS}, to walk all the pools, or a {@link ZFSObject}
+     *      to walk it and its descendants.
+     * @param depth
+     *      How many levels below the root to walk. -1 walks the whole hierarchy.
+     * @param types
+     *      Only datasets of these types are read.
+     * @return
+     *      Map from the dataset name to its properties, as {@link ZFSObject#getUserProperties()} returns them.
+     *      In the pre-order of the traversal. Never null.
+     */
+    public Map<String,Map<String,ZFSUserProperty>> getUserProperties(ZFSContainer root, int depth, Set<ZFSType> types) {
+        final Map<String,Map<String,ZFSUserProperty>> r = new LinkedHashMap<String,Map<String,ZFSUserProperty>>();
+        ZFSPropertyTable.Walker w = new ZFSPropertyTable.Walker(api, new ZFSPropertyTable.Sink() {
+            public void add(zfs_handle_t h) {
+                String name = libzfs_direct.zfs_get_name(api, h);
+                r.put(name, ZFSUserProperty.decode(name, api.zfs_get_user_props(h)));
+            }
+        }, types, depth);
+        if (root instanceof ZFSObject)
+            w.walk(((ZFSObject)root).handle);
+        else
+            w.walkAll(getHandle());
+        return r;
+    }
+
+    /**
+     * Reads the space accounting of all the datasets in a hierarchy in one pass.
+     *
+     * <p>
+     * Compared to calling {@link ZFSObject#getUsed()} and the like on each of {@link #descendants()},
+     * this reads the numeric properties directly from each handle, which is closed right after,
+     * and keeps them in primitive arrays. Totals and rankings are then computed from the report.
+     *
+     * @param root
+     *      Either this {@link LibZFS}, to read all the pools, or a {@link ZFSObject}
+     *      to read it and its descendants.
+     * @param snapshots
+     *      Whether snapshots are included in the report.
+     * @param threads
+     *      Number of threads to read the subtrees of the children of the root (or of the top-level
+     *      file system of each pool, if the root is {@link LibZFS}) in parallel. 1 reads everything
+     *      on the calling thread.
+     * @return
+     *      Never null.
+     */
+    public ZFSSpaceReport getSpaceReport(ZFSContainer root, boolean snapshots, int threads) throws InterruptedException {
+        return ZFSSpaceReport.read(this, root, snapshots, threads);
     }
 
     public List<ZFSFileSystem> children() {
@@ -278,26 +830,334 @@ public class LibZFS implements ZFSContainer {
      * <p>
      * If the caller wants to use methods that don't yet have a high-level
      * binding, the returned {@link libzfs_handle_t} can be used directly in
-     * conjunction with {@link libzfs#LIBZFS}.
+     * conjunction with {@link libzfs#LIBZFS}, or with the libzfs that this library was created with.
+     *
+     * <p>
+     * With {@link Concurrency#PER_THREAD}, this is the handle of the calling thread.
+     *
+     * @return null if this library is already disposed.
      */
     public libzfs_handle_t getHandle() {
-        return handle;
+        return handles.get();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        dispose();
+    /**
+     * With {@link Concurrency#PER_THREAD}, gives the handle of the calling thread back to the pool,
+     * for when the thread is done with this library, such as at the end of a task on a thread pool.
+     * The thread gets a handle from the pool again if it uses the library afterward.
+     *
+     * <p>
+     * The objects that the thread obtained remain usable, but another thread may now get the same
+     * handle, so they should be closed or handed over first, as the errors of their calls are
+     * recorded on that handle. Does nothing with {@link Concurrency#SHARED}.
+     */
+    public void releaseThreadHandle() {
+        handles.release();
+    }
+
+    /**
+     * Number of library handles opened so far and not yet closed.
+     */
+    /*package*/ int getHandleCount() {
+        return handles.count();
+    }
+
+    /**
+     * Gets a dataset handle, possibly from the cache. It needs to be given back via {@link #release(zfs_handle_t)}.
+     */
+    /*package*/ zfs_handle_t acquire(String dataSetName) {
+        return datasets.acquire(dataSetName);
+    }
+
+    /**
+     * Gives back a dataset handle that a {@link ZFSObject} no longer uses.
+     */
+    /*package*/ void release(zfs_handle_t h) {
+        datasets.release(h);
+    }
+
+    /**
+     * Gives back a pool handle that a {@link ZFSPool} no longer uses.
+     */
+    /*package*/ void release(zpool_handle_t h) {
+        zpools.release(h);
+    }
+
+    /**
+     * Looks up the code of a dataset property by name, for those that {@link zfs_prop_t} is too old to have.
+     *
+     * @return
+     *      Negative if libzfs doesn't have the property.
+     */
+    /*package*/ int getPropCode(String name) {
+        Integer c = propCodes.get(name);
+        if (c==null)
+            propCodes.put(name, c=api.zfs_name_to_prop(name));
+        return c;
+    }
+
+    /**
+     * Drops cached handles of the given dataset and its descendants,
+     * after it's been modified in a way that makes them stale.
+     */
+    /*package*/ void invalidate(String dataSetName) {
+        datasets.invalidate(dataSetName);
+    }
+
+    /**
+     * Properties whose change remounts a file system, or changes its mount options.
+     */
+    private static final Set<String> MOUNT_PROPERTIES = new HashSet<String>(Arrays.asList(
+        "mountpoint", "canmount", "readonly", "atime", "devices", "exec", "setuid", "xattr", "nbmand", "zoned"));
+
+    /**
+     * Drops cached handles of the given dataset and its descendants after a property has been set or inherited,
+     * and marks the mount index out of date if the property affects how they are mounted.
+     */
+    /*package*/ void propertyChanged(String dataSetName, String property) {
+        invalidate(dataSetName);
+        if (MOUNT_PROPERTIES.contains(property))
+            mountsChanged();
+    }
+
+    /**
+     * Drops the cached handle of the given pool and all its datasets.
+     */
+    /*package*/ void invalidatePool(String poolName) {
+        zpools.invalidate(poolName);
+        datasets.invalidate(poolName);
+    }
+
+    /*package*/ HandleCache<zfs_handle_t> datasetCache() {
+        return datasets;
+    }
+
+    /*package*/ HandleCache<zpool_handle_t> poolCache() {
+        return zpools;
+    }
+
+    /**
+     * Releasers of the objects that are still open, which {@link HandleReleaser} adds itself to.
+     */
+    /*package*/ Set<HandleReleaser> openObjects() {
+        return open;
     }
 
     /**
      * Eagerly releases the native resource associated with this wrapper,
      * instead of waiting for GC to take care of it.
+     *
+     * <p>
+     * All the {@link ZFSObject}s and {@link ZFSPool}s obtained from this library
+     * that are not yet closed are closed as well, and they must not be used afterward.
+     */
+    public void dispose() {
+        LibZFSCore c = core;
+        if (c!=null)
+            c.dispose();
+        cleanable.clean();
+    }
+
+    /**
+     * Synonym for {@link #dispose()}.
+     */
+    public void close() {
+        dispose();
+    }
+
+    /**
+     * Library handles of a {@link LibZFS}.
      */
-    public synchronized void dispose() {
-        if (handle != null) {
-            LIBZFS.libzfs_fini(handle);
-            handle = null;
+    private static final class Handles {
+        /**
+         * Handle of each thread, or null with {@link Concurrency#SHARED}.
+         */
+        final ThreadLocal<libzfs_handle_t> local;
+        /**
+         * The only handle with {@link Concurrency#SHARED}, or the first one.
+         */
+        private volatile libzfs_handle_t main;
+        /**
+         * All the handles that need to be closed, including {@link #main}.
+         */
+        private final List<libzfs_handle_t> all = new ArrayList<libzfs_handle_t>();
+        /**
+         * Handles in use, by the thread that uses them.
+         */
+        private final Map<Thread,libzfs_handle_t> leases = new HashMap<Thread,libzfs_handle_t>();
+        /**
+         * Handles not used by any thread.
+         */
+        private final List<libzfs_handle_t> idle = new ArrayList<libzfs_handle_t>();
+        private final libzfs api;
+
+        Handles(libzfs api, boolean perThread) {
+            this.api = api;
+            main = init();
+            all.add(main);
+            if (perThread) {
+                local = new ThreadLocal<libzfs_handle_t>();
+                local.set(main);
+                leases.put(Thread.currentThread(),main);
+            } else {
+                local = null;
+            }
+        }
+
+        private libzfs_handle_t init() {
+            libzfs_handle_t h = api.libzfs_init();
+            if (h==null)
+                throw new LinkageError("Failed to initialize libzfs");
+            return h;
+        }
+
+        libzfs_handle_t get() {
+            if (local==null || main==null)
+                return main;
+            libzfs_handle_t h = local.get();
+            if (h==null) {
+                h = lease();
+                if (h!=null)
+                    local.set(h);
+            }
+            return h;
+        }
+
+        /**
+         * Takes an idle handle, after reclaiming those of the threads that have terminated,
+         * or opens a new one.
+         */
+        private libzfs_handle_t lease() {
+            synchronized (this) {
+                if (main==null)
+                    return null;    // closed
+                for (Iterator<Map.Entry<Thread,libzfs_handle_t>> itr = leases.entrySet().iterator(); itr.hasNext(); ) {
+                    Map.Entry<Thread,libzfs_handle_t> e = itr.next();
+                    if (!e.getKey().isAlive()) {
+                        idle.add(e.getValue());
+                        itr.remove();
+                    }
+                }
+                if (!idle.isEmpty()) {
+                    libzfs_handle_t h = idle.remove(idle.size()-1);
+                    leases.put(Thread.currentThread(),h);
+                    return h;
+                }
+            }
+
+            libzfs_handle_t h = init();
+            synchronized (this) {
+                if (main==null) {
+                    // closed in the mean time
+                    api.libzfs_fini(h);
+                    return null;
+                }
+                all.add(h);
+                leases.put(Thread.currentThread(),h);
+            }
+            return h;
+        }
+
+        void release() {
+            if (local==null)
+                return;
+            libzfs_handle_t h = local.get();
+            if (h==null)
+                return;
+            local.remove();
+            synchronized (this) {
+                if (main!=null && leases.remove(Thread.currentThread())!=null)
+                    idle.add(h);
+            }
+        }
+
+        synchronized int count() {
+            return all.size();
+        }
+
+        synchronized void fini() {
+            for (libzfs_handle_t h : all)
+                api.libzfs_fini(h);
+            all.clear();
+            leases.clear();
+            idle.clear();
+            main = null;
+        }
+    }
+
+    private static final class DatasetHandleCache extends HandleCache<zfs_handle_t> {
+        private final libzfs api;
+        private final Handles lib;
+
+        DatasetHandleCache(libzfs api, Handles lib) {
+            this.api = api;
+            this.lib = lib;
+        }
+
+        protected zfs_handle_t open(String name) {
+            return libzfs_direct.zfs_open(api, lib.get(), name, zfs_type_t.DATASET);
+        }
+
+        protected void close(zfs_handle_t h) {
+            libzfs_direct.zfs_close(api, h);
+        }
+    }
+
+    private static final class PoolHandleCache extends HandleCache<zpool_handle_t> {
+        private final libzfs api;
+        private final Handles lib;
+
+        PoolHandleCache(libzfs api, Handles lib) {
+            this.api = api;
+            this.lib = lib;
+        }
+
+        protected zpool_handle_t open(String name) {
+            return api.zpool_open(lib.get(), name);
+        }
+
+        protected void close(zpool_handle_t h) {
+            api.zpool_close(h);
+        }
+    }
+
+    /**
+     * Releases everything that belongs to a {@link LibZFS}, then libzfs itself.
+     * Doesn't refer to the {@link LibZFS} object so that it can be run by {@link Cleaner}.
+     */
+    private static final class Fini implements Runnable {
+        private final Handles handles;
+        private final HandleCache<zfs_handle_t> datasets;
+        private final HandleCache<zpool_handle_t> zpools;
+        private final Set<HandleReleaser> open;
+        private final Cleaner.Cleanable[] workers;
+
+        Fini(Handles handles, HandleCache<zfs_handle_t> datasets, HandleCache<zpool_handle_t> zpools,
+             Set<HandleReleaser> open, Cleaner.Cleanable[] workers) {
+            this.handles = handles;
+            this.datasets = datasets;
+            this.zpools = zpools;
+            this.open = open;
+            this.workers = workers;
+        }
+
+        public void run() {
+            Cleaner.Cleanable w;
+            synchronized (workers) {
+                w = workers[0];
+            }
+            if (w!=null)
+                w.clean();
+
+            HandleReleaser[] objects;
+            synchronized (open) {
+                objects = open.toArray(new HandleReleaser[open.size()]);
+            }
+            for (HandleReleaser r : objects)
+                r.run();
+            datasets.clear();
+            zpools.clear();
+            handles.fini();
         }
     }
 }
@@ -0,0 +1,356 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
+import static org.jvnet.solaris.libzfs.jna.libzfs_core.LIBZFS_CORE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jvnet.solaris.jna.Cleaner;
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.libc.jna.libc;
+import org.jvnet.solaris.libzfs.jna.libzfs_core;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+import org.jvnet.solaris.nvlist.jna.nvpair_t;
+
+import com.sun.jna.Native;
+
+/**
+ * Batched and atomic operations through <tt>libzfs_core</tt>.
+ *
+ * <p>
+ * These go straight to the kernel by name. No dataset handle is opened and no property is read,
+ * so they are much cheaper than their {@link LibZFS} counterparts when many datasets are involved.
+ * Snapshots taken by one call to {@link #snapshot(Collection, Map)} are created in the same transaction group,
+ * so they are consistent with each other even if the datasets are unrelated.
+ *
+ * <p>
+ * libzfs_core requires all the datasets of one operation to be in the same pool. The methods here
+ * accept datasets from different pools and make one call per pool, so the atomicity only holds
+ * within each pool.
+ *
+ * <p>
+ * Obtain the instance from {@link LibZFS#getCore()}. Unlike {@link LibZFS}, this can be used
+ * from multiple threads at the same time.
+ */
+public final class LibZFSCore implements Closeable {
+    /**
+     * Flags of {@link LibZFSCore#send(String, String, int, Set)}.
+     */
+    public enum SendFlag {
+        /**
+         * Blocks that are small enough to be embedded in their block pointers are sent as such.
+         */
+        EMBED_DATA(libzfs_core.LZC_SEND_FLAG_EMBED_DATA),
+        /**
+         * Blocks larger than 128K are sent as they are.
+         */
+        LARGE_BLOCK(libzfs_core.LZC_SEND_FLAG_LARGE_BLOCK),
+        /**
+         * Compressed blocks are sent without decompressing them.
+         */
+        COMPRESS(libzfs_core.LZC_SEND_FLAG_COMPRESS),
+        /**
+         * Encrypted datasets are sent without decrypting them.
+         */
+        RAW(libzfs_core.LZC_SEND_FLAG_RAW);
+
+        private final int bit;
+
+        SendFlag(int bit) {
+            this.bit = bit;
+        }
+    }
+
+    private final LibZFS library;
+    private final Cleaner.Cleanable cleanable;
+
+    /*package*/ LibZFSCore(LibZFS library) {
+        int err = LIBZFS_CORE.libzfs_core_init();
+        if (err!=0)
+            throw error("Failed to initialize libzfs_core", err);
+        this.library = library;
+        this.cleanable = Cleaner.register(this, new Fini());
+    }
+
+    /**
+     * Checks if the dataset, snapshot, or bookmark of the given name exists.
+     */
+    public boolean exists(String name) {
+        return LIBZFS_CORE.lzc_exists(name);
+    }
+
+    /**
+     * Creates the given snapshots, like "zfs snapshot a@x b@y ...".
+     * The snapshots of each pool are created atomically, all of them or none.
+     *
+     * @param snapshots
+     *      Full names of the snapshots, in the form "dataset@snapshot".
+     * @param props
+     *      User properties to set on all of the snapshots. Can be null.
+     * @throws ZFSException
+     *      if the snapshots of some pool couldn't be created. Its message lists
+     *      the snapshots that caused the failure. The snapshots of the pools
+     *      that were processed before are left created.
+     */
+    public void snapshot(Collection<String> snapshots, Map<String,String> props) {
+        nvlist_t p = null;
+        try {
+            if (props!=null && !props.isEmpty()) {
+                p = nvlist_t.allocMap();
+                for (Map.Entry<String,String> e : props.entrySet())
+                    p.put(e.getKey(), e.getValue());
+            }
+            for (List<String> batch : byPool(snapshots)) {
+                nvlist_t snaps = toList(batch);
+                try {
+                    PtrByReference<nvlist_t> errlist = new PtrByReference<nvlist_t>();
+                    int err = LIBZFS_CORE.lzc_snapshot(snaps, p, errlist);
+                    if (err!=0)
+                        throw error("Failed to create snapshots", err, errlist);
+                } finally {
+                    snaps.dispose();
+                }
+            }
+        } finally {
+            if (p!=null)
+                p.dispose();
+        }
+    }
+
+    /**
+     * Destroys the given snapshots. The snapshots of each pool are destroyed atomically, all of them or none.
+     * Snapshots that don't exist are ignored.
+     *
+     * @param snapshots
+     *      Full names of the snapshots, in the form "dataset@snapshot".
+     * @param defer
+     *      If true, snapshots that are held or cloned are marked for destruction
+     *      once they no longer are, like "zfs destroy -d", instead of failing.
+     * @throws ZFSException
+     *      if the snapshots of some pool couldn't be destroyed. Its message lists
+     *      the snapshots that caused the failure. The snapshots of the pools
+     *      that were processed before are left destroyed.
+     */
+    public void destroySnapshots(Collection<String> snapshots, boolean defer) {
+        for (List<String> batch : byPool(snapshots)) {
+            for (String s : batch)
+                library.invalidate(s);
+            nvlist_t snaps = toList(batch);
+            try {
+                PtrByReference<nvlist_t> errlist = new PtrByReference<nvlist_t>();
+                int err = LIBZFS_CORE.lzc_destroy_snaps(snaps, defer, errlist);
+                if (err!=0)
+                    throw error("Failed to destroy snapshots", err, errlist);
+            } finally {
+                snaps.dispose();
+            }
+        }
+    }
+
+    /**
+     * Writes the stream representation of a snapshot into the given file descriptor, like "zfs send".
+     * Blocks until the whole stream is written.
+     *
+     * @param snapshot
+     *      Full name of the snapshot to send.
+     * @param from
+     *      Full name of an earlier snapshot or bookmark of the same dataset to send an incremental
+     *      stream from, or null to send a full stream.
+     * @param flags
+     *      Can be null for none.
+     */
+    public void send(String snapshot, String from, int fd, Set<SendFlag> flags) {
+        int f = 0;
+        if (flags!=null)
+            for (SendFlag flag : flags)
+                f |= flag.bit;
+        int err = LIBZFS_CORE.lzc_send(snapshot, from, fd, f);
+        if (err!=0)
+            throw error("Failed to send "+snapshot, err);
+    }
+
+    /**
+     * Writes the stream representation of a snapshot into the given file, like "zfs send > file".
+     *
+     * @see #send(String, String, int, Set)
+     */
+    public void send(String snapshot, String from, File file, Set<SendFlag> flags) throws IOException {
+        int fd = LIBC.open(file.getPath(), libc.O_WRONLY|libc.O_CREAT|libc.O_TRUNC, 0666);
+        if (fd<0)
+            throw new IOException("Failed to open "+file+": errno="+Native.getLastError());
+        try {
+            send(snapshot, from, fd, flags);
+        } finally {
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Receives a stream produced by "zfs send" from the given file descriptor, and creates the given snapshot from it.
+     *
+     * <p>
+     * libzfs_core only receives a single snapshot. Replication streams ("zfs send -R")
+     * need {@link LibZFS#receive(String, File, ZFSReceiveOptions)}.
+     *
+     * @param snapshot
+     *      Full name of the snapshot to create.
+     * @param origin
+     *      For a stream of a clone, the snapshot to clone from. Otherwise null.
+     * @param force
+     *      Rolls back the file system to its most recent snapshot before receiving an incremental stream,
+     *      like "zfs receive -F".
+     */
+    public void receive(String snapshot, String origin, boolean force, int fd) {
+        String fs = snapshot.substring(0, snapshot.indexOf('@'));
+        library.invalidate(fs);
+        try {
+            int err = LIBZFS_CORE.lzc_receive(snapshot, null, origin, force, false, fd);
+            if (err!=0)
+                throw error("Failed to receive "+snapshot, err);
+        } finally {
+            library.invalidate(fs);
+            // a forced receive rolls back, which unmounts and remounts
+            if (force)
+                library.mountsChanged();
+        }
+    }
+
+    /**
+     * Receives a stream produced by "zfs send" from the given file.
+     *
+     * @see #receive(String, String, boolean, int)
+     */
+    public void receive(String snapshot, String origin, boolean force, File file) throws IOException {
+        int fd = LIBC.open(file.getPath(), libc.O_RDONLY, 0);
+        if (fd<0)
+            throw new IOException("Failed to open "+file+": errno="+Native.getLastError());
+        try {
+            receive(snapshot, origin, force, fd);
+        } finally {
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Releases the reference to libzfs_core. This object can't be used after this.
+     */
+    public void dispose() {
+        cleanable.clean();
+    }
+
+    /**
+     * Synonym for {@link #dispose()}.
+     */
+    public void close() {
+        dispose();
+    }
+
+    /**
+     * Splits the names by the pool, keeping their order.
+     */
+    private static Collection<List<String>> byPool(Collection<String> names) {
+        Map<String,List<String>> r = new LinkedHashMap<String,List<String>>();
+        for (String n : names) {
+            int idx = 0;
+            while (idx<n.length() && n.charAt(idx)!='/' && n.charAt(idx)!='@')
+                idx++;
+            String pool = n.substring(0,idx);
+            List<String> l = r.get(pool);
+            if (l==null)
+                r.put(pool, l=new ArrayList<String>());
+            l.add(n);
+        }
+        return r.values();
+    }
+
+    private static nvlist_t toList(List<String> names) {
+        nvlist_t l = nvlist_t.allocMap();
+        for (String n : names)
+            l.put(n, true);
+        return l;
+    }
+
+    private static ZFSException error(String message, int errno) {
+        return new ZFSException(message+" : "+LIBC.strerror(errno), toErrorCode(errno));
+    }
+
+    /**
+     * Builds the exception for a failed batch, naming the datasets that libzfs_core reported in the error list,
+     * and frees the list.
+     */
+    private static ZFSException error(String message, int errno, PtrByReference<nvlist_t> errlist) {
+        nvlist_t l = errlist.getValue(nvlist_t.class);
+        if (l==null)
+            return error(message, errno);
+
+        StringBuilder b = new StringBuilder(message);
+        try {
+            String sep = " : ";
+            for (nvpair_t p : l) {
+                b.append(sep);
+                sep = ", ";
+                if (p.getName().equals("N_MORE_ERRORS"))
+                    b.append("and ").append(p.longValue()).append(" more");
+                else
+                    b.append(p.getName()).append(" (").append(LIBC.strerror((int)p.longValue())).append(')');
+            }
+        } finally {
+            l.free();
+        }
+        return new ZFSException(b.toString(), toErrorCode(errno));
+    }
+
+    /**
+     * Maps errno values to the closest libzfs error codes.
+     */
+    private static ErrorCode toErrorCode(int errno) {
+        switch (errno) {
+        case libc.EPERM:
+        case libc.EACCES:   return ErrorCode.EZFS_PERM;
+        case libc.ENOENT:   return ErrorCode.EZFS_NOENT;
+        case libc.EINTR:    return ErrorCode.EZFS_INTR;
+        case libc.EIO:      return ErrorCode.EZFS_IO;
+        case libc.ENOMEM:   return ErrorCode.EZFS_NOMEM;
+        case libc.EBUSY:    return ErrorCode.EZFS_BUSY;
+        case libc.EEXIST:   return ErrorCode.EZFS_EXISTS;
+        case libc.EXDEV:    return ErrorCode.EZFS_CROSSTARGET;
+        case libc.ENOSPC:   return ErrorCode.EZFS_NOSPC;
+        case libc.EROFS:    return ErrorCode.EZFS_DSREADONLY;
+        default:            return ErrorCode.EZFS_UNKNOWN;
+        }
+    }
+
+    private static final class Fini implements Runnable {
+        public void run() {
+            LIBZFS_CORE.libzfs_core_fini();
+        }
+    }
+}
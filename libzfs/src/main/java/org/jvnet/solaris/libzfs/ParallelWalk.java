@@ -0,0 +1,182 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Walks a dataset hierarchy by handing each dataset to an {@link Executor} as a separate task,
+ * so that independent subtrees are listed concurrently.
+ *
+ * <p>
+ * A libzfs handle can't be shared between threads, so the walk uses the {@link LibZFS#workers()} library
+ * of the root, in the {@link LibZFS.Concurrency#PER_THREAD} mode, and each task opens the dataset it's given by name.
+ * Each task gives its thread's handle back when it's done, so an executor that runs many tasks
+ * doesn't hold on to more handles than it runs tasks at the same time. The results are put back
+ * in the same order as {@link ZFSContainer#descendants(Class)} once all the tasks are done.
+ *
+ * @see ZFSTraversal#collect(Executor)
+ */
+/*package*/ final class ParallelWalk<T extends ZFSObject> {
+    private final Class<T> type;
+    private final int maxDepth;
+    private final boolean snapshots;
+    private final Executor executor;
+
+    /**
+     * Gives each worker thread its own library handle.
+     */
+    private LibZFS library;
+
+    /**
+     * Number of tasks submitted but not yet completed.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile RuntimeException error;
+
+    /**
+     * A dataset in the result tree.
+     */
+    private static final class Node {
+        /**
+         * Null for the node that represents all the pools.
+         */
+        final String name;
+        final int depth;
+        ZFSObject self;
+        List<ZFSSnapshot> snapshots = Collections.emptyList();
+        List<Node> children = Collections.emptyList();
+
+        Node(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    /*package*/ ParallelWalk(Class<T> type, int maxDepth, Executor executor) {
+        this.type = type;
+        this.maxDepth = maxDepth;
+        this.snapshots = type.isAssignableFrom(ZFSSnapshot.class);
+        this.executor = executor;
+    }
+
+    /*package*/ List<T> run(ZFSContainer root) throws InterruptedException {
+        library = (root instanceof LibZFS ? (LibZFS)root : ((ZFSObject)root).library).workers();
+        Node r = new Node(root instanceof ZFSObject ? ((ZFSObject)root).getName() : null, 0);
+        submit(r);
+        done.await();
+        if (error!=null)
+            throw error;
+
+        List<T> list = new ArrayList<T>();
+        flatten(r,list);
+        return list;
+    }
+
+    private void flatten(Node n, List<T> list) {
+        for (ZFSSnapshot s : n.snapshots)
+            list.add(type.cast(s));
+        for (Node c : n.children) {
+            if (c.self!=null)
+                list.add(type.cast(c.self));
+            flatten(c,list);
+        }
+    }
+
+    private void submit(final Node n) {
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (error==null)
+                            visit(n);
+                    } catch (RuntimeException e) {
+                        error = e;
+                    } finally {
+                        library.releaseThreadHandle();
+                        completed();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            error = e;
+            completed();
+        }
+    }
+
+    private void completed() {
+        if (pending.decrementAndGet()==0)
+            done.countDown();
+    }
+
+    /**
+     * Lists the snapshots and the children of the given dataset, and submits a task for each child.
+     */
+    private void visit(Node n) {
+        final List<String> names = new ArrayList<String>();
+        libzfs.zfs_iter_f collector = new libzfs.zfs_iter_f() {
+            public int callback(zfs_handle_t h, Pointer arg) {
+                names.add(libzfs_direct.zfs_get_name(library.api, h));
+                libzfs_direct.zfs_close(library.api, h);
+                return 0;
+            }
+        };
+        boolean descend = maxDepth<0 || n.depth<maxDepth;
+
+        if (n.name==null) {
+            if (descend)
+                libzfs_direct.zfs_iter_root(library.api, library.getHandle(), collector, null);
+        } else {
+            ZFSObject self = library.open(n.name);
+            if (self==null)     return; // destroyed while we are walking
+            if (descend && !(self instanceof ZFSSnapshot)) {
+                if (snapshots)
+                    n.snapshots = new ArrayList<ZFSSnapshot>(self.snapshots());
+                libzfs_direct.zfs_iter_filesystems(library.api, self.handle, collector, null);
+            }
+            if (n.depth>0 && type.isInstance(self))
+                n.self = self;
+            else
+                self.dispose();
+        }
+
+        List<Node> children = new ArrayList<Node>(names.size());
+        for (String name : names)
+            children.add(new Node(name, n.depth+1));
+        n.children = children;
+        for (Node c : children)
+            submit(c);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jvnet.solaris.libc.jna.libc;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+/**
+ * Moves a stream between a pipe that libzfs reads or writes and a Java channel, on its own thread.
+ *
+ * <p>
+ * libzfs send and receive block the calling thread until the whole stream is transferred,
+ * so the Java side of the stream has to be handled concurrently. The pump owns its end of the pipe,
+ * and closes it when it's done, or as soon as it fails, so that libzfs doesn't block on a pipe
+ * that nobody is reading.
+ */
+/*package*/ abstract class StreamPump extends Thread {
+    /**
+     * Size of the transfer buffer. The pipe itself holds much less than this,
+     * so this is large enough to take whatever is there in one system call.
+     */
+    private static final int BUFFER_SIZE = 128*1024;
+
+    /**
+     * The end of the pipe that this pump uses.
+     */
+    protected final int fd;
+
+    /**
+     * Number of bytes transferred so far.
+     */
+    /*package*/ final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Direct, so that the data goes between the pipe and the channel without being copied onto the Java heap.
+     */
+    protected final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile IOException error;
+
+    protected StreamPump(String name, int fd) {
+        super(name);
+        setDaemon(true);
+        this.fd = fd;
+    }
+
+    @Override
+    public final void run() {
+        try {
+            pump();
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = (IOException)new IOException(e.getMessage()).initCause(e);
+        } finally {
+            LIBC.close(fd);
+        }
+    }
+
+    protected abstract void pump() throws IOException;
+
+    /**
+     * Waits for the pump to finish.
+     *
+     * @throws IOException
+     *      if the pump failed.
+     */
+    /*package*/ void finish() throws IOException {
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (error!=null)
+            throw error;
+    }
+
+    /**
+     * Creates a pipe.
+     *
+     * @return
+     *      The read end, then the write end.
+     */
+    /*package*/ static int[] pipe() throws IOException {
+        int[] fds = new int[2];
+        if (LIBC.pipe(fds)!=0)
+            throw new IOException("pipe failed: errno="+Native.getLastError());
+        return fds;
+    }
+
+    /**
+     * Copies what's written to the pipe into a channel.
+     */
+    /*package*/ static final class Drain extends StreamPump {
+        private final WritableByteChannel out;
+
+        /*package*/ Drain(int fd, WritableByteChannel out) {
+            super("ZFS stream reader", fd);
+            this.out = out;
+        }
+
+        protected void pump() throws IOException {
+            while (true) {
+                buf.clear();
+                long n = LIBC.read(fd, buf, new NativeLong(buf.capacity())).longValue();
+                if (n<0) {
+                    int errno = Native.getLastError();
+                    if (errno==libc.EINTR)
+                        continue;
+                    throw new IOException("read failed: errno="+errno);
+                }
+                if (n==0)
+                    return;     // EOF
+                buf.limit((int)n);
+                while (buf.hasRemaining())
+                    out.write(buf);
+                bytes.addAndGet(n);
+            }
+        }
+    }
+
+    /**
+     * Copies a channel into the pipe.
+     */
+    /*package*/ static final class Fill extends StreamPump {
+        private final ReadableByteChannel in;
+        /**
+         * Set by {@link #cancel()}.
+         */
+        /*package*/ volatile boolean cancelled;
+        /**
+         * Set if the reader has closed the pipe, which happens when libzfs rejects the stream.
+         */
+        /*package*/ volatile boolean brokenPipe;
+
+        /*package*/ Fill(ReadableByteChannel in, int fd) {
+            super("ZFS stream writer", fd);
+            this.in = in;
+        }
+
+        /**
+         * Stops the transfer by closing the channel, which fails the read that the pump is blocked in, if any.
+         * The pump then closes the pipe early, which makes libzfs fail on a truncated stream.
+         */
+        /*package*/ void cancel() {
+            cancelled = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the channel is unusable either way
+            }
+        }
+
+        protected void pump() throws IOException {
+            while (true) {
+                buf.clear();
+                try {
+                    if (in.read(buf)<0)
+                        return;
+                } catch (IOException e) {
+                    if (cancelled)
+                        return;
+                    throw e;
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    // JNA passes the address of the buffer itself, not that of its position
+                    ByteBuffer b = buf.slice();
+                    long n = LIBC.write(fd, b, new NativeLong(b.remaining())).longValue();
+                    if (n<0) {
+                        int errno = Native.getLastError();
+                        if (errno==libc.EINTR)
+                            continue;
+                        if (errno==libc.EPIPE)
+                            brokenPipe = true;
+                        throw new IOException("write failed: errno="+errno);
+                    }
+                    buf.position(buf.position()+(int)n);
+                    bytes.addAndGet(n);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.io.File;
+
+/**
+ * Reports the progress of a transfer to {@link ZFSTransferListener} at a fixed interval.
+ */
+/*package*/ abstract class TransferMeter extends Thread {
+    private final ZFSTransferListener listener;
+    private final long interval;
+    private volatile boolean done;
+    /**
+     * As of the last report.
+     */
+    private long last, lastTime = System.currentTimeMillis();
+
+    /*package*/ TransferMeter(ZFSTransferListener listener, long interval) {
+        super("ZFS transfer progress");
+        setDaemon(true);
+        this.listener = listener;
+        this.interval = interval;
+    }
+
+    /**
+     * Number of bytes transferred so far.
+     */
+    protected abstract long bytes();
+
+    /**
+     * Starts reporting the byte count of the given pump.
+     *
+     * @return null if the listener is null.
+     */
+    /*package*/ static TransferMeter start(ZFSTransferListener listener, long interval, final StreamPump pump) {
+        if (listener==null)
+            return null;
+        TransferMeter m = new TransferMeter(listener, interval) {
+            protected long bytes() {
+                return pump.bytes.get();
+            }
+        };
+        m.start();
+        return m;
+    }
+
+    /**
+     * Starts reporting the size of the given file.
+     *
+     * @return null if the listener is null.
+     */
+    /*package*/ static TransferMeter start(ZFSTransferListener listener, long interval, final File file) {
+        if (listener==null)
+            return null;
+        TransferMeter m = new TransferMeter(listener, interval) {
+            protected long bytes() {
+                return file.length();
+            }
+        };
+        m.start();
+        return m;
+    }
+
+    @Override
+    public void run() {
+        while (!done) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // woken up by finish()
+            }
+            if (!done)
+                report();
+        }
+        report();
+    }
+
+    private void report() {
+        long b = bytes(), t = System.currentTimeMillis();
+        listener.progress(b, t>lastTime ? (b-last)*1000/(t-lastTime) : 0);
+        last = b;
+        lastTime = t;
+    }
+
+    /**
+     * Makes the final report and waits for it.
+     */
+    /*package*/ void finish() {
+        done = true;
+        interrupt();
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
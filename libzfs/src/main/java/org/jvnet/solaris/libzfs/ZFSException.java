@@ -20,8 +20,8 @@
  */
 package org.jvnet.solaris.libzfs;
 
-import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
-
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
 import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
 
 /**
@@ -42,11 +42,51 @@ public class ZFSException extends RuntimeException {
         this(zfs,null);
     }
 
+    /**
+     * For failures of calls that took {@link LibZFS#getHandle()}, made on the current thread.
+     */
     /*package*/ ZFSException(LibZFS zfs, String message) {
-        super((message==null?"":message+" : ")+LIBZFS.libzfs_error_description(zfs.getHandle()));
+        this(zfs.api,zfs.getHandle(),message);
+    }
+
+    /* package */ZFSException(ZFSObject dataset) {
+        this(dataset,null);
+    }
+
+    /**
+     * For failures of calls that took the handle of the given dataset.
+     * libzfs records the error on the library handle that the dataset was opened with,
+     * which isn't necessarily the one of the current thread.
+     */
+    /*package*/ ZFSException(ZFSObject dataset, String message) {
+        this(dataset.library.api,dataset.library.api.zfs_get_handle(dataset.handle),message);
+    }
+
+    /* package */ZFSException(ZFSPool pool) {
+        this(pool,null);
+    }
+
+    /**
+     * For failures of calls that took the handle of the given pool.
+     */
+    /*package*/ ZFSException(ZFSPool pool, String message) {
+        this(pool.library.api,pool.library.api.zpool_get_handle(pool.handle),message);
+    }
 
-        final libzfs_handle_t h = zfs.getHandle();
-        code = ErrorCode.fromCode(LIBZFS.libzfs_errno(h));
+    /**
+     * For failures recorded on the given handle of the given library.
+     */
+    /*package*/ ZFSException(libzfs api, libzfs_handle_t h, String message) {
+        super((message==null?"":message+" : ")+api.libzfs_error_description(h));
+        code = ErrorCode.fromCode(libzfs_direct.libzfs_errno(api,h));
+    }
+
+    /**
+     * For failures that weren't reported through a library handle, such as those of libzfs_core.
+     */
+    /*package*/ ZFSException(String message, ErrorCode code) {
+        super(message);
+        this.code = code;
     }
 
     /**
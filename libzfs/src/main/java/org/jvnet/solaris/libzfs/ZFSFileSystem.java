@@ -20,8 +20,6 @@
  */
 package org.jvnet.solaris.libzfs;
 
-import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
-
 import java.io.File;
 
 import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
@@ -41,10 +39,16 @@ public final class ZFSFileSystem extends ZFSObject {
     /**
      * Is this dataset mounted.
      *
+     * <p>
+     * Once {@link LibZFS#getMountIndex()} has been used, this is answered from the index.
+     *
      * @return is dataset mounted.
      */
     public boolean isMounted() {
-        final boolean isMounted = LIBZFS.zfs_is_mounted(handle, null);
+        ZFSMountIndex mounts = library.mounts();
+        if (mounts!=null)
+            return mounts.isMounted(getName());
+        final boolean isMounted = library.api.zfs_is_mounted(handle, null);
         return isMounted;
     }
 
@@ -86,8 +90,10 @@ public final class ZFSFileSystem extends ZFSObject {
      *      See {@link MountFlags}.
      */
     public void mount(int flags) {
-        if (LIBZFS.zfs_mount(handle, null, flags) != 0)
-            throw new ZFSException(library,"Failed to mount "+getName());
+        int r = library.api.zfs_mount(handle, null, flags);
+        library.mountsChanged();
+        if (r != 0)
+            throw new ZFSException(this,"Failed to mount "+getName());
     }
 
     /**
@@ -104,8 +110,10 @@ public final class ZFSFileSystem extends ZFSObject {
      *      See {@link MountFlags}.
      */
     public void unmount(int flags) {
-        if (LIBZFS.zfs_unmount(handle, null, flags) != 0) {
-            throw new ZFSException(library,"Failed to unmount "+getName());
+        int r = library.api.zfs_unmount(handle, null, flags);
+        library.mountsChanged();
+        if (r != 0) {
+            throw new ZFSException(this,"Failed to unmount "+getName());
         }
     }
 
@@ -113,8 +121,8 @@ public final class ZFSFileSystem extends ZFSObject {
      * Share this dataset.
      */
     public void share() {
-        if (LIBZFS.zfs_share(handle) != 0) {
-            throw new ZFSException(library);
+        if (library.api.zfs_share(handle) != 0) {
+            throw new ZFSException(this);
         }
     }
 
@@ -122,8 +130,8 @@ public final class ZFSFileSystem extends ZFSObject {
      * Unshare this dataset.
      */
     public void unshare() {
-        if (LIBZFS.zfs_unshare(handle) != 0) {
-            throw new ZFSException(library);
+        if (library.api.zfs_unshare(handle) != 0) {
+            throw new ZFSException(this);
         }
     }
 }
@@ -0,0 +1,303 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
+
+/**
+ * In-memory index of the ZFS file systems that are currently mounted, built from the system mount table.
+ *
+ * <p>
+ * Lookups are hash table lookups, so they don't depend on the number of datasets, and
+ * they don't make any system calls except for an occasional check of whether the mount table has changed.
+ * When it has, the table is read again and only the differences are applied to the index.
+ *
+ * <p>
+ * Obtain the instance from {@link LibZFS#getMountIndex()}.
+ */
+public final class ZFSMountIndex {
+    /**
+     * Solaris keeps the mount table in /etc/mnttab, Linux in /proc/self/mounts.
+     */
+    private static final File[] TABLES = {new File("/etc/mnttab"), new File("/proc/self/mounts")};
+
+    private final File table;
+
+    /**
+     * If non-null, libzfs' own mount table cache in this handle is kept in sync with the index.
+     */
+    private final libzfs_handle_t libzfs;
+    private final libzfs api;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Dataset name to mount point, and mount point to dataset name.
+     */
+    private final Map<String,Mount> byDataset = new HashMap<String,Mount>();
+    private final Map<String,Mount> byMountPoint = new HashMap<String,Mount>();
+
+    private volatile long maxAge = 1000;
+    private volatile long lastChecked;
+    private volatile boolean stale = true;
+    private long lastModified, length;
+
+    private static final class Mount {
+        final String dataset, mountPoint, options;
+
+        Mount(String dataset, String mountPoint, String options) {
+            this.dataset = dataset;
+            this.mountPoint = mountPoint;
+            this.options = options;
+        }
+
+        boolean sameAs(Mount that) {
+            return mountPoint.equals(that.mountPoint) && options.equals(that.options);
+        }
+    }
+
+    /**
+     * @param api
+     *      The libzfs of the handle.
+     * @param libzfs
+     *      If non-null, the mount table cache of this library handle is turned on,
+     *      and kept up to date with the index.
+     */
+    /*package*/ ZFSMountIndex(libzfs api, libzfs_handle_t libzfs) {
+        File t = TABLES[0];
+        for (File f : TABLES) {
+            if (f.exists()) {
+                t = f;
+                break;
+            }
+        }
+        this.table = t;
+        this.api = api;
+        this.libzfs = libzfs;
+        if (libzfs!=null)
+            api.libzfs_mnttab_cache(libzfs, true);
+    }
+
+    /**
+     * Sets how long, in milliseconds, the index may go without checking the mount table for changes.
+     * Mounts and unmounts done through {@link LibZFS} are noticed right away regardless.
+     * 0 checks on every lookup. The default is 1000.
+     */
+    public void setMaxAge(long millis) {
+        this.maxAge = millis;
+    }
+
+    /**
+     * Gets the name of the file system mounted at the given directory.
+     *
+     * @return null if no ZFS file system is mounted there.
+     */
+    public String getDataset(File mountPoint) {
+        check();
+        lock.readLock().lock();
+        try {
+            Mount m = byMountPoint.get(mountPoint.getAbsolutePath());
+            return m==null ? null : m.dataset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the name of the file system that contains the given file or directory,
+     * which is the one mounted at the nearest ancestor.
+     *
+     * <p>
+     * The path is taken literally. Symbolic links are not resolved,
+     * so use {@link File#getCanonicalFile()} first if the path may contain them.
+     *
+     * @return null if the file isn't on a ZFS file system.
+     */
+    public String findDataset(File path) {
+        check();
+        lock.readLock().lock();
+        try {
+            for (File f = path.getAbsoluteFile(); f!=null; f=f.getParentFile()) {
+                Mount m = byMountPoint.get(f.getPath());
+                if (m!=null)
+                    return m.dataset;
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets where the given file system is mounted.
+     *
+     * @return null if it's not mounted.
+     */
+    public File getMountPoint(String dataset) {
+        check();
+        lock.readLock().lock();
+        try {
+            Mount m = byDataset.get(dataset);
+            return m==null ? null : new File(m.mountPoint);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isMounted(String dataset) {
+        return getMountPoint(dataset)!=null;
+    }
+
+    /**
+     * Makes the next lookup read the mount table.
+     * {@link LibZFS} does this itself after it mounts or unmounts a file system,
+     * or changes a property that affects how one is mounted.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Reads the mount table now.
+     */
+    public void refresh() {
+        stale = true;
+        check();
+    }
+
+    /**
+     * Reads the mount table if it's time to see if it has changed.
+     */
+    private void check() {
+        long now = System.currentTimeMillis();
+        if (!stale && now-lastChecked<maxAge)
+            return;
+
+        lock.writeLock().lock();
+        try {
+            if (!stale && now-lastChecked<maxAge)
+                return;     // someone else did it
+            lastChecked = now;
+
+            // /etc/mnttab is updated on every mount and unmount, but /proc/self/mounts always looks new and empty
+            long lm = table.lastModified(), len = table.length();
+            if (!stale && len!=0 && lm==lastModified && len==length)
+                return;
+            load();
+            stale = false;
+            lastModified = lm;
+            length = len;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read "+table, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the mount table, and applies the differences to the index.
+     */
+    private void load() throws IOException {
+        Map<String,Mount> current = new HashMap<String,Mount>();
+        BufferedReader r = new BufferedReader(new FileReader(table));
+        try {
+            String line;
+            while ((line=r.readLine())!=null) {
+                Mount m = parse(line);
+                if (m!=null)
+                    current.put(m.dataset,m);
+            }
+        } finally {
+            r.close();
+        }
+
+        for (Iterator<Mount> itr = byDataset.values().iterator(); itr.hasNext();) {
+            Mount m = itr.next();
+            Mount n = current.get(m.dataset);
+            if (n==null || !n.sameAs(m)) {
+                itr.remove();
+                // the mount point may have been taken over by another file system that stays mounted
+                if (byMountPoint.get(m.mountPoint)==m)
+                    byMountPoint.remove(m.mountPoint);
+                if (libzfs!=null)
+                    api.libzfs_mnttab_remove(libzfs, m.dataset);
+            }
+        }
+        for (Mount n : current.values()) {
+            if (!byDataset.containsKey(n.dataset)) {
+                byDataset.put(n.dataset,n);
+                byMountPoint.put(n.mountPoint,n);
+                if (libzfs!=null) {
+                    // libzfs may have already added it by itself if it did the mounting
+                    api.libzfs_mnttab_remove(libzfs, n.dataset);
+                    api.libzfs_mnttab_add(libzfs, n.dataset, n.mountPoint, n.options);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a line of the mount table.
+     *
+     * @return null unless it's a ZFS file system.
+     */
+    private static Mount parse(String line) {
+        // Solaris separates fields by tabs, and Linux by spaces, escaping those in values as octal
+        boolean tabs = line.indexOf('\t')>=0;
+        String[] fields = line.split(tabs ? "\t" : " ");
+        if (fields.length<4 || !fields[2].equals("zfs"))
+            return null;
+        if (tabs)
+            return new Mount(fields[0],fields[1],fields[3]);
+        return new Mount(unescape(fields[0]),unescape(fields[1]),unescape(fields[3]));
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\')<0)
+            return s;
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c=='\\' && i+3<s.length()) {
+                try {
+                    b.append((char)Integer.parseInt(s.substring(i+1,i+4),8));
+                    i+=3;
+                    continue;
+                } catch (NumberFormatException e) {
+                    // not an escape
+                }
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+}
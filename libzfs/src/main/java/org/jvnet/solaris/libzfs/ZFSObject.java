@@ -20,18 +20,20 @@
  */
 package org.jvnet.solaris.libzfs;
 
-import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
-
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
 
+import org.jvnet.solaris.jna.Cleaner;
 import org.jvnet.solaris.libzfs.ACLBuilder.PermissionBuilder;
 import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
 import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
 import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
 import org.jvnet.solaris.libzfs.jna.zfs_type_t;
@@ -40,18 +42,33 @@ import org.jvnet.solaris.nvlist.jna.nvlist_t;
 import com.sun.jna.Memory;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
-import com.sun.jna.ptr.IntByReference;
 
 /**
  * Represents ZFS snapshot, file system, volume, or pool.
+ *
+ * <p>
+ * Each object holds a native handle, which should be released by calling {@link #close()}
+ * when the object is no longer needed. This matters when traversing a large number of datasets.
  * 
  * @author Kohsuke Kawaguchi
  */
-public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
+public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer, Closeable {
 
     /*package*/ final LibZFS library;
     /*package*/ zfs_handle_t handle;
     private final String name;
+    /**
+     * Cached value of {@link zfs_prop_t#ZFS_PROP_CREATETXG}, or -1 if not yet read.
+     * This never changes during the lifetime of a dataset, so it's safe to keep.
+     */
+    private long createTxg = -1;
+    /**
+     * Decoded user-defined properties, or null if not yet read or changed since.
+     */
+    private volatile Map<String,ZFSUserProperty> userProps;
+
+    private final HandleReleaser releaser;
+    private final Cleaner.Cleanable cleanable;
 
     ZFSObject(final LibZFS library, final zfs_handle_t handle) {
         this.library = library;
@@ -59,14 +76,16 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
             throw new ZFSException(library);
         }
         this.handle = handle;
-        this.name = LIBZFS.zfs_get_name(this.handle);
+        this.name = libzfs_direct.zfs_get_name(library.api, this.handle);
+        this.releaser = new HandleReleaser(library, handle);
+        this.cleanable = Cleaner.register(this, releaser);
     }
 
     /**
      * Instantiate the right subtype.
      */
     /*package*/ static ZFSObject create(LibZFS parent, zfs_handle_t handle) {
-        switch (ZFSType.fromCode(LIBZFS.zfs_get_type(handle))) {
+        switch (ZFSType.fromCode(libzfs_direct.zfs_get_type(parent.api, handle))) {
         case FILESYSTEM:    return new ZFSFileSystem(parent,handle);
         case SNAPSHOT:      return new ZFSSnapshot(parent,handle);
         case VOLUME:        return new ZFSVolume(parent,handle);
@@ -90,9 +109,28 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
         return library.getPool(name.substring(0,idx));
     }
 
+    /**
+     * Gets the transaction group in which this dataset was created.
+     *
+     * <p>
+     * The value is read from libzfs once and then remembered, so this is cheap
+     * to call repeatedly (for example from {@link #compareTo(ZFSObject)}).
+     */
+    public long getCreateTxg() {
+        if (createTxg < 0)
+            createTxg = getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_CREATETXG);
+        return createTxg;
+    }
+
+    /**
+     * Orders datasets by their creation transaction group, then by name.
+     *
+     * <p>
+     * This doesn't call into libzfs once {@link #getCreateTxg()} has been read.
+     */
     public int compareTo(ZFSObject that) {
-        long a = Long.parseLong(this.getZfsProperty(zfs_prop_t.ZFS_PROP_CREATETXG));
-        long b = Long.parseLong(that.getZfsProperty(zfs_prop_t.ZFS_PROP_CREATETXG));
+        long a = this.getCreateTxg();
+        long b = that.getCreateTxg();
 
         if (a > b) {
             return 1;
@@ -100,7 +138,7 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
         if (a < b) {
             return -1;
         }
-        return 0;
+        return getName().compareTo(that.getName());
     }
 
     public List<ZFSObject> children() {
@@ -141,8 +179,8 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      * This method fails if this {@link ZFSObject} is not a snapshot.
      */
     public ZFSFileSystem clone(String fullDestinationName) {
-        if (LIBZFS.zfs_clone(handle, fullDestinationName, null) != 0)
-            throw new ZFSException(library);
+        if (library.api.zfs_clone(handle, fullDestinationName, null) != 0)
+            throw new ZFSException(this);
         ZFSFileSystem target = (ZFSFileSystem) library.open(fullDestinationName);
         // this behavior mimics "zfs clone"
         target.mount();
@@ -201,7 +239,7 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
          * fullName,recursive, null)!=0) pre-nv96 prototype:
          * if(LIBZFS.zfs_snapshot(library.getHandle(), fullName,recursive)!=0)
          */
-        if (LIBZFS.zfs_snapshot(library.getHandle(), fullName, recursive, null) != 0) {
+        if (library.api.zfs_snapshot(library.getHandle(), fullName, recursive, null) != 0) {
             throw new ZFSException(library);
         }
 
@@ -231,8 +269,11 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      * {@link ErrorCode#EZFS_EXISTS}.
      */
     public void destroy() {
-        if (LIBZFS.zfs_destroy(handle,false/*?*/) != 0)
-            throw new ZFSException(library,"Failed to destroy "+getName());
+        library.invalidate(name);
+        if (this instanceof ZFSFileSystem)
+            library.mountsChanged();
+        if (library.api.zfs_destroy(handle,false/*?*/) != 0)
+            throw new ZFSException(this,"Failed to destroy "+getName());
     }
 
     /**
@@ -246,15 +287,163 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
         destroy();
     }
 
+    /**
+     * Destroys the snapshot of the given name of this dataset and of all its descendants
+     * that have one, like "zfs destroy -r dataset@snapshot".
+     *
+     * <p>
+     * The snapshots are destroyed in a single batched operation. If that fails,
+     * the remaining snapshots are destroyed one by one, so that one snapshot that
+     * can't be destroyed (because it's held or cloned, for example) doesn't keep
+     * the others around.
+     *
+     * @param snapshotName
+     *      Short name of the snapshot, without '@'.
+     * @return
+     *      Full names of the snapshots that couldn't be destroyed, and why.
+     *      Empty if all went well.
+     */
+    public Map<String,ZFSException> destroySnapshots(String snapshotName) {
+        library.invalidate(name);
+        if (library.api.zfs_destroy_snaps(handle,snapshotName,false)==0)
+            return new HashMap<String,ZFSException>();
+        ZFSException error = new ZFSException(this,"Failed to destroy "+name+'@'+snapshotName);
+
+        // list this dataset and its descendants breadth first
+        final List<String> names = new ArrayList<String>();
+        names.add(name);
+        libzfs.zfs_iter_f collector = new libzfs.zfs_iter_f() {
+            public int callback(zfs_handle_t h, Pointer arg) {
+                names.add(libzfs_direct.zfs_get_name(library.api, h));
+                libzfs_direct.zfs_close(library.api, h);
+                return 0;
+            }
+        };
+        for (int i=0; i<names.size(); i++) {
+            zfs_handle_t h = library.acquire(names.get(i));
+            if (h==null)    continue;   // destroyed in the mean time
+            try {
+                libzfs_direct.zfs_iter_filesystems(library.api, h,collector,null);
+            } finally {
+                library.release(h);
+            }
+        }
+
+        List<String> snapshots = new ArrayList<String>();
+        for (String n : names)
+            snapshots.add(n+'@'+snapshotName);
+        Map<String,ZFSException> failures = new HashMap<String,ZFSException>();
+        if (destroyEach(snapshots,failures)==0 && failures.isEmpty())
+            failures.put(name+'@'+snapshotName,error);   // there was nothing to destroy in the first place
+        return failures;
+    }
+
+    /**
+     * Destroys the given snapshots of this dataset.
+     *
+     * <p>
+     * Where libzfs supports it, the snapshots are destroyed in a single batched operation.
+     * If that fails, or isn't available, the remaining snapshots are destroyed one by one,
+     * and those that can't be destroyed are reported instead of stopping at the first failure.
+     * Snapshots that don't exist are ignored.
+     *
+     * @param snapshotNames
+     *      Either the short names of the snapshots, or their full names in the form "dataset@snapshot".
+     * @return
+     *      Full names of the snapshots that couldn't be destroyed, and why.
+     *      Empty if all went well.
+     */
+    public Map<String,ZFSException> destroySnapshots(Collection<String> snapshotNames) {
+        Map<String,ZFSException> failures = new HashMap<String,ZFSException>();
+        List<String> snapshots = new ArrayList<String>(snapshotNames.size());
+        for (String s : snapshotNames) {
+            int idx = s.indexOf('@');
+            if (idx<0)
+                s = name+'@'+s;
+            else if (!s.substring(0,idx).equals(name))
+                throw new IllegalArgumentException(s+" is not a snapshot of "+name);
+            snapshots.add(s);
+        }
+        if (snapshots.isEmpty())
+            return failures;
+
+        library.invalidate(name);
+        nvlist_t list = nvlist_t.allocMap();
+        try {
+            for (String s : snapshots)
+                list.put(s,true);
+            if (library.api.zfs_destroy_snaps_nvl(library.getHandle(),list,false)==0)
+                return failures;
+        } catch (UnsatisfiedLinkError e) {
+            // older libzfs. fall through
+        } finally {
+            list.dispose();
+        }
+
+        destroyEach(snapshots,failures);
+        return failures;
+    }
+
+    /**
+     * Destroys the given datasets one by one, those that still exist.
+     *
+     * @return
+     *      The number of datasets that existed.
+     */
+    private int destroyEach(List<String> names, Map<String,ZFSException> failures) {
+        int n=0;
+        for (String s : names) {
+            try {
+                if (!library.exists(s))
+                    continue;
+                ZFSObject o = library.open(s);
+                if (o==null)    continue;
+                n++;
+                try {
+                    o.destroy();
+                } finally {
+                    o.dispose();
+                }
+            } catch (ZFSException e) {
+                failures.put(s,e);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Eagerly releases the native handle of this object,
+     * instead of waiting for GC to take care of it.
+     * The object can't be used after this.
+     */
     public synchronized void dispose() {
         if (handle != null)
-            LIBZFS.zfs_close(handle);
+            cleanable.clean();
         handle = null;
     }
 
+    /**
+     * Synonym for {@link #dispose()}.
+     */
+    public void close() {
+        dispose();
+    }
+
+    /**
+     * Disposes all the given objects, such as the ones returned from {@link #descendants()}.
+     */
+    public static void dispose(Collection<? extends ZFSObject> objects) {
+        for (ZFSObject o : objects)
+            o.dispose();
+    }
+
+    /**
+     * Two objects are equal if they are the same type of dataset by the same name,
+     * regardless of the handles they hold, which the handle cache and {@link #inheritProperty(String)}
+     * may swap. This holds after {@link #dispose()}, too.
+     */
     @Override
     public final boolean equals(Object o) {
-        // todo would using zfs_prop_t.ZFS_PROP_CREATETXG be more accurate?
         if (this == o) {
             return true;
         }
@@ -263,13 +452,12 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
         }
 
         final ZFSObject zfsObject = (ZFSObject) o;
-        final boolean equals = handle.equals(zfsObject.handle);
-        return equals;
+        return name.equals(zfsObject.name);
     }
 
     public List<ZFSObject> filesystems() {
         final List<ZFSObject> r = new ArrayList<ZFSObject>();
-        LIBZFS.zfs_iter_filesystems(handle, new libzfs.zfs_iter_f() {
+        libzfs_direct.zfs_iter_filesystems(library.api, handle, new libzfs.zfs_iter_f() {
             public int callback(zfs_handle_t handle, Pointer arg) {
                 r.add(ZFSObject.create(library, handle));
                 return 0;
@@ -278,15 +466,9 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
         return r;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        dispose();
-        super.finalize();
-    }
-
     public List<ZFSObject> getChildren() {
         final List<ZFSObject> list = new ArrayList<ZFSObject>();
-        LIBZFS.zfs_iter_children(handle, new libzfs.zfs_iter_f() {
+        libzfs_direct.zfs_iter_children(library.api, handle, new libzfs.zfs_iter_f() {
             public int callback(zfs_handle_t handle, Pointer arg) {
                 list.add(ZFSObject.create(library, handle));
                 return 0;
@@ -308,19 +490,15 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      * Gets the type of this {@link ZFSObject}.
      */
     public ZFSType getType() {
-        return ZFSType.fromCode(LIBZFS.zfs_get_type(handle));
+        return ZFSType.fromCode(libzfs_direct.zfs_get_type(library.api, handle));
     }
 
     public Map<zfs_prop_t,String> getZfsProperty(Collection<zfs_prop_t> props) {
         Memory propbuf = new Memory(libzfs.ZFS_MAXPROPLEN);
-        char[] buf = null;
-        IntByReference ibr = null;
 
         Hashtable<zfs_prop_t, String> map = new Hashtable<zfs_prop_t, String>();
         for (zfs_prop_t prop : props) {
-            int ret = LIBZFS.zfs_prop_get(handle, new NativeLong(prop.ordinal()),
-                    propbuf, libzfs.ZFS_MAXPROPLEN, ibr, buf,
-                    new NativeLong(0), true);
+            int ret = libzfs_direct.zfs_prop_get(library.api, handle, prop.ordinal(), propbuf, MAXPROPLEN, true);
             if(ret==0)
                 map.put(prop, propbuf.getString(0));
         }
@@ -329,55 +507,156 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
 
     public String getZfsProperty(zfs_prop_t prop) {
         Memory propbuf = new Memory(libzfs.ZFS_MAXPROPLEN);
-        char[] buf = null;
-        IntByReference ibr = null;
+        int ret = libzfs_direct.zfs_prop_get(library.api, handle, prop.ordinal(), propbuf, MAXPROPLEN, true);
+        return ((ret != 0) ? null : propbuf.getString(0));
+    }
 
-        int ret = LIBZFS.zfs_prop_get(handle, new NativeLong(prop.ordinal()),
-                propbuf, libzfs.ZFS_MAXPROPLEN, ibr, buf,
-                new NativeLong(0), true);
+    private static final NativeLong MAXPROPLEN = new NativeLong(libzfs.ZFS_MAXPROPLEN);
 
-        return ((ret != 0) ? null : propbuf.getString(0));
+    /**
+     * Gets the value of a numeric property as an exact number, without formatting it to a string.
+     *
+     * <p>
+     * Sizes are in bytes, and times are in seconds since the epoch.
+     * Properties that don't apply to this dataset (like {@link zfs_prop_t#ZFS_PROP_VOLSIZE}
+     * of a file system) report 0, and so do quotas and reservations that are unset.
+     */
+    public long getZfsPropertyAsLong(zfs_prop_t prop) {
+        return libzfs_direct.zfs_prop_get_int(library.api, handle, prop.ordinal());
+    }
+
+    /**
+     * Gets the space consumed by this dataset and all its descendants, in bytes.
+     */
+    public long getUsed() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_USED);
     }
 
+    /**
+     * Gets the space available to this dataset and all its children, in bytes.
+     */
+    public long getAvailable() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_AVAILABLE);
+    }
+
+    /**
+     * Gets the amount of data accessible by this dataset, in bytes.
+     */
+    public long getReferenced() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_REFERENCED);
+    }
+
+    /**
+     * Gets the quota of this dataset in bytes, or 0 if there's none.
+     */
+    public long getQuota() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_QUOTA);
+    }
+
+    /**
+     * Gets the reservation of this dataset in bytes, or 0 if there's none.
+     */
+    public long getReservation() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_RESERVATION);
+    }
+
+    /**
+     * Gets the logical size of this volume in bytes, or 0 if this isn't a volume.
+     */
+    public long getVolumeSize() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_VOLSIZE);
+    }
+
+    /**
+     * Gets the time this dataset was created, in seconds since the epoch.
+     */
+    public long getCreation() {
+        return getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_CREATION);
+    }
+
+    /**
+     * Gets the globally unique identifier of this dataset.
+     *
+     * <p>
+     * A snapshot keeps its guid when it's sent and received elsewhere,
+     * so this tells whether two snapshots in different pools are the same one.
+     */
+    public long getGuid() {
+        int p = library.getPropCode("guid");
+        if (p<0)
+            throw new UnsupportedOperationException("This version of libzfs doesn't have the guid property");
+        return libzfs_direct.zfs_prop_get_int(library.api, handle, p);
+    }
+
+    /**
+     * Gets all the user-defined properties of this dataset, including inherited ones.
+     *
+     * <p>
+     * The properties are decoded from libzfs once, and then kept until they are changed
+     * through this object by {@link #setProperty(String, String)} or {@link #inheritProperty(String)}.
+     * Changes made elsewhere, including on an ancestor, are not seen by this object.
+     *
+     * @return
+     *      Unmodifiable map from the property name, sorted by the name. Never null.
+     * @see LibZFS#getUserProperties(ZFSContainer, int, java.util.Set)
+     */
+    public Map<String,ZFSUserProperty> getUserProperties() {
+        Map<String,ZFSUserProperty> r = userProps;
+        if (r==null)
+            userProps = r = ZFSUserProperty.decode(name, library.api.zfs_get_user_props(handle));
+        return r;
+    }
+
+    /**
+     * Gets the values of the given user-defined properties.
+     *
+     * @return
+     *      Properties that aren't set on this dataset or its ancestors are left out.
+     */
     public Hashtable<String, String> getUserProperty(Collection<String> keys) {
-        // don't we need to release userProps later?
+        Map<String,ZFSUserProperty> props = getUserProperties();
         Hashtable<String, String> map = new Hashtable<String, String>();
-
-        nvlist_t userProps = LIBZFS.zfs_get_user_props(handle);
         for (String key : keys) {
-            nvlist_t v = userProps.getNVList(key);
-            if (v == null)
-                return null;
-            map.put(key, v.getString("value"));
+            ZFSUserProperty p = props.get(key);
+            if (p!=null && p.getValue()!=null)
+                map.put(key, p.getValue());
         }
         return map;
     }
 
+    /**
+     * Gets the value of a user-defined property.
+     *
+     * @return
+     *      null if it's not set on this dataset or its ancestors.
+     */
     public String getUserProperty(String key) {
-        // don't we need to release userProps later?
-        nvlist_t userProps = LIBZFS.zfs_get_user_props(handle);
-        nvlist_t v = userProps.getNVList(key);
-        if (v == null)
-            return null;
-
-        return v.getString("value");
+        ZFSUserProperty p = getUserProperties().get(key);
+        return p==null ? null : p.getValue();
     }
 
     @Override
     public final int hashCode() {
-        return handle.hashCode();
+        return name.hashCode();
     }
 
     /**
      * Clears the given property on this dataset, causing it to be inherited from its parent.
      */
     public void inheritProperty(String key) {
-        if (LIBZFS.zfs_prop_inherit(handle, key) != 0)
-            throw new ZFSException(library);
+        if (library.api.zfs_prop_inherit(handle, key) != 0)
+            throw new ZFSException(this);
 
         // libzfs doesn't show us a new value until we reopen the handle, so do it now
-        dispose();
-        handle = LIBZFS.zfs_open(library.getHandle(), name, zfs_type_t.DATASET);
+        library.propertyChanged(name, key);
+        zfs_handle_t h = library.acquire(name);
+        if (h==null)
+            throw new ZFSException(library);
+        synchronized (this) {
+            releaser.replace(h);
+            handle = h;
+            userProps = null;
+        }
     }
 
     /**
@@ -386,7 +665,7 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      * @return is dataset shared.
      */
     public boolean isShared() {
-        final boolean isShared = LIBZFS.zfs_is_shared(handle);
+        final boolean isShared = library.api.zfs_is_shared(handle);
         return isShared;
     }
 
@@ -397,8 +676,11 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      *      {@link ZFSObject} representing the new renamed dataset.
      */
     public ZFSObject rename(String fullName, boolean recursive) {
-        if (LIBZFS.zfs_rename(handle, fullName, recursive) != 0)
-            throw new ZFSException(library);
+        library.invalidate(name);
+        library.invalidate(fullName);
+        library.mountsChanged();    // file systems are remounted under the new name
+        if (library.api.zfs_rename(handle, fullName, recursive) != 0)
+            throw new ZFSException(this);
 
         return library.open(fullName);
     }
@@ -427,8 +709,8 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
                 }
             }
         }
-        if (LIBZFS.zfs_rollback(fs.handle, handle, recursive) != 0)
-            throw new ZFSException(library);
+        if (library.api.zfs_rollback(fs.handle, handle, recursive) != 0)
+            throw new ZFSException(fs);
 
         return library.open(filesystem);
     }
@@ -437,24 +719,33 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      * Sets a user-defined property.
      */
     public void setProperty(String key, String value) {
-        if (LIBZFS.zfs_prop_set(handle, key, value) != 0)
-            throw new ZFSException(library,"Failed to set property "+key+" on "+getName());
+        if (library.api.zfs_prop_set(handle, key, value) != 0)
+            throw new ZFSException(this,"Failed to set property "+key+" on "+getName());
+        userProps = null;
+        // descendants may inherit this value
+        library.propertyChanged(name, key);
     }
 
     /**
      * Obtain all snapshots for this dataset.
+     *
+     * <p>
+     * The creation transaction group of each snapshot is read once while iterating,
+     * so sorting the returned set doesn't make any further calls to libzfs.
      * 
-     * @return all snapshot datasets.
+     * @return all snapshot datasets, sorted from the oldest to the newest.
      */
-    public Set<ZFSSnapshot> snapshots() {
-        final Set<ZFSSnapshot> set = new TreeSet<ZFSSnapshot>();
-        LIBZFS.zfs_iter_snapshots(handle, false, new libzfs.zfs_iter_f() {
+    public SortedSet<ZFSSnapshot> snapshots() {
+        final List<ZFSSnapshot> list = new ArrayList<ZFSSnapshot>();
+        libzfs_direct.zfs_iter_snapshots(library.api, handle, false, new libzfs.zfs_iter_f() {
             public int callback(zfs_handle_t handle, Pointer arg) {
-                set.add((ZFSSnapshot)ZFSObject.create(library, handle));
+                ZFSSnapshot s = (ZFSSnapshot)ZFSObject.create(library, handle);
+                s.getCreateTxg();
+                list.add(s);
                 return 0;
             }
         }, null);
-        return set;
+        return new TreeSet<ZFSSnapshot>(list);
     }
 
     /**
@@ -462,8 +753,8 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      */
     public void allow(ACLBuilder acl) {
         for (PermissionBuilder b : acl.builders) {
-            if(LIBZFS.zfs_perm_set(handle,b.toNativeFormat(this))!=0)
-                throw new ZFSException(library);
+            if(library.api.zfs_perm_set(handle,b.toNativeFormat(this))!=0)
+                throw new ZFSException(this);
         }
     }
 
@@ -472,8 +763,8 @@ public abstract class ZFSObject implements Comparable<ZFSObject>, ZFSContainer {
      */
     public void unallow(ACLBuilder acl) {
         for (PermissionBuilder b : acl.builders) {
-            if(LIBZFS.zfs_perm_remove(handle,b.toNativeFormat(this))!=0)
-                throw new ZFSException(library);
+            if(library.api.zfs_perm_remove(handle,b.toNativeFormat(this))!=0)
+                throw new ZFSException(this);
         }
     }
 
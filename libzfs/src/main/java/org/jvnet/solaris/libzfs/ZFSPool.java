@@ -20,9 +20,11 @@
  */
 package org.jvnet.solaris.libzfs;
 
-import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
+import java.io.Closeable;
 
+import org.jvnet.solaris.jna.Cleaner;
 import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
 import org.jvnet.solaris.libzfs.jna.zpool_handle_t;
 import org.jvnet.solaris.libzfs.jna.zpool_prop_t;
 
@@ -33,88 +35,84 @@ import com.sun.jna.ptr.PointerByReference;
 /**
  * zpool, which is a storage abstraction.
  *
+ * <p>
+ * Call {@link #close()} to release the native handle when the object is no longer needed.
+ *
  * @author Kohsuke Kawaguchi
  */
-public final class ZFSPool {
+public final class ZFSPool implements Closeable {
     /*package*/ final LibZFS library;
     /*package*/ zpool_handle_t handle;
     private final String name;
+    private final Cleaner.Cleanable cleanable;
 
     ZFSPool(final LibZFS parent, final zpool_handle_t handle) {
         this.library = parent;
         this.handle = handle;
-        this.name = LIBZFS.zpool_get_name(handle);
+        this.name = library.api.zpool_get_name(handle);
+        this.cleanable = Cleaner.register(this, new HandleReleaser(parent, handle));
     }
 
     public String getName() {
         return name;
     }
 
+    private static final NativeLong MAXPROPLEN = new NativeLong(libzfs.ZPOOL_MAXPROPLEN);
+
     public String getProperty(zpool_prop_t prop) {
         Memory propbuf = new Memory(libzfs.ZPOOL_MAXPROPLEN);
-        int ret = LIBZFS.zpool_get_prop(handle, new NativeLong(prop
-                .ordinal()), propbuf, new NativeLong(
-                libzfs.ZPOOL_MAXPROPLEN), null);
+        int ret = libzfs_direct.zpool_get_prop(library.api, handle, prop.ordinal(), propbuf, MAXPROPLEN);
         return ((ret != 0) ? null : propbuf.getString(0));
     }
 
     public ZPoolStatus getStatus() {
-        return ZPoolStatus.values()[LIBZFS.zpool_get_status(handle,new PointerByReference())];
+        return ZPoolStatus.values()[library.api.zpool_get_status(handle,new PointerByReference())];
+    }
+
+    /**
+     * Gets the value of a numeric property as an exact number, without formatting it to a string.
+     */
+    public long getPropertyAsLong(zpool_prop_t prop) {
+        return libzfs_direct.zpool_get_prop_int(library.api, handle, prop.ordinal());
     }
 
     /**
      * Gets the total size of this pool in bytes.
-     *
-     * <p>
-     * Because of the way libzfs report the size information
-     * (as strings like 1.2G), the precision of this information is low.
      */
     public long getSize() {
-        return toSize(getProperty(zpool_prop_t.ZPOOL_PROP_SIZE));
+        return getPropertyAsLong(zpool_prop_t.ZPOOL_PROP_SIZE);
     }
 
     /**
      * Gets the remaining free space size of this pool in bytes.
-     *
-     * <p>
-     * Because of the way libzfs report the size information
-     * (as strings like 1.2G), the precision of this information is low.
      */
     public long getAvailableSize() {
-        return toSize(getProperty(zpool_prop_t.ZPOOL_PROP_AVAILABLE));
+        return getPropertyAsLong(zpool_prop_t.ZPOOL_PROP_AVAILABLE);
     }
 
     /**
      * Gets the size of this pool that's already used in bytes.
-     *
-     * <p>
-     * Because of the way libzfs report the size information
-     * (as strings like 1.2G), the precision of this information is low.
      */
     public long getUsedSize() {
-        return toSize(getProperty(zpool_prop_t.ZPOOL_PROP_USED));
+        return getPropertyAsLong(zpool_prop_t.ZPOOL_PROP_USED);
     }
 
     /**
-     * @param value
-     *      String that represents a size
+     * Gets the percentage of the pool space that's used.
      */
-    private long toSize(String value) {
-        value = value.toUpperCase();
-        double d = Double.parseDouble(value.substring(0,value.length()-1));
-        long multiplier = 1;
-        switch(value.charAt(value.length()-1)) {
-        case 'P':   multiplier *= 1024; // fall through
-        case 'T':   multiplier *= 1024; // fall through
-        case 'G':   multiplier *= 1024; // fall through
-        case 'M':   multiplier *= 1024; // fall through
-        case 'K':   multiplier *= 1024; // fall through
-        }
-
-        if(multiplier==1)   return (long)d;
-
-        // this is to control the rounding error
-        return ((long)(d*1024))*(multiplier/1024);
+    public long getCapacity() {
+        return getPropertyAsLong(zpool_prop_t.ZPOOL_PROP_CAPACITY);
+    }
+
+    /**
+     * Creates a sampler of the I/O statistics of the devices of this pool.
+     * The sampler uses this object, so it must be kept open as long as the sampler is used.
+     *
+     * @param capacity
+     *      Number of samples to keep, at least 2.
+     */
+    public ZPoolIOStats getIOStats(int capacity) {
+        return new ZPoolIOStats(this, capacity);
     }
 
     /**
@@ -124,34 +122,40 @@ public final class ZFSPool {
      *      Not exactly sure what this does.
      */
     public void disableDatasets(boolean force) {
-        check(LIBZFS.zpool_disable_datasets(handle,force));
+        check(library.api.zpool_disable_datasets(handle,force));
     }
 
     private void check(int r) {
         if(r!=0)
-            throw new ZFSException(library);
+            throw new ZFSException(this);
     }
 
     /**
      * Does "zpool export".
      */
     public void export(boolean force, boolean hardForce) {
+        library.invalidatePool(name);
         disableDatasets(force);
         if(hardForce)
-            check(LIBZFS.zpool_export_force(handle));
+            check(library.api.zpool_export_force(handle));
         else
-            check(LIBZFS.zpool_export(handle,force));
+            check(library.api.zpool_export(handle,force));
     }
 
+    /**
+     * Eagerly releases the native handle of this object,
+     * instead of waiting for GC to take care of it.
+     */
     public synchronized void dispose() {
         if (handle != null)
-            LIBZFS.zpool_close(handle);
+            cleanable.clean();
         handle = null;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
+    /**
+     * Synonym for {@link #dispose()}.
+     */
+    public void close() {
         dispose();
-        super.finalize();
     }
 }
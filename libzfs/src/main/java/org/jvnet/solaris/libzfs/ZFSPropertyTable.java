@@ -0,0 +1,302 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * Values of a fixed set of ZFS properties for many datasets, fetched in one pass.
+ *
+ * <p>
+ * This is a table where each row is a dataset and each column is a {@link zfs_prop_t}.
+ * Values are kept in a single array, so a table of many thousand datasets
+ * costs a handful of objects beyond the strings themselves.
+ *
+ * @see LibZFS#getZfsProperties(Collection, Collection)
+ * @see LibZFS#getZfsProperties(ZFSContainer, int, Set, Collection)
+ */
+public final class ZFSPropertyTable {
+    private final List<zfs_prop_t> props;
+    private final String[] names;
+    /**
+     * Row-major. The value of the j-th property of the i-th dataset is at {@code i*props.size()+j}.
+     */
+    private final String[] values;
+    /**
+     * Index from the property to its column.
+     */
+    private final EnumMap<zfs_prop_t,Integer> columns = new EnumMap<zfs_prop_t,Integer>(zfs_prop_t.class);
+    /**
+     * Lazily built index from the dataset name to its row.
+     */
+    private Map<String,Integer> rows;
+
+    private ZFSPropertyTable(List<zfs_prop_t> props, String[] names, String[] values) {
+        this.props = Collections.unmodifiableList(props);
+        this.names = names;
+        this.values = values;
+        for (int i=0; i<props.size(); i++)
+            columns.put(props.get(i),i);
+    }
+
+    /**
+     * Number of datasets in this table.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Properties that were fetched, in the column order.
+     */
+    public List<zfs_prop_t> getProperties() {
+        return props;
+    }
+
+    /**
+     * Gets the name of the dataset in the given row, like "rpool/foo/bar".
+     */
+    public String getName(int row) {
+        return names[row];
+    }
+
+    /**
+     * Finds the row of the dataset of the given name.
+     *
+     * @return
+     *      -1 if the dataset isn't in this table.
+     */
+    public synchronized int indexOf(String name) {
+        if (rows==null) {
+            rows = new HashMap<String,Integer>(names.length*2);
+            for (int i=0; i<names.length; i++)
+                rows.put(names[i],i);
+        }
+        Integer r = rows.get(name);
+        return r==null ? -1 : r;
+    }
+
+    /**
+     * Gets the value of the given property of the dataset in the given row.
+     *
+     * @return
+     *      null if the property doesn't apply to the dataset, or it wasn't fetched.
+     */
+    public String get(int row, zfs_prop_t prop) {
+        Integer col = columns.get(prop);
+        if (col==null)  return null;
+        return values[row*props.size()+col];
+    }
+
+    /**
+     * Gets the value of the given property of the dataset of the given name.
+     *
+     * @return
+     *      null if the property doesn't apply to the dataset, or it wasn't fetched,
+     *      or the dataset isn't in this table.
+     */
+    public String get(String name, zfs_prop_t prop) {
+        int row = indexOf(name);
+        if (row<0)  return null;
+        return get(row,prop);
+    }
+
+    /**
+     * Gets all the properties of the dataset in the given row,
+     * in the same form as {@link ZFSObject#getZfsProperty(Collection)}.
+     */
+    public Map<zfs_prop_t,String> getRow(int row) {
+        Map<zfs_prop_t,String> r = new EnumMap<zfs_prop_t,String>(zfs_prop_t.class);
+        int base = row*props.size();
+        for (int j=0; j<props.size(); j++) {
+            String v = values[base+j];
+            if (v!=null)
+                r.put(props.get(j),v);
+        }
+        return r;
+    }
+
+    /**
+     * Receives the datasets found by a {@link Walker}.
+     */
+    /*package*/ interface Sink {
+        /**
+         * Reads what's needed from the given dataset. The handle is closed after this returns.
+         */
+        void add(zfs_handle_t h);
+    }
+
+    /**
+     * Accumulates rows. One native buffer is used for the whole table.
+     */
+    /*package*/ static final class Builder implements Sink {
+        private static final NativeLong MAXPROPLEN = new NativeLong(libzfs.ZFS_MAXPROPLEN);
+
+        private final libzfs api;
+        private final List<zfs_prop_t> props;
+        private final int[] codes;
+        private final Memory propbuf = new Memory(libzfs.ZFS_MAXPROPLEN);
+
+        private final List<String> names = new ArrayList<String>();
+        private String[] values;
+
+        /*package*/ Builder(libzfs api, Collection<zfs_prop_t> props) {
+            this.api = api;
+            this.props = new ArrayList<zfs_prop_t>(props);
+            this.codes = new int[this.props.size()];
+            for (int i=0; i<codes.length; i++)
+                codes[i] = this.props.get(i).ordinal();
+            this.values = new String[16*Math.max(1,codes.length)];
+        }
+
+        /**
+         * Reads all the properties of the given dataset into a new row.
+         */
+        public void add(zfs_handle_t h) {
+            int base = names.size()*codes.length;
+            if (base+codes.length > values.length) {
+                String[] v = new String[Math.max(values.length*2, base+codes.length)];
+                System.arraycopy(values,0,v,0,base);
+                values = v;
+            }
+
+            names.add(libzfs_direct.zfs_get_name(api, h));
+            for (int j=0; j<codes.length; j++) {
+                int ret = libzfs_direct.zfs_prop_get(api, h, codes[j], propbuf, MAXPROPLEN, true);
+                values[base+j] = ret==0 ? propbuf.getString(0) : null;
+            }
+        }
+
+        /*package*/ ZFSPropertyTable build() {
+            int n = names.size();
+            String[] v = new String[n*codes.length];
+            System.arraycopy(values,0,v,0,v.length);
+            return new ZFSPropertyTable(props, names.toArray(new String[n]), v);
+        }
+    }
+
+    /**
+     * Walks a dataset hierarchy and adds every dataset that matches the type mask to a {@link Sink}.
+     *
+     * <p>
+     * Handles are closed as soon as their properties are read, and no {@link ZFSObject} is created.
+     */
+    /*package*/ static final class Walker {
+        private final libzfs api;
+        private final Sink builder;
+        private final int typeMask;
+        private final int maxDepth;
+        /**
+         * Thrown by the sink during the walk, which is stopped and rethrows it.
+         */
+        private RuntimeException error;
+
+        /*package*/ Walker(libzfs api, Sink builder, Set<ZFSType> types, int maxDepth) {
+            this.api = api;
+            this.builder = builder;
+            int mask = 0;
+            for (ZFSType t : types)
+                mask |= t.code;
+            this.typeMask = mask;
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * Visits the given dataset and its descendants. The handle is not closed.
+         */
+        /*package*/ void walk(zfs_handle_t root) {
+            visit(root,0);
+            rethrow();
+        }
+
+        /**
+         * Visits all the datasets in the system, starting from the root file system of each pool.
+         */
+        /*package*/ void walkAll(libzfs_handle_t lib) {
+            libzfs_direct.zfs_iter_root(api, lib, new Callback(0), null);
+            rethrow();
+        }
+
+        /**
+         * JNA swallows exceptions thrown from callbacks, so they are carried over and rethrown here.
+         */
+        private void rethrow() {
+            RuntimeException e = error;
+            if (e!=null) {
+                error = null;
+                throw e;
+            }
+        }
+
+        private void visit(zfs_handle_t h, int depth) {
+            int type = libzfs_direct.zfs_get_type(api, h);
+            if ((type&typeMask)!=0)
+                builder.add(h);
+            if (type==ZFSType.SNAPSHOT.code || (maxDepth>=0 && depth>=maxDepth))
+                return;
+
+            Callback cb = new Callback(depth+1);
+            if ((typeMask&ZFSType.SNAPSHOT.code)!=0)
+                libzfs_direct.zfs_iter_snapshots(api, h, false, cb, null);
+            if (error==null)
+                libzfs_direct.zfs_iter_filesystems(api, h, cb, null);
+        }
+
+        private final class Callback implements libzfs.zfs_iter_f {
+            private final int depth;
+
+            Callback(int depth) {
+                this.depth = depth;
+            }
+
+            public int callback(zfs_handle_t h, Pointer arg) {
+                try {
+                    if (error==null)
+                        visit(h,depth);
+                } catch (RuntimeException e) {
+                    error = e;
+                } catch (Error e) {
+                    error = new RuntimeException(e);
+                } finally {
+                    libzfs_direct.zfs_close(api, h);
+                }
+                return error==null ? 0 : 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import org.jvnet.solaris.libzfs.jna.recvflags_t;
+
+/**
+ * Options of {@link LibZFS#receive(String, java.nio.channels.ReadableByteChannel, ZFSReceiveOptions)},
+ * which correspond to those of "zfs receive".
+ */
+public final class ZFSReceiveOptions {
+    /*package*/ boolean prefix;
+    /*package*/ boolean dryRun;
+    /*package*/ boolean force;
+    /*package*/ ZFSTransferListener listener;
+    /*package*/ long interval = 1000;
+
+    /**
+     * Treats the given name as the file system to receive into, and derives the name of the new snapshot
+     * from the name in the stream without its pool name, like "zfs receive -d".
+     */
+    public ZFSReceiveOptions prefix(boolean b) {
+        this.prefix = b;
+        return this;
+    }
+
+    /**
+     * Checks if the stream can be received, without actually receiving it, like "zfs receive -n".
+     */
+    public ZFSReceiveOptions dryRun(boolean b) {
+        this.dryRun = b;
+        return this;
+    }
+
+    /**
+     * Rolls back the file system to the most recent snapshot before receiving an incremental stream,
+     * and destroys snapshots and file systems that don't exist on the sending side, like "zfs receive -F".
+     */
+    public ZFSReceiveOptions force(boolean b) {
+        this.force = b;
+        return this;
+    }
+
+    /**
+     * Reports progress to the given listener.
+     *
+     * @param intervalMillis
+     *      How often the listener is called.
+     */
+    public ZFSReceiveOptions listener(ZFSTransferListener listener, long intervalMillis) {
+        this.listener = listener;
+        this.interval = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Reports progress to the given listener every second.
+     */
+    public ZFSReceiveOptions listener(ZFSTransferListener listener) {
+        return listener(listener, 1000);
+    }
+
+    /*package*/ int toNative() {
+        return recvflags_t.encode(false, prefix, dryRun, force, false);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+
+/**
+ * Brings a copy of a file system (or a volume) up to date with the original, by sending
+ * only the snapshots that the copy doesn't have yet.
+ *
+ * <p>
+ * For each dataset, the newest snapshot that the copy has is found by comparing snapshot guids,
+ * and all the snapshots after it are sent as one incremental stream ("zfs send -I").
+ * A copy that doesn't exist yet is created from the oldest snapshot first.
+ * The stream goes from libzfs send to libzfs receive through a pipe, without passing through Java.
+ *
+ * <pre>
+ * ZFSReplicator r = new ZFSReplicator().recursive(true);
+ * try {
+ *     r.replicate("tank/home", "backup/home");
+ * } finally {
+ *     r.close();
+ * }
+ * </pre>
+ */
+public final class ZFSReplicator implements Closeable {
+    /**
+     * Sending and receiving happen on two threads at once, so each needs its own library handle.
+     * Each sender gives its handle back when it's done, for the next one to reuse.
+     */
+    private final LibZFS library = new LibZFS(LibZFS.Concurrency.PER_THREAD);
+    private boolean recursive;
+    private boolean force;
+
+    /**
+     * Also replicates all the descendants, each into the corresponding place under the target.
+     */
+    public ZFSReplicator recursive(boolean b) {
+        this.recursive = b;
+        return this;
+    }
+
+    /**
+     * Discards changes made to the copy since its newest snapshot, like "zfs receive -F".
+     * Without this, such changes make the replication fail.
+     */
+    public ZFSReplicator force(boolean b) {
+        this.force = b;
+        return this;
+    }
+
+    /**
+     * Brings the target up to date with the source.
+     *
+     * @param source
+     *      Name of the file system or the volume to replicate.
+     * @param target
+     *      Name of the copy. It's created if it doesn't exist, but its parent must exist.
+     *      When replicating recursively, a file system that has no snapshot yet is copied
+     *      as an empty file system, so that its descendants have a place to go. Once the original
+     *      has snapshots, replicating them into that empty file system requires {@link #force(boolean)}.
+     * @throws IllegalStateException
+     *      if the target exists but has no snapshot in common with the source,
+     *      in which case only a full send, after destroying the target, would do.
+     */
+    public void replicate(String source, String target) {
+        final List<String> names = new ArrayList<String>();
+        if (recursive) {
+            ZFSObject s = library.open(source);
+            if (s==null)
+                throw new IllegalArgumentException("No such dataset: "+source);
+            try {
+                // only the names of file systems and volumes, parents before their children.
+                // snapshots are read per dataset by replicateOne
+                new ZFSPropertyTable.Walker(library.api, new ZFSPropertyTable.Sink() {
+                    public void add(zfs_handle_t h) {
+                        names.add(libzfs_direct.zfs_get_name(library.api, h));
+                    }
+                }, EnumSet.of(ZFSType.FILESYSTEM, ZFSType.VOLUME), -1).walk(s.handle);
+            } finally {
+                s.dispose();
+            }
+        } else {
+            names.add(source);
+        }
+
+        for (String name : names)
+            replicateOne(name, target+name.substring(source.length()));
+    }
+
+    private void replicateOne(String source, String target) {
+        ZFSObject s = library.open(source);
+        if (s==null)
+            throw new IllegalArgumentException("No such dataset: "+source);
+        boolean fileSystem = s instanceof ZFSFileSystem;
+        SortedSet<ZFSSnapshot> snapshots = s.snapshots();
+        s.dispose();
+        try {
+            if (snapshots.isEmpty()) {
+                // nothing to send, but the copies of the descendants go under the target
+                if (fileSystem && recursive && !library.exists(target))
+                    library.create(target, ZFSFileSystem.class).dispose();
+                return;
+            }
+
+            ZFSSnapshot base;
+            // libzfs reports a missing dataset as an error, so check first
+            ZFSObject t = library.exists(target) ? library.open(target) : null;
+            if (t==null) {
+                base = snapshots.first();
+                transfer(base, null, target);
+            } else {
+                SortedSet<ZFSSnapshot> theirs = t.snapshots();
+                t.dispose();
+                base = newestCommon(snapshots, theirs);
+                if (base==null) {
+                    // an empty file system, like the one created above, can only be overwritten
+                    if (!theirs.isEmpty() || !force)
+                        throw new IllegalStateException(target+" has no snapshot in common with "+source);
+                    base = snapshots.first();
+                    transfer(base, null, target);
+                }
+            }
+
+            ZFSSnapshot latest = snapshots.last();
+            if (base!=latest)
+                transfer(latest, new ZFSSendOptions().incrementalFrom(base).intermediates(true), target);
+        } finally {
+            ZFSObject.dispose(snapshots);
+        }
+    }
+
+    /**
+     * Finds the newest snapshot of the source that the target also has, and disposes those of the target.
+     */
+    private ZFSSnapshot newestCommon(SortedSet<ZFSSnapshot> snapshots, SortedSet<ZFSSnapshot> theirs) {
+        Set<Long> guids = new HashSet<Long>();
+        for (ZFSSnapshot t : theirs)
+            guids.add(t.getGuid());
+        ZFSObject.dispose(theirs);
+
+        ZFSSnapshot r = null;
+        for (ZFSSnapshot s : snapshots)     // in the order of creation
+            if (guids.contains(s.getGuid()))
+                r = s;
+        return r;
+    }
+
+    /**
+     * Sends a snapshot on a helper thread, and receives it on this thread.
+     */
+    private void transfer(ZFSSnapshot snapshot, ZFSSendOptions options, String target) {
+        int[] fds;
+        try {
+            fds = StreamPump.pipe();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        Sender sender = new Sender(snapshot.getName(), options, fds[1]);
+        sender.start();
+
+        ZFSReceiveOptions ro = new ZFSReceiveOptions().force(force);
+        RuntimeException failure = null;
+        long failedAt = 0;
+        try {
+            library.receive(target, fds[0], ro);
+        } catch (RuntimeException e) {
+            failure = e;
+            failedAt = System.nanoTime();
+        } finally {
+            // if the receive stopped halfway, this makes the send fail rather than block
+            LIBC.close(fds[0]);
+        }
+        sender.finish();
+
+        // when one side fails, the other side fails as a result, so report the one that failed first
+        if (sender.error!=null && (failure==null || sender.failedAt-failedAt<0))
+            throw sender.error;
+        if (failure!=null)
+            throw failure;
+    }
+
+    private final class Sender extends Thread {
+        private final String snapshot;
+        private final ZFSSendOptions options;
+        private final int fd;
+        volatile RuntimeException error;
+        volatile long failedAt;
+
+        Sender(String snapshot, ZFSSendOptions options, int fd) {
+            super("ZFS replication sender");
+            setDaemon(true);
+            this.snapshot = snapshot;
+            this.options = options;
+            this.fd = fd;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ZFSSnapshot s = library.open(snapshot, ZFSSnapshot.class);
+                if (s==null)
+                    throw new IllegalStateException(snapshot+" disappeared");
+                try {
+                    s.send(fd, options);
+                } finally {
+                    s.dispose();
+                }
+            } catch (RuntimeException e) {
+                failedAt = System.nanoTime();
+                error = e;
+            } finally {
+                LIBC.close(fd);
+                library.releaseThreadHandle();
+            }
+        }
+
+        void finish() {
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Releases the library handles used for replication.
+     */
+    public void close() {
+        library.close();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+
+/**
+ * Grandfather-father-son retention of snapshots, like the hourly/daily/weekly/monthly
+ * schedules of the usual auto-snapshot tools.
+ *
+ * <p>
+ * For each period, the newest snapshot in each of the last N hours (days, weeks, months) that have
+ * a snapshot is kept. A snapshot is kept if any period keeps it, and all the other snapshots
+ * that pass the name filter are destroyed. Snapshots that don't pass the filter are left alone.
+ *
+ * <h2>Usage</h2>
+ * <pre>
+ * ZFSRetentionPolicy p = new ZFSRetentionPolicy().prefix("auto-")
+ *     .keep(Period.HOURLY,24).keep(Period.DAILY,7).keep(Period.WEEKLY,4).keep(Period.MONTHLY,12);
+ * ZFSRetentionPolicy.Plan plan = p.prune(fs, true);
+ * </pre>
+ *
+ * <p>
+ * The creation times of all the snapshots in the hierarchy are fetched in one walk with
+ * {@link LibZFS#getZfsProperties(ZFSContainer, int, java.util.Set, java.util.Collection)},
+ * without creating a {@link ZFSSnapshot} for each of them, and each dataset's snapshots
+ * are then decided on in a single pass from the newest to the oldest.
+ * The snapshots to be destroyed are destroyed with {@link ZFSObject#destroySnapshots(java.util.Collection)},
+ * one batch per dataset.
+ */
+public final class ZFSRetentionPolicy {
+    /**
+     * Periods that snapshots are bucketed by. Periods are aligned to the calendar
+     * in the {@link ZFSRetentionPolicy#timeZone(TimeZone) time zone} of the policy,
+     * and weeks start on Monday.
+     */
+    public enum Period {
+        HOURLY, DAILY, WEEKLY, MONTHLY
+    }
+
+    private final EnumMap<Period,Integer> keep = new EnumMap<Period,Integer>(Period.class);
+    private final List<String> prefixes = new ArrayList<String>();
+    private TimeZone timeZone = TimeZone.getDefault();
+    private boolean dryRun;
+
+    /**
+     * Keeps the newest snapshot in each of the given number of most recent periods.
+     * 0 removes the rule.
+     */
+    public ZFSRetentionPolicy keep(Period period, int count) {
+        if (count<0)
+            throw new IllegalArgumentException("Negative count: "+count);
+        if (count==0)
+            keep.remove(period);
+        else
+            keep.put(period,count);
+        return this;
+    }
+
+    /**
+     * Only applies the policy to the snapshots whose short names (the part after '@')
+     * start with one of the given prefixes. Can be called more than once to add prefixes.
+     * Without any prefix, all the snapshots are subject to the policy.
+     */
+    public ZFSRetentionPolicy prefix(String... prefixes) {
+        this.prefixes.addAll(Arrays.asList(prefixes));
+        return this;
+    }
+
+    /**
+     * Time zone that decides where days, weeks, and months begin. The default is the local time zone.
+     */
+    public ZFSRetentionPolicy timeZone(TimeZone tz) {
+        this.timeZone = tz;
+        return this;
+    }
+
+    /**
+     * Makes {@link #prune(ZFSObject, boolean)} only compute the plan, without destroying anything.
+     */
+    public ZFSRetentionPolicy dryRun(boolean b) {
+        this.dryRun = b;
+        return this;
+    }
+
+    /**
+     * Decides which snapshots of the given dataset, and optionally of its descendants, are to be destroyed.
+     * Nothing is destroyed.
+     */
+    public Plan plan(ZFSObject dataset, boolean recursive) {
+        if (keep.isEmpty())
+            throw new IllegalStateException("No period to keep snapshots for. This would destroy them all");
+
+        ZFSPropertyTable t = dataset.library.getZfsProperties(dataset, recursive ? -1 : 1,
+                EnumSet.of(ZFSType.SNAPSHOT), Arrays.asList(zfs_prop_t.ZFS_PROP_CREATION, zfs_prop_t.ZFS_PROP_CREATETXG));
+
+        // group the rows by the dataset, keeping the traversal order
+        Map<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+        List<Integer> rows = null;
+        String current = null;
+        for (int i=0; i<t.size(); i++) {
+            String name = t.getName(i);
+            int idx = name.indexOf('@');
+            if (!accept(name.substring(idx+1)))
+                continue;
+            if (current==null || !name.regionMatches(0,current,0,idx) || current.length()!=idx) {
+                current = name.substring(0,idx);
+                rows = groups.get(current);
+                if (rows==null)
+                    groups.put(current, rows=new ArrayList<Integer>());
+            }
+            rows.add(i);
+        }
+
+        Plan plan = new Plan(dataset.library);
+        for (Map.Entry<String,List<Integer>> e : groups.entrySet())
+            decide(t, e.getKey(), e.getValue(), plan);
+        return plan;
+    }
+
+    /**
+     * Computes the plan like {@link #plan(ZFSObject, boolean)}, and unless this is
+     * a {@link #dryRun(boolean) dry run}, destroys the snapshots.
+     *
+     * @return
+     *      The plan, with the failures to destroy snapshots if any.
+     */
+    public Plan prune(ZFSObject dataset, boolean recursive) {
+        Plan p = plan(dataset,recursive);
+        if (!dryRun)
+            p.execute();
+        return p;
+    }
+
+    private boolean accept(String shortName) {
+        if (prefixes.isEmpty())
+            return true;
+        for (String p : prefixes)
+            if (shortName.startsWith(p))
+                return true;
+        return false;
+    }
+
+    /**
+     * Decides on the snapshots of one dataset, in one pass from the newest to the oldest.
+     */
+    private void decide(ZFSPropertyTable t, String dataset, List<Integer> rows, Plan plan) {
+        int n = rows.size();
+        long[] creation = new long[n];
+        long[] txg = new long[n];
+        for (int i=0; i<n; i++) {
+            int r = rows.get(i);
+            creation[i] = parse(t.get(r,zfs_prop_t.ZFS_PROP_CREATION));
+            txg[i] = parse(t.get(r,zfs_prop_t.ZFS_PROP_CREATETXG));
+        }
+        int[] order = newestFirst(txg);
+
+        Period[] periods = keep.keySet().toArray(new Period[keep.size()]);
+        int[] remaining = new int[periods.length];
+        long[] last = new long[periods.length];
+        for (int j=0; j<periods.length; j++) {
+            remaining[j] = keep.get(periods[j]);
+            last[j] = Long.MIN_VALUE;
+        }
+        Calendar cal = Calendar.getInstance(timeZone);
+
+        List<String> kept = new ArrayList<String>(), pruned = new ArrayList<String>();
+        for (int i : order) {
+            boolean k = false;
+            for (int j=0; j<periods.length; j++) {
+                if (remaining[j]==0)    continue;
+                long b = bucket(periods[j], creation[i], cal);
+                if (b!=last[j]) {
+                    // the first one we see in a bucket is the newest in it
+                    last[j] = b;
+                    remaining[j]--;
+                    k = true;
+                }
+            }
+            (k ? kept : pruned).add(t.getName(rows.get(i)));
+        }
+        plan.add(dataset, kept, pruned);
+    }
+
+    /**
+     * Orders the snapshots from the newest to the oldest by their creation txg.
+     * libzfs usually lists them oldest first, which is just walked backward,
+     * but doesn't have to, in which case they are sorted.
+     */
+    private static int[] newestFirst(long[] txg) {
+        int n = txg.length;
+        boolean ascending = true, descending = true;
+        for (int i=1; i<n; i++) {
+            if (txg[i]<txg[i-1])    ascending = false;
+            if (txg[i]>txg[i-1])    descending = false;
+        }
+        int[] order = new int[n];
+        if (descending) {
+            for (int i=0; i<n; i++)
+                order[i] = i;
+        } else if (ascending) {
+            for (int i=0; i<n; i++)
+                order[i] = n-1-i;
+        } else {
+            long[] sorted = txg.clone();
+            Arrays.sort(sorted);
+            // position of each one among the sorted txgs, counting equal ones apart
+            int[] equal = new int[n];
+            for (int i=0; i<n; i++) {
+                int p = Arrays.binarySearch(sorted, txg[i]);
+                while (p>0 && sorted[p-1]==txg[i])
+                    p--;
+                order[n-1-(p+equal[p]++)] = i;
+            }
+        }
+        return order;
+    }
+
+    private static long parse(String v) {
+        return v==null ? 0 : Long.parseLong(v);
+    }
+
+    /**
+     * Identifies the period that the given time falls in.
+     */
+    private long bucket(Period p, long seconds, Calendar cal) {
+        long millis = seconds*1000;
+        long local = (millis+timeZone.getOffset(millis))/1000;
+        switch (p) {
+        case HOURLY:
+            return floorDiv(local,3600);
+        case DAILY:
+            return floorDiv(local,86400);
+        case WEEKLY:
+            // 1970-01-01 was a Thursday
+            return floorDiv(floorDiv(local,86400)+3,7);
+        case MONTHLY:
+            cal.setTimeInMillis(millis);
+            return cal.get(Calendar.YEAR)*12L+cal.get(Calendar.MONTH);
+        default:
+            throw new AssertionError(p);
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x/y;
+        return (x%y!=0 && (x<0)!=(y<0)) ? q-1 : q;
+    }
+
+    /**
+     * Snapshots that a {@link ZFSRetentionPolicy} keeps and destroys.
+     * Only snapshots that pass the name filter of the policy are listed.
+     */
+    public static final class Plan {
+        private final LibZFS library;
+        private final Map<String,List<String>> kept = new LinkedHashMap<String,List<String>>();
+        private final Map<String,List<String>> pruned = new LinkedHashMap<String,List<String>>();
+        private final Map<String,ZFSException> failures = new HashMap<String,ZFSException>();
+        private boolean executed;
+
+        private Plan(LibZFS library) {
+            this.library = library;
+        }
+
+        private void add(String dataset, List<String> kept, List<String> pruned) {
+            this.kept.put(dataset,Collections.unmodifiableList(kept));
+            if (!pruned.isEmpty())
+                this.pruned.put(dataset,Collections.unmodifiableList(pruned));
+        }
+
+        /**
+         * Full names of the snapshots that are kept, keyed by the dataset name.
+         * Newest first.
+         */
+        public Map<String,List<String>> getKept() {
+            return Collections.unmodifiableMap(kept);
+        }
+
+        /**
+         * Full names of the snapshots to be destroyed, keyed by the dataset name.
+         * Newest first. Datasets with nothing to destroy are not listed.
+         */
+        public Map<String,List<String>> getPruned() {
+            return Collections.unmodifiableMap(pruned);
+        }
+
+        /**
+         * Snapshots that couldn't be destroyed, and why.
+         */
+        public Map<String,ZFSException> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        /**
+         * Destroys the snapshots, one batch per dataset.
+         * Failures don't stop the execution, and are reported by {@link #getFailures()}.
+         */
+        public synchronized void execute() {
+            if (executed)
+                throw new IllegalStateException("Already executed");
+            executed = true;
+            for (Map.Entry<String,List<String>> e : pruned.entrySet()) {
+                ZFSObject o;
+                try {
+                    o = library.open(e.getKey());
+                } catch (ZFSException x) {
+                    for (String s : e.getValue())
+                        failures.put(s,x);
+                    continue;
+                }
+                if (o==null)    continue;   // destroyed in the mean time
+                try {
+                    failures.putAll(o.destroySnapshots(e.getValue()));
+                } finally {
+                    o.dispose();
+                }
+            }
+        }
+    }
+}
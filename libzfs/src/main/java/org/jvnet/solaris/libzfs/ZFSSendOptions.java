@@ -0,0 +1,88 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+/**
+ * Options of {@link ZFSSnapshot#send(java.nio.channels.WritableByteChannel, ZFSSendOptions)},
+ * which correspond to those of "zfs send".
+ *
+ * <pre>
+ * snap.send(out, new ZFSSendOptions().incrementalFrom("monday").intermediates(true));
+ * </pre>
+ */
+public final class ZFSSendOptions {
+    /*package*/ String from;
+    /*package*/ boolean intermediates;
+    /*package*/ boolean replicate;
+    /*package*/ ZFSTransferListener listener;
+    /*package*/ long interval = 1000;
+
+    /**
+     * Sends an incremental stream from the given snapshot, like "zfs send -i".
+     * The snapshot must be an earlier one of the same file system.
+     *
+     * @param snapshot
+     *      Either the full name of the snapshot or just the part after '@'.
+     */
+    public ZFSSendOptions incrementalFrom(String snapshot) {
+        this.from = snapshot.substring(snapshot.indexOf('@')+1);
+        return this;
+    }
+
+    public ZFSSendOptions incrementalFrom(ZFSSnapshot snapshot) {
+        return incrementalFrom(snapshot.getName());
+    }
+
+    /**
+     * With {@link #incrementalFrom(String)}, includes all the snapshots in between, like "zfs send -I".
+     */
+    public ZFSSendOptions intermediates(boolean b) {
+        this.intermediates = b;
+        return this;
+    }
+
+    /**
+     * Sends the file system with all its descendants, snapshots, and properties, like "zfs send -R".
+     */
+    public ZFSSendOptions replicate(boolean b) {
+        this.replicate = b;
+        return this;
+    }
+
+    /**
+     * Reports progress to the given listener.
+     *
+     * @param intervalMillis
+     *      How often the listener is called.
+     */
+    public ZFSSendOptions listener(ZFSTransferListener listener, long intervalMillis) {
+        this.listener = listener;
+        this.interval = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Reports progress to the given listener every second.
+     */
+    public ZFSSendOptions listener(ZFSTransferListener listener) {
+        return listener(listener, 1000);
+    }
+}
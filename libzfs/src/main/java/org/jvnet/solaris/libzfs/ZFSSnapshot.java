@@ -20,8 +20,19 @@
  */
 package org.jvnet.solaris.libzfs;
 
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.jvnet.solaris.libc.jna.libc;
 import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
 
+import com.sun.jna.Native;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -29,4 +40,107 @@ public final class ZFSSnapshot extends ZFSObject {
     ZFSSnapshot(LibZFS parent, zfs_handle_t handle) {
         super(parent, handle);
     }
+
+    /**
+     * Gets the name of the file system or the volume that this is a snapshot of.
+     */
+    public String getFileSystemName() {
+        String name = getName();
+        return name.substring(0,name.indexOf('@'));
+    }
+
+    /**
+     * Gets the part of the name after '@'.
+     */
+    public String getShortName() {
+        String name = getName();
+        return name.substring(name.indexOf('@')+1);
+    }
+
+    /**
+     * Writes the stream representation of this snapshot into the given channel, like "zfs send".
+     *
+     * <p>
+     * libzfs writes the stream into a pipe, and a helper thread moves it from there into the channel,
+     * through a direct buffer. Blocks until the whole stream is written.
+     *
+     * @param options
+     *      Can be null to send the full stream.
+     * @throws IOException
+     *      if writing to the channel fails.
+     */
+    public void send(WritableByteChannel out, ZFSSendOptions options) throws IOException {
+        int[] fds = StreamPump.pipe();
+        StreamPump pump = new StreamPump.Drain(fds[0], out);
+        pump.start();
+        TransferMeter meter = options==null ? null : TransferMeter.start(options.listener, options.interval, pump);
+
+        ZFSException failure = null;
+        try {
+            send(fds[1], options);
+        } catch (ZFSException e) {
+            failure = e;
+        } finally {
+            LIBC.close(fds[1]);
+            try {
+                pump.finish();  // an error in writing the channel is likely the cause of the failure, so report it first
+            } finally {
+                if (meter!=null)
+                    meter.finish();
+            }
+        }
+        if (failure!=null)
+            throw failure;
+    }
+
+    /**
+     * Writes the stream representation of this snapshot into the given stream, like "zfs send".
+     *
+     * @see #send(WritableByteChannel, ZFSSendOptions)
+     */
+    public void send(OutputStream out, ZFSSendOptions options) throws IOException {
+        send(Channels.newChannel(out),options);
+    }
+
+    /**
+     * Writes the stream representation of this snapshot into the given file, like "zfs send > file".
+     *
+     * <p>
+     * libzfs writes into the file directly, so the stream doesn't pass through Java at all.
+     */
+    public void send(File file, ZFSSendOptions options) throws IOException {
+        int fd = LIBC.open(file.getPath(), libc.O_WRONLY|libc.O_CREAT|libc.O_TRUNC, 0666);
+        if (fd<0)
+            throw new IOException("Failed to open "+file+": errno="+Native.getLastError());
+
+        TransferMeter meter = options==null ? null : TransferMeter.start(options.listener, options.interval, file);
+        try {
+            send(fd, options);
+        } finally {
+            LIBC.close(fd);
+            if (meter!=null)
+                meter.finish();
+        }
+    }
+
+    /**
+     * Sends this snapshot into the given file descriptor on the calling thread.
+     */
+    /*package*/ void send(int fd, ZFSSendOptions options) {
+        if (options==null)
+            options = new ZFSSendOptions();
+
+        String fsName = getFileSystemName();
+        zfs_handle_t fs = library.acquire(fsName);
+        if (fs==null)
+            throw new ZFSException(library,"Failed to open "+fsName);
+        try {
+            // "zfs send -R" without a base implies all the snapshots
+            boolean doall = options.intermediates || (options.replicate && options.from==null);
+            if (library.api.zfs_send(fs, options.from, getShortName(), options.replicate, doall, false, false, fd) != 0)
+                throw new ZFSException(library.api,library.api.zfs_get_handle(fs),"Failed to send "+getName());
+        } finally {
+            library.release(fs);
+        }
+    }
 }
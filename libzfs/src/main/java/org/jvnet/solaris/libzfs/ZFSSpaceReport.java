@@ -0,0 +1,526 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Space accounting of a whole dataset hierarchy, read in one pass.
+ *
+ * <p>
+ * Each dataset is a row, identified by its index. The numeric space properties are read once
+ * per dataset with {@link libzfs#zfs_prop_get_int}, and kept in one {@code long[]} per {@link Column},
+ * along with the index of the parent of each dataset. Everything else, like the totals of a subtree,
+ * the space held by snapshots, or the largest consumers, is computed from those arrays without
+ * going back to libzfs, so a report of many thousand datasets is a handful of objects
+ * beyond the names themselves.
+ *
+ * <p>
+ * A dataset always comes after its parent, and the snapshots of a dataset are its children.
+ *
+ * @see LibZFS#getSpaceReport(ZFSContainer, boolean, int)
+ */
+public final class ZFSSpaceReport {
+    /**
+     * Space figures of a dataset, in bytes.
+     */
+    public enum Column {
+        /**
+         * Space consumed by the dataset and all its descendants.
+         */
+        USED,
+        /**
+         * Data accessible by the dataset.
+         */
+        REFERENCED,
+        AVAILABLE,
+        /**
+         * 0 if there's none.
+         */
+        QUOTA,
+        /**
+         * Sum of {@link #USED} of the child file systems and volumes.
+         */
+        USED_BY_CHILDREN,
+        /**
+         * Space that only the snapshots of the dataset hold on to, the "usedbysnapshots" property.
+         * With a libzfs too old to have that, it's {@link #USED} less {@link #REFERENCED}
+         * and {@link #USED_BY_CHILDREN}, which also counts the space a reservation holds
+         * beyond what's referenced. 0 for snapshots.
+         */
+        SNAPSHOT_OVERHEAD
+    }
+
+    private final String[] names;
+    private final int[] parents;
+    private final byte[] types;
+    /**
+     * Indexed by {@link Column#ordinal()}, then by row.
+     */
+    private final long[][] columns;
+    /**
+     * Lazily built index from the dataset name to its row.
+     */
+    private Map<String,Integer> rows;
+
+    private ZFSSpaceReport(Builder b) {
+        b.resize(b.size);
+        int n = b.size;
+        names = b.names.toArray(new String[n]);
+        parents = b.parents;
+        types = b.types;
+        columns = new long[Column.values().length][];
+        for (int c=0; c<Builder.READ.length; c++)
+            columns[Builder.READ[c].ordinal()] = b.values[c];
+        long[] overhead = b.values[Builder.READ.length];
+
+        long[] used = columns[Column.USED.ordinal()];
+        long[] referenced = columns[Column.REFERENCED.ordinal()];
+        long[] children = new long[n];
+        for (int i=0; i<n; i++) {
+            if (parents[i]>=0 && types[i]!=ZFSType.SNAPSHOT.code)
+                children[parents[i]] += used[i];
+        }
+        if (b.props[Builder.READ.length]<0) {
+            // no usedbysnapshots property to read
+            for (int i=0; i<n; i++) {
+                if (types[i]!=ZFSType.SNAPSHOT.code)
+                    overhead[i] = Math.max(0, used[i]-referenced[i]-children[i]);
+            }
+        } else {
+            for (int i=0; i<n; i++) {
+                if (types[i]==ZFSType.SNAPSHOT.code)
+                    overhead[i] = 0;
+            }
+        }
+        columns[Column.USED_BY_CHILDREN.ordinal()] = children;
+        columns[Column.SNAPSHOT_OVERHEAD.ordinal()] = overhead;
+    }
+
+    /**
+     * Number of datasets in this report.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of the dataset in the given row, like "rpool/foo/bar".
+     */
+    public String getName(int row) {
+        return names[row];
+    }
+
+    /**
+     * Gets the row of the parent of the dataset in the given row.
+     *
+     * @return
+     *      -1 if the parent isn't in this report.
+     */
+    public int getParent(int row) {
+        return parents[row];
+    }
+
+    public ZFSType getType(int row) {
+        return ZFSType.fromCode(types[row]);
+    }
+
+    /**
+     * Finds the row of the dataset of the given name.
+     *
+     * @return
+     *      -1 if the dataset isn't in this report.
+     */
+    public synchronized int indexOf(String name) {
+        if (rows==null) {
+            rows = new HashMap<String,Integer>(names.length*2);
+            for (int i=0; i<names.length; i++)
+                rows.put(names[i],i);
+        }
+        Integer r = rows.get(name);
+        return r==null ? -1 : r;
+    }
+
+    /**
+     * Gets the given figure of the dataset in the given row.
+     */
+    public long get(int row, Column c) {
+        return columns[c.ordinal()][row];
+    }
+
+    /**
+     * Sums the given figure over the subtree of each dataset, the dataset itself included.
+     *
+     * <p>
+     * Only file systems and volumes are summed, since the figures of snapshots
+     * overlap with those of their dataset. See {@link Column#SNAPSHOT_OVERHEAD} for those.
+     *
+     * @return
+     *      The total of each row, indexed like the rows.
+     */
+    public long[] getSubtreeTotals(Column c) {
+        long[] v = columns[c.ordinal()];
+        long[] r = new long[v.length];
+        // children come after their parents, so a backward pass sees every subtree complete
+        for (int i=v.length-1; i>=0; i--) {
+            if (types[i]==ZFSType.SNAPSHOT.code)
+                continue;
+            r[i] += v[i];
+            if (parents[i]>=0)
+                r[parents[i]] += r[i];
+        }
+        return r;
+    }
+
+    /**
+     * Finds the datasets with the largest values of the given figure, like "zfs list -S".
+     *
+     * @param n
+     *      Maximum number of datasets to return.
+     * @param types
+     *      Only datasets of these types are considered.
+     * @return
+     *      Rows, from the largest value down. Of equal values, the earlier row comes first.
+     */
+    public int[] getTop(Column c, int n, Set<ZFSType> types) {
+        int mask = 0;
+        for (ZFSType t : types)
+            mask |= t.code;
+        final long[] v = columns[c.ordinal()];
+
+        // min-heap of the n largest seen so far
+        int[] heap = new int[Math.max(0,Math.min(n,v.length))];
+        int size = 0;
+        for (int i=0; i<v.length && heap.length>0; i++) {
+            if ((this.types[i]&mask)==0)
+                continue;
+            if (size<heap.length) {
+                heap[size] = i;
+                siftUp(heap, size++, v);
+            } else if (less(heap[0], i, v)) {
+                heap[0] = i;
+                siftDown(heap, size, v);
+            }
+        }
+
+        int[] r = new int[size];
+        while (size>0) {
+            r[size-1] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, v);
+        }
+        return r;
+    }
+
+    private static void siftUp(int[] heap, int i, long[] v) {
+        while (i>0) {
+            int p = (i-1)/2;
+            if (!less(heap[i], heap[p], v))
+                return;
+            swap(heap,i,p);
+            i = p;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, long[] v) {
+        int i = 0;
+        while (true) {
+            int l = 2*i+1, min = i;
+            if (l<size && less(heap[l], heap[min], v))      min = l;
+            if (l+1<size && less(heap[l+1], heap[min], v))  min = l+1;
+            if (min==i)
+                return;
+            swap(heap,i,min);
+            i = min;
+        }
+    }
+
+    /**
+     * Whether row i ranks below row j, the later row ranking below on equal values.
+     */
+    private static boolean less(int i, int j, long[] v) {
+        return v[i]<v[j] || (v[i]==v[j] && i>j);
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * Reads the report of the given hierarchy.
+     *
+     * <p>
+     * The root datasets are read on the calling thread. Each of their children is the root of a subtree
+     * that's read into its own {@link Builder}, with the given number of threads, and the builders
+     * are then concatenated in order. As in {@link ParallelWalk}, a libzfs handle can't be shared
+     * between threads, so the subtrees are read with the {@link LibZFS#workers()} library.
+     */
+    /*package*/ static ZFSSpaceReport read(LibZFS library, ZFSContainer root, final boolean snapshots, int threads) throws InterruptedException {
+        final libzfs api = library.api;
+        final int[] props = Builder.props(library);
+        final Builder head = new Builder(api, props, snapshots);
+        final Subtrees subtrees = new Subtrees(api);
+        libzfs.zfs_iter_f roots = new libzfs.zfs_iter_f() {
+            public int callback(zfs_handle_t h, Pointer arg) {
+                try {
+                    head.readRoot(h, subtrees);
+                } finally {
+                    libzfs_direct.zfs_close(api, h);
+                }
+                return 0;
+            }
+        };
+        if (root instanceof ZFSObject)
+            head.readRoot(((ZFSObject)root).handle, subtrees);
+        else
+            libzfs_direct.zfs_iter_root(api, library.getHandle(), roots, null);
+
+        if (threads<=1 || subtrees.names.size()<=1) {
+            for (int i=0; i<subtrees.names.size(); i++)
+                head.append(Builder.read(api, library.getHandle(), subtrees.names.get(i), props, snapshots), subtrees.parents.get(i));
+            return new ZFSSpaceReport(head);
+        }
+
+        final LibZFS workers = library.workers();
+        ExecutorService es = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ZFS space report worker "+n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Builder>> parts = new ArrayList<Future<Builder>>();
+            for (final String name : subtrees.names) {
+                parts.add(es.submit(new Callable<Builder>() {
+                    public Builder call() {
+                        try {
+                            return Builder.read(api, workers.getHandle(), name, props, snapshots);
+                        } finally {
+                            workers.releaseThreadHandle();
+                        }
+                    }
+                }));
+            }
+            for (int i=0; i<parts.size(); i++)
+                head.append(parts.get(i).get(), subtrees.parents.get(i));
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException)  throw (RuntimeException)t;
+            if (t instanceof Error)             throw (Error)t;
+            throw new RuntimeException(t);
+        } finally {
+            es.shutdownNow();
+        }
+        return new ZFSSpaceReport(head);
+    }
+
+    /**
+     * Collects the names of the children of the root datasets, instead of reading them.
+     */
+    private static final class Subtrees implements libzfs.zfs_iter_f {
+        private final libzfs api;
+        final List<String> names = new ArrayList<String>();
+        final List<Integer> parents = new ArrayList<Integer>();
+        /**
+         * Row of the dataset whose children are being listed.
+         */
+        int parent;
+
+        Subtrees(libzfs api) {
+            this.api = api;
+        }
+
+        public int callback(zfs_handle_t h, Pointer arg) {
+            names.add(libzfs_direct.zfs_get_name(api, h));
+            parents.add(parent);
+            libzfs_direct.zfs_close(api, h);
+            return 0;
+        }
+    }
+
+    /**
+     * Accumulates rows in growing columns.
+     */
+    private static final class Builder {
+        /**
+         * Columns that are read from libzfs, in the order of {@link #values}.
+         * {@link Column#SNAPSHOT_OVERHEAD} follows them, read if libzfs has the property.
+         */
+        static final Column[] READ = {Column.USED, Column.REFERENCED, Column.AVAILABLE, Column.QUOTA};
+        private static final int CHILD_TYPES = ZFSType.FILESYSTEM.code|ZFSType.VOLUME.code;
+
+        private final libzfs api;
+        /**
+         * Property codes of {@link #values}, negative for those that libzfs doesn't have.
+         */
+        final int[] props;
+        private final boolean snapshots;
+        final List<String> names = new ArrayList<String>();
+        int[] parents = new int[64];
+        byte[] types = new byte[64];
+        final long[][] values = new long[READ.length+1][64];
+        int size;
+
+        Builder(libzfs api, int[] props, boolean snapshots) {
+            this.api = api;
+            this.props = props;
+            this.snapshots = snapshots;
+        }
+
+        /**
+         * Looks up the codes of the properties to read.
+         */
+        static int[] props(LibZFS library) {
+            return new int[]{
+                zfs_prop_t.ZFS_PROP_USED.ordinal(),
+                zfs_prop_t.ZFS_PROP_REFERENCED.ordinal(),
+                zfs_prop_t.ZFS_PROP_AVAILABLE.ordinal(),
+                zfs_prop_t.ZFS_PROP_QUOTA.ordinal(),
+                library.getPropCode("usedbysnapshots")
+            };
+        }
+
+        /**
+         * Reads the subtree of the dataset of the given name. Its parent is -1.
+         */
+        static Builder read(libzfs api, libzfs_handle_t lib, String name, int[] props, boolean snapshots) {
+            Builder b = new Builder(api, props, snapshots);
+            zfs_handle_t h = libzfs_direct.zfs_open(api, lib, name, CHILD_TYPES);
+            if (h!=null) {  // otherwise destroyed while we are walking
+                try {
+                    b.visit(h,-1);
+                } finally {
+                    libzfs_direct.zfs_close(api, h);
+                }
+            }
+            return b;
+        }
+
+        /**
+         * Adds a root dataset and its snapshots, and reports its children to the given callback
+         * instead of reading them.
+         */
+        void readRoot(zfs_handle_t h, Subtrees children) {
+            int row = add(h,-1);
+            if (snapshots)
+                libzfs_direct.zfs_iter_snapshots(api, h, false, new Callback(row), null);
+            children.parent = row;
+            libzfs_direct.zfs_iter_filesystems(api, h, children, null);
+        }
+
+        /**
+         * Reallocates the columns to the given length.
+         */
+        void resize(int n) {
+            if (n==parents.length)
+                return;
+            int[] p = new int[n];
+            System.arraycopy(parents,0,p,0,size);
+            parents = p;
+            byte[] t = new byte[n];
+            System.arraycopy(types,0,t,0,size);
+            types = t;
+            for (int c=0; c<values.length; c++) {
+                long[] v = new long[n];
+                System.arraycopy(values[c],0,v,0,size);
+                values[c] = v;
+            }
+        }
+
+        private int add(zfs_handle_t h, int parent) {
+            if (size==parents.length)
+                resize(size*2);
+            names.add(libzfs_direct.zfs_get_name(api, h));
+            parents[size] = parent;
+            types[size] = (byte)libzfs_direct.zfs_get_type(api, h);
+            for (int c=0; c<props.length; c++) {
+                if (props[c]>=0)
+                    values[c][size] = libzfs_direct.zfs_prop_get_int(api, h, props[c]);
+            }
+            return size++;
+        }
+
+        private void visit(zfs_handle_t h, int parent) {
+            int row = add(h,parent);
+            if (types[row]==ZFSType.SNAPSHOT.code)
+                return;
+            Callback cb = new Callback(row);
+            if (snapshots)
+                libzfs_direct.zfs_iter_snapshots(api, h, false, cb, null);
+            libzfs_direct.zfs_iter_filesystems(api, h, cb, null);
+        }
+
+        /**
+         * Appends the rows of another builder, whose roots become children of the given row.
+         */
+        void append(Builder b, int parent) {
+            if (size+b.size > parents.length)
+                resize(Math.max(size*2, size+b.size));
+            names.addAll(b.names);
+            for (int i=0; i<b.size; i++)
+                parents[size+i] = b.parents[i]<0 ? parent : b.parents[i]+size;
+            System.arraycopy(b.types,0,types,size,b.size);
+            for (int c=0; c<values.length; c++)
+                System.arraycopy(b.values[c],0,values[c],size,b.size);
+            size += b.size;
+        }
+
+        private final class Callback implements libzfs.zfs_iter_f {
+            private final int parent;
+
+            Callback(int parent) {
+                this.parent = parent;
+            }
+
+            public int callback(zfs_handle_t h, Pointer arg) {
+                try {
+                    visit(h,parent);
+                } finally {
+                    libzfs_direct.zfs_close(api, h);
+                }
+                return 0;
+            }
+        }
+    }
+}
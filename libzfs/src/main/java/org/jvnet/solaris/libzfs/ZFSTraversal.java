@@ -0,0 +1,458 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jvnet.solaris.jna.Cleaner;
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Lazily walks the descendants of a {@link ZFSContainer}, one dataset at a time.
+ *
+ * <p>
+ * Unlike {@link ZFSContainer#descendants(Class)}, which builds the whole list upfront,
+ * this hands out datasets as libzfs iterates them, and closes the native handle of each
+ * dataset as soon as the consumer moves on to the next one. So memory use doesn't grow
+ * with the number of datasets, and stopping early saves the rest of the walk.
+ *
+ * <p>
+ * Datasets are visited in the same order as {@link ZFSContainer#descendants(Class)};
+ * the snapshots of a dataset come first (in the order libzfs lists them),
+ * then each child followed by its own descendants.
+ *
+ * <h2>Usage</h2>
+ * <pre>
+ * ZFSTraversal&lt;ZFSFileSystem> t = new ZFSTraversal&lt;ZFSFileSystem>(zfs, ZFSFileSystem.class).maxDepth(2);
+ *
+ * // push style: return false to stop
+ * t.visit(new ZFSTraversal.Visitor&lt;ZFSFileSystem>() {
+ *     public boolean visit(ZFSFileSystem fs) { ... }
+ * });
+ *
+ * // pull style: close the iterator if you don't run it to the end
+ * ZFSTraversal.Cursor&lt;ZFSFileSystem> c = t.iterator();
+ * try {
+ *     while (c.hasNext()) { ... c.next() ... }
+ * } finally {
+ *     c.close();
+ * }
+ * </pre>
+ *
+ * <p>
+ * Objects handed out are closed once the visitor returns, or once the iterator advances,
+ * so they must not be kept around. Use {@link LibZFS#open(String)} with {@link ZFSObject#getName()}
+ * to get a dataset that outlives the traversal.
+ *
+ * @param <T> the kind of datasets to be reported.
+ */
+public final class ZFSTraversal<T extends ZFSObject> implements Iterable<T> {
+    private final ZFSContainer root;
+    private final LibZFS library;
+    private final Class<T> type;
+    private int maxDepth = -1;
+
+    /**
+     * Receives datasets from {@link ZFSTraversal#visit(Visitor)}.
+     */
+    public interface Visitor<T> {
+        /**
+         * @return
+         *      false to stop the traversal.
+         */
+        boolean visit(T dataset);
+    }
+
+    /**
+     * @param root
+     *      {@link LibZFS} to walk all the pools, or a {@link ZFSObject} to walk its descendants.
+     *      The root itself is not reported.
+     * @param type
+     *      Only datasets of this type are reported.
+     */
+    public ZFSTraversal(ZFSContainer root, Class<T> type) {
+        this.root = root;
+        this.type = type;
+        this.library = root instanceof LibZFS ? (LibZFS)root : ((ZFSObject)root).library;
+    }
+
+    /**
+     * Limits how far below the root the traversal goes. 1 only reports the children
+     * (or the top-level file systems of pools, if the root is {@link LibZFS}).
+     * -1, the default, walks the whole hierarchy.
+     */
+    public ZFSTraversal<T> maxDepth(int depth) {
+        this.maxDepth = depth;
+        return this;
+    }
+
+    /**
+     * Walks the hierarchy on the calling thread, reporting each matching dataset to the visitor.
+     *
+     * @return
+     *      false if the visitor stopped the traversal.
+     */
+    public boolean visit(Visitor<? super T> visitor) {
+        Walk w = new Walk(visitor);
+        if (root instanceof ZFSObject)
+            w.children(((ZFSObject)root).handle, 1);
+        else {
+            libzfs_direct.zfs_iter_root(library.api, library.getHandle(), w.new Callback(1), null);
+            w.rethrow();
+        }
+        return !w.aborted;
+    }
+
+    /**
+     * Starts a pull-style traversal.
+     *
+     * <p>
+     * libzfs iteration is callback based, so the walk runs on a helper thread, from a pool shared
+     * by all the cursors, that hands over one dataset at a time and waits for the caller to ask
+     * for the next one.
+     * The two threads never run at the same time: {@link Cursor#close()} returns only once
+     * the helper thread has unwound the walk and is done with libzfs.
+     */
+    public Cursor<T> iterator() {
+        return new Cursor<T>(this);
+    }
+
+    /**
+     * Walks the hierarchy with the given number of threads, and returns all the matching datasets.
+     *
+     * @see #collect(Executor)
+     */
+    public List<T> collect(int threads) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ZFS traversal worker "+n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            return collect(es);
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * Walks the hierarchy in parallel on the given executor, and returns all the matching datasets.
+     *
+     * <p>
+     * Each dataset becomes a task that lists its snapshots and children and then submits a task
+     * for each child, so independent subtrees are walked concurrently. Since a libzfs handle can't
+     * be shared between threads, the walk uses a {@link LibZFS} with {@link LibZFS.Concurrency#PER_THREAD},
+     * and the returned objects belong to it, not to the {@link LibZFS} of the root (unless that
+     * one is in this mode already). That library is closed along with the one of the root.
+     *
+     * <p>
+     * The result is in the same order as {@link ZFSContainer#descendants(Class)}, regardless
+     * of the order in which the tasks complete. Unlike {@link #visit(Visitor)}, the returned objects
+     * are not closed; see {@link ZFSObject#dispose(Collection)}.
+     */
+    public List<T> collect(Executor executor) throws InterruptedException {
+        return new ParallelWalk<T>(type, maxDepth, executor).run(root);
+    }
+
+    /**
+     * One depth-first walk.
+     */
+    private final class Walk {
+        private final Visitor<? super T> visitor;
+        private final boolean snapshots = type.isAssignableFrom(ZFSSnapshot.class);
+        private boolean aborted;
+        private RuntimeException error;
+
+        Walk(Visitor<? super T> visitor) {
+            this.visitor = visitor;
+        }
+
+        /**
+         * Visits the descendants of the given dataset, which are at the given depth.
+         */
+        void children(zfs_handle_t h, int depth) {
+            Callback cb = new Callback(depth);
+            if (snapshots) {
+                libzfs_direct.zfs_iter_snapshots(library.api, h, false, cb, null);
+                rethrow();
+            }
+            if (!aborted) {
+                libzfs_direct.zfs_iter_filesystems(library.api, h, cb, null);
+                rethrow();
+            }
+        }
+
+        /**
+         * JNA swallows exceptions thrown from callbacks, so they are carried over and rethrown here.
+         */
+        void rethrow() {
+            if (error!=null)
+                throw error;
+        }
+
+        final class Callback implements libzfs.zfs_iter_f {
+            private final int depth;
+
+            Callback(int depth) {
+                this.depth = depth;
+            }
+
+            public int callback(zfs_handle_t h, Pointer arg) {
+                if (aborted) {
+                    libzfs_direct.zfs_close(library.api, h);
+                    return 1;
+                }
+                ZFSObject o = ZFSObject.create(library, h);
+                try {
+                    if (type.isInstance(o) && !visitor.visit(type.cast(o)))
+                        aborted = true;
+                    else if (!(o instanceof ZFSSnapshot) && (maxDepth<0 || depth<maxDepth)) {
+                        if (o.handle!=null) {
+                            children(o.handle, depth+1);
+                        } else {
+                            // the visitor closed it. get another handle
+                            zfs_handle_t ch = library.acquire(o.getName());
+                            if (ch!=null) {
+                                try {
+                                    children(ch, depth+1);
+                                } finally {
+                                    library.release(ch);
+                                }
+                            }
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                    aborted = true;
+                } catch (Error e) {
+                    error = new RuntimeException(e);
+                    aborted = true;
+                } finally {
+                    o.dispose();
+                }
+                return aborted ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Pull-style traversal. See {@link ZFSTraversal#iterator()}.
+     *
+     * <p>
+     * If the iteration isn't run to the end, call {@link #close()} to stop the helper thread.
+     * Otherwise it's stopped after this object is garbage collected, and then unwinds the walk
+     * on its own, while the library may be in use by other threads.
+     */
+    public static final class Cursor<T extends ZFSObject> implements Iterator<T>, Closeable {
+        private final Handoff<T> handoff;
+        private final Cleaner.Cleanable cleanable;
+        private T next;
+        private boolean started;
+
+        private Cursor(ZFSTraversal<T> traversal) {
+            this.handoff = new Handoff<T>(traversal);
+            this.cleanable = Cleaner.register(this, handoff);
+        }
+
+        public boolean hasNext() {
+            if (next==null) {
+                if (!started) {
+                    started = true;
+                    handoff.start();
+                }
+                next = handoff.take();
+            }
+            return next!=null;
+        }
+
+        /**
+         * Returns the next dataset. The previously returned dataset is closed at this point.
+         */
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T r = next;
+            next = null;
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the traversal, and closes the dataset returned last.
+         * Waits for the helper thread to leave libzfs, so the library can be used right away.
+         */
+        public void close() {
+            cleanable.clean();
+            handoff.await();
+        }
+    }
+
+    /**
+     * Threads that run the walks of {@link Cursor}s. They are reused, and go away after a minute of idling.
+     */
+    private static final ExecutorService WALKERS = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ZFS traversal "+n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Passes datasets from the walking thread to the consumer, one at a time.
+     * Doesn't refer to {@link Cursor} so that it can be cleaned up after it.
+     */
+    private static final class Handoff<T extends ZFSObject> implements Visitor<T>, Runnable {
+        private final ZFSTraversal<T> traversal;
+        /**
+         * Dataset reported by the walker but not yet taken by the consumer.
+         */
+        private T pending;
+        /**
+         * Dataset that the consumer is currently looking at. The walker waits until this is cleared.
+         */
+        private T taken;
+        private boolean started, done, cancelled;
+        private RuntimeException error;
+
+        Handoff(ZFSTraversal<T> traversal) {
+            this.traversal = traversal;
+        }
+
+        void start() {
+            synchronized (this) {
+                started = true;
+            }
+            WALKERS.execute(new Runnable() {
+                public void run() {
+                    try {
+                        traversal.visit(Handoff.this);
+                    } catch (RuntimeException e) {
+                        synchronized (Handoff.this) {
+                            error = e;
+                        }
+                    } finally {
+                        // with Concurrency.PER_THREAD, don't keep a handle on a pooled thread
+                        traversal.library.releaseThreadHandle();
+                        synchronized (Handoff.this) {
+                            done = true;
+                            Handoff.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called on the walking thread. Blocks until the consumer moves past the dataset.
+         */
+        public synchronized boolean visit(T dataset) {
+            pending = dataset;
+            notifyAll();
+            while ((pending!=null || taken!=null) && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+            }
+            return !cancelled;
+        }
+
+        /**
+         * Called on the consuming thread. Lets the walker move on, and waits for the next dataset.
+         *
+         * @return null if there's no more.
+         */
+        synchronized T take() {
+            taken = null;
+            notifyAll();
+            while (pending==null && !done && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                    notifyAll();
+                }
+            }
+            if (error!=null)
+                throw error;
+            if (cancelled) {
+                await();
+                return null;
+            }
+            taken = pending;
+            pending = null;
+            return taken;
+        }
+
+        /**
+         * Stops the traversal. This only tells the walker to stop, as the {@link Cleaner}
+         * may run it, and that thread must not wait on nor call into libzfs.
+         */
+        public synchronized void run() {
+            cancelled = true;
+            taken = null;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the walker to finish, if it was started.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (started && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
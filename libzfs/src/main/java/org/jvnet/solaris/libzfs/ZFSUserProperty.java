@@ -0,0 +1,127 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jvnet.solaris.nvlist.NVListDecoder;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+
+/**
+ * Value of a user-defined property of a dataset, together with where it comes from.
+ *
+ * @see ZFSObject#getUserProperties()
+ * @see LibZFS#getUserProperties(ZFSContainer, int, java.util.Set)
+ */
+public final class ZFSUserProperty {
+    /**
+     * Source that libzfs reports for a value that was set by "zfs receive".
+     */
+    private static final String RECEIVED = "$recvd";
+
+    private final String name;
+    private final String value;
+    private final String source;
+    private final boolean local;
+
+    private ZFSUserProperty(String dataset, String name, String value, String source) {
+        this.name = name;
+        this.value = value;
+        this.source = source;
+        this.local = source==null || source.equals(dataset);
+    }
+
+    /**
+     * Gets the name of the property, like "com.example:backup".
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the name of the dataset where the value is set.
+     * This is the dataset itself unless the value is inherited.
+     *
+     * @return
+     *      "$recvd" if the value was set by a receive.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Is the value set on the dataset itself.
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
+    /**
+     * Is the value set by a receive into the dataset.
+     */
+    public boolean isReceived() {
+        return RECEIVED.equals(source);
+    }
+
+    /**
+     * Is the value inherited from an ancestor, which {@link #getSource()} names.
+     */
+    public boolean isInherited() {
+        return !local && !isReceived();
+    }
+
+    @Override
+    public String toString() {
+        return name+'='+value;
+    }
+
+    /**
+     * Decodes the user properties that libzfs keeps in a dataset handle.
+     *
+     * <p>
+     * The list is packed and parsed in Java, so this takes the same few native calls
+     * regardless of the number of properties.
+     *
+     * @param props
+     *      From {@link org.jvnet.solaris.libzfs.jna.libzfs#zfs_get_user_props}. Owned by the handle, so not freed here.
+     * @return
+     *      Unmodifiable, sorted by the property name.
+     */
+    /*package*/ static Map<String,ZFSUserProperty> decode(String dataset, nvlist_t props) {
+        if (props==null)
+            return Collections.emptyMap();
+        Map<String,ZFSUserProperty> r = new TreeMap<String,ZFSUserProperty>();
+        for (Map.Entry<String,Object> e : NVListDecoder.decode(props).entrySet()) {
+            if (!(e.getValue() instanceof Map))
+                continue;
+            Map<?,?> v = (Map<?,?>)e.getValue();
+            r.put(e.getKey(), new ZFSUserProperty(dataset, e.getKey(),
+                    (String)v.get("value"), (String)v.get("source")));
+        }
+        return Collections.unmodifiableMap(r);
+    }
+}
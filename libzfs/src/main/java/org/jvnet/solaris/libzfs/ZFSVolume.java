@@ -20,8 +20,6 @@
  */
 package org.jvnet.solaris.libzfs;
 
-import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
-
 import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
 
 /**
@@ -37,8 +35,8 @@ public final class ZFSVolume extends ZFSObject {
      * Share this dataset.
      */
     public void shareISCSI() {
-        if (LIBZFS.zfs_share_iscsi(handle) != 0) {
-            throw new ZFSException(library);
+        if (library.api.zfs_share_iscsi(handle) != 0) {
+            throw new ZFSException(this);
         }
     }
 
@@ -46,8 +44,8 @@ public final class ZFSVolume extends ZFSObject {
      * Unshare this dataset.
      */
     public void unshareISCSI() {
-        if (LIBZFS.zfs_unshare_iscsi(handle) != 0) {
-            throw new ZFSException(library);
+        if (library.api.zfs_unshare_iscsi(handle) != 0) {
+            throw new ZFSException(this);
         }
     }
 
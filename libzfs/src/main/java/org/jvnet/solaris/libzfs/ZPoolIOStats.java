@@ -0,0 +1,537 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import static org.jvnet.solaris.nvlist.jna.libnvpair.LIBNVPAIR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jvnet.solaris.jna.BooleanByReference;
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+import org.jvnet.solaris.nvlist.jna.nvpair_t;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Samples the I/O statistics of the devices of a pool, like "zpool iostat -v".
+ *
+ * <p>
+ * Each {@link #sample()} refreshes the statistics of the pool, and records the counters of every vdev
+ * in its configuration: the pool itself (index 0), the top-level vdevs, their children, and the cache devices,
+ * in the order "zpool iostat -v" lists them. The last {@link #capacity()} samples are kept in ring buffers
+ * allocated upfront, so sampling many pools every second doesn't produce garbage beyond that of the native calls.
+ * Rates and deltas are computed between consecutive samples.
+ *
+ * <p>
+ * The vdevs are looked up once. If the configuration changes, such as when a device is added,
+ * the next sample finds new vdevs, and the samples taken so far are dropped.
+ *
+ * <p>
+ * The methods are thread-safe, so that one thread can sample while others read.
+ *
+ * @see ZFSPool#getIOStats(int)
+ */
+public final class ZPoolIOStats {
+    /*
+     * Counters recorded for each vdev.
+     */
+    public static final int READ_OPS = 0;
+    public static final int WRITE_OPS = 1;
+    public static final int READ_BYTES = 2;
+    public static final int WRITE_BYTES = 3;
+    public static final int READ_ERRORS = 4;
+    public static final int WRITE_ERRORS = 5;
+    public static final int CHECKSUM_ERRORS = 6;
+    private static final int COUNTERS = 7;
+
+    private static final int MAX_STATS = 64;
+
+    private final ZFSPool pool;
+    private final int capacity;
+
+    /*
+     * The vdevs, in the order they are walked.
+     */
+    private int vdevs;
+    private String[] names;
+    private long[] guids;
+    private int[] parents, depths;
+    /**
+     * Name of the pair that has the statistics, which depends on the version of ZFS.
+     */
+    private String statsName;
+    /**
+     * Whether ZFS has TRIM, which adds a ZIO type and so moves the counters in vdev_stat_t.
+     */
+    private final boolean trim;
+
+    /**
+     * Sample timestamps in nanoseconds, by slot.
+     */
+    private final long[] times;
+    /**
+     * Counters, by slot, vdev, and counter.
+     */
+    private long[] counters;
+    /**
+     * Allocated and total space of each vdev, from the latest sample.
+     */
+    private long[] alloc, space;
+    /**
+     * Slot of the latest sample, and the number of samples held.
+     */
+    private int latest = -1, size;
+
+    /*
+     * Reused across samples.
+     */
+    private final BooleanByReference missing = new BooleanByReference();
+    private final PtrByReference<nvlist_t> listRef = new PtrByReference<nvlist_t>();
+    private final PtrByReference<nvpair_t> pairRef = new PtrByReference<nvpair_t>();
+    private final PointerByReference arrayRef = new PointerByReference();
+    private final IntByReference lengthRef = new IntByReference();
+    private final LongByReference longRef = new LongByReference();
+    private final nvpair_t pair = new nvpair_t();
+    private final long[] stats = new long[MAX_STATS];
+    private nvlist_t[] lists = new nvlist_t[0];
+    /**
+     * Set when the walk finds the vdevs to differ from those recorded.
+     */
+    private boolean changed;
+    /**
+     * Timestamp of the root vdev in the sample being taken, 0 if it has none.
+     */
+    private long rootTime;
+
+    /*package*/ ZPoolIOStats(ZFSPool pool, int capacity) {
+        if (capacity<2)
+            throw new IllegalArgumentException("Need room for at least 2 samples to compute rates, but got "+capacity);
+        this.pool = pool;
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.counters = new long[0];
+        // the "autotrim" pool property came along with ZIO_TYPE_TRIM
+        this.trim = pool.library.api.zpool_name_to_prop("autotrim")>=0;
+    }
+
+    /**
+     * Refreshes the statistics of the pool and records them.
+     *
+     * @throws ZFSException
+     *      if the statistics can't be refreshed, for example because the pool has gone.
+     */
+    public synchronized void sample() {
+        if (pool.library.api.zpool_refresh_stats(pool.handle, missing)!=0 || missing.getValue())
+            throw new ZFSException(pool, "Failed to refresh the statistics of "+pool.getName());
+        nvlist_t config = pool.library.api.zpool_get_config(pool.handle, null);
+        if (config==null || LIBNVPAIR.nvlist_lookup_nvlist(config, "vdev_tree", listRef)!=0)
+            throw new ZFSException(pool, "No vdev tree in the configuration of "+pool.getName());
+        Pointer root = listRef.getPointer().getPointer(0);
+
+        int slot = (latest+1)%capacity;
+        changed = false;
+        if (walk(root, -1, 0, slot)!=vdevs || changed) {
+            layout(root);
+            slot = 0;
+            walk(root, -1, 0, slot);
+        }
+        // the kernel's timestamp goes with the counters, if there is one
+        times[slot] = rootTime!=0 ? rootTime : System.nanoTime();
+        latest = slot;
+        if (size<capacity)  size++;
+    }
+
+    /**
+     * Finds the vdevs anew, and drops the samples taken so far.
+     */
+    private void layout(Pointer root) {
+        List<Object[]> found = new ArrayList<Object[]>();
+        find(root, -1, 0, true, found);
+        vdevs = found.size();
+        names = new String[vdevs];
+        guids = new long[vdevs];
+        parents = new int[vdevs];
+        depths = new int[vdevs];
+        for (int i=0; i<vdevs; i++) {
+            Object[] v = found.get(i);
+            names[i] = (String)v[0];
+            guids[i] = (Long)v[1];
+            parents[i] = (Integer)v[2];
+            depths[i] = (Integer)v[3];
+        }
+        lists = new nvlist_t[vdevs];
+        for (int i=0; i<vdevs; i++)
+            lists[i] = new nvlist_t();
+        counters = new long[capacity*vdevs*COUNTERS];
+        alloc = new long[vdevs];
+        space = new long[vdevs];
+        latest = -1;
+        size = 0;
+    }
+
+    /**
+     * Lists the vdevs below the given one, in the order of {@link #walk}.
+     */
+    private void find(Pointer p, int parent, int depth, boolean isRoot, List<Object[]> found) {
+        nvlist_t nv = new nvlist_t();
+        nv.setPointer(p);
+        int index = found.size();
+        long guid = LIBNVPAIR.nvlist_lookup_uint64(nv, "guid", longRef)==0 ? longRef.getValue() : 0;
+        found.add(new Object[]{isRoot ? pool.getName() : name(nv), guid, parent, depth});
+        if (statsName==null) {
+            if (LIBNVPAIR.nvlist_exists(nv, "vdev_stats"))    statsName = "vdev_stats";
+            else if (LIBNVPAIR.nvlist_exists(nv, "stats"))    statsName = "stats";
+        }
+        for (String key : isRoot ? CHILDREN_OF_ROOT : CHILDREN) {
+            Pointer a = children(nv, key);
+            for (int i=0, n=lengthRef.getValue(); a!=null && i<n; i++)
+                find(a.getPointer(i*Pointer.SIZE), index, depth+1, false, found);
+        }
+    }
+
+    private static final String[] CHILDREN = {"children"};
+    private static final String[] CHILDREN_OF_ROOT = {"children", "l2cache"};
+
+    /**
+     * Name of a vdev the way "zpool status" shows it.
+     */
+    private static String name(nvlist_t nv) {
+        String path = nv.getString("path");
+        if (path!=null) {
+            for (String prefix : new String[]{"/dev/dsk/", "/dev/"}) {
+                if (path.startsWith(prefix))
+                    return path.substring(prefix.length());
+            }
+            return path;
+        }
+        String type = nv.getString("type");
+        if ("raidz".equals(type)) {
+            Long parity = nv.getLong("nparity");
+            if (parity!=null)
+                type += parity;
+        }
+        Long id = nv.getLong("id");
+        return id==null ? type : type+"-"+id;
+    }
+
+    /**
+     * Gets the array of child vdevs of the given key, and its length in {@link #lengthRef}.
+     *
+     * @return null if there are none.
+     */
+    private Pointer children(nvlist_t nv, String key) {
+        if (LIBNVPAIR.nvlist_lookup_nvpair(nv, key, pairRef)!=0)
+            return null;
+        pair.setPointer(pairRef.getPointer().getPointer(0));
+        if (LIBNVPAIR.nvpair_value_nvlist_array(pair, arrayRef, lengthRef)!=0)
+            return null;
+        return arrayRef.getValue();
+    }
+
+    /**
+     * Records the statistics of the given vdev and those below it, checking that they are the vdevs recorded.
+     *
+     * @return
+     *      Index of the vdev after those walked.
+     */
+    private int walk(Pointer p, int parent, int index, int slot) {
+        if (changed || index>=vdevs) {
+            changed = true;
+            return index;
+        }
+        nvlist_t nv = lists[index];
+        nv.setPointer(p);
+        if (LIBNVPAIR.nvlist_lookup_uint64(nv, "guid", longRef)!=0 || longRef.getValue()!=guids[index] || parents[index]!=parent) {
+            changed = true;
+            return index;
+        }
+        record(nv, index, slot);
+
+        int next = index+1;
+        for (String key : index==0 ? CHILDREN_OF_ROOT : CHILDREN) {
+            Pointer a = children(nv, key);
+            if (a==null)    continue;
+            int n = lengthRef.getValue();
+            for (int i=0; i<n && !changed; i++)
+                next = walk(a.getPointer(i*Pointer.SIZE), index, next, slot);
+        }
+        return next;
+    }
+
+    /**
+     * Copies the counters of one vdev into the given slot.
+     */
+    private void record(nvlist_t nv, int vdev, int slot) {
+        int base = (slot*vdevs+vdev)*COUNTERS;
+        int n = 0;
+        if (statsName!=null && LIBNVPAIR.nvlist_lookup_nvpair(nv, statsName, pairRef)==0) {
+            pair.setPointer(pairRef.getPointer().getPointer(0));
+            if (LIBNVPAIR.nvpair_value_uint64_array(pair, arrayRef, lengthRef)==0) {
+                n = Math.min(lengthRef.getValue(), MAX_STATS);
+                arrayRef.getValue().read(0, stats, 0, n);
+            }
+        }
+        Layout l = Layout.of(n, trim);
+        if (l==null) {
+            // no statistics, or not in a layout we know
+            for (int i=0; i<COUNTERS; i++)
+                counters[base+i] = 0;
+            alloc[vdev] = space[vdev] = 0;
+            if (vdev==0)    rootTime = 0;
+            return;
+        }
+        l.decode(stats, counters, base);
+        alloc[vdev] = stats[Layout.VS_ALLOC];
+        space[vdev] = stats[Layout.VS_SPACE];
+        if (vdev==0)    rootTime = stats[Layout.VS_TIMESTAMP];
+    }
+
+    /**
+     * Where the counters are in vdev_stat_t, viewed as an array of uint64_t:
+     * vs_timestamp, vs_state, vs_aux, vs_alloc, vs_space, vs_dspace, [vs_rsize,] [vs_esize,]
+     * vs_ops[ZIO_TYPES], vs_bytes[ZIO_TYPES], vs_read_errors, vs_write_errors, vs_checksum_errors, ...
+     */
+    /*package*/ static final class Layout {
+        static final int VS_TIMESTAMP = 0, VS_ALLOC = 3, VS_SPACE = 4;
+        private static final int ZIO_TYPE_READ = 1, ZIO_TYPE_WRITE = 2;
+
+        /**
+         * Before vs_rsize, with the scrub statistics that the scan statistics later replaced.
+         */
+        static final Layout SCRUB = new Layout(6, 6);
+        /**
+         * With vs_rsize and the scrub statistics.
+         */
+        static final Layout SCRUB_RSIZE = new Layout(7, 6);
+        /**
+         * With vs_rsize and the scan statistics, but before vs_esize.
+         */
+        static final Layout SCAN = new Layout(7, 6);
+        /**
+         * With vs_esize, followed by vs_fragmentation and more in later versions.
+         */
+        static final Layout ESIZE = new Layout(8, 6);
+        /**
+         * With ZIO_TYPE_TRIM, which made ZIO_TYPES 7.
+         */
+        static final Layout TRIM = new Layout(8, 7);
+
+        /**
+         * Index of vs_ops, and the number of ZIO types.
+         */
+        final int ops, types;
+
+        private Layout(int ops, int types) {
+            this.ops = ops;
+            this.types = types;
+        }
+
+        /**
+         * Number of words up to vs_checksum_errors.
+         */
+        int minLength() {
+            return ops+2*types+3;
+        }
+
+        /**
+         * Tells the layout of vdev_stat_t from its length, and whether ZFS has TRIM.
+         *
+         * @return
+         *      null if the statistics aren't in a layout we know.
+         */
+        static Layout of(int length, boolean trim) {
+            Layout l;
+            if (trim)               l = TRIM;
+            else if (length==29)    l = SCRUB;
+            else if (length==30)    l = SCRUB_RSIZE;
+            else if (length==25)    l = SCAN;
+            else                    l = ESIZE;
+            return length<l.minLength() ? null : l;
+        }
+
+        /**
+         * Copies the counters of one vdev from its statistics.
+         */
+        void decode(long[] stats, long[] counters, int base) {
+            int bytes = ops+types, errors = bytes+types;
+            counters[base+READ_OPS]         = stats[ops+ZIO_TYPE_READ];
+            counters[base+WRITE_OPS]        = stats[ops+ZIO_TYPE_WRITE];
+            counters[base+READ_BYTES]       = stats[bytes+ZIO_TYPE_READ];
+            counters[base+WRITE_BYTES]      = stats[bytes+ZIO_TYPE_WRITE];
+            counters[base+READ_ERRORS]      = stats[errors];
+            counters[base+WRITE_ERRORS]     = stats[errors+1];
+            counters[base+CHECKSUM_ERRORS]  = stats[errors+2];
+        }
+    }
+
+    /**
+     * Number of samples that can be kept.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of samples kept, up to {@link #capacity()}.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of vdevs, including the pool itself. 0 before the first sample.
+     */
+    public synchronized int getVdevCount() {
+        return vdevs;
+    }
+
+    /**
+     * Name of a vdev as "zpool iostat -v" shows it, such as "mirror-0" or "c0t1d0s0".
+     * The vdev 0 is the pool itself.
+     */
+    public synchronized String getName(int vdev) {
+        check(vdev);
+        return names[vdev];
+    }
+
+    public synchronized long getGuid(int vdev) {
+        check(vdev);
+        return guids[vdev];
+    }
+
+    /**
+     * Index of the vdev that contains the given one, or -1 for the pool itself.
+     */
+    public synchronized int getParent(int vdev) {
+        check(vdev);
+        return parents[vdev];
+    }
+
+    /**
+     * How many levels the vdev is below the pool, for indenting it like "zpool iostat -v".
+     */
+    public synchronized int getDepth(int vdev) {
+        check(vdev);
+        return depths[vdev];
+    }
+
+    /**
+     * Finds a vdev by its name.
+     *
+     * @return -1 if there's no such vdev.
+     */
+    public synchronized int indexOf(String name) {
+        for (int i=0; i<vdevs; i++)
+            if (names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Allocated space of a vdev in bytes, as of the latest sample.
+     */
+    public synchronized long getAllocated(int vdev) {
+        check(vdev);
+        return alloc[vdev];
+    }
+
+    /**
+     * Total space of a vdev in bytes, as of the latest sample. 0 for vdevs that don't hold data themselves.
+     */
+    public synchronized long getSpace(int vdev) {
+        check(vdev);
+        return space[vdev];
+    }
+
+    /**
+     * Gets the cumulative value of a counter.
+     *
+     * @param counter
+     *      One of {@link #READ_OPS}, {@link #WRITE_OPS}, {@link #READ_BYTES}, {@link #WRITE_BYTES},
+     *      {@link #READ_ERRORS}, {@link #WRITE_ERRORS} and {@link #CHECKSUM_ERRORS}.
+     * @param age
+     *      0 for the latest sample, 1 for the one before, and so on.
+     */
+    public synchronized long getCounter(int vdev, int counter, int age) {
+        return counters[index(vdev, counter, slot(age))];
+    }
+
+    /**
+     * Gets how much a counter changed between a sample and the one before it.
+     *
+     * @param age
+     *      0 for the change up to the latest sample, 1 for the one before, and so on.
+     */
+    public synchronized long getDelta(int vdev, int counter, int age) {
+        return counters[index(vdev, counter, slot(age))]-counters[index(vdev, counter, slot(age+1))];
+    }
+
+    /**
+     * Gets the time between a sample and the one before it, in nanoseconds.
+     */
+    public synchronized long getInterval(int age) {
+        return times[slot(age)]-times[slot(age+1)];
+    }
+
+    /**
+     * Gets how fast a counter changed per second between a sample and the one before it,
+     * like the operations and bandwidth columns of "zpool iostat".
+     *
+     * @return
+     *      NaN if there aren't two samples yet.
+     */
+    public synchronized double getRate(int vdev, int counter, int age) {
+        if (age+1>=size)
+            return Double.NaN;
+        long interval = getInterval(age);
+        return interval<=0 ? Double.NaN : getDelta(vdev, counter, age)*1e9/interval;
+    }
+
+    /**
+     * Gets how fast a counter changed per second up to the latest sample.
+     */
+    public double getRate(int vdev, int counter) {
+        return getRate(vdev, counter, 0);
+    }
+
+    private void check(int vdev) {
+        if (vdev<0 || vdev>=vdevs)
+            throw new IndexOutOfBoundsException("No vdev "+vdev+" out of "+vdevs);
+    }
+
+    private int slot(int age) {
+        if (age<0 || age>=size)
+            throw new IndexOutOfBoundsException("No sample "+age+" out of "+size);
+        return (latest-age+capacity)%capacity;
+    }
+
+    private int index(int vdev, int counter, int slot) {
+        check(vdev);
+        if (counter<0 || counter>=COUNTERS)
+            throw new IllegalArgumentException("No such counter: "+counter);
+        return (slot*vdevs+vdev)*COUNTERS+counter;
+    }
+}
@@ -24,13 +24,13 @@ import org.jvnet.solaris.avl.avl_node_t;
 import org.jvnet.solaris.avl.avl_tree_t;
 import org.jvnet.solaris.jna.BooleanByReference;
 import org.jvnet.solaris.jna.EnumByReference;
+import org.jvnet.solaris.jna.LibraryLoader;
 import org.jvnet.solaris.jna.PtrByReference;
 import org.jvnet.solaris.mount.MountFlags;
 import org.jvnet.solaris.nvlist.jna.nvlist_t;
 
 import com.sun.jna.Callback;
 import com.sun.jna.Library;
-import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
@@ -43,7 +43,7 @@ import com.sun.jna.ptr.PointerByReference;
  * @author Leo Xu
  */
 public interface libzfs extends Library {
-    public static final libzfs LIBZFS = (libzfs) Native.loadLibrary("zfs",libzfs.class);
+    public static final libzfs LIBZFS = LibraryLoader.load("zfs",libzfs.class,new libzfs_errors());
 
 /*
  * Miscellaneous ZFS constants
@@ -173,10 +173,21 @@ int zpool_set_prop(zpool_handle_t pool, String name, String value);
 int zpool_get_prop(zpool_handle_t pool, /* zpool_prop_t */ NativeLong prop, /*char[] */ Pointer buf,
     NativeLong len, EnumByReference<zprop_source_t> srctype);
 long zpool_get_prop_int(zpool_handle_t pool, zpool_prop_t prop, EnumByReference<zprop_source_t> src);
+    /**
+     * Same as {@link #zpool_get_prop_int(zpool_handle_t, zpool_prop_t, EnumByReference)} but takes the property ordinal.
+     */
+    long zpool_get_prop_int(zpool_handle_t pool, /* zpool_prop_t */ int prop, /* zprop_source_t* */ IntByReference src);
 
 String zpool_prop_to_name(zpool_prop_t prop);
 String zpool_prop_values(zpool_prop_t prop);
 
+    /**
+     * Looks up a pool property by name, for those that {@link zpool_prop_t} doesn't have.
+     *
+     * @return the property index, or -1 (ZPROP_INVAL) if there's no such property.
+     */
+    int zpool_name_to_prop(String propname);
+
 int/*ZPoolStatus*/ zpool_get_status(zpool_handle_t handle, /*char ** */ PointerByReference msgid);
 int/*ZPoolStatus*/ zpool_import_status(nvlist_t config, PointerByReference misgid);
 // void zpool_dump_ddt(ddt_stat_t dds_total, ddt_histogram_t ddh);
@@ -243,6 +254,12 @@ String zfs_prop_column_name(zfs_prop_t prop);
 boolean zfs_prop_align_right(zfs_prop_t prop);
 
 String zfs_prop_to_name(zfs_prop_t prop);
+    /**
+     * Looks up a native property by name, for those that {@link zfs_prop_t} doesn't have.
+     *
+     * @return the property index, or -1 (ZPROP_INVAL) if there's no such native property.
+     */
+    int zfs_name_to_prop(String propname);
 
     /**
      * Sets a property on a ZFS data set.
@@ -255,7 +272,18 @@ int zfs_prop_get(zfs_handle_t handle, /* zfs_prop_t */ NativeLong prop, Pointer
     /*zprop_source_t* */ IntByReference _5, char[] _6, NativeLong _7, boolean _8);
 int zfs_prop_get_numeric(zfs_handle_t handle, zfs_prop_t prop, LongByReference r,
     /*zprop_source_t* */ IntByReference _4, char[] _5, NativeLong _6);
+    /**
+     * Same as {@link #zfs_prop_get_numeric(zfs_handle_t, zfs_prop_t, LongByReference, IntByReference, char[], NativeLong)}
+     * but takes the property ordinal.
+     */
+    int zfs_prop_get_numeric(zfs_handle_t handle, /* zfs_prop_t */ int prop, LongByReference r,
+        /*zprop_source_t* */ IntByReference _4, char[] _5, NativeLong _6);
 long zfs_prop_get_int(zfs_handle_t handle, zfs_prop_t prop);
+    /**
+     * Same as {@link #zfs_prop_get_int(zfs_handle_t, zfs_prop_t)} but takes the property ordinal,
+     * so that the call can be made without an enum type mapper.
+     */
+    long zfs_prop_get_int(zfs_handle_t handle, /* zfs_prop_t */ int prop);
 int zfs_prop_inherit(zfs_handle_t handle, String _2);
 String zfs_prop_values(zfs_prop_t prop);
 int zfs_prop_is_string(zfs_prop_t prop);
@@ -316,6 +344,10 @@ int zfs_create(libzfs_handle_t lib, String name, int/*zfs_type_t*/ type, nvlist_
 int zfs_create_ancestors(libzfs_handle_t lib, String _2);
 int zfs_destroy(zfs_handle_t handle, boolean defer);
 int zfs_destroy_snaps(zfs_handle_t handle, String name, boolean _3);
+/**
+ * Destroys all the snapshots named in the keys of the list at once. Only in newer releases of libzfs.
+ */
+int zfs_destroy_snaps_nvl(libzfs_handle_t lib, nvlist_t snaps, boolean defer);
 int zfs_clone(zfs_handle_t handle, String name, nvlist_t _3);
 /*
  * nv96 prototype:
@@ -330,7 +362,10 @@ int zfs_rename(zfs_handle_t handle, String name, boolean _3);
 int zfs_send(zfs_handle_t handle, String _2, String _3, boolean _4, boolean _5, boolean _6, boolean _7, int _8);
 int zfs_promote(zfs_handle_t handle);
 
-int zfs_receive(libzfs_handle_t lib, String name, recvflags_t _3, int _4, avl_tree_t _5);
+/**
+ * recvflags_t is a struct of bit fields passed by value. Use {@link recvflags_t#encode} to build it.
+ */
+int zfs_receive(libzfs_handle_t lib, String name, int/*recvflags_t*/ flags, int fd, avl_tree_t stream_avl);
 
 /*
  * Miscellaneous functions.
@@ -0,0 +1,83 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.jna;
+
+import org.jvnet.solaris.jna.LibraryLoader;
+import org.jvnet.solaris.jna.NativeCalls;
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+
+import com.sun.jna.Library;
+
+/**
+ * <tt>libzfs_core</tt>, the thin and stable interface to the ZFS ioctls.
+ *
+ * <p>
+ * Unlike {@link libzfs}, these functions don't open dataset handles or read properties,
+ * and they report errors by returning an errno value, not through a library handle.
+ * Functions that act on many datasets also fill in a list from the dataset name
+ * to the int32 errno of those that failed.
+ */
+public interface libzfs_core extends Library {
+    public static final libzfs_core LIBZFS_CORE = LibraryLoader.load("zfs_core",libzfs_core.class,NativeCalls.errno());
+
+    /*
+     * Flags of lzc_send.
+     */
+    public static final int LZC_SEND_FLAG_EMBED_DATA = 1<<0;
+    public static final int LZC_SEND_FLAG_LARGE_BLOCK = 1<<1;
+    public static final int LZC_SEND_FLAG_COMPRESS = 1<<2;
+    public static final int LZC_SEND_FLAG_RAW = 1<<3;
+
+/**
+ * Opens /dev/zfs. Reference counted, so each call needs a matching {@link #libzfs_core_fini()}.
+ */
+int libzfs_core_init();
+void libzfs_core_fini();
+
+/**
+ * Creates all the snapshots named in the keys of the list in one transaction group.
+ * They must all be in the same pool.
+ *
+ * @param props
+ *      User properties to set on all of them. Can be null.
+ */
+int lzc_snapshot(nvlist_t snaps, nvlist_t props, PtrByReference<nvlist_t> errlist);
+/**
+ * Destroys all the snapshots named in the keys of the list, or none of them.
+ * They must all be in the same pool.
+ */
+int lzc_destroy_snaps(nvlist_t snaps, boolean defer, PtrByReference<nvlist_t> errlist);
+boolean lzc_exists(String dataset);
+
+/**
+ * @param from
+ *      Snapshot or bookmark to send an incremental stream from, or null for a full stream.
+ */
+int lzc_send(String snapname, String from, int fd, int flags);
+/**
+ * This is the signature since encryption support was added. Older releases don't have the raw parameter.
+ *
+ * @param origin
+ *      For a clone stream, the snapshot to clone from. Otherwise null.
+ */
+int lzc_receive(String snapname, nvlist_t props, String origin, boolean force, boolean raw, int fd);
+}
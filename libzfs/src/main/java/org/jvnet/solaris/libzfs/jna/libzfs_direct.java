@@ -0,0 +1,201 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.jna;
+
+import static org.jvnet.solaris.libzfs.jna.libzfs.LIBZFS;
+
+import org.jvnet.solaris.jna.LibraryLoader;
+import org.jvnet.solaris.jna.NativeCalls;
+import org.jvnet.solaris.libzfs.jna.libzfs.zfs_iter_f;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+
+/**
+ * Direct-mapped bindings for the <tt>libzfs</tt> functions that are called for every dataset
+ * when walking a hierarchy or reading properties.
+ *
+ * <p>
+ * A call through {@link libzfs#LIBZFS} goes through a proxy, which looks up the function
+ * and converts each argument by reflection. The functions here are instead registered with
+ * {@link Native#register(Class, NativeLibrary)} as JNI native methods that take plain pointers
+ * and primitives, which takes most of that work out of each call.
+ *
+ * <p>
+ * The methods have the same names and meaning as those of {@link libzfs}, and take the library
+ * to call as the first parameter. Only calls for {@link libzfs#LIBZFS} go direct. Those for another
+ * implementation, such as one given to a {@link org.jvnet.solaris.libzfs.LibZFS}, go through that implementation,
+ * and so do all of them if the functions can't be registered.
+ * Everything else should still be called through the library.
+ */
+public final class libzfs_direct {
+    private libzfs_direct() {}
+
+    /**
+     * True if the direct-mapped functions are in use. They aren't when {@link libzfs#LIBZFS}
+     * is a stand-in from a {@link LibraryLoader.Backend}, or is wrapped by {@link NativeCalls},
+     * so that the stand-in or the instrumentation sees every call.
+     */
+    public static final boolean DIRECT = LibraryLoader.isNative(LIBZFS) && Natives.REGISTERED;
+
+    /**
+     * Whether the calls for the given library can go direct.
+     */
+    private static boolean direct(libzfs api) {
+        return api==LIBZFS && DIRECT;
+    }
+
+    private static final NativeLong ZERO = new NativeLong(0);
+
+    public static zfs_handle_t zfs_open(libzfs api, libzfs_handle_t lib, String name, int typeMask) {
+        if (!direct(api))    return api.zfs_open(lib, name, typeMask);
+        Pointer p = Natives.zfs_open(lib.getPointer(), name, typeMask);
+        if (p==null)    return null;
+        zfs_handle_t h = new zfs_handle_t();
+        h.setPointer(p);
+        return h;
+    }
+
+    public static void zfs_close(libzfs api, zfs_handle_t handle) {
+        if (!direct(api))    api.zfs_close(handle);
+        else                    Natives.zfs_close(handle.getPointer());
+    }
+
+    public static int zfs_get_type(libzfs api, zfs_handle_t handle) {
+        if (!direct(api))    return api.zfs_get_type(handle);
+        return Natives.zfs_get_type(handle.getPointer());
+    }
+
+    public static String zfs_get_name(libzfs api, zfs_handle_t handle) {
+        if (!direct(api))    return api.zfs_get_name(handle);
+        return Natives.zfs_get_name(handle.getPointer());
+    }
+
+    /**
+     * Formats a property into the given buffer, without reporting its source.
+     *
+     * @param len
+     *      Size of the buffer. Keep it in a constant to avoid creating a {@link NativeLong} for each call.
+     */
+    public static int zfs_prop_get(libzfs api, zfs_handle_t handle, /* zfs_prop_t */ int prop, Pointer buf, NativeLong len, boolean literal) {
+        if (!direct(api))
+            return api.zfs_prop_get(handle, new NativeLong(prop), buf, len.intValue(), null, null, ZERO, literal);
+        return Natives.zfs_prop_get(handle.getPointer(), prop, buf, len, null, null, ZERO, literal);
+    }
+
+    public static long zfs_prop_get_int(libzfs api, zfs_handle_t handle, /* zfs_prop_t */ int prop) {
+        if (!direct(api))    return api.zfs_prop_get_int(handle, prop);
+        return Natives.zfs_prop_get_int(handle.getPointer(), prop);
+    }
+
+    /**
+     * Reads a numeric property, without reporting its source.
+     *
+     * @param value
+     *      Receives the uint64 value.
+     */
+    public static int zfs_prop_get_numeric(libzfs api, zfs_handle_t handle, /* zfs_prop_t */ int prop, Pointer value) {
+        if (!direct(api)) {
+            LongByReference r = new LongByReference();
+            int ret = api.zfs_prop_get_numeric(handle, prop, r, null, null, ZERO);
+            value.setLong(0, r.getValue());
+            return ret;
+        }
+        return Natives.zfs_prop_get_numeric(handle.getPointer(), prop, value, null, null, ZERO);
+    }
+
+    public static int zfs_iter_root(libzfs api, libzfs_handle_t lib, zfs_iter_f callback, Pointer arg) {
+        if (!direct(api))    return api.zfs_iter_root(lib, callback, arg);
+        return Natives.zfs_iter_root(lib.getPointer(), callback, arg);
+    }
+
+    public static int zfs_iter_children(libzfs api, zfs_handle_t handle, zfs_iter_f callback, Pointer arg) {
+        if (!direct(api))    return api.zfs_iter_children(handle, callback, arg);
+        return Natives.zfs_iter_children(handle.getPointer(), callback, arg);
+    }
+
+    public static int zfs_iter_filesystems(libzfs api, zfs_handle_t handle, zfs_iter_f callback, Pointer arg) {
+        if (!direct(api))    return api.zfs_iter_filesystems(handle, callback, arg);
+        return Natives.zfs_iter_filesystems(handle.getPointer(), callback, arg);
+    }
+
+    public static int zfs_iter_snapshots(libzfs api, zfs_handle_t handle, boolean simple, zfs_iter_f callback, Pointer arg) {
+        if (!direct(api))    return api.zfs_iter_snapshots(handle, simple, callback, arg);
+        return Natives.zfs_iter_snapshots(handle.getPointer(), simple, callback, arg);
+    }
+
+    /**
+     * Formats a pool property into the given buffer, without reporting its source.
+     */
+    public static int zpool_get_prop(libzfs api, zpool_handle_t pool, /* zpool_prop_t */ int prop, Pointer buf, NativeLong len) {
+        if (!direct(api))    return api.zpool_get_prop(pool, new NativeLong(prop), buf, len, null);
+        return Natives.zpool_get_prop(pool.getPointer(), prop, buf, len, null);
+    }
+
+    public static long zpool_get_prop_int(libzfs api, zpool_handle_t pool, /* zpool_prop_t */ int prop) {
+        if (!direct(api))    return api.zpool_get_prop_int(pool, prop, (IntByReference)null);
+        return Natives.zpool_get_prop_int(pool.getPointer(), prop, null);
+    }
+
+    public static int libzfs_errno(libzfs api, libzfs_handle_t lib) {
+        if (!direct(api))    return api.libzfs_errno(lib);
+        return Natives.libzfs_errno(lib.getPointer());
+    }
+
+    /**
+     * The actual native methods. Kept separate so that a failure to register them
+     * leaves {@link libzfs_direct} usable.
+     */
+    private static final class Natives {
+        static final boolean REGISTERED = register();
+
+        private static boolean register() {
+            try {
+                Native.register(Natives.class, NativeLibrary.getInstance("zfs"));
+                return true;
+            } catch (UnsatisfiedLinkError e) {
+                // library or one of the functions is missing
+                return false;
+            }
+        }
+
+        static native Pointer zfs_open(Pointer lib, String name, int typeMask);
+        static native void zfs_close(Pointer zhp);
+        static native int zfs_get_type(Pointer zhp);
+        static native String zfs_get_name(Pointer zhp);
+        static native int zfs_prop_get(Pointer zhp, int prop, Pointer buf, NativeLong len,
+                Pointer src, Pointer statbuf, NativeLong statlen, boolean literal);
+        static native long zfs_prop_get_int(Pointer zhp, int prop);
+        static native int zfs_prop_get_numeric(Pointer zhp, int prop, Pointer value,
+                Pointer src, Pointer statbuf, NativeLong statlen);
+        static native int zfs_iter_root(Pointer lib, zfs_iter_f callback, Pointer arg);
+        static native int zfs_iter_children(Pointer zhp, zfs_iter_f callback, Pointer arg);
+        static native int zfs_iter_filesystems(Pointer zhp, zfs_iter_f callback, Pointer arg);
+        static native int zfs_iter_snapshots(Pointer zhp, boolean simple, zfs_iter_f callback, Pointer arg);
+        static native int zpool_get_prop(Pointer zhp, int prop, Pointer buf, NativeLong len, Pointer src);
+        static native long zpool_get_prop_int(Pointer zhp, int prop, Pointer src);
+        static native int libzfs_errno(Pointer lib);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.jna;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jvnet.solaris.jna.NativeCalls;
+import org.jvnet.solaris.libzfs.ErrorCode;
+
+/**
+ * Tells {@link NativeCalls} which {@link libzfs} calls failed, and labels them with
+ * the {@link ErrorCode} that {@link libzfs#libzfs_errno(libzfs_handle_t)} reports.
+ *
+ * <p>
+ * A call failed if it returned a non-zero status or no handle. libzfs doesn't clear the error
+ * on success, so a function that fails without setting it, like {@link libzfs#zfs_prop_get}
+ * for a property that doesn't apply, gets the label of an earlier error.
+ */
+/*package*/ final class libzfs_errors implements NativeCalls.Errors<libzfs> {
+    /**
+     * Functions that return an int that isn't a status.
+     */
+    private static final Set<String> NOT_STATUS = new HashSet<String>(Arrays.asList(
+        "libzfs_errno", "zpool_get_state", "zpool_get_status", "zpool_import_status",
+        "zfs_get_type", "zfs_name_to_prop", "zpool_name_to_prop", "zfs_prop_is_string", "zfs_name_valid",
+        // these return whatever the callback returns
+        "zpool_iter", "zprop_iter", "zfs_iter_root", "zfs_iter_children", "zfs_iter_dependents",
+        "zfs_iter_filesystems", "zfs_iter_snapshots"));
+
+    public String classify(libzfs lib, Method m, Object[] args, Object result) {
+        Class<?> t = m.getReturnType();
+        if (t==int.class) {
+            if ((Integer)result==0 || NOT_STATUS.contains(m.getName()))
+                return null;
+        } else
+        if (t==zfs_handle_t.class || t==zpool_handle_t.class || t==libzfs_handle_t.class) {
+            if (result!=null)
+                return null;
+        } else
+            return null;
+
+        libzfs_handle_t h = null;
+        if (args!=null) {
+            for (Object a : args) {
+                if (a instanceof libzfs_handle_t)
+                    h = (libzfs_handle_t)a;
+                else if (a instanceof zfs_handle_t)
+                    h = lib.zfs_get_handle((zfs_handle_t)a);
+                else if (a instanceof zpool_handle_t)
+                    h = lib.zpool_get_handle((zpool_handle_t)a);
+                if (h!=null)
+                    break;
+            }
+        }
+        int e = h!=null ? lib.libzfs_errno(h) : 0;
+        return e!=0 ? ErrorCode.fromCode(e).name() : "failed";
+    }
+}
@@ -20,6 +20,8 @@
  */
 package org.jvnet.solaris.libzfs.jna;
 
+import java.nio.ByteOrder;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -29,31 +31,69 @@ public abstract class recvflags_t {
     // verify the packing rule
     /**
      * print informational messages (ie, -v was specified)
+     *
+     * @deprecated
+     *      These byte constants assume that the bit fields are allocated from the most significant bit
+     *      of the first byte, which only holds on big endian machines. Use {@link #encode}.
      */
+    @Deprecated
     public static final byte verbose = (byte)0x80;
 
     /**
      * the destination is a prefix, not the exact fs (ie, -d)
+     *
+     * @deprecated see {@link #verbose}
      */
+    @Deprecated
     public static final byte isprefix = (byte)0x40;
 
     /**
      * do not actually do the recv, just check if it would work (ie, -n)
+     *
+     * @deprecated see {@link #verbose}
      */
+    @Deprecated
     public static final byte dryrun = (byte)0x20;
 
     /**
      * rollback/destroy filesystems as necessary (eg, -F)
+     *
+     * @deprecated see {@link #verbose}
      */
+    @Deprecated
     public static final byte force = (byte)0x10;
 
     /**
      * set "canmount=off" on all modified filesystems
+     *
+     * @deprecated see {@link #verbose}
      */
+    @Deprecated
     public static final byte canmountoff = (byte)0x08;
 
     /**
      * byteswap flag is used internally; callers need not specify
+     *
+     * @deprecated see {@link #verbose}
      */
+    @Deprecated
     public static final byte byteswap = (byte)0x04;
+
+    /**
+     * Builds the struct as the int that it's passed as.
+     *
+     * <p>
+     * The fields are one-bit bit fields in a 32-bit unit, which the compiler allocates
+     * from the most significant bit on big endian machines (SPARC),
+     * and from the least significant bit on little endian machines (x86).
+     */
+    public static int encode(boolean verbose, boolean isprefix, boolean dryrun, boolean force, boolean canmountoff) {
+        boolean[] fields = {verbose, isprefix, dryrun, force, canmountoff};
+        boolean bigEndian = ByteOrder.nativeOrder()==ByteOrder.BIG_ENDIAN;
+        int r = 0;
+        for (int i=0; i<fields.length; i++)
+            if (fields[i])
+                r |= bigEndian ? 1<<(31-i) : 1<<i;
+        return r;
+    }
 }
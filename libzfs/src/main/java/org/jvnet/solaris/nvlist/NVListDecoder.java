@@ -0,0 +1,351 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.nvlist;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jvnet.solaris.nvlist.jna.NVListException;
+import org.jvnet.solaris.nvlist.jna.libnvpair;
+import org.jvnet.solaris.nvlist.jna.libnvpair.data_type_t;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+
+/**
+ * Decodes packed name/value pair lists entirely in Java.
+ *
+ * <p>
+ * Reading a large {@link nvlist_t}, such as the configuration of a pool with many devices,
+ * pair by pair takes several native calls per pair. Instead, {@link #decode(nvlist_t)} packs the list
+ * with one native call, and parses the packed form here.
+ * Since no native code is involved in the parsing, it also works on packed lists saved elsewhere.
+ *
+ * <p>
+ * Lists are expected in the XDR encoding of libnvpair ({@link libnvpair#NV_ENCODE_XDR}),
+ * which, unlike the native encoding, doesn't depend on the platform that packed it.
+ *
+ * @see NVListEncoder
+ */
+public final class NVListDecoder {
+    /*package*/ static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the contents of a list as it's parsed, see {@link NVListDecoder#decode(ByteBuffer, Handler)}.
+     */
+    public interface Handler {
+        /**
+         * Called for every pair except nested lists and arrays of them.
+         *
+         * @param value
+         *      See {@link org.jvnet.solaris.nvlist.jna.nvpair_t#getValue()} for the Java types of the values.
+         */
+        void pair(String name, data_type_t type, Object value);
+
+        /**
+         * Called at the start of a nested list, or of each element of an array of lists.
+         *
+         * @param name
+         *      Name of the pair, or null for an element of an array of lists.
+         */
+        void startList(String name);
+
+        void endList();
+
+        /**
+         * Called at the start of an array of lists, before its elements.
+         */
+        void startListArray(String name, int length);
+
+        void endListArray();
+    }
+
+    private final ByteBuffer buf;
+    private final Handler handler;
+
+    private NVListDecoder(ByteBuffer buf, Handler handler) {
+        this.buf = buf;
+        this.handler = handler;
+    }
+
+    /**
+     * Packs the list with one native call, and decodes it into a tree of unmodifiable maps.
+     */
+    public static Map<String,Object> decode(nvlist_t list) {
+        return decode(list.pack());
+    }
+
+    /**
+     * Decodes a packed list into a tree of unmodifiable maps.
+     *
+     * <p>
+     * Values are of the same Java types as {@link nvlist_t#toMap()} returns,
+     * and pairs are in the order they were packed.
+     *
+     * @param packed
+     *      The bytes from the position on are decoded. The buffer itself isn't modified.
+     */
+    public static Map<String,Object> decode(ByteBuffer packed) {
+        TreeBuilder b = new TreeBuilder();
+        decode(packed, b);
+        return b.root;
+    }
+
+    /**
+     * Parses a packed list, and reports its contents to the handler as it goes,
+     * without building a tree.
+     *
+     * @throws NVListException
+     *      if the data is not a packed list in the XDR encoding.
+     */
+    public static void decode(ByteBuffer packed, Handler handler) {
+        ByteBuffer b = packed.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            // nvs_header_t: encoding, endianness of the packer, 2 reserved bytes
+            byte encoding = b.get();
+            if (encoding!=libnvpair.NV_ENCODE_XDR)
+                throw new NVListException("Only the XDR encoding is supported, but the encoding is "+encoding);
+            b.get(); b.get(); b.get();
+
+            NVListDecoder d = new NVListDecoder(b, handler);
+            handler.startList(null);
+            d.list();
+            handler.endList();
+        } catch (BufferUnderflowException e) {
+            throw (NVListException)new NVListException("Truncated list").initCause(e);
+        }
+    }
+
+    /**
+     * Parses the version, the flags, the pairs, and the terminator of a list.
+     */
+    private void list() {
+        buf.getInt();   // nvl_version
+        buf.getInt();   // nvl_nvflag
+        while (true) {
+            int start = buf.position();
+            int encodedSize = buf.getInt();
+            int decodedSize = buf.getInt();
+            if (encodedSize==0 && decodedSize==0)
+                return;
+            if (encodedSize<0 || start+encodedSize>buf.limit())
+                throw new NVListException("Bad pair size "+encodedSize+" at "+start);
+            pair(start+encodedSize);
+        }
+    }
+
+    private void pair(int end) {
+        String name = string();
+        int t = buf.getInt();
+        int n = buf.getInt();
+        data_type_t[] types = data_type_t.values();
+        data_type_t type = t>=0 && t<types.length ? types[t] : data_type_t.DATA_TYPE_UNKNOWN;
+
+        Object v;
+        switch (type) {
+        case DATA_TYPE_BOOLEAN:
+            v = Boolean.TRUE;
+            break;
+        case DATA_TYPE_BOOLEAN_VALUE:
+            v = buf.getInt()!=0;
+            break;
+        case DATA_TYPE_BYTE:
+        case DATA_TYPE_INT8:
+        case DATA_TYPE_UINT8:
+            v = (byte)buf.getInt();
+            break;
+        case DATA_TYPE_INT16:
+        case DATA_TYPE_UINT16:
+            v = (short)buf.getInt();
+            break;
+        case DATA_TYPE_INT32:
+        case DATA_TYPE_UINT32:
+            v = buf.getInt();
+            break;
+        case DATA_TYPE_INT64:
+        case DATA_TYPE_UINT64:
+        case DATA_TYPE_HRTIME:
+            v = buf.getLong();
+            break;
+        case DATA_TYPE_STRING:
+            v = string();
+            break;
+        case DATA_TYPE_NVLIST:
+            handler.startList(name);
+            list();
+            handler.endList();
+            return;
+        case DATA_TYPE_NVLIST_ARRAY:
+            handler.startListArray(name, n);
+            for (int i=0; i<n; i++) {
+                handler.startList(null);
+                list();
+                handler.endList();
+            }
+            handler.endListArray();
+            return;
+        case DATA_TYPE_BYTE_ARRAY: {
+            // opaque bytes, without the count
+            byte[] a = new byte[n];
+            buf.get(a);
+            skipPadding(n);
+            v = a;
+            break;
+        }
+        case DATA_TYPE_INT8_ARRAY:
+        case DATA_TYPE_UINT8_ARRAY: {
+            byte[] a = new byte[count(n)];
+            for (int i=0; i<a.length; i++)
+                a[i] = (byte)buf.getInt();
+            v = a;
+            break;
+        }
+        case DATA_TYPE_INT16_ARRAY:
+        case DATA_TYPE_UINT16_ARRAY: {
+            short[] a = new short[count(n)];
+            for (int i=0; i<a.length; i++)
+                a[i] = (short)buf.getInt();
+            v = a;
+            break;
+        }
+        case DATA_TYPE_INT32_ARRAY:
+        case DATA_TYPE_UINT32_ARRAY: {
+            int[] a = new int[count(n)];
+            buf.asIntBuffer().get(a);
+            buf.position(buf.position()+a.length*4);
+            v = a;
+            break;
+        }
+        case DATA_TYPE_BOOLEAN_ARRAY: {
+            boolean[] a = new boolean[count(n)];
+            for (int i=0; i<a.length; i++)
+                a[i] = buf.getInt()!=0;
+            v = a;
+            break;
+        }
+        case DATA_TYPE_INT64_ARRAY:
+        case DATA_TYPE_UINT64_ARRAY: {
+            long[] a = new long[count(n)];
+            buf.asLongBuffer().get(a);
+            buf.position(buf.position()+a.length*8);
+            v = a;
+            break;
+        }
+        case DATA_TYPE_STRING_ARRAY: {
+            String[] a = new String[n];
+            for (int i=0; i<n; i++)
+                a[i] = string();
+            v = a;
+            break;
+        }
+        default:
+            // a type newer than this code. the size lets us skip it
+            buf.position(end);
+            v = null;
+        }
+        handler.pair(name, type, v);
+    }
+
+    /**
+     * Reads the element count that XDR puts before most arrays, which repeats the one in the pair header.
+     */
+    private int count(int n) {
+        int c = buf.getInt();
+        if (c!=n)
+            throw new NVListException("Array of "+n+" elements claims to have "+c);
+        return c;
+    }
+
+    /**
+     * Reads an XDR string: the length, the bytes, and the padding to a multiple of 4.
+     */
+    private String string() {
+        int len = buf.getInt();
+        if (len<0 || len>buf.remaining())
+            throw new NVListException("Bad string length "+len);
+        ByteBuffer s = buf.slice();
+        s.limit(len);
+        buf.position(buf.position()+len);
+        skipPadding(len);
+        return UTF8.decode(s).toString();
+    }
+
+    private void skipPadding(int len) {
+        buf.position(buf.position()+((4-(len&3))&3));
+    }
+
+    /**
+     * Builds the tree returned by {@link NVListDecoder#decode(ByteBuffer)}.
+     */
+    private static final class TreeBuilder implements Handler {
+        /**
+         * Maps of the lists, and lists of the arrays of lists, being built. Innermost first.
+         */
+        private final LinkedList<Object> stack = new LinkedList<Object>();
+        /**
+         * Names of the pairs that those will be put in.
+         */
+        private final LinkedList<String> names = new LinkedList<String>();
+        Map<String,Object> root;
+
+        @SuppressWarnings("unchecked")
+        public void pair(String name, data_type_t type, Object value) {
+            ((Map<String,Object>)stack.getFirst()).put(name, value);
+        }
+
+        public void startList(String name) {
+            stack.addFirst(new LinkedHashMap<String,Object>());
+            names.addFirst(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void endList() {
+            add(Collections.unmodifiableMap((Map<String,Object>)stack.removeFirst()));
+        }
+
+        public void startListArray(String name, int length) {
+            stack.addFirst(new ArrayList<Map<String,Object>>(length));
+            names.addFirst(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void endListArray() {
+            add(Collections.unmodifiableList((List<Map<String,Object>>)stack.removeFirst()));
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object v) {
+            String name = names.removeFirst();
+            if (stack.isEmpty())
+                root = (Map<String,Object>)v;
+            else if (stack.getFirst() instanceof List)
+                ((List<Object>)stack.getFirst()).add(v);
+            else
+                ((Map<String,Object>)stack.getFirst()).put(name, v);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.nvlist;
+
+import static org.jvnet.solaris.nvlist.NVListDecoder.UTF8;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME_TYPE;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jvnet.solaris.nvlist.jna.libnvpair;
+import org.jvnet.solaris.nvlist.jna.libnvpair.data_type_t;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+
+/**
+ * Builds a packed name/value pair list entirely in Java.
+ *
+ * <p>
+ * Building a large {@link nvlist_t}, such as one that names thousands of snapshots, takes a native call
+ * per pair. This encodes the pairs in Java instead, and {@link #toNative()} turns the result into
+ * a {@link nvlist_t} with a single native call.
+ *
+ * <p>
+ * The methods correspond to those of {@link nvlist_t}. The list is packed in the XDR encoding
+ * of libnvpair ({@link libnvpair#NV_ENCODE_XDR}), and {@link NVListDecoder} reads it back.
+ */
+public final class NVListEncoder {
+    private static final int NV_VERSION = 0;
+
+    /**
+     * NV_ALIGN(sizeof(nvlist_t)). The private pointer of nvlist_t is declared as uint64_t,
+     * so the structure is as large in 32-bit processes as in 64-bit ones.
+     */
+    private static final int NVLIST_SIZE = 24;
+
+    /**
+     * Space that libnvpair reserves for each pointer of a string or nvlist array.
+     * It's sizeof(uint64_t) rather than the size of a pointer, so that the size of a pair in memory,
+     * which is part of the packed form, is the same in 32-bit and 64-bit processes.
+     */
+    private static final int ARRAY_SLOT_SIZE = 8;
+
+    private final int nvflag;
+
+    /**
+     * Encoded pairs, in the order they were added. Keyed so that adding a pair replaces
+     * the existing ones that libnvpair would replace according to the flags.
+     */
+    private final Map<Object,byte[]> pairs = new LinkedHashMap<Object,byte[]>();
+
+    /**
+     * Creates a list with unique names, like {@link nvlist_t#allocMap()}.
+     */
+    public NVListEncoder() {
+        this(NV_UNIQUE_NAME);
+    }
+
+    /**
+     * @param nvflag
+     *      {@link libnvpair#NV_UNIQUE_NAME}, {@link libnvpair#NV_UNIQUE_NAME_TYPE}, or 0.
+     */
+    public NVListEncoder(int nvflag) {
+        this.nvflag = nvflag;
+    }
+
+    public NVListEncoder put(String name, String value) {
+        byte[] s = utf8(value);
+        Out v = new Out();
+        v.string(s);
+        return add(name, data_type_t.DATA_TYPE_STRING, 1, v, s.length+1);
+    }
+
+    /**
+     * Like {@link nvlist_t#put(String, boolean)}, true is added as a boolean flag, which has no value,
+     * and false as a boolean value.
+     */
+    public NVListEncoder put(String name, boolean value) {
+        if (value)
+            return add(name, data_type_t.DATA_TYPE_BOOLEAN, 0, new Out(), 0);
+        Out v = new Out();
+        v.int32(0);
+        return add(name, data_type_t.DATA_TYPE_BOOLEAN_VALUE, 1, v, 4);
+    }
+
+    public NVListEncoder put(String name, byte value) {
+        return scalar(name, data_type_t.DATA_TYPE_BYTE, value, 1);
+    }
+
+    public NVListEncoder put(String name, short value) {
+        return scalar(name, data_type_t.DATA_TYPE_INT16, value, 2);
+    }
+
+    public NVListEncoder put(String name, int value) {
+        return scalar(name, data_type_t.DATA_TYPE_INT32, value, 4);
+    }
+
+    public NVListEncoder putUInt32(String name, int value) {
+        return scalar(name, data_type_t.DATA_TYPE_UINT32, value, 4);
+    }
+
+    public NVListEncoder put(String name, long value) {
+        Out v = new Out();
+        v.int64(value);
+        return add(name, data_type_t.DATA_TYPE_INT64, 1, v, 8);
+    }
+
+    public NVListEncoder putUInt64(String name, long value) {
+        Out v = new Out();
+        v.int64(value);
+        return add(name, data_type_t.DATA_TYPE_UINT64, 1, v, 8);
+    }
+
+    /**
+     * Adds a nested list. Like {@link nvlist_t#put(String, nvlist_t)}, the list is copied,
+     * so later changes to it aren't reflected.
+     */
+    public NVListEncoder put(String name, NVListEncoder value) {
+        Out v = new Out();
+        value.body(v);
+        return add(name, data_type_t.DATA_TYPE_NVLIST, 1, v, NVLIST_SIZE);
+    }
+
+    public NVListEncoder put(String name, boolean[] value) {
+        Out v = new Out();
+        v.int32(value.length);
+        for (boolean b : value)
+            v.int32(b ? 1 : 0);
+        return add(name, data_type_t.DATA_TYPE_BOOLEAN_ARRAY, value.length, v, 4*value.length);
+    }
+
+    public NVListEncoder put(String name, byte[] value) {
+        // opaque, without the count
+        Out v = new Out();
+        v.bytes(value);
+        return add(name, data_type_t.DATA_TYPE_BYTE_ARRAY, value.length, v, value.length);
+    }
+
+    public NVListEncoder put(String name, short[] value) {
+        Out v = new Out();
+        v.int32(value.length);
+        for (short s : value)
+            v.int32(s);
+        return add(name, data_type_t.DATA_TYPE_INT16_ARRAY, value.length, v, 2*value.length);
+    }
+
+    public NVListEncoder put(String name, int[] value) {
+        return ints(name, data_type_t.DATA_TYPE_INT32_ARRAY, value);
+    }
+
+    public NVListEncoder putUInt32Array(String name, int[] value) {
+        return ints(name, data_type_t.DATA_TYPE_UINT32_ARRAY, value);
+    }
+
+    public NVListEncoder put(String name, long[] value) {
+        return longs(name, data_type_t.DATA_TYPE_INT64_ARRAY, value);
+    }
+
+    public NVListEncoder putUInt64Array(String name, long[] value) {
+        return longs(name, data_type_t.DATA_TYPE_UINT64_ARRAY, value);
+    }
+
+    public NVListEncoder put(String name, String[] value) {
+        // strings without the count. in memory, they are preceded by an array of pointers
+        Out v = new Out();
+        int size = ARRAY_SLOT_SIZE*value.length;
+        for (String s : value) {
+            byte[] b = utf8(s);
+            v.string(b);
+            size += b.length+1;
+        }
+        return add(name, data_type_t.DATA_TYPE_STRING_ARRAY, value.length, v, size);
+    }
+
+    public NVListEncoder put(String name, NVListEncoder[] value) {
+        Out v = new Out();
+        for (NVListEncoder l : value)
+            l.body(v);
+        // in memory, an array of pointers followed by the nvlist_t structures
+        return add(name, data_type_t.DATA_TYPE_NVLIST_ARRAY, value.length, v, (ARRAY_SLOT_SIZE+NVLIST_SIZE)*value.length);
+    }
+
+    /**
+     * Packs the list, in the same format as {@link nvlist_t#pack()}.
+     */
+    public ByteBuffer pack() {
+        Out o = new Out();
+        // nvs_header_t: encoding, endianness of the packer, 2 reserved bytes
+        o.ensure(4);
+        o.buf[o.len++] = libnvpair.NV_ENCODE_XDR;
+        o.buf[o.len++] = (byte)(ByteOrder.nativeOrder()==ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+        o.len += 2;
+        body(o);
+        return ByteBuffer.wrap(o.buf, 0, o.len).slice();
+    }
+
+    /**
+     * Creates the native list with a single native call.
+     * The returned list is owned by the returned object.
+     */
+    public nvlist_t toNative() {
+        return nvlist_t.unpack(pack());
+    }
+
+    /**
+     * Writes the version, the flags, the pairs, and the terminator.
+     */
+    private void body(Out o) {
+        o.int32(NV_VERSION);
+        o.int32(nvflag);
+        for (byte[] p : pairs.values())
+            o.write(p, p.length);
+        o.int32(0);
+        o.int32(0);
+    }
+
+    private NVListEncoder scalar(String name, data_type_t type, int value, int nativeSize) {
+        // XDR widens chars and shorts to 4 bytes
+        Out v = new Out();
+        v.int32(value);
+        return add(name, type, 1, v, nativeSize);
+    }
+
+    private NVListEncoder ints(String name, data_type_t type, int[] value) {
+        Out v = new Out();
+        v.int32(value.length);
+        for (int i : value)
+            v.int32(i);
+        return add(name, type, value.length, v, 4*value.length);
+    }
+
+    private NVListEncoder longs(String name, data_type_t type, long[] value) {
+        Out v = new Out();
+        v.int32(value.length);
+        for (long l : value)
+            v.int64(l);
+        return add(name, type, value.length, v, 8*value.length);
+    }
+
+    /**
+     * Encodes a pair.
+     *
+     * @param nativeSize
+     *      Size of the value in memory. libnvpair needs the size of the whole pair in memory
+     *      up front to unpack it, and rejects the pair unless it's exact.
+     */
+    private NVListEncoder add(String name, data_type_t type, int nelem, Out value, int nativeSize) {
+        byte[] n = utf8(name);
+        Out p = new Out();
+        p.int32(4+4+4+align(n.length,4)+4+4+value.len);
+        // the size of nvpair_t and the name, then the value, each aligned to 8
+        p.int32(align(16+n.length+1,8)+align(nativeSize,8));
+        p.string(n);
+        p.int32(type.ordinal());
+        p.int32(nelem);
+        p.write(value.buf, value.len);
+
+        Object key;
+        if ((nvflag&NV_UNIQUE_NAME)!=0)
+            key = name;
+        else if ((nvflag&NV_UNIQUE_NAME_TYPE)!=0)
+            key = name+'\0'+type;
+        else
+            key = new Object();
+        pairs.remove(key);
+        pairs.put(key, p.toByteArray());
+        return this;
+    }
+
+    private static int align(int n, int a) {
+        return (n+a-1)&~(a-1);
+    }
+
+    private static byte[] utf8(String s) {
+        ByteBuffer b = UTF8.encode(s);
+        byte[] r = new byte[b.remaining()];
+        b.get(r);
+        return r;
+    }
+
+    /**
+     * Big-endian output, as XDR is.
+     */
+    private static final class Out {
+        byte[] buf = new byte[64];
+        int len;
+
+        void ensure(int n) {
+            if (len+n>buf.length) {
+                byte[] b = new byte[Math.max(buf.length*2, len+n)];
+                System.arraycopy(buf,0,b,0,len);
+                buf = b;
+            }
+        }
+
+        void int32(int v) {
+            ensure(4);
+            buf[len++] = (byte)(v>>>24);
+            buf[len++] = (byte)(v>>>16);
+            buf[len++] = (byte)(v>>>8);
+            buf[len++] = (byte)v;
+        }
+
+        void int64(long v) {
+            int32((int)(v>>>32));
+            int32((int)v);
+        }
+
+        void write(byte[] b, int n) {
+            ensure(n);
+            System.arraycopy(b,0,buf,len,n);
+            len += n;
+        }
+
+        /**
+         * Writes the bytes, padded to a multiple of 4.
+         */
+        void bytes(byte[] b) {
+            write(b, b.length);
+            int pad = align(b.length,4)-b.length;
+            ensure(pad);
+            len += pad;     // the array is zero-filled
+        }
+
+        /**
+         * Writes an XDR string: the length, and the padded bytes.
+         */
+        void string(byte[] b) {
+            int32(b.length);
+            bytes(b);
+        }
+
+        byte[] toByteArray() {
+            byte[] r = new byte[len];
+            System.arraycopy(buf,0,r,0,len);
+            return r;
+        }
+    }
+}
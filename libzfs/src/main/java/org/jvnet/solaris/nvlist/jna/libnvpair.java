@@ -20,17 +20,25 @@
  */
 package org.jvnet.solaris.nvlist.jna;
 
+import org.jvnet.solaris.jna.LibraryLoader;
+import org.jvnet.solaris.jna.NativeCalls;
 import org.jvnet.solaris.jna.PtrByReference;
 
 import com.sun.jna.Library;
-import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.ByteByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.NativeLongByReference;
 import com.sun.jna.ptr.PointerByReference;
+import com.sun.jna.ptr.ShortByReference;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 public interface libnvpair extends Library {
-    public static final libnvpair LIBNVPAIR = (libnvpair) Native.loadLibrary("nvpair",libnvpair.class);
+    public static final libnvpair LIBNVPAIR = LibraryLoader.load("nvpair",libnvpair.class,NativeCalls.errno("nvpair_type"));
 
     enum data_type_t {
             DATA_TYPE_UNKNOWN,
@@ -89,6 +97,11 @@ public interface libnvpair extends Library {
 //            void (*nv_ao_reset)(nv_alloc_t *);
 //    };
 
+    /** Encoding of nvlist_pack that mirrors the structures in memory, in the byte order of the host. */
+    public static final int NV_ENCODE_NATIVE = 0;
+    /** Portable encoding of nvlist_pack, in XDR. */
+    public static final int NV_ENCODE_XDR = 1;
+
     /** nvpair names are unique. */
     public static final int NV_UNIQUE_NAME	 =0x1;
     /** Name-data type combination is unique */
@@ -117,11 +130,15 @@ public interface libnvpair extends Library {
  */
 int nvlist_alloc(PtrByReference<nvlist_t> result, int nvflag, int kmflag);
     void nvlist_free(nvlist_t list);
-//    int nvlist_size(nvlist_t list, Structure.FFIType.size_t *, int);
-//    int nvlist_pack(nvlist_t list, char **, Structure.FFIType.size_t *, int, int);
-//    int nvlist_unpack(char *, Structure.FFIType.size_t, nvlist_t list*, int);
-//    int nvlist_dup(nvlist_t list, nvlist_t list*, int);
-//    int nvlist_merge(nvlist_t list, nvlist_t list, int);
+    int nvlist_size(nvlist_t list, NativeLongByReference size, int encoding);
+    /**
+     * @param buf
+     *      Points to the buffer to pack into, or to null to have one allocated.
+     */
+    int nvlist_pack(nvlist_t list, PointerByReference buf, NativeLongByReference size, int encoding, int kmflag);
+    int nvlist_unpack(Pointer buf, NativeLong size, PtrByReference<nvlist_t> result, int kmflag);
+    int nvlist_dup(nvlist_t list, PtrByReference<nvlist_t> result, int kmflag);
+    int nvlist_merge(nvlist_t dst, nvlist_t src, int flag);
 //
 //    int nvlist_xalloc(nvlist_t list*, uint_t, nv_alloc_t *);
 //    int nvlist_xpack(nvlist_t list, char **, Structure.FFIType.size_t *, int, nv_alloc_t *);
@@ -132,94 +149,89 @@ int nvlist_alloc(PtrByReference<nvlist_t> result, int nvflag, int kmflag);
 //    int nvlist_add_nvpair(nvlist_t list, nvpair_t *);
     int nvlist_add_boolean(nvlist_t list, String name);
     int nvlist_add_boolean_value(nvlist_t list, String name, boolean value);
-//    int nvlist_add_byte(nvlist_t list, String name, uchar_t);
-//    int nvlist_add_int8(nvlist_t list, String name, int8_t);
-//    int nvlist_add_uint8(nvlist_t list, String name, uint8_t);
-//    int nvlist_add_int16(nvlist_t list, String name, int16_t);
-//    int nvlist_add_uint16(nvlist_t list, String name, uint16_t);
-//    int nvlist_add_int32(nvlist_t list, String name, int32_t);
-//    int nvlist_add_uint32(nvlist_t list, String name, uint32_t);
-//    int nvlist_add_int64(nvlist_t list, String name, int64_t);
-//    int nvlist_add_uint64(nvlist_t list, String name, uint64_t);
+    int nvlist_add_byte(nvlist_t list, String name, byte value);
+    int nvlist_add_int8(nvlist_t list, String name, byte value);
+    int nvlist_add_uint8(nvlist_t list, String name, byte value);
+    int nvlist_add_int16(nvlist_t list, String name, short value);
+    int nvlist_add_uint16(nvlist_t list, String name, short value);
+    int nvlist_add_int32(nvlist_t list, String name, int value);
+    int nvlist_add_uint32(nvlist_t list, String name, int value);
+    int nvlist_add_int64(nvlist_t list, String name, long value);
+    int nvlist_add_uint64(nvlist_t list, String name, long value);
     int nvlist_add_string(nvlist_t list, String key, String value);
     int nvlist_add_nvlist(nvlist_t list, String key, nvlist_t value);
-//    int nvlist_add_boolean_array(nvlist_t list, String name, boolean_t *, uint_t);
-//    int nvlist_add_byte_array(nvlist_t list, String name, uchar_t *, uint_t);
-//    int nvlist_add_int8_array(nvlist_t list, String name, int8_t *, uint_t);
-//    int nvlist_add_uint8_array(nvlist_t list, String name, uint8_t *, uint_t);
-//    int nvlist_add_int16_array(nvlist_t list, String name, int16_t *, uint_t);
-//    int nvlist_add_uint16_array(nvlist_t list, String name, uint16_t *, uint_t);
-//    int nvlist_add_int32_array(nvlist_t list, String name, int32_t *, uint_t);
-//    int nvlist_add_uint32_array(nvlist_t list, String name, uint32_t *, uint_t);
-//    int nvlist_add_int64_array(nvlist_t list, String name, int64_t *, uint_t);
-//    int nvlist_add_uint64_array(nvlist_t list, String name, uint64_t *, uint_t);
-//    int nvlist_add_string_array(nvlist_t list, String name, char *const *, uint_t);
-//    int nvlist_add_nvlist_array(nvlist_t list, String name, nvlist_t list*, uint_t);
-//    int nvlist_add_hrtime(nvlist_t list, String name, hrtime_t);
-//
+    /**
+     * boolean_t is an int.
+     */
+    int nvlist_add_boolean_array(nvlist_t list, String name, int[] value, int n);
+    int nvlist_add_byte_array(nvlist_t list, String name, byte[] value, int n);
+    int nvlist_add_int8_array(nvlist_t list, String name, byte[] value, int n);
+    int nvlist_add_uint8_array(nvlist_t list, String name, byte[] value, int n);
+    int nvlist_add_int16_array(nvlist_t list, String name, short[] value, int n);
+    int nvlist_add_uint16_array(nvlist_t list, String name, short[] value, int n);
+    int nvlist_add_int32_array(nvlist_t list, String name, int[] value, int n);
+    int nvlist_add_uint32_array(nvlist_t list, String name, int[] value, int n);
+    int nvlist_add_int64_array(nvlist_t list, String name, long[] value, int n);
+    int nvlist_add_uint64_array(nvlist_t list, String name, long[] value, int n);
+    int nvlist_add_string_array(nvlist_t list, String name, String[] value, int n);
+    /**
+     * The lists are copied.
+     */
+    int nvlist_add_nvlist_array(nvlist_t list, String name, Pointer[] value, int n);
+    int nvlist_add_hrtime(nvlist_t list, String name, long value);
+
 //    int nvlist_remove(nvlist_t list, String name, data_type_t);
-//    int nvlist_remove_all(nvlist_t list, const char *);
-//
-//    int nvlist_lookup_boolean(nvlist_t list, const char *);
-//    int nvlist_lookup_boolean_value(nvlist_t list, String name, boolean_t *);
-//    int nvlist_lookup_byte(nvlist_t list, String name, uchar_t *);
-//    int nvlist_lookup_int8(nvlist_t list, String name, int8_t *);
-//    int nvlist_lookup_uint8(nvlist_t list, String name, uint8_t *);
-//    int nvlist_lookup_int16(nvlist_t list, String name, int16_t *);
-//    int nvlist_lookup_uint16(nvlist_t list, String name, uint16_t *);
-//    int nvlist_lookup_int32(nvlist_t list, String name, int32_t *);
-//    int nvlist_lookup_uint32(nvlist_t list, String name, uint32_t *);
-//    int nvlist_lookup_int64(nvlist_t list, String name, int64_t *);
-//    int nvlist_lookup_uint64(nvlist_t list, String name, uint64_t *);
+    int nvlist_remove_all(nvlist_t list, String name);
+
+    int nvlist_lookup_boolean(nvlist_t list, String name);
+    int nvlist_lookup_boolean_value(nvlist_t list, String name, IntByReference result);
+    int nvlist_lookup_int32(nvlist_t list, String name, IntByReference result);
+    int nvlist_lookup_uint64(nvlist_t list, String name, LongByReference result);
     int nvlist_lookup_string(nvlist_t list, String name, PointerByReference result);
     int nvlist_lookup_nvlist(nvlist_t list, String name, PtrByReference<nvlist_t> result);
-//    int nvlist_lookup_boolean_array(nvlist_t list, String name,
-//        boolean_t **, uint_t *);
-//    int nvlist_lookup_byte_array(nvlist_t list, String name, uchar_t **, uint_t *);
-//    int nvlist_lookup_int8_array(nvlist_t list, String name, int8_t **, uint_t *);
-//    int nvlist_lookup_uint8_array(nvlist_t list, String name, uint8_t **, uint_t *);
-//    int nvlist_lookup_int16_array(nvlist_t list, String name, int16_t **, uint_t *);
-//    int nvlist_lookup_uint16_array(nvlist_t list, String name, uint16_t **, uint_t *);
-//    int nvlist_lookup_int32_array(nvlist_t list, String name, int32_t **, uint_t *);
-//    int nvlist_lookup_uint32_array(nvlist_t list, String name, uint32_t **, uint_t *);
-//    int nvlist_lookup_int64_array(nvlist_t list, String name, int64_t **, uint_t *);
-//    int nvlist_lookup_uint64_array(nvlist_t list, String name, uint64_t **, uint_t *);
-//    int nvlist_lookup_string_array(nvlist_t list, String name, char ***, uint_t *);
-//    int nvlist_lookup_nvlist_array(nvlist_t list, String name,
-//        nvlist_t list**, uint_t *);
-//    int nvlist_lookup_hrtime(nvlist_t list, String name, hrtime_t *);
+//    Lookups of the other types go through nvlist_lookup_nvpair and the nvpair_value_* functions,
+//    which don't need to know the type upfront.
 //    int nvlist_lookup_pairs(nvlist_t listnvl, int, ...);
-//
-//    int nvlist_lookup_nvpair(nvlist_t listnvl, String name, nvpair_t **);
-//    boolean_t nvlist_exists(nvlist_t listnvl, const char *);
-//
-///* processing libnvpair */
-//    nvpair_t *nvlist_next_nvpair(nvlist_t listnvl, nvpair_t *);
-//    char *nvpair_name(nvpair_t *);
-//    data_type_t nvpair_type(nvpair_t *);
-//    int nvpair_value_boolean_value(nvpair_t *, boolean_t *);
-//    int nvpair_value_byte(nvpair_t *, uchar_t *);
-//    int nvpair_value_int8(nvpair_t *, int8_t *);
-//    int nvpair_value_uint8(nvpair_t *, uint8_t *);
-//    int nvpair_value_int16(nvpair_t *, int16_t *);
-//    int nvpair_value_uint16(nvpair_t *, uint16_t *);
-//    int nvpair_value_int32(nvpair_t *, int32_t *);
-//    int nvpair_value_uint32(nvpair_t *, uint32_t *);
-//    int nvpair_value_int64(nvpair_t *, int64_t *);
-//    int nvpair_value_uint64(nvpair_t *, uint64_t *);
-//    int nvpair_value_string(nvpair_t *, char **);
-//    int nvpair_value_nvlist(nvpair_t *, nvlist_t list*);
-//    int nvpair_value_boolean_array(nvpair_t *, boolean_t **, uint_t *);
-//    int nvpair_value_byte_array(nvpair_t *, uchar_t **, uint_t *);
-//    int nvpair_value_int8_array(nvpair_t *, int8_t **, uint_t *);
-//    int nvpair_value_uint8_array(nvpair_t *, uint8_t **, uint_t *);
-//    int nvpair_value_int16_array(nvpair_t *, int16_t **, uint_t *);
-//    int nvpair_value_uint16_array(nvpair_t *, uint16_t **, uint_t *);
-//    int nvpair_value_int32_array(nvpair_t *, int32_t **, uint_t *);
-//    int nvpair_value_uint32_array(nvpair_t *, uint32_t **, uint_t *);
-//    int nvpair_value_int64_array(nvpair_t *, int64_t **, uint_t *);
-//    int nvpair_value_uint64_array(nvpair_t *, uint64_t **, uint_t *);
-//    int nvpair_value_string_array(nvpair_t *, char ***, uint_t *);
-//    int nvpair_value_nvlist_array(nvpair_t *, nvlist_t list**, uint_t *);
-//    int nvpair_value_hrtime(nvpair_t *, hrtime_t *);
+
+    int nvlist_lookup_nvpair(nvlist_t list, String name, PtrByReference<nvpair_t> result);
+    boolean nvlist_exists(nvlist_t list, String name);
+
+/* processing libnvpair */
+    /**
+     * @param prev
+     *      null to get the first pair.
+     * @return
+     *      null if there's no more.
+     */
+    nvpair_t nvlist_next_nvpair(nvlist_t list, nvpair_t prev);
+    String nvpair_name(nvpair_t pair);
+    int/*data_type_t*/ nvpair_type(nvpair_t pair);
+    int nvpair_value_boolean_value(nvpair_t pair, IntByReference result);
+    int nvpair_value_byte(nvpair_t pair, ByteByReference result);
+    int nvpair_value_int8(nvpair_t pair, ByteByReference result);
+    int nvpair_value_uint8(nvpair_t pair, ByteByReference result);
+    int nvpair_value_int16(nvpair_t pair, ShortByReference result);
+    int nvpair_value_uint16(nvpair_t pair, ShortByReference result);
+    int nvpair_value_int32(nvpair_t pair, IntByReference result);
+    int nvpair_value_uint32(nvpair_t pair, IntByReference result);
+    int nvpair_value_int64(nvpair_t pair, LongByReference result);
+    int nvpair_value_uint64(nvpair_t pair, LongByReference result);
+    int nvpair_value_string(nvpair_t pair, PointerByReference result);
+    int nvpair_value_nvlist(nvpair_t pair, PtrByReference<nvlist_t> result);
+    /*
+     * Arrays are returned as pointers into the list, followed by the number of elements.
+     */
+    int nvpair_value_boolean_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_byte_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_int8_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_uint8_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_int16_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_uint16_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_int32_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_uint32_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_int64_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_uint64_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_string_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_nvlist_array(nvpair_t pair, PointerByReference result, IntByReference n);
+    int nvpair_value_hrtime(nvpair_t pair, LongByReference result);
 }
@@ -21,19 +21,47 @@
 package org.jvnet.solaris.nvlist.jna;
 
 import static org.jvnet.solaris.nvlist.jna.libnvpair.LIBNVPAIR;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_ENCODE_XDR;
 import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME;
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.jvnet.solaris.jna.Cleaner;
 import org.jvnet.solaris.jna.PtrByReference;
 
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.PointerType;
+import com.sun.jna.ptr.NativeLongByReference;
 import com.sun.jna.ptr.PointerByReference;
 
 /**
  * Opaque handle type that represents name/value pair list.
+ *
+ * <p>
+ * Lists allocated from Java should be released by {@link #close()} once they are no longer needed.
+ * Lists obtained from other lists or from libzfs are owned by them, and closing those does nothing.
+ *
+ * <p>
+ * Values can be read by name, or all at once by iterating the pairs or with {@link #toMap()},
+ * which is much cheaper than looking up many names one at a time.
+ *
  * @author Kohsuke Kawaguchi
  */
-public class nvlist_t extends PointerType {
-    private boolean owner;
+public class nvlist_t extends PointerType implements Closeable, Iterable<nvpair_t> {
+    /**
+     * Non-null if this object owns the native list.
+     */
+    private Cleaner.Cleanable cleanable;
+
     /**
      * Allocates a new {@link nvlist_t}.
      */
@@ -42,7 +70,7 @@ public class nvlist_t extends PointerType {
         if(LIBNVPAIR.nvlist_alloc(buf,nvflag,0)!=0)
             throw new NVListException();
         nvlist_t r = buf.getValue(nvlist_t.class);
-        r.owner = true;
+        r.cleanable = Cleaner.register(r, new Free(r.getPointer()));
         return r;
     }
 
@@ -70,6 +98,274 @@ public class nvlist_t extends PointerType {
             throw new NVListException();
     }
 
+    public void put(String key, byte value) {
+        check(LIBNVPAIR.nvlist_add_byte(this,key,value));
+    }
+
+    public void put(String key, short value) {
+        check(LIBNVPAIR.nvlist_add_int16(this,key,value));
+    }
+
+    public void put(String key, int value) {
+        check(LIBNVPAIR.nvlist_add_int32(this,key,value));
+    }
+
+    public void put(String key, long value) {
+        check(LIBNVPAIR.nvlist_add_int64(this,key,value));
+    }
+
+    public void putUInt32(String key, int value) {
+        check(LIBNVPAIR.nvlist_add_uint32(this,key,value));
+    }
+
+    /**
+     * Most numbers in ZFS, such as pool configurations and properties, are of this type.
+     */
+    public void putUInt64(String key, long value) {
+        check(LIBNVPAIR.nvlist_add_uint64(this,key,value));
+    }
+
+    public void put(String key, boolean[] value) {
+        int[] v = new int[value.length];
+        for (int i=0; i<v.length; i++)
+            v[i] = value[i] ? 1 : 0;
+        check(LIBNVPAIR.nvlist_add_boolean_array(this,key,v,v.length));
+    }
+
+    public void put(String key, byte[] value) {
+        check(LIBNVPAIR.nvlist_add_byte_array(this,key,value,value.length));
+    }
+
+    public void put(String key, short[] value) {
+        check(LIBNVPAIR.nvlist_add_int16_array(this,key,value,value.length));
+    }
+
+    public void put(String key, int[] value) {
+        check(LIBNVPAIR.nvlist_add_int32_array(this,key,value,value.length));
+    }
+
+    public void put(String key, long[] value) {
+        check(LIBNVPAIR.nvlist_add_int64_array(this,key,value,value.length));
+    }
+
+    public void putUInt32Array(String key, int[] value) {
+        check(LIBNVPAIR.nvlist_add_uint32_array(this,key,value,value.length));
+    }
+
+    public void putUInt64Array(String key, long[] value) {
+        check(LIBNVPAIR.nvlist_add_uint64_array(this,key,value,value.length));
+    }
+
+    public void put(String key, String[] value) {
+        check(LIBNVPAIR.nvlist_add_string_array(this,key,value,value.length));
+    }
+
+    /**
+     * The lists are copied, so they can be disposed of afterward.
+     */
+    public void put(String key, nvlist_t[] value) {
+        Pointer[] v = new Pointer[value.length];
+        for (int i=0; i<v.length; i++)
+            v[i] = value[i].getPointer();
+        check(LIBNVPAIR.nvlist_add_nvlist_array(this,key,v,v.length));
+    }
+
+    /**
+     * Removes all the pairs of the given name, of whatever type.
+     */
+    public void remove(String key) {
+        LIBNVPAIR.nvlist_remove_all(this,key);
+    }
+
+    public boolean containsKey(String key) {
+        return LIBNVPAIR.nvlist_exists(this,key);
+    }
+
+    /**
+     * Gets the pair of the given name.
+     *
+     * @return null if there's no such pair.
+     */
+    public nvpair_t getPair(String key) {
+        PtrByReference<nvpair_t> r = new PtrByReference<nvpair_t>();
+        if(LIBNVPAIR.nvlist_lookup_nvpair(this,key,r)!=0)
+            return null;
+        return r.getValue(nvpair_t.class);
+    }
+
+    /**
+     * Gets the value of the given name, of whatever type.
+     *
+     * @return null if there's no such pair.
+     * @see nvpair_t#getValue()
+     */
+    public Object get(String key) {
+        nvpair_t p = getPair(key);
+        return p==null ? null : p.getValue();
+    }
+
+    /**
+     * Gets an integer value of any width, signed or not.
+     *
+     * @return null if there's no such pair.
+     * @throws NVListException
+     *      if the value isn't a number.
+     * @see nvpair_t#longValue()
+     */
+    public Long getLong(String key) {
+        nvpair_t p = getPair(key);
+        return p==null ? null : p.longValue();
+    }
+
+    /**
+     * Gets an array of integers of any width, signed or not.
+     *
+     * @return null if there's no such pair.
+     * @throws NVListException
+     *      if the value isn't an array of numbers.
+     * @see nvpair_t#longArrayValue()
+     */
+    public long[] getLongArray(String key) {
+        nvpair_t p = getPair(key);
+        return p==null ? null : p.longArrayValue();
+    }
+
+    /**
+     * Gets a boolean flag or value.
+     *
+     * @return false if there's no such pair.
+     */
+    public boolean getBoolean(String key) {
+        Object v = get(key);
+        return v instanceof Boolean && (Boolean)v;
+    }
+
+    /**
+     * @return null if there's no such pair, or it's not an array of strings.
+     */
+    public String[] getStringArray(String key) {
+        Object v = get(key);
+        return v instanceof String[] ? (String[])v : null;
+    }
+
+    /**
+     * @return null if there's no such pair, or it's not an array of lists.
+     *      The lists are owned by this list.
+     */
+    public nvlist_t[] getNVListArray(String key) {
+        Object v = get(key);
+        return v instanceof nvlist_t[] ? (nvlist_t[])v : null;
+    }
+
+    /**
+     * Iterates the pairs in the order they were added.
+     * The list must not be modified during the iteration.
+     */
+    public Iterator<nvpair_t> iterator() {
+        return new Iterator<nvpair_t>() {
+            private nvpair_t next = LIBNVPAIR.nvlist_next_nvpair(nvlist_t.this,null);
+
+            public boolean hasNext() {
+                return next!=null;
+            }
+
+            public nvpair_t next() {
+                if (next==null)
+                    throw new NoSuchElementException();
+                nvpair_t r = next;
+                next = LIBNVPAIR.nvlist_next_nvpair(nvlist_t.this,r);
+                return r;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Copies the whole list into Java in one pass, so that it can be used without any more native calls.
+     *
+     * <p>
+     * Values are as {@link nvpair_t#getValue()} returns them, except that
+     * nested lists become nested maps, and arrays of lists become lists of maps.
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> r = new LinkedHashMap<String,Object>();
+        for (nvpair_t p : this) {
+            Object v = p.getValue();
+            if (v instanceof nvlist_t)
+                v = ((nvlist_t)v).toMap();
+            else if (v instanceof nvlist_t[]) {
+                List<Map<String,Object>> l = new ArrayList<Map<String,Object>>();
+                for (nvlist_t e : (nvlist_t[])v)
+                    l.add(e.toMap());
+                v = l;
+            }
+            r.put(p.getName(),v);
+        }
+        return r;
+    }
+
+    /**
+     * Packs this list into a buffer in the XDR encoding, with a single native call.
+     *
+     * <p>
+     * The returned buffer is a direct one, backed by memory that's released once the buffer is garbage collected.
+     *
+     * @see org.jvnet.solaris.nvlist.NVListDecoder
+     */
+    public ByteBuffer pack() {
+        NativeLongByReference size = new NativeLongByReference();
+        check(LIBNVPAIR.nvlist_size(this,size,NV_ENCODE_XDR));
+        long len = size.getValue().longValue();
+        Memory m = new Memory(len);
+        check(LIBNVPAIR.nvlist_pack(this,new PointerByReference(m),size,NV_ENCODE_XDR,0));
+        return m.getByteBuffer(0,size.getValue().longValue());
+    }
+
+    /**
+     * Unpacks a list packed by {@link #pack()} or by {@link org.jvnet.solaris.nvlist.NVListEncoder},
+     * with a single native call. The returned list is owned by the returned object.
+     *
+     * @param packed
+     *      The bytes between the position and the limit are unpacked.
+     */
+    public static nvlist_t unpack(ByteBuffer packed) {
+        int len = packed.remaining();
+        Memory m = new Memory(Math.max(len,1));
+        m.getByteBuffer(0,len).put(packed.duplicate());
+        PtrByReference<nvlist_t> buf = new PtrByReference<nvlist_t>();
+        check(LIBNVPAIR.nvlist_unpack(m,new NativeLong(len),buf,0));
+        nvlist_t r = buf.getValue(nvlist_t.class);
+        r.cleanable = Cleaner.register(r, new Free(r.getPointer()));
+        return r;
+    }
+
+    /**
+     * Makes a deep copy of this list, which is owned by the returned object.
+     */
+    public nvlist_t dup() {
+        PtrByReference<nvlist_t> buf = new PtrByReference<nvlist_t>();
+        check(LIBNVPAIR.nvlist_dup(this,buf,0));
+        nvlist_t r = buf.getValue(nvlist_t.class);
+        r.cleanable = Cleaner.register(r, new Free(r.getPointer()));
+        return r;
+    }
+
+    /**
+     * Copies all the pairs of the given list into this list,
+     * replacing those of the same name if this list has unique names.
+     */
+    public void merge(nvlist_t src) {
+        check(LIBNVPAIR.nvlist_merge(this,src,0));
+    }
+
+    private static void check(int ret) {
+        if (ret!=0)
+            throw new NVListException();
+    }
+
     public String getString(String key) {
         PointerByReference r = new PointerByReference();
         if(LIBNVPAIR.nvlist_lookup_string(this,key,r)!=0)
@@ -84,15 +380,54 @@ public class nvlist_t extends PointerType {
         return r.getValue(nvlist_t.class);  // don't set the owner flag
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        dispose();
-        super.finalize();
+    /**
+     * Eagerly frees the native list if this object owns it,
+     * instead of waiting for GC to take care of it.
+     */
+    public synchronized void dispose() {
+        if(cleanable!=null)
+            cleanable.clean();
+        cleanable = null;
     }
 
-    private synchronized void dispose() {
-        if(owner)
+    /**
+     * Frees the native list now, even if it wasn't allocated from Java.
+     *
+     * <p>
+     * This is for lists that a native function returns and leaves to the caller to free,
+     * such as the error lists of libzfs_core. Lists owned by other lists or by libzfs
+     * must not be freed this way.
+     */
+    public synchronized void free() {
+        if (cleanable!=null) {
+            dispose();
+        } else if (getPointer()!=null) {
             LIBNVPAIR.nvlist_free(this);
-        owner = false;
+        }
+        setPointer(null);
+    }
+
+    /**
+     * Synonym for {@link #dispose()}.
+     */
+    public void close() {
+        dispose();
+    }
+
+    /**
+     * Frees the native list. Doesn't refer to the {@link nvlist_t} object so that it can be run by {@link Cleaner}.
+     */
+    private static final class Free implements Runnable {
+        private final Pointer p;
+
+        Free(Pointer p) {
+            this.p = p;
+        }
+
+        public void run() {
+            nvlist_t l = new nvlist_t();
+            l.setPointer(p);
+            LIBNVPAIR.nvlist_free(l);
+        }
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.nvlist.jna;
+
+import static org.jvnet.solaris.nvlist.jna.libnvpair.LIBNVPAIR;
+
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.nvlist.jna.libnvpair.data_type_t;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+import com.sun.jna.ptr.ByteByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.sun.jna.ptr.ShortByReference;
+
+/**
+ * Opaque handle type that represents a name/value pair in a {@link nvlist_t}.
+ *
+ * <p>
+ * A pair belongs to its list, so it, and the lists and arrays it refers to, can only be used
+ * while the list is alive and unchanged. Values returned by {@link #getValue()} are copied into Java,
+ * except for nested lists.
+ */
+public class nvpair_t extends PointerType {
+    public String getName() {
+        return LIBNVPAIR.nvpair_name(this);
+    }
+
+    public data_type_t getType() {
+        int t = LIBNVPAIR.nvpair_type(this);
+        data_type_t[] all = data_type_t.values();
+        return t>=0 && t<all.length ? all[t] : data_type_t.DATA_TYPE_UNKNOWN;
+    }
+
+    /**
+     * Reads the value into the corresponding Java type.
+     *
+     * <p>
+     * Integers become {@link Byte}, {@link Short}, {@link Integer}, or {@link Long} of the same width,
+     * and arrays become primitive arrays of those, regardless of whether they are signed.
+     * A boolean flag ({@link data_type_t#DATA_TYPE_BOOLEAN}) reads as {@link Boolean#TRUE}.
+     * hrtime reads as {@link Long}, a nested list as {@link nvlist_t}, and an array of them as {@code nvlist_t[]}.
+     *
+     * @return
+     *      null if the type is unknown.
+     */
+    public Object getValue() {
+        PointerByReference p = new PointerByReference();
+        IntByReference n = new IntByReference();
+        switch (getType()) {
+        case DATA_TYPE_BOOLEAN:
+            return Boolean.TRUE;
+        case DATA_TYPE_BOOLEAN_VALUE: {
+            IntByReference r = new IntByReference();
+            check(LIBNVPAIR.nvpair_value_boolean_value(this,r));
+            return r.getValue()!=0;
+        }
+        case DATA_TYPE_BYTE: {
+            ByteByReference r = new ByteByReference();
+            check(LIBNVPAIR.nvpair_value_byte(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_INT8: {
+            ByteByReference r = new ByteByReference();
+            check(LIBNVPAIR.nvpair_value_int8(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_UINT8: {
+            ByteByReference r = new ByteByReference();
+            check(LIBNVPAIR.nvpair_value_uint8(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_INT16: {
+            ShortByReference r = new ShortByReference();
+            check(LIBNVPAIR.nvpair_value_int16(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_UINT16: {
+            ShortByReference r = new ShortByReference();
+            check(LIBNVPAIR.nvpair_value_uint16(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_INT32: {
+            IntByReference r = new IntByReference();
+            check(LIBNVPAIR.nvpair_value_int32(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_UINT32: {
+            IntByReference r = new IntByReference();
+            check(LIBNVPAIR.nvpair_value_uint32(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_INT64: {
+            LongByReference r = new LongByReference();
+            check(LIBNVPAIR.nvpair_value_int64(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_UINT64: {
+            LongByReference r = new LongByReference();
+            check(LIBNVPAIR.nvpair_value_uint64(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_HRTIME: {
+            LongByReference r = new LongByReference();
+            check(LIBNVPAIR.nvpair_value_hrtime(this,r));
+            return r.getValue();
+        }
+        case DATA_TYPE_STRING:
+            check(LIBNVPAIR.nvpair_value_string(this,p));
+            return p.getValue().getString(0);
+        case DATA_TYPE_NVLIST: {
+            PtrByReference<nvlist_t> r = new PtrByReference<nvlist_t>();
+            check(LIBNVPAIR.nvpair_value_nvlist(this,r));
+            return r.getValue(nvlist_t.class);  // owned by the parent
+        }
+        case DATA_TYPE_BOOLEAN_ARRAY: {
+            check(LIBNVPAIR.nvpair_value_boolean_array(this,p,n));
+            int[] v = ints(p,n);
+            boolean[] r = new boolean[v.length];
+            for (int i=0; i<v.length; i++)
+                r[i] = v[i]!=0;
+            return r;
+        }
+        case DATA_TYPE_BYTE_ARRAY:
+            check(LIBNVPAIR.nvpair_value_byte_array(this,p,n));
+            return bytes(p,n);
+        case DATA_TYPE_INT8_ARRAY:
+            check(LIBNVPAIR.nvpair_value_int8_array(this,p,n));
+            return bytes(p,n);
+        case DATA_TYPE_UINT8_ARRAY:
+            check(LIBNVPAIR.nvpair_value_uint8_array(this,p,n));
+            return bytes(p,n);
+        case DATA_TYPE_INT16_ARRAY:
+            check(LIBNVPAIR.nvpair_value_int16_array(this,p,n));
+            return shorts(p,n);
+        case DATA_TYPE_UINT16_ARRAY:
+            check(LIBNVPAIR.nvpair_value_uint16_array(this,p,n));
+            return shorts(p,n);
+        case DATA_TYPE_INT32_ARRAY:
+            check(LIBNVPAIR.nvpair_value_int32_array(this,p,n));
+            return ints(p,n);
+        case DATA_TYPE_UINT32_ARRAY:
+            check(LIBNVPAIR.nvpair_value_uint32_array(this,p,n));
+            return ints(p,n);
+        case DATA_TYPE_INT64_ARRAY:
+            check(LIBNVPAIR.nvpair_value_int64_array(this,p,n));
+            return longs(p,n);
+        case DATA_TYPE_UINT64_ARRAY:
+            check(LIBNVPAIR.nvpair_value_uint64_array(this,p,n));
+            return longs(p,n);
+        case DATA_TYPE_STRING_ARRAY: {
+            check(LIBNVPAIR.nvpair_value_string_array(this,p,n));
+            String[] r = new String[n.getValue()];
+            for (int i=0; i<r.length; i++)
+                r[i] = p.getValue().getPointer(i*Pointer.SIZE).getString(0);
+            return r;
+        }
+        case DATA_TYPE_NVLIST_ARRAY: {
+            check(LIBNVPAIR.nvpair_value_nvlist_array(this,p,n));
+            nvlist_t[] r = new nvlist_t[n.getValue()];
+            for (int i=0; i<r.length; i++) {
+                r[i] = new nvlist_t();
+                r[i].setPointer(p.getValue().getPointer(i*Pointer.SIZE));
+            }
+            return r;
+        }
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Reads an integer, boolean, or hrtime value as a long.
+     * Unsigned types narrower than 64 bits are zero-extended.
+     *
+     * @throws NVListException
+     *      if the value is of some other type.
+     */
+    public long longValue() {
+        Object v = getValue();
+        switch (getType()) {
+        case DATA_TYPE_UINT8:   return ((Byte)v) & 0xFFL;
+        case DATA_TYPE_UINT16:  return ((Short)v) & 0xFFFFL;
+        case DATA_TYPE_UINT32:  return ((Integer)v) & 0xFFFFFFFFL;
+        }
+        if (v instanceof Number)
+            return ((Number)v).longValue();
+        if (v instanceof Boolean)
+            return ((Boolean)v) ? 1 : 0;
+        throw new NVListException(getName()+" is not a number but "+getType());
+    }
+
+    /**
+     * Reads an array of integers as an array of longs.
+     * Unsigned types narrower than 64 bits are zero-extended.
+     *
+     * @throws NVListException
+     *      if the value is of some other type.
+     */
+    public long[] longArrayValue() {
+        Object v = getValue();
+        long mask;
+        switch (getType()) {
+        case DATA_TYPE_UINT8_ARRAY:     mask = 0xFFL; break;
+        case DATA_TYPE_UINT16_ARRAY:    mask = 0xFFFFL; break;
+        case DATA_TYPE_UINT32_ARRAY:    mask = 0xFFFFFFFFL; break;
+        default:                        mask = -1L;
+        }
+        if (v instanceof long[])
+            return (long[])v;
+        long[] r;
+        if (v instanceof int[]) {
+            int[] a = (int[])v;
+            r = new long[a.length];
+            for (int i=0; i<a.length; i++)  r[i] = a[i]&mask;
+        } else if (v instanceof short[]) {
+            short[] a = (short[])v;
+            r = new long[a.length];
+            for (int i=0; i<a.length; i++)  r[i] = a[i]&mask;
+        } else if (v instanceof byte[]) {
+            byte[] a = (byte[])v;
+            r = new long[a.length];
+            for (int i=0; i<a.length; i++)  r[i] = a[i]&mask;
+        } else
+            throw new NVListException(getName()+" is not an array of numbers but "+getType());
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return getName()+'='+getValue();
+    }
+
+    private static void check(int ret) {
+        if (ret!=0)
+            throw new NVListException();
+    }
+
+    private static byte[] bytes(PointerByReference p, IntByReference n) {
+        return n.getValue()==0 ? new byte[0] : p.getValue().getByteArray(0,n.getValue());
+    }
+
+    private static short[] shorts(PointerByReference p, IntByReference n) {
+        return n.getValue()==0 ? new short[0] : p.getValue().getShortArray(0,n.getValue());
+    }
+
+    private static int[] ints(PointerByReference p, IntByReference n) {
+        return n.getValue()==0 ? new int[0] : p.getValue().getIntArray(0,n.getValue());
+    }
+
+    private static long[] longs(PointerByReference p, IntByReference n) {
+        return n.getValue()==0 ? new long[0] : p.getValue().getLongArray(0,n.getValue());
+    }
+}
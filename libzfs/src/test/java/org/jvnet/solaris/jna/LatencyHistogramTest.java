@@ -0,0 +1,79 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.jna;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link LatencyHistogram}. These don't need ZFS.
+ */
+public class LatencyHistogramTest extends TestCase {
+    public void testBuckets() {
+        // every value falls in the bucket it indexes, and the buckets are contiguous
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123456789L, Long.MAX_VALUE};
+        for (long v : values) {
+            int i = LatencyHistogram.index(v);
+            assertTrue(LatencyHistogram.lowest(i)<=v);
+            assertTrue(v<=LatencyHistogram.highest(i));
+        }
+        for (int i=0; i<LatencyHistogram.index(Long.MAX_VALUE); i++)
+            assertEquals(LatencyHistogram.highest(i)+1, LatencyHistogram.lowest(i+1));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(99));
+
+        for (int i=1; i<=1000; i++)
+            h.record(i*1000L);
+        assertEquals(1000, h.getCount());
+        assertEquals(1000000L, h.getMax());
+        assertEquals(500500.0, h.getMean(), 0);
+
+        // within the precision of the buckets
+        assertEquals(500000.0, h.getPercentile(50), 500000*0.04);
+        assertEquals(990000.0, h.getPercentile(99), 990000*0.04);
+        assertEquals(1000000L, h.getPercentile(100));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i=0; i<100000; i++)
+                        h.record(i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(400000, h.getCount());
+        assertEquals(99999, h.getMax());
+    }
+}
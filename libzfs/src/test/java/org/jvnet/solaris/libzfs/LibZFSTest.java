@@ -20,9 +20,18 @@
  */
 package org.jvnet.solaris.libzfs;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
 
 import junit.framework.TestCase;
 
@@ -33,8 +42,14 @@ import org.jvnet.solaris.libzfs.ZFSObject;
 import org.jvnet.solaris.libzfs.ZFSPermission;
 import org.jvnet.solaris.libzfs.ZFSPool;
 import org.jvnet.solaris.libzfs.ZFSType;
+import org.jvnet.solaris.libzfs.jna.libzfs_direct;
+import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
 import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.jvnet.solaris.libzfs.jna.zfs_type_t;
 import org.jvnet.solaris.libzfs.jna.zpool_prop_t;
+import org.jvnet.solaris.nvlist.NVListEncoder;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
 
 /**
  * Unit test for simple App.
@@ -117,6 +132,21 @@ public class LibZFSTest extends TestCase {
         assertNotNull(zfs.getFileSystemByMountPoint(new File("/rpool")));
     }
 
+    public void testMountIndex() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        fs.mount();
+        ZFSMountIndex index = zfs.getMountIndex();
+        File mp = fs.getMountPoint();
+        assertEquals(mp, index.getMountPoint(dataSet));
+        assertEquals(dataSet, index.getDataset(mp));
+        assertEquals(dataSet, index.findDataset(new File(mp, "some/file")));
+        assertEquals(dataSet, zfs.getFileSystemContaining(new File(mp, "x")).getName());
+
+        fs.unmount();
+        assertFalse(fs.isMounted());
+        assertFalse(dataSet.equals(index.findDataset(new File(mp, "some/file"))));
+    }
+
     public void testCreate() {
         ZFSObject fs = zfs.create(dataSet, ZFSFileSystem.class);
 
@@ -128,6 +158,187 @@ public class LibZFSTest extends TestCase {
                 .exists(dataSet));
     }
 
+    public void testBulkCreate() {
+        List<String> names = new ArrayList<String>();
+        for (int i=0; i<10; i++)
+            names.add(dataSet+"/tenants/t"+i);
+        Map<String,String> props = new HashMap<String,String>();
+        props.put("my:tenant", "yes");
+        zfs.create(names, ZFSType.FILESYSTEM, props);
+
+        for (String name : names)
+            assertEquals("yes", zfs.open(name).getUserProperty("my:tenant"));
+        // ancestors are created without the properties
+        assertTrue(zfs.exists(dataSet+"/tenants"));
+        assertFalse("yes".equals(zfs.open(dataSet+"/tenants").getUserProperty("my:tenant")));
+
+        // creating an existing one is a no-op
+        assertEquals(names.get(0), zfs.create(names.get(0), ZFSFileSystem.class).getName());
+
+        // but not if it exists as something else
+        try {
+            zfs.create(names.get(0), ZFSVolume.class);
+            fail();
+        } catch (ZFSException e) {
+            assertEquals(ErrorCode.EZFS_EXISTS, e.getCode());
+        }
+    }
+
+    public void testDestroySnapshots() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs.create(dataSet+"/child", ZFSFileSystem.class);
+        fs.createSnapshot("a", true);
+        for (int i=0; i<5; i++)
+            fs.createSnapshot("s"+i);
+
+        assertTrue(fs.destroySnapshots("a").isEmpty());
+        assertFalse(zfs.exists(dataSet+"@a"));
+        assertFalse(zfs.exists(dataSet+"/child@a"));
+
+        Map<String,ZFSException> failures = fs.destroySnapshots(Arrays.asList("s0", dataSet+"@s1", "s2", "nosuch"));
+        assertTrue(failures.isEmpty());
+        assertFalse(zfs.exists(dataSet+"@s0"));
+        assertFalse(zfs.exists(dataSet+"@s2"));
+        assertTrue(zfs.exists(dataSet+"@s3"));
+    }
+
+    public void testRetentionPolicy() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        for (int i=0; i<5; i++)
+            fs.createSnapshot("auto-"+i);
+        fs.createSnapshot("manual");
+
+        // taken within seconds, so they fall in one hour, or in two if an hour began in between.
+        // The start of a day is also the start of an hour, so the daily rule keeps no more.
+        ZFSRetentionPolicy p = new ZFSRetentionPolicy().prefix("auto-")
+                .keep(ZFSRetentionPolicy.Period.HOURLY, 24).keep(ZFSRetentionPolicy.Period.DAILY, 7).dryRun(true);
+        ZFSRetentionPolicy.Plan plan = p.prune(fs, false);
+        assertFalse(plan.isExecuted());
+        List<String> kept = plan.getKept().get(dataSet);
+        assertEquals(dataSet+"@auto-4", kept.get(0));
+        assertTrue(kept.size()<=2);
+        assertEquals(5-kept.size(), plan.getPruned().get(dataSet).size());
+        assertTrue(zfs.exists(dataSet+"@auto-0"));
+
+        // keeping one period keeps only the newest, wherever the boundaries are
+        p = new ZFSRetentionPolicy().prefix("auto-").keep(ZFSRetentionPolicy.Period.HOURLY, 1);
+        plan = p.prune(fs, false);
+        assertEquals(Arrays.asList(dataSet+"@auto-4"), plan.getKept().get(dataSet));
+        assertTrue(plan.getFailures().isEmpty());
+        assertFalse(zfs.exists(dataSet+"@auto-0"));
+        assertFalse(zfs.exists(dataSet+"@auto-3"));
+        assertTrue(zfs.exists(dataSet+"@auto-4"));
+        assertTrue(zfs.exists(dataSet+"@manual"));
+    }
+
+    public void testCore() throws Exception {
+        zfs.create(dataSet+"/a", ZFSFileSystem.class);
+        zfs.create(dataSet+"/b", ZFSFileSystem.class);
+        LibZFSCore core = zfs.getCore();
+
+        Map<String,String> props = new HashMap<String,String>();
+        props.put("my:batch", "1");
+        core.snapshot(Arrays.asList(dataSet+"/a@x", dataSet+"/b@x"), props);
+        assertTrue(core.exists(dataSet+"/a@x"));
+        assertEquals("1", zfs.open(dataSet+"/b@x").getUserProperty("my:batch"));
+
+        try {
+            core.snapshot(Arrays.asList(dataSet+"/a@y", dataSet+"/b@x"), null);
+            fail();
+        } catch (ZFSException e) {
+            assertEquals(ErrorCode.EZFS_EXISTS, e.getCode());
+        }
+        assertFalse("none is created if one fails", core.exists(dataSet+"/a@y"));
+
+        File f = File.createTempFile("zfs", ".stream");
+        try {
+            core.send(dataSet+"/a@x", null, f, null);
+            core.receive(dataSet+"/c@x", null, false, f);
+            assertTrue(core.exists(dataSet+"/c@x"));
+        } finally {
+            f.delete();
+        }
+
+        core.destroySnapshots(Arrays.asList(dataSet+"/a@x", dataSet+"/b@x"), false);
+        assertFalse(core.exists(dataSet+"/a@x"));
+        assertFalse(zfs.exists(dataSet+"/b@x"));
+    }
+
+    public void testNVList() {
+        nvlist_t l = nvlist_t.allocMap();
+        try {
+            l.put("s", "str");
+            l.put("i", 42);
+            l.putUInt64("guid", 0xF000000000000001L);
+            l.put("flag", true);
+            l.putUInt64Array("stats", new long[] {1, 2, 3});
+            l.put("names", new String[] {"a", "b"});
+            nvlist_t child = nvlist_t.allocMap();
+            child.put("x", 1L);
+            l.put("child", new nvlist_t[] {child});
+            child.dispose();
+
+            assertEquals(Long.valueOf(42), l.getLong("i"));
+            assertEquals(Long.valueOf(0xF000000000000001L), l.getLong("guid"));
+            assertTrue(l.getBoolean("flag"));
+            assertTrue(Arrays.equals(new long[] {1, 2, 3}, l.getLongArray("stats")));
+            assertEquals("b", l.getStringArray("names")[1]);
+            assertNull(l.getLong("nosuch"));
+
+            Map<String,Object> m = l.toMap();
+            assertEquals(Arrays.asList("s", "i", "guid", "flag", "stats", "names", "child"), new ArrayList<String>(m.keySet()));
+            assertEquals(1L, ((Map<?,?>)((List<?>)m.get("child")).get(0)).get("x"));
+
+            nvlist_t copy = l.dup();
+            l.remove("s");
+            assertFalse(l.containsKey("s"));
+            assertEquals("str", copy.getString("s"));
+            l.merge(copy);
+            assertEquals("str", l.getString("s"));
+            copy.dispose();
+        } finally {
+            l.dispose();
+        }
+    }
+
+    /**
+     * {@link NVListEncoder} packs a list exactly like libnvpair does, sizes of pairs in memory included,
+     * and libnvpair accepts what it packs.
+     */
+    public void testNVListEncoderMatchesLibnvpair() {
+        nvlist_t child = nvlist_t.allocMap();
+        nvlist_t l = nvlist_t.allocMap();
+        try {
+            child.put("type", "disk");
+            child.putUInt64("guid", 42);
+            l.put("name", "tank");
+            l.put("errata", -1);
+            l.put("flag", true);
+            l.put("readonly", false);
+            l.put("mask", new byte[] {1, 2, (byte)0xFF});
+            l.putUInt64Array("stats", new long[] {1, 2, 3});
+            l.put("tags", new String[] {"a", "bc", "def"});
+            l.put("tree", child);
+            l.put("children", new nvlist_t[] {child, child});
+
+            NVListEncoder c = new NVListEncoder().put("type", "disk").putUInt64("guid", 42);
+            NVListEncoder e = new NVListEncoder().put("name", "tank").put("errata", -1)
+                    .put("flag", true).put("readonly", false).put("mask", new byte[] {1, 2, (byte)0xFF})
+                    .putUInt64Array("stats", new long[] {1, 2, 3}).put("tags", new String[] {"a", "bc", "def"})
+                    .put("tree", c).put("children", new NVListEncoder[] {c, c});
+
+            assertEquals(l.pack(), e.pack());
+
+            nvlist_t u = e.toNative();
+            assertEquals(l.toMap().keySet(), u.toMap().keySet());
+            assertEquals("bc", u.getStringArray("tags")[1]);
+            u.dispose();
+        } finally {
+            l.dispose();
+            child.dispose();
+        }
+    }
+
     public void testDestroy() {
         zfs.create(dataSet, ZFSFileSystem.class);
 
@@ -181,6 +392,67 @@ public class LibZFSTest extends TestCase {
         }
     }
 
+    public void testGetZfsPropertiesInBulk() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs.create(dataSet+"/a/b", ZFSFileSystem.class);
+        fs.createSnapshot("s");
+
+        ZFSPropertyTable t = zfs.getZfsProperties(fs, -1, EnumSet.allOf(ZFSType.class),
+                EnumSet.of(zfs_prop_t.ZFS_PROP_NAME, zfs_prop_t.ZFS_PROP_TYPE));
+        assertEquals(4, t.size());
+        assertEquals(dataSet, t.getName(0));
+        assertEquals(dataSet+"/a/b", t.get(dataSet+"/a/b", zfs_prop_t.ZFS_PROP_NAME));
+        assertEquals("snapshot", t.get(dataSet+"@s", zfs_prop_t.ZFS_PROP_TYPE));
+
+        t = zfs.getZfsProperties(fs, 1, EnumSet.of(ZFSType.FILESYSTEM),
+                EnumSet.of(zfs_prop_t.ZFS_PROP_NAME));
+        assertEquals(2, t.size());
+        assertEquals(-1, t.indexOf(dataSet+"/a/b"));
+    }
+
+    public void testSpaceReport() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        ZFSFileSystem a = zfs.create(dataSet+"/a", ZFSFileSystem.class);
+        zfs.create(dataSet+"/a/b", ZFSFileSystem.class);
+        zfs.create(dataSet+"/c", ZFSFileSystem.class);
+        a.createSnapshot("s");
+
+        for (int threads : new int[]{1,2}) {
+            ZFSSpaceReport r = zfs.getSpaceReport(fs, true, threads);
+            assertEquals(5, r.size());
+            assertEquals(dataSet, r.getName(0));
+            assertEquals(-1, r.getParent(0));
+            int ia = r.indexOf(dataSet+"/a");
+            assertEquals(ia, r.getParent(r.indexOf(dataSet+"/a/b")));
+            assertEquals(ia, r.getParent(r.indexOf(dataSet+"/a@s")));
+            assertEquals(ZFSType.SNAPSHOT, r.getType(r.indexOf(dataSet+"/a@s")));
+            assertEquals(a.getUsed(), r.get(ia, ZFSSpaceReport.Column.USED));
+            assertEquals(a.getReferenced(), r.get(ia, ZFSSpaceReport.Column.REFERENCED));
+
+            long[] totals = r.getSubtreeTotals(ZFSSpaceReport.Column.REFERENCED);
+            long sum = 0;
+            for (String n : new String[]{dataSet, dataSet+"/a", dataSet+"/a/b", dataSet+"/c"})
+                sum += zfs.open(n).getReferenced();
+            assertEquals(sum, totals[0]);
+
+            int[] top = r.getTop(ZFSSpaceReport.Column.USED, 2, EnumSet.of(ZFSType.FILESYSTEM));
+            assertEquals(2, top.length);
+            assertEquals(0, top[0]);
+        }
+    }
+
+    public void testNumericProperties() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        assertEquals(fs.getZfsProperty(zfs_prop_t.ZFS_PROP_USED), String.valueOf(fs.getUsed()));
+        assertEquals(fs.getZfsProperty(zfs_prop_t.ZFS_PROP_CREATETXG), String.valueOf(fs.getCreateTxg()));
+        assertEquals(0, fs.getQuota());
+        assertEquals(0, fs.getVolumeSize());
+        assertTrue(fs.getCreation() <= System.currentTimeMillis()/1000);
+
+        ZFSPool pool = fs.getPool();
+        assertEquals(pool.getSize(), pool.getUsedSize()+pool.getAvailableSize());
+    }
+
     public void testGetZpoolProperties() {
         for (ZFSPool o : zfs.pools()) {
             ZFSFileSystem r = zfs.open(o.getName(), ZFSFileSystem.class);
@@ -221,6 +493,347 @@ public class LibZFSTest extends TestCase {
         assertEquals(time,v);
     }
 
+    public void testUserProperties() {
+        ZFSFileSystem o  = zfs.create(dataSet, ZFSFileSystem.class);
+        ZFSFileSystem o2 = zfs.create(dataSet+"/child",ZFSFileSystem.class);
+        o.setProperty("my:a", "1");
+        o2.setProperty("my:b", "2");
+
+        Map<String,ZFSUserProperty> props = o2.getUserProperties();
+        assertSame("should be cached", props, o2.getUserProperties());
+        assertTrue(props.get("my:a").isInherited());
+        assertEquals(dataSet, props.get("my:a").getSource());
+        assertTrue(props.get("my:b").isLocal());
+
+        // a missing key doesn't hide the others
+        Map<String,String> values = o2.getUserProperty(Arrays.asList("my:a", "my:none"));
+        assertEquals("1", values.get("my:a"));
+        assertFalse(values.containsKey("my:none"));
+
+        o2.setProperty("my:b", "3");
+        assertEquals("3", o2.getUserProperty("my:b"));
+
+        Map<String,Map<String,ZFSUserProperty>> all =
+                zfs.getUserProperties(o, -1, EnumSet.of(ZFSType.FILESYSTEM));
+        assertEquals(Arrays.asList(dataSet, dataSet+"/child"), new ArrayList<String>(all.keySet()));
+        assertEquals("3", all.get(dataSet+"/child").get("my:b").getValue());
+        assertNull(all.get(dataSet).get("my:b"));
+    }
+
+    public void testPropertyWalkError() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs.create(dataSet+"/a/b", ZFSFileSystem.class);
+        zfs.create(dataSet+"/c", ZFSFileSystem.class);
+
+        // the failure inside a libzfs callback stops the walk and comes out of it
+        final List<String> seen = new ArrayList<String>();
+        ZFSPropertyTable.Walker w = new ZFSPropertyTable.Walker(zfs.api, new ZFSPropertyTable.Sink() {
+            public void add(zfs_handle_t h) {
+                String name = libzfs_direct.zfs_get_name(zfs.api, h);
+                seen.add(name);
+                if (name.equals(dataSet+"/a"))
+                    throw new IllegalStateException(name);
+            }
+        }, EnumSet.of(ZFSType.FILESYSTEM), -1);
+        try {
+            w.walk(fs.handle);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(dataSet+"/a", e.getMessage());
+        }
+        assertEquals(Arrays.asList(dataSet, dataSet+"/a"), seen);
+    }
+
+    public void testDirectBinding() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs_handle_t h = libzfs_direct.zfs_open(zfs.api, zfs.getHandle(), dataSet, zfs_type_t.DATASET);
+        assertNotNull(h);
+        try {
+            assertEquals(dataSet, libzfs_direct.zfs_get_name(zfs.api, h));
+            assertEquals(ZFSType.FILESYSTEM.code, libzfs_direct.zfs_get_type(zfs.api, h));
+            assertEquals(fs.getZfsPropertyAsLong(zfs_prop_t.ZFS_PROP_CREATETXG),
+                    libzfs_direct.zfs_prop_get_int(zfs.api, h, zfs_prop_t.ZFS_PROP_CREATETXG.ordinal()));
+            assertEquals(zfs.api.zfs_prop_get_int(h, zfs_prop_t.ZFS_PROP_USED),
+                    libzfs_direct.zfs_prop_get_int(zfs.api, h, zfs_prop_t.ZFS_PROP_USED.ordinal()));
+        } finally {
+            libzfs_direct.zfs_close(zfs.api, h);
+        }
+        assertNull(libzfs_direct.zfs_open(zfs.api, zfs.getHandle(), dataSet+"/none", zfs_type_t.DATASET));
+    }
+
+    public void testIOStats() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        ZFSPool pool = fs.getPool();
+        ZPoolIOStats s = pool.getIOStats(3);
+        s.sample();
+        assertEquals(pool.getName(), s.getName(0));
+        assertEquals(-1, s.getParent(0));
+        assertTrue(s.getVdevCount()>1);
+        assertTrue(Double.isNaN(s.getRate(0, ZPoolIOStats.READ_OPS)));
+
+        fs.createSnapshot("iostat");    // make sure something gets written
+        for (int i=0; i<3; i++) {
+            Thread.sleep(100);
+            s.sample();
+        }
+        assertEquals(3, s.size());
+        assertTrue(s.getInterval(0)>0);
+        assertTrue(s.getCounter(0, ZPoolIOStats.WRITE_OPS, 0)>=s.getCounter(0, ZPoolIOStats.WRITE_OPS, 2));
+        for (int v=0; v<s.getVdevCount(); v++) {
+            System.out.println(s.getName(v)+" r/s="+s.getRate(v, ZPoolIOStats.READ_OPS)
+                +" w/s="+s.getRate(v, ZPoolIOStats.WRITE_OPS)+" wB/s="+s.getRate(v, ZPoolIOStats.WRITE_BYTES));
+            assertTrue(s.getRate(v, ZPoolIOStats.WRITE_OPS)>=0);
+            assertEquals(0, s.getDelta(v, ZPoolIOStats.CHECKSUM_ERRORS, 0));
+        }
+    }
+
+    public void testSnapshotsAreSortedByCreation() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        fs.createSnapshot("b");
+        fs.createSnapshot("a");
+        fs.createSnapshot("c");
+
+        long last = -1;
+        StringBuilder names = new StringBuilder();
+        for (ZFSSnapshot s : fs.snapshots()) {
+            assertTrue(last < s.getCreateTxg());
+            last = s.getCreateTxg();
+            names.append(s.getName().substring(s.getName().indexOf('@')+1));
+        }
+        assertEquals("bac",names.toString());
+    }
+
+    public void testHandleCache() {
+        zfs.setHandleCacheSize(16);
+        zfs.create(dataSet, ZFSFileSystem.class);
+
+        ZFSObject a = zfs.open(dataSet);
+        ZFSObject b = zfs.open(dataSet);
+        assertSame("cached handle should be shared", a.handle, b.handle);
+        a.dispose();
+        assertEquals(dataSet, b.getName());
+
+        b.setProperty("my:test", "x");
+        ZFSObject c = zfs.open(dataSet);
+        assertNotSame("setting a property should invalidate the cache", b.handle, c.handle);
+        assertEquals("x", c.getUserProperty("my:test"));
+
+        // equality doesn't depend on the handles
+        assertEquals(b, c);
+        Set<ZFSObject> set = new HashSet<ZFSObject>();
+        set.add(c);
+        c.setProperty("my:test", "y");
+        c.inheritProperty("my:test");
+        assertTrue(set.contains(c));
+        c.dispose();
+        assertTrue(set.contains(c));
+        assertEquals(b, c);
+    }
+
+    public void testTraversal() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs.create(dataSet+"/a/b", ZFSFileSystem.class);
+        zfs.create(dataSet+"/c", ZFSFileSystem.class);
+        fs.createSnapshot("s");
+
+        StringBuilder names = new StringBuilder();
+        for (ZFSObject o : new ZFSTraversal<ZFSObject>(fs, ZFSObject.class))
+            names.append(o.getName().substring(dataSet.length())).append(' ');
+        assertEquals("@s /a /a/b /c ", names.toString());
+
+        names.setLength(0);
+        for (ZFSFileSystem o : new ZFSTraversal<ZFSFileSystem>(fs, ZFSFileSystem.class).maxDepth(1))
+            names.append(o.getName().substring(dataSet.length())).append(' ');
+        assertEquals("/a /c ", names.toString());
+
+        final int[] count = new int[1];
+        assertFalse(new ZFSTraversal<ZFSObject>(fs, ZFSObject.class).visit(new ZFSTraversal.Visitor<ZFSObject>() {
+            public boolean visit(ZFSObject o) {
+                return ++count[0] < 2;
+            }
+        }));
+        assertEquals(2, count[0]);
+    }
+
+    public void testCursorClose() {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        for (int i=0; i<5; i++)
+            zfs.create(dataSet+"/c"+i, ZFSFileSystem.class);
+
+        ZFSTraversal.Cursor<ZFSFileSystem> c = new ZFSTraversal<ZFSFileSystem>(fs, ZFSFileSystem.class).iterator();
+        assertTrue(c.hasNext());
+        c.next();
+        c.close();
+        // the walker has left libzfs, so the library can be used right away
+        for (Map.Entry<Thread,StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+            for (StackTraceElement f : e.getValue())
+                assertFalse(e.getKey().getName(), f.getClassName().startsWith(ZFSTraversal.class.getName()+"$Walk"));
+        }
+        zfs.create(dataSet+"/c5", ZFSFileSystem.class);
+        assertEquals(6, fs.children().size());
+        assertFalse(c.hasNext());
+    }
+
+    public void testParallelTraversal() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        zfs.create(dataSet+"/a/b", ZFSFileSystem.class);
+        zfs.create(dataSet+"/c", ZFSFileSystem.class);
+        fs.createSnapshot("s");
+
+        List<String> expected = new ArrayList<String>();
+        for (ZFSObject o : fs.descendants(ZFSObject.class))
+            expected.add(o.getName());
+
+        List<ZFSObject> found = new ZFSTraversal<ZFSObject>(fs, ZFSObject.class).collect(4);
+        List<String> actual = new ArrayList<String>();
+        for (ZFSObject o : found)
+            actual.add(o.getName());
+        ZFSObject.dispose(found);
+        assertEquals(expected, actual);
+    }
+
+    public void testPerThreadConcurrency() throws Exception {
+        zfs.create(dataSet, ZFSFileSystem.class);
+        final LibZFS lib = new LibZFS(LibZFS.Concurrency.PER_THREAD);
+        final Throwable[] errors = new Throwable[4];
+        final libzfs_handle_t[] used = new libzfs_handle_t[errors.length];
+        final CyclicBarrier barrier = new CyclicBarrier(errors.length);
+        Thread[] threads = new Thread[errors.length];
+        for (int i=0; i<threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ZFSFileSystem fs = lib.create(dataSet+"/t"+n, ZFSFileSystem.class);
+                        used[n] = lib.getHandle();
+                        barrier.await();    // all the threads hold a handle at the same time
+                        try {
+                            fs.rename(dataSet+"/no/such/parent/t"+n, false);
+                            fail();
+                        } catch (ZFSException e) {
+                            // the error must be the one of this thread
+                            assertTrue(e.getMessage(), e.getMessage().length()>0);
+                            assertEquals(e.getCode().code(), libzfs_direct.libzfs_errno(lib.api, lib.getHandle()));
+                        }
+                        assertSame(used[n], lib.getHandle());
+                    } catch (Throwable t) {
+                        errors[n] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (Throwable t : errors)
+            if (t!=null)
+                throw new Exception(t);
+        assertEquals(errors.length, new HashSet<libzfs_handle_t>(Arrays.asList(used)).size());
+
+        // handles of the terminated threads are reused, and so is a released one
+        int count = lib.getHandleCount();
+        for (int i=0; i<3; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    lib.exists(dataSet);
+                }
+            };
+            t.start();
+            t.join();
+        }
+        lib.releaseThreadHandle();
+        assertTrue(lib.exists(dataSet));
+        assertEquals(count, lib.getHandleCount());
+
+        try {
+            lib.setHandleCacheSize(10);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        lib.close();
+        assertEquals(threads.length, zfs.open(dataSet).children().size());
+    }
+
+    public void testSend() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet, ZFSFileSystem.class);
+        fs.createSnapshot("a");
+        fs.createSnapshot("b");
+        ZFSSnapshot b = zfs.open(dataSet+"@b", ZFSSnapshot.class);
+
+        final long[] reported = new long[1];
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        b.send(full, new ZFSSendOptions().listener(new ZFSTransferListener() {
+            public void progress(long bytes, long bytesPerSecond) {
+                reported[0] = bytes;
+            }
+        }));
+        assertTrue(full.size()>0);
+        assertEquals(full.size(), reported[0]);
+
+        File f = File.createTempFile("zfs", "send");
+        try {
+            b.send(f, null);
+            assertEquals(full.size(), f.length());
+        } finally {
+            f.delete();
+        }
+
+        ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+        b.send(incremental, new ZFSSendOptions().incrementalFrom(dataSet+"@a"));
+        assertTrue(incremental.size()>0);
+    }
+
+    public void testReceive() throws Exception {
+        ZFSFileSystem fs = zfs.create(dataSet+"/src", ZFSFileSystem.class);
+        fs.createSnapshot("a");
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        zfs.open(dataSet+"/src@a", ZFSSnapshot.class).send(stream, null);
+
+        zfs.receive(dataSet+"/dst@a", new ByteArrayInputStream(stream.toByteArray()), null);
+        assertTrue(zfs.exists(dataSet+"/dst@a"));
+
+        try {
+            zfs.receive(dataSet+"/dst@a", new ByteArrayInputStream(stream.toByteArray()), null);
+            fail("already exists");
+        } catch (ZFSException e) {
+            // expected
+        }
+
+        // a dry run doesn't create anything
+        zfs.receive(dataSet+"/dry@a", new ByteArrayInputStream(stream.toByteArray()),
+                new ZFSReceiveOptions().dryRun(true));
+        assertFalse(zfs.exists(dataSet+"/dry"));
+    }
+
+    public void testReplicate() throws Exception {
+        ZFSFileSystem src = zfs.create(dataSet+"/src", ZFSFileSystem.class);
+        zfs.create(dataSet+"/src/child", ZFSFileSystem.class);
+        src.createSnapshot("a", true);
+        src.createSnapshot("b", true);
+
+        ZFSReplicator r = new ZFSReplicator().recursive(true);
+        try {
+            r.replicate(dataSet+"/src", dataSet+"/dst");
+            assertTrue(zfs.exists(dataSet+"/dst@a"));
+            assertTrue(zfs.exists(dataSet+"/dst@b"));
+            assertTrue(zfs.exists(dataSet+"/dst/child@b"));
+
+            src.createSnapshot("c", true);
+            r.replicate(dataSet+"/src", dataSet+"/dst");
+            assertEquals(zfs.open(dataSet+"/src/child@c").getGuid(), zfs.open(dataSet+"/dst/child@c").getGuid());
+
+            // a parent that has no snapshot is copied as an empty file system
+            zfs.create(dataSet+"/bare", ZFSFileSystem.class);
+            zfs.create(dataSet+"/bare/leaf", ZFSFileSystem.class).createSnapshot("x", false);
+            r.replicate(dataSet+"/bare", dataSet+"/bare-copy");
+            assertTrue(zfs.exists(dataSet+"/bare-copy", ZFSType.FILESYSTEM));
+            assertTrue(zfs.exists(dataSet+"/bare-copy/leaf@x"));
+        } finally {
+            r.close();
+        }
+    }
+
     public void test_zfsObject_exists() {
         final ZFSObject fs1 = zfs.create(dataSet, ZFSFileSystem.class);
 
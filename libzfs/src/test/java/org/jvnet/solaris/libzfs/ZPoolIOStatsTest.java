@@ -0,0 +1,90 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ZPoolIOStats.Layout} against vdev_stat_t arrays of each version. These don't need ZFS.
+ */
+public class ZPoolIOStatsTest extends TestCase {
+    /**
+     * Builds a vdev_stat_t of the given length, with distinct counters from the given index of vs_ops.
+     */
+    private static long[] stats(int length, int ops, int types) {
+        long[] s = new long[length];
+        for (int i=0; i<length; i++)
+            s[i] = 1000+i;  // anything read from the wrong word shows
+        for (int t=0; t<types; t++) {
+            s[ops+t] = 10+t;
+            s[ops+types+t] = 100*(10+t);
+        }
+        s[ops+2*types] = 1;
+        s[ops+2*types+1] = 2;
+        s[ops+2*types+2] = 3;
+        return s;
+    }
+
+    private static void check(long[] stats, ZPoolIOStats.Layout l) {
+        long[] c = new long[2+7];
+        l.decode(stats, c, 2);
+        assertEquals(11, c[2+ZPoolIOStats.READ_OPS]);
+        assertEquals(12, c[2+ZPoolIOStats.WRITE_OPS]);
+        assertEquals(1100, c[2+ZPoolIOStats.READ_BYTES]);
+        assertEquals(1200, c[2+ZPoolIOStats.WRITE_BYTES]);
+        assertEquals(1, c[2+ZPoolIOStats.READ_ERRORS]);
+        assertEquals(2, c[2+ZPoolIOStats.WRITE_ERRORS]);
+        assertEquals(3, c[2+ZPoolIOStats.CHECKSUM_ERRORS]);
+    }
+
+    public void testScrubLayouts() {
+        // 7 scrub words after vs_self_healed
+        assertSame(ZPoolIOStats.Layout.SCRUB, ZPoolIOStats.Layout.of(29, false));
+        check(stats(29, 6, 6), ZPoolIOStats.Layout.SCRUB);
+        assertSame(ZPoolIOStats.Layout.SCRUB_RSIZE, ZPoolIOStats.Layout.of(30, false));
+        check(stats(30, 7, 6), ZPoolIOStats.Layout.SCRUB_RSIZE);
+    }
+
+    public void testScanLayouts() {
+        // vs_self_healed, vs_scan_removing, vs_scan_processed
+        assertSame(ZPoolIOStats.Layout.SCAN, ZPoolIOStats.Layout.of(25, false));
+        check(stats(25, 7, 6), ZPoolIOStats.Layout.SCAN);
+        // then vs_esize, vs_fragmentation, the initialize statistics and vs_checkpoint_space
+        for (int n : new int[]{26, 27, 33}) {
+            assertSame(ZPoolIOStats.Layout.ESIZE, ZPoolIOStats.Layout.of(n, false));
+            check(stats(n, 8, 6), ZPoolIOStats.Layout.ESIZE);
+        }
+    }
+
+    public void testTrimLayout() {
+        // the initialize and trim statistics follow the scan statistics
+        for (int n : new int[]{28, 41, 48}) {
+            assertSame(ZPoolIOStats.Layout.TRIM, ZPoolIOStats.Layout.of(n, true));
+            check(stats(n, 8, 7), ZPoolIOStats.Layout.TRIM);
+        }
+    }
+
+    public void testUnknownLayouts() {
+        assertNull(ZPoolIOStats.Layout.of(0, false));
+        assertNull(ZPoolIOStats.Layout.of(22, false));
+        assertNull(ZPoolIOStats.Layout.of(24, true));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+
+/**
+ * Hands out fake native pointers for simulated objects, and maps them back.
+ *
+ * <p>
+ * The pointers are never dereferenced, as only the simulation looks at what's behind them.
+ */
+/*package*/ final class Handles {
+    private final Map<Pointer,Object> objects = new ConcurrentHashMap<Pointer,Object>();
+    /**
+     * Shared by all the instances, so that a pointer identifies one object even across libraries.
+     */
+    private static final AtomicLong next = new AtomicLong();
+
+    /**
+     * Makes the given handle point to the given object.
+     */
+    <T extends PointerType> T register(T handle, Object o) {
+        Pointer p = allocate(o);
+        handle.setPointer(p);
+        return handle;
+    }
+
+    /**
+     * Assigns a new pointer to the given object.
+     */
+    Pointer allocate(Object o) {
+        // aligned like a real pointer, and never null
+        Pointer p = new Pointer(next.incrementAndGet()<<4);
+        objects.put(p,o);
+        return p;
+    }
+
+    /**
+     * @return null if the pointer isn't one of ours, or has been released.
+     */
+    <T> T get(PointerType handle, Class<T> type) {
+        if (handle==null)   return null;
+        return get(handle.getPointer(), type);
+    }
+
+    <T> T get(Pointer p, Class<T> type) {
+        if (p==null)    return null;
+        Object o = objects.get(p);
+        return type.isInstance(o) ? type.cast(o) : null;
+    }
+
+    void release(PointerType handle) {
+        if (handle!=null && handle.getPointer()!=null)
+            objects.remove(handle.getPointer());
+    }
+
+    void release(Pointer p) {
+        if (p!=null)
+            objects.remove(p);
+    }
+
+    /**
+     * Number of objects that are registered, which tells if handles are leaked.
+     */
+    int size() {
+        return objects.size();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.jvnet.solaris.jna.LibraryLoader;
+import org.jvnet.solaris.libzfs.LibZFS;
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.nvlist.jna.libnvpair;
+
+import com.sun.jna.Library;
+
+/**
+ * Runs the binding against {@link SimulatedZFS} instead of the native libzfs and libnvpair,
+ * so that it can be exercised and measured on a system without ZFS.
+ *
+ * <p>
+ * A {@link LibZFS} can be given its own simulated libzfs, independent of the other instances:
+ * <pre>
+ * SimulatedZFS state = new SimulatedZFS();
+ * state.createPool("tank", 1L&lt;&lt;40);
+ * LibZFS zfs = new LibZFS(SimulatedBackend.libzfs(state), LibZFS.Concurrency.SHARED);
+ * </pre>
+ * Name/value lists still go through the libnvpair that the binding loads.
+ *
+ * <p>
+ * To run without any native ZFS library at all, replace both libraries for the whole JVM instead,
+ * by calling {@link #install()}, or by setting the system property {@value LibraryLoader#BACKEND_PROPERTY}
+ * to the name of this class, before the binding is first used. Every {@link LibZFS} created with the default
+ * libzfs then works on {@link SimulatedZFS#get()}, which can be set up, for example,
+ * with {@link SimulatedZFS#generate(String, int, int, int, long)}.
+ *
+ * <p>
+ * Calls take the time set by {@link SimulatedZFS#setLatency(long)}, on top of that of the simulation itself.
+ */
+public class SimulatedBackend implements LibraryLoader.Backend {
+    private final SimulatedZFS zfs = SimulatedZFS.get();
+    private final Handles handles = new Handles();
+    private final SimulatedLibNVPair nvpair = new SimulatedLibNVPair(handles);
+
+    /**
+     * Makes the binding use the simulated libraries.
+     *
+     * @throws IllegalStateException
+     *      if the binding has already loaded other libraries.
+     */
+    public static synchronized void install() {
+        try {
+            LibraryLoader.setBackend(new SimulatedBackend());
+        } catch (IllegalStateException e) {
+            if (!(LibraryLoader.getBackend() instanceof SimulatedBackend))
+                throw e;
+            // already installed
+        }
+    }
+
+    /**
+     * Creates a libzfs that works on the given state, for {@link LibZFS#LibZFS(libzfs, LibZFS.Concurrency)}.
+     */
+    public static libzfs libzfs(SimulatedZFS zfs) {
+        return delayed(zfs, libzfs.class, LibraryLoader.implement(libzfs.class, new SimulatedLibZFS(zfs, new Handles())));
+    }
+
+    public <T extends Library> T getLibrary(String name, Class<T> type) {
+        if (type==libzfs.class)
+            return delayed(zfs, type, LibraryLoader.implement(type, new SimulatedLibZFS(zfs, handles)));
+        if (type==libnvpair.class)
+            return delayed(zfs, type, LibraryLoader.implement(type, nvpair));
+        return null;
+    }
+
+    /**
+     * Adds the simulated latency to the calls.
+     */
+    private static <T extends Library> T delayed(final SimulatedZFS zfs, Class<T> type, final T lib) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if (m.getDeclaringClass()!=Object.class)
+                    SimulatedZFS.delay(zfs.getLatency(m.getName()));
+                try {
+                    return m.invoke(lib, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        }));
+    }
+}
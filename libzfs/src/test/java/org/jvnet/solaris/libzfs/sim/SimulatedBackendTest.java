@@ -0,0 +1,65 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import junit.framework.TestCase;
+
+import org.jvnet.solaris.libzfs.LibZFS;
+import org.jvnet.solaris.libzfs.ZFSFileSystem;
+import org.jvnet.solaris.libzfs.ZFSObject;
+
+/**
+ * Tests libraries that are each given their own simulated libzfs.
+ */
+public class SimulatedBackendTest extends TestCase {
+    static {
+        // for libnvpair
+        SimulatedBackend.install();
+    }
+
+    public void testIndependentLibraries() {
+        SimulatedZFS a = new SimulatedZFS();
+        SimulatedZFS b = new SimulatedZFS();
+        a.createPool("tank", 1L<<40);
+        b.createPool("tank", 1L<<40);
+        LibZFS za = new LibZFS(SimulatedBackend.libzfs(a), LibZFS.Concurrency.SHARED);
+        LibZFS zb = new LibZFS(SimulatedBackend.libzfs(b), LibZFS.Concurrency.PER_THREAD);
+        try {
+            za.create("tank/x", ZFSFileSystem.class).setProperty("my:p", "a");
+            assertTrue(a.exists("tank/x"));
+            assertFalse(b.exists("tank/x"));
+            assertFalse(zb.exists("tank/x"));
+            assertFalse(SimulatedZFS.get().exists("tank/x"));
+
+            zb.create("tank/x", ZFSFileSystem.class).setProperty("my:p", "b");
+            ZFSObject x = za.open("tank/x");
+            assertEquals("a", x.getUserProperty("my:p"));
+            assertEquals("b", zb.open("tank/x").getUserProperty("my:p"));
+
+            x.destroy();
+            assertFalse(za.exists("tank/x"));
+            assertTrue(zb.exists("tank/x"));
+        } finally {
+            za.dispose();
+            zb.dispose();
+        }
+    }
+}
@@ -0,0 +1,824 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME_TYPE;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.nvlist.NVListDecoder;
+import org.jvnet.solaris.nvlist.NVListEncoder;
+import org.jvnet.solaris.nvlist.jna.libnvpair;
+import org.jvnet.solaris.nvlist.jna.libnvpair.data_type_t;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+import org.jvnet.solaris.nvlist.jna.nvpair_t;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.ByteByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.sun.jna.ptr.ShortByReference;
+
+/**
+ * {@link libnvpair} functions, with the lists kept on the Java heap.
+ *
+ * <p>
+ * Values that libnvpair hands out by pointer, like strings and arrays, are copied to native memory
+ * that lives as long as the pair, so the callers read them the same way as from the real library.
+ * Packing goes through {@link NVListEncoder} and unpacking through {@link NVListDecoder},
+ * so packed lists are interchangeable with those of the real library.
+ */
+/*package*/ final class SimulatedLibNVPair {
+    private static final int EINVAL = 22, ENOENT = 2, ENOTSUP = 48;
+
+    private final Handles handles;
+
+    /*package*/ SimulatedLibNVPair(Handles handles) {
+        this.handles = handles;
+    }
+
+    /**
+     * A list. The pair handles point to {@link Pair}s.
+     */
+    /*package*/ final class List_ {
+        final int nvflag;
+        final List<Pair> pairs = new ArrayList<Pair>();
+        final Pointer self;
+
+        List_(int nvflag) {
+            this.nvflag = nvflag;
+            this.self = handles.allocate(this);
+        }
+
+        Pair find(String name) {
+            for (Pair p : pairs)
+                if (p.name.equals(name))
+                    return p;
+            return null;
+        }
+
+        void add(String name, data_type_t type, Object value) {
+            if ((nvflag&NV_UNIQUE_NAME)!=0 || (nvflag&NV_UNIQUE_NAME_TYPE)!=0) {
+                for (int i=pairs.size()-1; i>=0; i--) {
+                    Pair p = pairs.get(i);
+                    if (p.name.equals(name) && ((nvflag&NV_UNIQUE_NAME)!=0 || p.type==type)) {
+                        p.release();
+                        pairs.remove(i);
+                    }
+                }
+            }
+            pairs.add(new Pair(name, type, value));
+        }
+
+        List_ copy() {
+            List_ r = new List_(nvflag);
+            for (Pair p : pairs)
+                r.pairs.add(new Pair(p.name, p.type, copyValue(p.value)));
+            return r;
+        }
+
+        void release() {
+            for (Pair p : pairs)
+                p.release();
+            handles.release(self);
+        }
+    }
+
+    private Object copyValue(Object v) {
+        if (v instanceof List_)
+            return ((List_)v).copy();
+        if (v instanceof List_[]) {
+            List_[] a = (List_[])v;
+            List_[] r = new List_[a.length];
+            for (int i=0; i<a.length; i++)
+                r[i] = a[i].copy();
+            return r;
+        }
+        return v;   // the rest are immutable or never modified
+    }
+
+    /*package*/ final class Pair {
+        final String name;
+        final data_type_t type;
+        final Object value;
+        /**
+         * Handle of this pair, assigned on demand.
+         */
+        Pointer self;
+        /**
+         * Native copy of the value, for those that are returned by pointer.
+         */
+        Memory memory;
+
+        Pair(String name, data_type_t type, Object value) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+
+        Pointer self() {
+            if (self==null)
+                self = handles.allocate(this);
+            return self;
+        }
+
+        void release() {
+            if (self!=null)
+                handles.release(self);
+            if (value instanceof List_)
+                ((List_)value).release();
+            if (value instanceof List_[])
+                for (List_ l : (List_[])value)
+                    l.release();
+        }
+
+        /**
+         * Copies the value to native memory, once, and returns where it is.
+         */
+        synchronized Pointer memory() {
+            if (memory!=null)
+                return memory;
+            Object v = value;
+            if (v instanceof String) {
+                byte[] b = ((String)v).getBytes();
+                memory = new Memory(b.length+1);
+                memory.write(0, b, 0, b.length);
+                memory.setByte(b.length, (byte)0);
+            } else if (v instanceof byte[]) {
+                byte[] a = (byte[])v;
+                memory = new Memory(Math.max(1,a.length));
+                memory.write(0, a, 0, a.length);
+            } else if (v instanceof short[]) {
+                short[] a = (short[])v;
+                memory = new Memory(Math.max(1,2*a.length));
+                memory.write(0, a, 0, a.length);
+            } else if (v instanceof int[]) {
+                int[] a = (int[])v;
+                memory = new Memory(Math.max(1,4*a.length));
+                memory.write(0, a, 0, a.length);
+            } else if (v instanceof long[]) {
+                long[] a = (long[])v;
+                memory = new Memory(Math.max(1,8*a.length));
+                memory.write(0, a, 0, a.length);
+            } else if (v instanceof String[]) {
+                String[] a = (String[])v;
+                // the pointers, then the strings
+                int size = Pointer.SIZE*a.length;
+                byte[][] b = new byte[a.length][];
+                for (int i=0; i<a.length; i++) {
+                    b[i] = a[i].getBytes();
+                    size += b[i].length+1;
+                }
+                memory = new Memory(Math.max(1,size));
+                long off = Pointer.SIZE*a.length;
+                for (int i=0; i<a.length; i++) {
+                    memory.setPointer(Pointer.SIZE*i, memory.share(off));
+                    memory.write(off, b[i], 0, b[i].length);
+                    memory.setByte(off+b[i].length, (byte)0);
+                    off += b[i].length+1;
+                }
+            } else if (v instanceof List_[]) {
+                List_[] a = (List_[])v;
+                memory = new Memory(Math.max(1,Pointer.SIZE*a.length));
+                for (int i=0; i<a.length; i++)
+                    memory.setPointer(Pointer.SIZE*i, a[i].self);
+            } else {
+                throw new IllegalStateException(type+" is not returned by pointer");
+            }
+            return memory;
+        }
+
+        int length() {
+            Object v = value;
+            if (v instanceof boolean[])     return ((boolean[])v).length;
+            if (v instanceof byte[])        return ((byte[])v).length;
+            if (v instanceof short[])       return ((short[])v).length;
+            if (v instanceof int[])         return ((int[])v).length;
+            if (v instanceof long[])        return ((long[])v).length;
+            if (v instanceof Object[])      return ((Object[])v).length;
+            return 1;
+        }
+    }
+
+    private List_ list(nvlist_t l) {
+        return handles.get(l, List_.class);
+    }
+
+    private Pair pair(nvpair_t p) {
+        return handles.get(p, Pair.class);
+    }
+
+    private static void setPointer(PtrByReference<?> r, Pointer p) {
+        r.getPointer().setPointer(0, p);
+    }
+
+    /*
+     * Lists
+     */
+
+    public int nvlist_alloc(PtrByReference<nvlist_t> result, int nvflag, int kmflag) {
+        setPointer(result, new List_(nvflag).self);
+        return 0;
+    }
+
+    public void nvlist_free(nvlist_t list) {
+        List_ l = list(list);
+        if (l!=null)
+            l.release();
+    }
+
+    public int nvlist_dup(nvlist_t list, PtrByReference<nvlist_t> result, int kmflag) {
+        List_ l = list(list);
+        if (l==null)    return EINVAL;
+        setPointer(result, l.copy().self);
+        return 0;
+    }
+
+    public int nvlist_merge(nvlist_t dst, nvlist_t src, int flag) {
+        List_ d = list(dst), s = list(src);
+        if (d==null || s==null)     return EINVAL;
+        for (Pair p : s.pairs)
+            d.add(p.name, p.type, copyValue(p.value));
+        return 0;
+    }
+
+    public int nvlist_size(nvlist_t list, NativeLongByReference size, int encoding) {
+        List_ l = list(list);
+        if (l==null)    return EINVAL;
+        if (encoding!=libnvpair.NV_ENCODE_XDR)  return ENOTSUP;
+        size.setValue(new NativeLong(encoder(l).pack().remaining()));
+        return 0;
+    }
+
+    public int nvlist_pack(nvlist_t list, PointerByReference buf, NativeLongByReference size, int encoding, int kmflag) {
+        List_ l = list(list);
+        if (l==null)    return EINVAL;
+        if (encoding!=libnvpair.NV_ENCODE_XDR)  return ENOTSUP;
+        ByteBuffer b = encoder(l).pack();
+        if (b.remaining()>size.getValue().longValue())
+            return 12/*ENOMEM*/;
+        byte[] a = new byte[b.remaining()];
+        b.get(a);
+        buf.getValue().write(0, a, 0, a.length);
+        size.setValue(new NativeLong(a.length));
+        return 0;
+    }
+
+    public int nvlist_unpack(Pointer buf, NativeLong size, PtrByReference<nvlist_t> result, int kmflag) {
+        ByteBuffer b = buf.getByteBuffer(0, size.longValue());
+        Builder builder = new Builder();
+        try {
+            NVListDecoder.decode(b, builder);
+        } catch (RuntimeException e) {
+            return EINVAL;
+        }
+        setPointer(result, builder.root.self);
+        return 0;
+    }
+
+    private NVListEncoder encoder(List_ l) {
+        NVListEncoder e = new NVListEncoder(l.nvflag);
+        for (Pair p : l.pairs) {
+            Object v = p.value;
+            switch (p.type) {
+            case DATA_TYPE_BOOLEAN:         e.put(p.name, true); break;
+            case DATA_TYPE_BOOLEAN_VALUE:   e.put(p.name, ((Boolean)v).booleanValue()); break;
+            case DATA_TYPE_BYTE:
+            case DATA_TYPE_INT8:
+            case DATA_TYPE_UINT8:           e.put(p.name, ((Number)v).byteValue()); break;
+            case DATA_TYPE_INT16:
+            case DATA_TYPE_UINT16:          e.put(p.name, ((Number)v).shortValue()); break;
+            case DATA_TYPE_INT32:           e.put(p.name, ((Number)v).intValue()); break;
+            case DATA_TYPE_UINT32:          e.putUInt32(p.name, ((Number)v).intValue()); break;
+            case DATA_TYPE_INT64:
+            case DATA_TYPE_HRTIME:          e.put(p.name, ((Number)v).longValue()); break;
+            case DATA_TYPE_UINT64:          e.putUInt64(p.name, ((Number)v).longValue()); break;
+            case DATA_TYPE_STRING:          e.put(p.name, (String)v); break;
+            case DATA_TYPE_NVLIST:          e.put(p.name, encoder((List_)v)); break;
+            case DATA_TYPE_BOOLEAN_ARRAY:   e.put(p.name, (boolean[])v); break;
+            case DATA_TYPE_BYTE_ARRAY:
+            case DATA_TYPE_INT8_ARRAY:
+            case DATA_TYPE_UINT8_ARRAY:     e.put(p.name, (byte[])v); break;
+            case DATA_TYPE_INT16_ARRAY:
+            case DATA_TYPE_UINT16_ARRAY:    e.put(p.name, (short[])v); break;
+            case DATA_TYPE_INT32_ARRAY:     e.put(p.name, (int[])v); break;
+            case DATA_TYPE_UINT32_ARRAY:    e.putUInt32Array(p.name, (int[])v); break;
+            case DATA_TYPE_INT64_ARRAY:     e.put(p.name, (long[])v); break;
+            case DATA_TYPE_UINT64_ARRAY:    e.putUInt64Array(p.name, (long[])v); break;
+            case DATA_TYPE_STRING_ARRAY:    e.put(p.name, (String[])v); break;
+            case DATA_TYPE_NVLIST_ARRAY: {
+                List_[] a = (List_[])v;
+                NVListEncoder[] r = new NVListEncoder[a.length];
+                for (int i=0; i<a.length; i++)
+                    r[i] = encoder(a[i]);
+                e.put(p.name, r);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Can't pack "+p.type);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Builds lists from {@link NVListDecoder}.
+     */
+    private final class Builder implements NVListDecoder.Handler {
+        /**
+         * Lists, and lists of the elements of arrays, being built. Innermost first.
+         */
+        private final LinkedList<Object> stack = new LinkedList<Object>();
+        private final LinkedList<String> names = new LinkedList<String>();
+        List_ root;
+
+        public void pair(String name, data_type_t type, Object value) {
+            ((List_)stack.getFirst()).add(name, type, value);
+        }
+
+        public void startList(String name) {
+            // the flags aren't reported, and what's unpacked is normally a map
+            stack.addFirst(new List_(NV_UNIQUE_NAME));
+            names.addFirst(name);
+        }
+
+        public void endList() {
+            List_ l = (List_)stack.removeFirst();
+            String name = names.removeFirst();
+            if (stack.isEmpty())
+                root = l;
+            else if (stack.getFirst() instanceof List_)
+                ((List_)stack.getFirst()).add(name, data_type_t.DATA_TYPE_NVLIST, l);
+            else
+                add(stack.getFirst(), l);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object array, List_ l) {
+            ((List<List_>)array).add(l);
+        }
+
+        public void startListArray(String name, int length) {
+            stack.addFirst(new ArrayList<List_>(length));
+            names.addFirst(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void endListArray() {
+            List<List_> a = (List<List_>)stack.removeFirst();
+            ((List_)stack.getFirst()).add(names.removeFirst(), data_type_t.DATA_TYPE_NVLIST_ARRAY, a.toArray(new List_[a.size()]));
+        }
+    }
+
+    /*
+     * Adding pairs
+     */
+
+    private int add(nvlist_t list, String name, data_type_t type, Object value) {
+        List_ l = list(list);
+        if (l==null || name==null)  return EINVAL;
+        synchronized (l) {
+            l.add(name, type, value);
+        }
+        return 0;
+    }
+
+    public int nvlist_add_boolean(nvlist_t list, String name) {
+        return add(list, name, data_type_t.DATA_TYPE_BOOLEAN, Boolean.TRUE);
+    }
+
+    public int nvlist_add_boolean_value(nvlist_t list, String name, boolean value) {
+        return add(list, name, data_type_t.DATA_TYPE_BOOLEAN_VALUE, value);
+    }
+
+    public int nvlist_add_byte(nvlist_t list, String name, byte value) {
+        return add(list, name, data_type_t.DATA_TYPE_BYTE, value);
+    }
+
+    public int nvlist_add_int8(nvlist_t list, String name, byte value) {
+        return add(list, name, data_type_t.DATA_TYPE_INT8, value);
+    }
+
+    public int nvlist_add_uint8(nvlist_t list, String name, byte value) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT8, value);
+    }
+
+    public int nvlist_add_int16(nvlist_t list, String name, short value) {
+        return add(list, name, data_type_t.DATA_TYPE_INT16, value);
+    }
+
+    public int nvlist_add_uint16(nvlist_t list, String name, short value) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT16, value);
+    }
+
+    public int nvlist_add_int32(nvlist_t list, String name, int value) {
+        return add(list, name, data_type_t.DATA_TYPE_INT32, value);
+    }
+
+    public int nvlist_add_uint32(nvlist_t list, String name, int value) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT32, value);
+    }
+
+    public int nvlist_add_int64(nvlist_t list, String name, long value) {
+        return add(list, name, data_type_t.DATA_TYPE_INT64, value);
+    }
+
+    public int nvlist_add_uint64(nvlist_t list, String name, long value) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT64, value);
+    }
+
+    public int nvlist_add_hrtime(nvlist_t list, String name, long value) {
+        return add(list, name, data_type_t.DATA_TYPE_HRTIME, value);
+    }
+
+    public int nvlist_add_string(nvlist_t list, String key, String value) {
+        if (value==null)    return EINVAL;
+        return add(list, key, data_type_t.DATA_TYPE_STRING, value);
+    }
+
+    public int nvlist_add_nvlist(nvlist_t list, String key, nvlist_t value) {
+        List_ v = list(value);
+        if (v==null)    return EINVAL;
+        return add(list, key, data_type_t.DATA_TYPE_NVLIST, v.copy());
+    }
+
+    public int nvlist_add_boolean_array(nvlist_t list, String name, int[] value, int n) {
+        boolean[] v = new boolean[n];
+        for (int i=0; i<n; i++)
+            v[i] = value[i]!=0;
+        return add(list, name, data_type_t.DATA_TYPE_BOOLEAN_ARRAY, v);
+    }
+
+    public int nvlist_add_byte_array(nvlist_t list, String name, byte[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_BYTE_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_int8_array(nvlist_t list, String name, byte[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_INT8_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_uint8_array(nvlist_t list, String name, byte[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT8_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_int16_array(nvlist_t list, String name, short[] value, int n) {
+        short[] v = new short[n];
+        System.arraycopy(value,0,v,0,n);
+        return add(list, name, data_type_t.DATA_TYPE_INT16_ARRAY, v);
+    }
+
+    public int nvlist_add_uint16_array(nvlist_t list, String name, short[] value, int n) {
+        short[] v = new short[n];
+        System.arraycopy(value,0,v,0,n);
+        return add(list, name, data_type_t.DATA_TYPE_UINT16_ARRAY, v);
+    }
+
+    public int nvlist_add_int32_array(nvlist_t list, String name, int[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_INT32_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_uint32_array(nvlist_t list, String name, int[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT32_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_int64_array(nvlist_t list, String name, long[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_INT64_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_uint64_array(nvlist_t list, String name, long[] value, int n) {
+        return add(list, name, data_type_t.DATA_TYPE_UINT64_ARRAY, copyOf(value,n));
+    }
+
+    public int nvlist_add_string_array(nvlist_t list, String name, String[] value, int n) {
+        String[] v = new String[n];
+        System.arraycopy(value,0,v,0,n);
+        return add(list, name, data_type_t.DATA_TYPE_STRING_ARRAY, v);
+    }
+
+    public int nvlist_add_nvlist_array(nvlist_t list, String name, Pointer[] value, int n) {
+        List_[] v = new List_[n];
+        for (int i=0; i<n; i++) {
+            List_ l = handles.get(value[i], List_.class);
+            if (l==null)    return EINVAL;
+            v[i] = l.copy();
+        }
+        return add(list, name, data_type_t.DATA_TYPE_NVLIST_ARRAY, v);
+    }
+
+    private static byte[] copyOf(byte[] a, int n) {
+        byte[] r = new byte[n];
+        System.arraycopy(a,0,r,0,n);
+        return r;
+    }
+
+    private static int[] copyOf(int[] a, int n) {
+        int[] r = new int[n];
+        System.arraycopy(a,0,r,0,n);
+        return r;
+    }
+
+    private static long[] copyOf(long[] a, int n) {
+        long[] r = new long[n];
+        System.arraycopy(a,0,r,0,n);
+        return r;
+    }
+
+    /*
+     * Looking up pairs
+     */
+
+    public int nvlist_remove_all(nvlist_t list, String name) {
+        List_ l = list(list);
+        if (l==null)    return EINVAL;
+        boolean found = false;
+        synchronized (l) {
+            for (int i=l.pairs.size()-1; i>=0; i--) {
+                Pair p = l.pairs.get(i);
+                if (p.name.equals(name)) {
+                    p.release();
+                    l.pairs.remove(i);
+                    found = true;
+                }
+            }
+        }
+        return found ? 0 : ENOENT;
+    }
+
+    public boolean nvlist_exists(nvlist_t list, String name) {
+        List_ l = list(list);
+        return l!=null && l.find(name)!=null;
+    }
+
+    /**
+     * Finds the pair of the given name and type.
+     */
+    private Pair lookup(nvlist_t list, String name, data_type_t type) {
+        List_ l = list(list);
+        if (l==null)    return null;
+        Pair p = l.find(name);
+        return p!=null && p.type==type ? p : null;
+    }
+
+    public int nvlist_lookup_boolean(nvlist_t list, String name) {
+        return lookup(list, name, data_type_t.DATA_TYPE_BOOLEAN)!=null ? 0 : ENOENT;
+    }
+
+    public int nvlist_lookup_boolean_value(nvlist_t list, String name, IntByReference result) {
+        Pair p = lookup(list, name, data_type_t.DATA_TYPE_BOOLEAN_VALUE);
+        if (p==null)    return ENOENT;
+        result.setValue(((Boolean)p.value) ? 1 : 0);
+        return 0;
+    }
+
+    public int nvlist_lookup_int32(nvlist_t list, String name, IntByReference result) {
+        Pair p = lookup(list, name, data_type_t.DATA_TYPE_INT32);
+        if (p==null)    return ENOENT;
+        result.setValue(((Number)p.value).intValue());
+        return 0;
+    }
+
+    public int nvlist_lookup_uint64(nvlist_t list, String name, LongByReference result) {
+        Pair p = lookup(list, name, data_type_t.DATA_TYPE_UINT64);
+        if (p==null)    return ENOENT;
+        result.setValue(((Number)p.value).longValue());
+        return 0;
+    }
+
+    public int nvlist_lookup_string(nvlist_t list, String name, PointerByReference result) {
+        Pair p = lookup(list, name, data_type_t.DATA_TYPE_STRING);
+        if (p==null)    return ENOENT;
+        result.setValue(p.memory());
+        return 0;
+    }
+
+    public int nvlist_lookup_nvlist(nvlist_t list, String name, PtrByReference<nvlist_t> result) {
+        Pair p = lookup(list, name, data_type_t.DATA_TYPE_NVLIST);
+        if (p==null)    return ENOENT;
+        setPointer(result, ((List_)p.value).self);
+        return 0;
+    }
+
+    public int nvlist_lookup_nvpair(nvlist_t list, String name, PtrByReference<nvpair_t> result) {
+        List_ l = list(list);
+        if (l==null)    return EINVAL;
+        Pair p = l.find(name);
+        if (p==null)    return ENOENT;
+        setPointer(result, p.self());
+        return 0;
+    }
+
+    public nvpair_t nvlist_next_nvpair(nvlist_t list, nvpair_t prev) {
+        List_ l = list(list);
+        if (l==null)    return null;
+        int i = 0;
+        if (prev!=null) {
+            i = l.pairs.indexOf(pair(prev));
+            if (i<0)    return null;
+            i++;
+        }
+        if (i>=l.pairs.size())  return null;
+        nvpair_t r = new nvpair_t();
+        r.setPointer(l.pairs.get(i).self());
+        return r;
+    }
+
+    /*
+     * Reading pairs
+     */
+
+    public String nvpair_name(nvpair_t pair) {
+        return pair(pair).name;
+    }
+
+    public int nvpair_type(nvpair_t pair) {
+        return pair(pair).type.ordinal();
+    }
+
+    private Object value(nvpair_t pair, data_type_t type) {
+        Pair p = pair(pair);
+        return p!=null && p.type==type ? p.value : null;
+    }
+
+    public int nvpair_value_boolean_value(nvpair_t pair, IntByReference result) {
+        Object v = value(pair, data_type_t.DATA_TYPE_BOOLEAN_VALUE);
+        if (v==null)    return EINVAL;
+        result.setValue(((Boolean)v) ? 1 : 0);
+        return 0;
+    }
+
+    private int byteValue(nvpair_t pair, data_type_t type, ByteByReference result) {
+        Object v = value(pair, type);
+        if (v==null)    return EINVAL;
+        result.setValue(((Number)v).byteValue());
+        return 0;
+    }
+
+    public int nvpair_value_byte(nvpair_t pair, ByteByReference result) {
+        return byteValue(pair, data_type_t.DATA_TYPE_BYTE, result);
+    }
+
+    public int nvpair_value_int8(nvpair_t pair, ByteByReference result) {
+        return byteValue(pair, data_type_t.DATA_TYPE_INT8, result);
+    }
+
+    public int nvpair_value_uint8(nvpair_t pair, ByteByReference result) {
+        return byteValue(pair, data_type_t.DATA_TYPE_UINT8, result);
+    }
+
+    private int shortValue(nvpair_t pair, data_type_t type, ShortByReference result) {
+        Object v = value(pair, type);
+        if (v==null)    return EINVAL;
+        result.setValue(((Number)v).shortValue());
+        return 0;
+    }
+
+    public int nvpair_value_int16(nvpair_t pair, ShortByReference result) {
+        return shortValue(pair, data_type_t.DATA_TYPE_INT16, result);
+    }
+
+    public int nvpair_value_uint16(nvpair_t pair, ShortByReference result) {
+        return shortValue(pair, data_type_t.DATA_TYPE_UINT16, result);
+    }
+
+    private int intValue(nvpair_t pair, data_type_t type, IntByReference result) {
+        Object v = value(pair, type);
+        if (v==null)    return EINVAL;
+        result.setValue(((Number)v).intValue());
+        return 0;
+    }
+
+    public int nvpair_value_int32(nvpair_t pair, IntByReference result) {
+        return intValue(pair, data_type_t.DATA_TYPE_INT32, result);
+    }
+
+    public int nvpair_value_uint32(nvpair_t pair, IntByReference result) {
+        return intValue(pair, data_type_t.DATA_TYPE_UINT32, result);
+    }
+
+    private int longValue(nvpair_t pair, data_type_t type, LongByReference result) {
+        Object v = value(pair, type);
+        if (v==null)    return EINVAL;
+        result.setValue(((Number)v).longValue());
+        return 0;
+    }
+
+    public int nvpair_value_int64(nvpair_t pair, LongByReference result) {
+        return longValue(pair, data_type_t.DATA_TYPE_INT64, result);
+    }
+
+    public int nvpair_value_uint64(nvpair_t pair, LongByReference result) {
+        return longValue(pair, data_type_t.DATA_TYPE_UINT64, result);
+    }
+
+    public int nvpair_value_hrtime(nvpair_t pair, LongByReference result) {
+        return longValue(pair, data_type_t.DATA_TYPE_HRTIME, result);
+    }
+
+    public int nvpair_value_string(nvpair_t pair, PointerByReference result) {
+        Pair p = pair(pair);
+        if (p==null || p.type!=data_type_t.DATA_TYPE_STRING)    return EINVAL;
+        result.setValue(p.memory());
+        return 0;
+    }
+
+    public int nvpair_value_nvlist(nvpair_t pair, PtrByReference<nvlist_t> result) {
+        Object v = value(pair, data_type_t.DATA_TYPE_NVLIST);
+        if (v==null)    return EINVAL;
+        setPointer(result, ((List_)v).self);
+        return 0;
+    }
+
+    private int array(nvpair_t pair, data_type_t type, PointerByReference result, IntByReference n) {
+        Pair p = pair(pair);
+        if (p==null || p.type!=type)    return EINVAL;
+        if (p.value instanceof boolean[]) {
+            // stored as boolean[] for packing, but libnvpair hands out an array of boolean_t
+            boolean[] b = (boolean[])p.value;
+            synchronized (p) {
+                if (p.memory==null) {
+                    p.memory = new Memory(Math.max(1,4*b.length));
+                    for (int i=0; i<b.length; i++)
+                        p.memory.setInt(4*i, b[i] ? 1 : 0);
+                }
+            }
+        }
+        result.setValue(p.memory());
+        n.setValue(p.length());
+        return 0;
+    }
+
+    public int nvpair_value_boolean_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_BOOLEAN_ARRAY, result, n);
+    }
+
+    public int nvpair_value_byte_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_BYTE_ARRAY, result, n);
+    }
+
+    public int nvpair_value_int8_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_INT8_ARRAY, result, n);
+    }
+
+    public int nvpair_value_uint8_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_UINT8_ARRAY, result, n);
+    }
+
+    public int nvpair_value_int16_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_INT16_ARRAY, result, n);
+    }
+
+    public int nvpair_value_uint16_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_UINT16_ARRAY, result, n);
+    }
+
+    public int nvpair_value_int32_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_INT32_ARRAY, result, n);
+    }
+
+    public int nvpair_value_uint32_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_UINT32_ARRAY, result, n);
+    }
+
+    public int nvpair_value_int64_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_INT64_ARRAY, result, n);
+    }
+
+    public int nvpair_value_uint64_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_UINT64_ARRAY, result, n);
+    }
+
+    public int nvpair_value_string_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_STRING_ARRAY, result, n);
+    }
+
+    public int nvpair_value_nvlist_array(nvpair_t pair, PointerByReference result, IntByReference n) {
+        return array(pair, data_type_t.DATA_TYPE_NVLIST_ARRAY, result, n);
+    }
+}
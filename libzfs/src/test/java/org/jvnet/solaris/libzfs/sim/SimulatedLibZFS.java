@@ -0,0 +1,808 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import static org.jvnet.solaris.libc.jna.libc.LIBC;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.LIBNVPAIR;
+import static org.jvnet.solaris.nvlist.jna.libnvpair.NV_UNIQUE_NAME;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jvnet.solaris.avl.avl_tree_t;
+import org.jvnet.solaris.jna.BooleanByReference;
+import org.jvnet.solaris.jna.EnumByReference;
+import org.jvnet.solaris.jna.PtrByReference;
+import org.jvnet.solaris.libzfs.ErrorCode;
+import org.jvnet.solaris.libzfs.ZFSType;
+import org.jvnet.solaris.libzfs.ZPoolStatus;
+import org.jvnet.solaris.libzfs.jna.libzfs;
+import org.jvnet.solaris.libzfs.jna.libzfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.recvflags_t;
+import org.jvnet.solaris.libzfs.jna.zfs_handle_t;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.jvnet.solaris.libzfs.jna.zpool_handle_t;
+import org.jvnet.solaris.libzfs.jna.zpool_prop_t;
+import org.jvnet.solaris.libzfs.sim.SimulatedZFS.Dataset;
+import org.jvnet.solaris.libzfs.sim.SimulatedZFS.Pool;
+import org.jvnet.solaris.nvlist.jna.nvlist_t;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * The {@link libzfs} functions that the high-level API uses, on top of {@link SimulatedZFS}.
+ *
+ * <p>
+ * Like the real library, errors are recorded on the library handle, for {@link #libzfs_errno(libzfs_handle_t)},
+ * and handles passed to the iterator callbacks are owned by the callbacks. Exceptions thrown by callbacks
+ * are reported and swallowed, as JNA does.
+ * Functions that aren't here fail with {@link UnsupportedOperationException}.
+ *
+ * <p>
+ * The lists that this returns or takes go through {@link nvlist_t}, so this works with whichever libnvpair
+ * the binding has loaded. Send streams are written to and read from the file descriptors with the real libc.
+ */
+/*package*/ final class SimulatedLibZFS {
+    /**
+     * What {@link #zfs_name_to_prop(String)} returns for "guid", which {@link zfs_prop_t} doesn't have.
+     */
+    private static final int ZFS_PROP_GUID = 1000;
+    /**
+     * The source reported for all properties, which is {@code zprop_source_t.ZPROP_SRC_NONE}.
+     */
+    private static final int ZPROP_SRC_NONE = 0;
+
+    private final SimulatedZFS zfs;
+    private final Handles handles;
+
+    /*package*/ SimulatedLibZFS(SimulatedZFS zfs, Handles handles) {
+        this.zfs = zfs;
+        this.handles = handles;
+    }
+
+    /**
+     * What a {@link libzfs_handle_t} points to.
+     */
+    private static final class Lib {
+        Pointer self;
+        volatile ErrorCode errno;
+        volatile String description = "no error";
+
+        int fail(ErrorCode e, String description) {
+            this.errno = e;
+            this.description = description;
+            return -1;
+        }
+    }
+
+    /**
+     * What a {@link zfs_handle_t} points to.
+     */
+    private static final class Zfs {
+        final Lib lib;
+        final Dataset dataset;
+        /**
+         * What {@link #zfs_get_user_props(zfs_handle_t)} returned, freed along with the handle.
+         */
+        nvlist_t userProps;
+
+        Zfs(Lib lib, Dataset dataset) {
+            this.lib = lib;
+            this.dataset = dataset;
+        }
+    }
+
+    /**
+     * What a {@link zpool_handle_t} points to.
+     */
+    private static final class Zpool {
+        final Lib lib;
+        final Pool pool;
+        /**
+         * What {@link #zpool_get_config(zpool_handle_t, PointerByReference)} returns,
+         * replaced by {@link #zpool_refresh_stats(zpool_handle_t, BooleanByReference)}.
+         */
+        nvlist_t config;
+
+        Zpool(Lib lib, Pool pool) {
+            this.lib = lib;
+            this.pool = pool;
+        }
+    }
+
+    private Lib lib(libzfs_handle_t h) {
+        Lib l = handles.get(h, Lib.class);
+        if (l==null)
+            throw new IllegalArgumentException("Not a libzfs handle: "+h);
+        return l;
+    }
+
+    private Zfs zfs(zfs_handle_t h) {
+        Zfs z = handles.get(h, Zfs.class);
+        if (z==null)
+            throw new IllegalArgumentException("Not an open dataset handle: "+h);
+        return z;
+    }
+
+    private Zpool zpool(zpool_handle_t h) {
+        Zpool z = handles.get(h, Zpool.class);
+        if (z==null)
+            throw new IllegalArgumentException("Not an open pool handle: "+h);
+        return z;
+    }
+
+    private zfs_handle_t open(Lib lib, Dataset d) {
+        return handles.register(new zfs_handle_t(), new Zfs(lib, d));
+    }
+
+    private static int check(Lib lib, ErrorCode e, String what) {
+        if (e==null)
+            return 0;
+        return lib.fail(e, what+": "+describe(e));
+    }
+
+    /**
+     * Returns a list that the caller doesn't own, like those that libzfs keeps in its handles.
+     */
+    private static nvlist_t borrow(nvlist_t l) {
+        nvlist_t r = new nvlist_t();
+        r.setPointer(l.getPointer());
+        return r;
+    }
+
+    private static Map<String,String> toStringMap(nvlist_t l) {
+        Map<String,String> r = new LinkedHashMap<String,String>();
+        for (Map.Entry<String,Object> e : l.toMap().entrySet())
+            r.put(e.getKey(), String.valueOf(e.getValue()));
+        return r;
+    }
+
+    private static String describe(ErrorCode e) {
+        switch (e) {
+        case EZFS_NOENT:        return "dataset does not exist";
+        case EZFS_EXISTS:       return "dataset already exists";
+        case EZFS_BADTYPE:      return "operation not applicable to datasets of this type";
+        case EZFS_BADPROP:      return "invalid property value";
+        case EZFS_PROPREADONLY: return "property is read-only";
+        case EZFS_INVALIDNAME:  return "invalid name";
+        default:                return e.name();
+        }
+    }
+
+    /*
+     * Library
+     */
+
+    public libzfs_handle_t libzfs_init() {
+        Lib l = new Lib();
+        libzfs_handle_t h = handles.register(new libzfs_handle_t(), l);
+        l.self = h.getPointer();
+        return h;
+    }
+
+    public void libzfs_fini(libzfs_handle_t h) {
+        handles.release(h);
+    }
+
+    public int libzfs_errno(libzfs_handle_t h) {
+        ErrorCode e = lib(h).errno;
+        return e==null ? 0 : e.code();
+    }
+
+    public String libzfs_error_description(libzfs_handle_t h) {
+        return lib(h).description;
+    }
+
+    public String libzfs_error_action(libzfs_handle_t h) {
+        return lib(h).description;
+    }
+
+    public void libzfs_print_on_error(libzfs_handle_t h, boolean flag) {
+    }
+
+    public void libzfs_mnttab_init(libzfs_handle_t h) {
+    }
+
+    public void libzfs_mnttab_fini(libzfs_handle_t h) {
+    }
+
+    public void libzfs_mnttab_cache(libzfs_handle_t h, boolean flag) {
+    }
+
+    public void libzfs_mnttab_add(libzfs_handle_t h, String special, String mountp, String mntopts) {
+    }
+
+    public void libzfs_mnttab_remove(libzfs_handle_t h, String fsname) {
+    }
+
+    public libzfs_handle_t zfs_get_handle(zfs_handle_t h) {
+        libzfs_handle_t r = new libzfs_handle_t();
+        r.setPointer(zfs(h).lib.self);
+        return r;
+    }
+
+    public libzfs_handle_t zpool_get_handle(zpool_handle_t h) {
+        libzfs_handle_t r = new libzfs_handle_t();
+        r.setPointer(zpool(h).lib.self);
+        return r;
+    }
+
+    /*
+     * Datasets
+     */
+
+    public zfs_handle_t zfs_open(libzfs_handle_t lib, String name, int typeMask) {
+        Lib l = lib(lib);
+        Dataset d = zfs.lookup(name);
+        if (d==null || (d.type&typeMask)==0) {
+            l.fail(ErrorCode.EZFS_NOENT, "cannot open '"+name+"': "+describe(ErrorCode.EZFS_NOENT));
+            return null;
+        }
+        return open(l, d);
+    }
+
+    public void zfs_close(zfs_handle_t h) {
+        Zfs z = handles.get(h, Zfs.class);
+        if (z==null)    return;
+        dropUserProps(z);
+        handles.release(h);
+    }
+
+    public int zfs_get_type(zfs_handle_t h) {
+        return zfs(h).dataset.type;
+    }
+
+    public String zfs_get_name(zfs_handle_t h) {
+        return zfs(h).dataset.name;
+    }
+
+    public boolean zfs_dataset_exists(libzfs_handle_t lib, String name, int type) {
+        Dataset d = zfs.lookup(name);
+        return d!=null && (d.type&type)!=0;
+    }
+
+    public int zfs_name_to_prop(String name) {
+        if (name.equals("guid"))
+            return ZFS_PROP_GUID;
+        for (zfs_prop_t p : zfs_prop_t.values())
+            if (SimulatedZFS.propName(p).equals(name))
+                return p.ordinal();
+        return -1;
+    }
+
+    private static zfs_prop_t prop(int prop) {
+        zfs_prop_t[] values = zfs_prop_t.values();
+        return prop>=0 && prop<values.length ? values[prop] : null;
+    }
+
+    public int zfs_prop_get(zfs_handle_t h, NativeLong prop, Pointer buf, int len,
+                            IntByReference src, char[] statbuf, NativeLong statlen, boolean literal) {
+        Zfs z = zfs(h);
+        zfs_prop_t p = prop(prop.intValue());
+        String v = p==null ? null : zfs.getProperty(z.dataset, p);
+        if (v==null)
+            return -1;
+        byte[] b = v.getBytes();
+        if (b.length>=len)
+            return -1;
+        buf.write(0, b, 0, b.length);
+        buf.setByte(b.length, (byte)0);
+        if (src!=null)
+            src.setValue(ZPROP_SRC_NONE);
+        return 0;
+    }
+
+    public long zfs_prop_get_int(zfs_handle_t h, zfs_prop_t prop) {
+        return zfs_prop_get_int(h, prop.ordinal());
+    }
+
+    public long zfs_prop_get_int(zfs_handle_t h, int prop) {
+        Zfs z = zfs(h);
+        if (prop==ZFS_PROP_GUID)
+            return z.dataset.guid;
+        zfs_prop_t p = prop(prop);
+        return p==null ? 0 : zfs.getNumeric(z.dataset, p);
+    }
+
+    public int zfs_prop_get_numeric(zfs_handle_t h, zfs_prop_t prop, LongByReference r,
+                                    IntByReference src, char[] statbuf, NativeLong statlen) {
+        return zfs_prop_get_numeric(h, prop.ordinal(), r, src, statbuf, statlen);
+    }
+
+    public int zfs_prop_get_numeric(zfs_handle_t h, int prop, LongByReference r,
+                                    IntByReference src, char[] statbuf, NativeLong statlen) {
+        if (prop(prop)==null && prop!=ZFS_PROP_GUID)
+            return -1;
+        r.setValue(zfs_prop_get_int(h, prop));
+        return 0;
+    }
+
+    public int zfs_prop_set(zfs_handle_t h, String name, String value) {
+        Zfs z = zfs(h);
+        dropUserProps(z);   // libzfs refreshes the properties of the handle
+        return check(z.lib, zfs.setProperty(z.dataset, name, value), "cannot set property for '"+z.dataset.name+"'");
+    }
+
+    public int zfs_prop_inherit(zfs_handle_t h, String name) {
+        Zfs z = zfs(h);
+        dropUserProps(z);
+        return check(z.lib, zfs.inheritProperty(z.dataset, name), "cannot inherit "+name+" for '"+z.dataset.name+"'");
+    }
+
+    private static void dropUserProps(Zfs z) {
+        synchronized (z) {
+            if (z.userProps!=null)
+                z.userProps.dispose();
+            z.userProps = null;
+        }
+    }
+
+    public nvlist_t zfs_get_user_props(zfs_handle_t h) {
+        Zfs z = zfs(h);
+        synchronized (z) {
+            if (z.userProps==null) {
+                nvlist_t r = nvlist_t.allocMap();
+                for (Map.Entry<String,String[]> e : zfs.getUserProperties(z.dataset).entrySet()) {
+                    nvlist_t p = nvlist_t.allocMap();
+                    p.put("value", e.getValue()[0]);
+                    p.put("source", e.getValue()[1]);
+                    r.put(e.getKey(), p);
+                    p.dispose();
+                }
+                z.userProps = r;
+            }
+            return borrow(z.userProps);
+        }
+    }
+
+    /**
+     * Only keeps track of the state. Nothing shows up in the mount table.
+     */
+    public boolean zfs_is_mounted(zfs_handle_t h, PointerByReference where) {
+        return zfs(h).dataset.mounted;
+    }
+
+    public int zfs_mount(zfs_handle_t h, String options, int flags) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.setMounted(z.dataset, true), "cannot mount '"+z.dataset.name+"'");
+    }
+
+    public int zfs_unmount(zfs_handle_t h, String mountpoint, int flags) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.setMounted(z.dataset, false), "cannot unmount '"+z.dataset.name+"'");
+    }
+
+    public boolean zfs_is_shared(zfs_handle_t h) {
+        return zfs(h).dataset.shared;
+    }
+
+    public int zfs_share(zfs_handle_t h) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.setShared(z.dataset, true), "cannot share '"+z.dataset.name+"'");
+    }
+
+    public int zfs_unshare(zfs_handle_t h) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.setShared(z.dataset, false), "cannot unshare '"+z.dataset.name+"'");
+    }
+
+    /*
+     * Iteration
+     */
+
+    /**
+     * Calls back the way JNA does, which reports an exception thrown by the callback
+     * and returns 0 to the native code in its place.
+     */
+    private static int call(libzfs.zfs_iter_f callback, zfs_handle_t h, Pointer arg) {
+        try {
+            return callback.callback(h, arg);
+        } catch (Throwable t) {
+            Native.getCallbackExceptionHandler().uncaughtException(callback, t);
+            return 0;
+        }
+    }
+
+    private static int call(libzfs.zpool_iter_f callback, zpool_handle_t h, Pointer arg) {
+        try {
+            return callback.callback(h, arg);
+        } catch (Throwable t) {
+            Native.getCallbackExceptionHandler().uncaughtException(callback, t);
+            return 0;
+        }
+    }
+
+    private int iterate(Lib lib, List<Dataset> list, libzfs.zfs_iter_f callback, Pointer arg) {
+        for (Dataset d : list) {
+            int r = call(callback, open(lib, d), arg);
+            if (r!=0)
+                return r;
+        }
+        return 0;
+    }
+
+    public int zfs_iter_root(libzfs_handle_t lib, libzfs.zfs_iter_f callback, Pointer arg) {
+        Lib l = lib(lib);
+        for (Pool p : zfs.getPools()) {
+            int r = call(callback, open(l, p.root), arg);
+            if (r!=0)
+                return r;
+        }
+        return 0;
+    }
+
+    public int zfs_iter_children(zfs_handle_t h, libzfs.zfs_iter_f callback, Pointer arg) {
+        int r = zfs_iter_filesystems(h, callback, arg);
+        if (r!=0)
+            return r;
+        return zfs_iter_snapshots(h, false, callback, arg);
+    }
+
+    public int zfs_iter_filesystems(zfs_handle_t h, libzfs.zfs_iter_f callback, Pointer arg) {
+        Zfs z = zfs(h);
+        return iterate(z.lib, zfs.getChildren(z.dataset), callback, arg);
+    }
+
+    public int zfs_iter_snapshots(zfs_handle_t h, boolean simple, libzfs.zfs_iter_f callback, Pointer arg) {
+        Zfs z = zfs(h);
+        return iterate(z.lib, zfs.getSnapshots(z.dataset), callback, arg);
+    }
+
+    /*
+     * Changes
+     */
+
+    public int zfs_create(libzfs_handle_t lib, String name, int type, nvlist_t props) {
+        Map<String,String> p = props==null ? null : toStringMap(props);
+        return check(lib(lib), zfs.create(name, type, p), "cannot create '"+name+"'");
+    }
+
+    public int zfs_create_ancestors(libzfs_handle_t lib, String name) {
+        return check(lib(lib), zfs.createAncestors(name), "cannot create ancestors of '"+name+"'");
+    }
+
+    public int zfs_snapshot(libzfs_handle_t lib, String name, boolean recursive, nvlist_t props) {
+        return check(lib(lib), zfs.snapshot(name, recursive), "cannot create snapshot '"+name+"'");
+    }
+
+    public int zfs_destroy(zfs_handle_t h, boolean defer) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.destroy(z.dataset), "cannot destroy '"+z.dataset.name+"'");
+    }
+
+    public int zfs_destroy_snaps(zfs_handle_t h, String snapshot, boolean defer) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.destroySnapshots(z.dataset, snapshot), "cannot destroy '"+z.dataset.name+"@"+snapshot+"'");
+    }
+
+    public int zfs_destroy_snaps_nvl(libzfs_handle_t lib, nvlist_t snaps, boolean defer) {
+        return check(lib(lib), zfs.destroySnapshots(snaps.toMap().keySet()), "cannot destroy snapshots");
+    }
+
+    public int zfs_rename(zfs_handle_t h, String name, boolean recursive) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.rename(z.dataset, name, recursive), "cannot rename '"+z.dataset.name+"'");
+    }
+
+    public int zfs_rollback(zfs_handle_t fs, zfs_handle_t snapshot, boolean force) {
+        Zfs z = zfs(fs);
+        return check(z.lib, zfs.rollback(z.dataset, zfs(snapshot).dataset), "cannot rollback '"+z.dataset.name+"'");
+    }
+
+    public int zfs_clone(zfs_handle_t h, String name, nvlist_t props) {
+        Zfs z = zfs(h);
+        return check(z.lib, zfs.clone(z.dataset, name), "cannot create '"+name+"'");
+    }
+
+    /*
+     * Delegation isn't simulated, so permissions are accepted and ignored.
+     */
+
+    public int zfs_build_perms(zfs_handle_t h, String who, String perms, int whoType, int inherit, PtrByReference<nvlist_t> result) {
+        zfs(h);
+        if (LIBNVPAIR.nvlist_alloc(result, NV_UNIQUE_NAME, 0)!=0)
+            return -1;
+        // left to the caller to free, as with the real library
+        result.getValue(nvlist_t.class).put(who==null ? "everyone" : who, perms);
+        return 0;
+    }
+
+    public int zfs_perm_set(zfs_handle_t h, nvlist_t perms) {
+        zfs(h);
+        return 0;
+    }
+
+    public int zfs_perm_remove(zfs_handle_t h, nvlist_t perms) {
+        zfs(h);
+        return 0;
+    }
+
+    /*
+     * Streams
+     */
+
+    public int zfs_send(zfs_handle_t h, String from, String to, boolean replicate, boolean doall,
+                        boolean fromorigin, boolean verbose, int fd) {
+        Zfs z = zfs(h);
+        StringBuilder stream = new StringBuilder();
+        int r = check(z.lib, zfs.send(z.dataset, from, to, replicate, doall, stream), "cannot send '"+z.dataset.name+"@"+to+"'");
+        if (r!=0)
+            return r;
+        byte[] b = bytes(stream.toString());
+        ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+        buf.put(b).flip();
+        while (buf.hasRemaining()) {
+            int n = LIBC.write(fd, buf.slice(), new NativeLong(buf.remaining())).intValue();
+            if (n<0)
+                return z.lib.fail(ErrorCode.EZFS_BADBACKUP, "cannot send '"+z.dataset.name+"': write failed");
+            buf.position(buf.position()+n);
+        }
+        return 0;
+    }
+
+    public int zfs_receive(libzfs_handle_t lib, String name, int flags, int fd, avl_tree_t streamAvl) {
+        Lib l = lib(lib);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+        byte[] b = new byte[buf.capacity()];
+        int n;
+        while ((n=LIBC.read(fd, buf, new NativeLong(buf.capacity())).intValue())>0) {
+            buf.get(b,0,n).clear();
+            stream.write(b,0,n);
+        }
+        if (n<0)
+            return l.fail(ErrorCode.EZFS_BADSTREAM, "cannot receive '"+name+"': read failed");
+        try {
+            return check(l, zfs.receive(name, stream.toString("UTF-8"),
+                    isSet(flags, recvflags_t.encode(false, true, false, false, false)),
+                    isSet(flags, recvflags_t.encode(false, false, true, false, false)),
+                    isSet(flags, recvflags_t.encode(false, false, false, true, false))), "cannot receive '"+name+"'");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean isSet(int flags, int flag) {
+        return (flags&flag)!=0;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /*
+     * Pools
+     */
+
+    public zpool_handle_t zpool_open(libzfs_handle_t lib, String name) {
+        Lib l = lib(lib);
+        Pool p = zfs.getPool(name);
+        if (p==null) {
+            l.fail(ErrorCode.EZFS_NOENT, "cannot open '"+name+"': no such pool");
+            return null;
+        }
+        return handles.register(new zpool_handle_t(), new Zpool(l, p));
+    }
+
+    public zpool_handle_t zpool_open_canfail(libzfs_handle_t lib, String name) {
+        return zpool_open(lib, name);
+    }
+
+    public void zpool_close(zpool_handle_t h) {
+        Zpool z = handles.get(h, Zpool.class);
+        if (z==null)    return;
+        if (z.config!=null)
+            z.config.dispose();
+        handles.release(h);
+    }
+
+    public int zpool_refresh_stats(zpool_handle_t h, BooleanByReference missing) {
+        Zpool z = zpool(h);
+        boolean gone = zfs.getPool(z.pool.name)!=z.pool;
+        if (missing!=null)
+            missing.setValue(gone);
+        if (gone)
+            return 0;
+        synchronized (z) {
+            if (z.config!=null)
+                z.config.dispose();
+            z.config = config(z.pool);
+        }
+        return 0;
+    }
+
+    public nvlist_t zpool_get_config(zpool_handle_t h, PointerByReference oldconfig) {
+        Zpool z = zpool(h);
+        synchronized (z) {
+            if (z.config==null)
+                z.config = config(z.pool);
+            return borrow(z.config);
+        }
+    }
+
+    /**
+     * Builds the configuration of a pool of one two-way mirror, with I/O statistics as of now.
+     *
+     * <p>
+     * The pool reads 10,000 and writes 4,000 blocks of 8KB per second since it was created.
+     * Reads are split between the disks, and writes go to both.
+     */
+    private nvlist_t config(Pool p) {
+        long elapsed = (System.nanoTime()-p.created)/1000;   // microseconds
+        long reads = elapsed/100, writes = elapsed/250;
+        long alloc = zfs.getNumeric(p.root, zfs_prop_t.ZFS_PROP_USED);
+
+        nvlist_t config = nvlist_t.allocMap();
+        config.put("name", p.name);
+        config.putUInt64("pool_guid", p.guid);
+
+        // the lists are copied when added
+        nvlist_t[] disks = new nvlist_t[2];
+        for (int i=0; i<2; i++) {
+            disks[i] = vdev("disk", p.guid+2+i, i, alloc, p.size, elapsed, (reads+1-i)/2, writes);
+            disks[i].put("path", "/dev/dsk/c0t"+i+"d0s0");
+        }
+        nvlist_t mirror = vdev("mirror", p.guid+1, 0, alloc, p.size, elapsed, reads, writes);
+        mirror.put("children", disks);
+        nvlist_t root = vdev("root", p.guid, 0, alloc, p.size, elapsed, reads, writes);
+        root.put("children", new nvlist_t[]{mirror});
+        config.put("vdev_tree", root);
+        for (nvlist_t l : disks)
+            l.dispose();
+        mirror.dispose();
+        root.dispose();
+        return config;
+    }
+
+    private nvlist_t vdev(String type, long guid, int id, long alloc, long space, long elapsed, long reads, long writes) {
+        nvlist_t v = nvlist_t.allocMap();
+        v.put("type", type);
+        v.putUInt64("id", id);
+        v.putUInt64("guid", guid);
+        // vdev_stat_t with vs_esize, up to vs_checksum_errors, then vs_self_healed, vs_scan_removing and vs_scan_processed
+        long[] stats = new long[26];
+        stats[0] = elapsed*1000;
+        stats[1] = 7;   // VDEV_STATE_HEALTHY
+        stats[3] = alloc;
+        stats[4] = space;
+        stats[5] = space;
+        stats[8+1] = reads;
+        stats[8+2] = writes;
+        stats[14+1] = reads*8192;
+        stats[14+2] = writes*8192;
+        v.putUInt64Array("vdev_stats", stats);
+        return v;
+    }
+
+    public int zpool_get_status(zpool_handle_t h, PointerByReference msgid) {
+        zpool(h);
+        return ZPoolStatus.ZPOOL_STATUS_OK.ordinal();
+    }
+
+    /**
+     * Unmounts all the file systems of the pool.
+     */
+    public int zpool_disable_datasets(zpool_handle_t h, boolean force) {
+        unmountAll(zpool(h).pool.root);
+        return 0;
+    }
+
+    private void unmountAll(Dataset d) {
+        for (Dataset c : zfs.getChildren(d))
+            unmountAll(c);
+        zfs.setMounted(d, false);
+    }
+
+    public String zpool_get_name(zpool_handle_t h) {
+        return zpool(h).pool.name;
+    }
+
+    public int zpool_iter(libzfs_handle_t lib, libzfs.zpool_iter_f callback, Pointer arg) {
+        Lib l = lib(lib);
+        for (Pool p : zfs.getPools()) {
+            int r = call(callback, handles.register(new zpool_handle_t(), new Zpool(l, p)), arg);
+            if (r!=0)
+                return r;
+        }
+        return 0;
+    }
+
+    private long poolInt(Pool p, zpool_prop_t prop) {
+        long used = zfs.getNumeric(p.root, zfs_prop_t.ZFS_PROP_USED);
+        switch (prop) {
+        case ZPOOL_PROP_SIZE:       return p.size;
+        case ZPOOL_PROP_USED:       return used;
+        case ZPOOL_PROP_AVAILABLE:  return Math.max(0, p.size-used);
+        case ZPOOL_PROP_CAPACITY:   return p.size==0 ? 0 : used*100/p.size;
+        case ZPOOL_PROP_GUID:       return p.guid;
+        case ZPOOL_PROP_VERSION:    return 10;
+        case ZPOOL_PROP_DELEGATION: return 1;
+        default:                    return 0;
+        }
+    }
+
+    private String poolString(Pool p, zpool_prop_t prop) {
+        switch (prop) {
+        case ZPOOL_PROP_NAME:       return p.name;
+        case ZPOOL_PROP_HEALTH:     return "ONLINE";
+        case ZPOOL_PROP_CAPACITY:   return poolInt(p, prop)+"%";
+        case ZPOOL_PROP_DELEGATION: return "on";
+        case ZPOOL_PROP_AUTOREPLACE:return "off";
+        case ZPOOL_PROP_FAILUREMODE:return "wait";
+        case ZPOOL_PROP_ALTROOT:
+        case ZPOOL_PROP_BOOTFS:
+        case ZPOOL_PROP_CACHEFILE:  return "-";
+        default:                    return String.valueOf(poolInt(p, prop));
+        }
+    }
+
+    public int zpool_get_prop(zpool_handle_t h, NativeLong prop, Pointer buf, NativeLong len, EnumByReference<?> src) {
+        zpool_prop_t[] values = zpool_prop_t.values();
+        int i = prop.intValue();
+        if (i<0 || i>=values.length-1)
+            return -1;
+        byte[] b = poolString(zpool(h).pool, values[i]).getBytes();
+        if (b.length>=len.longValue())
+            return -1;
+        buf.write(0, b, 0, b.length);
+        buf.setByte(b.length, (byte)0);
+        if (src!=null)
+            src.getPointer().setInt(0, ZPROP_SRC_NONE);
+        return 0;
+    }
+
+    public long zpool_get_prop_int(zpool_handle_t h, zpool_prop_t prop, EnumByReference<?> src) {
+        if (src!=null)
+            src.getPointer().setInt(0, ZPROP_SRC_NONE);
+        return poolInt(zpool(h).pool, prop);
+    }
+
+    public long zpool_get_prop_int(zpool_handle_t h, int prop, IntByReference src) {
+        zpool_prop_t[] values = zpool_prop_t.values();
+        if (prop<0 || prop>=values.length-1)
+            return 0;
+        if (src!=null)
+            src.setValue(ZPROP_SRC_NONE);
+        return poolInt(zpool(h).pool, values[prop]);
+    }
+
+    public int zpool_name_to_prop(String name) {
+        zpool_prop_t[] values = zpool_prop_t.values();
+        for (int i=0; i<values.length-1; i++)
+            if (values[i].name().substring("ZPOOL_PROP_".length()).toLowerCase(Locale.ENGLISH).equals(name))
+                return i;
+        return -1;
+    }
+}
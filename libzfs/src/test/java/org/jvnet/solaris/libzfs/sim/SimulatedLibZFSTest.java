@@ -0,0 +1,68 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import org.jvnet.solaris.libzfs.LibZFSTest;
+import org.jvnet.solaris.libzfs.ZFSType;
+
+/**
+ * Runs {@link LibZFSTest} against the simulated libzfs, so that it runs on a system without ZFS.
+ *
+ * <p>
+ * This needs its own JVM, see the "simulated-test" execution in the POM.
+ */
+public class SimulatedLibZFSTest extends LibZFSTest {
+    static {
+        SimulatedBackend.install();
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        SimulatedZFS zfs = SimulatedZFS.get();
+        synchronized (zfs) {
+            if (zfs.getPool("rpool")==null)
+                zfs.createPool("rpool", 1L<<40);
+            if (!zfs.exists("rpool/kohsuke"))
+                zfs.create("rpool/kohsuke", ZFSType.FILESYSTEM);
+        }
+        super.setUp();
+    }
+
+    /*
+     * The simulation only keeps track of what's mounted, without adding to the mount table,
+     * which is where the mount index looks.
+     */
+
+    @Override
+    public void testRpoolMount() {
+    }
+
+    @Override
+    public void testMountIndex() {
+    }
+
+    /**
+     * libzfs_core isn't simulated.
+     */
+    @Override
+    public void testCore() {
+    }
+}
@@ -0,0 +1,979 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jvnet.solaris.libzfs.ErrorCode;
+import org.jvnet.solaris.libzfs.ZFSType;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+
+/**
+ * The pools and datasets that {@link SimulatedBackend} makes libzfs report.
+ *
+ * <p>
+ * {@link SimulatedBackend#install()} makes the binding use the one of {@link #get()}, and
+ * {@link SimulatedBackend#libzfs(SimulatedZFS)} gives a library its own. The methods here set up the state directly,
+ * while the high-level API sees it through the simulated libzfs, and changes it the same way.
+ * All the methods are thread-safe.
+ */
+public final class SimulatedZFS {
+    private static final SimulatedZFS INSTANCE = new SimulatedZFS();
+
+    /**
+     * Gets the state behind the simulated libzfs that {@link SimulatedBackend#install()} installs.
+     */
+    public static SimulatedZFS get() {
+        return INSTANCE;
+    }
+
+    private final Map<String,Dataset> datasets = new HashMap<String,Dataset>();
+    private final Map<String,Pool> pools = new TreeMap<String,Pool>();
+    private long txg = 1;
+    private volatile long latency;
+    private final Map<String,Long> latencies = new ConcurrentHashMap<String,Long>();
+
+    public SimulatedZFS() {
+    }
+
+    /**
+     * A simulated pool.
+     */
+    /*package*/ static final class Pool {
+        final String name;
+        final long guid;
+        /**
+         * {@link System#nanoTime()} when the pool was created, which its I/O statistics grow from.
+         */
+        final long created = System.nanoTime();
+        long size;
+        Dataset root;
+
+        Pool(String name, long size) {
+            this.name = name;
+            this.size = size;
+            this.guid = name.hashCode()*0x9E3779B97F4A7C15L;
+        }
+    }
+
+    /**
+     * A simulated file system, volume, or snapshot.
+     */
+    /*package*/ static final class Dataset {
+        /**
+         * Changes when the dataset or one of its ancestors is renamed.
+         */
+        volatile String name;
+        final int type;
+        final Pool pool;
+        Dataset parent;
+        final long createTxg, creation;
+        /**
+         * Identifies a snapshot across send and receive.
+         */
+        long guid;
+        long used, referenced, quota, reservation, volsize;
+        /**
+         * File systems and volumes directly below this one, in the order they were created. Null if none.
+         */
+        List<Dataset> children;
+        /**
+         * Snapshots of this dataset, oldest first. Null if none.
+         */
+        List<Dataset> snapshots;
+        /**
+         * Native properties set on this dataset, by their names like "compression". Null if none.
+         */
+        Map<String,String> props;
+        /**
+         * User properties set on this dataset. Null if none.
+         */
+        Map<String,String> userProps;
+        boolean mounted, shared;
+        boolean destroyed;
+
+        Dataset(String name, int type, Pool pool, Dataset parent, long createTxg) {
+            this.name = name;
+            this.type = type;
+            this.pool = pool;
+            this.parent = parent;
+            this.createTxg = createTxg;
+            this.creation = System.currentTimeMillis()/1000;
+            this.guid = name.hashCode()*0x9E3779B97F4A7C15L+createTxg;
+        }
+
+        boolean isSnapshot() {
+            return type==ZFSType.SNAPSHOT.code;
+        }
+    }
+
+    /**
+     * Creates a pool with its top-level file system.
+     *
+     * @param size
+     *      Capacity in bytes, which is what the available space is computed from.
+     */
+    public synchronized void createPool(String name, long size) {
+        if (pools.containsKey(name))
+            throw new IllegalArgumentException(name+" already exists");
+        Pool p = new Pool(name, size);
+        p.root = new Dataset(name, ZFSType.FILESYSTEM.code, p, null, txg++);
+        pools.put(name, p);
+        datasets.put(name, p.root);
+    }
+
+    /**
+     * Creates a file system or a volume, along with missing ancestors, or a snapshot.
+     */
+    public synchronized void create(String name, ZFSType type) {
+        if (type==ZFSType.SNAPSHOT) {
+            check(name, snapshot(name, false));
+        } else {
+            createAncestors(name);
+            check(name, create(name, type.code, null));
+        }
+    }
+
+    /**
+     * Sets a native property, like "compression", or a user property, like "com.example:owner".
+     * Numeric values of the space properties are in bytes.
+     */
+    public synchronized void setProperty(String name, String prop, String value) {
+        check(name, setProperty(lookup(name), prop, value));
+    }
+
+    /**
+     * Sets the space accounting of a dataset, which the simulation doesn't do by itself.
+     * The used space of the ancestors is adjusted by the difference.
+     */
+    public synchronized void setSpace(String name, long used, long referenced) {
+        Dataset d = lookup(name);
+        if (d==null)
+            throw new IllegalArgumentException("No such dataset: "+name);
+        addUsed(d.parent, used-d.used);
+        d.used = used;
+        d.referenced = referenced;
+    }
+
+    /**
+     * Adds to the used space of the given dataset and its ancestors.
+     */
+    private static void addUsed(Dataset d, long delta) {
+        for (; d!=null; d=d.parent)
+            d.used += delta;
+    }
+
+    /**
+     * Generates a tree of file systems below an existing file system, for scale tests.
+     *
+     * <p>
+     * Each generated file system has {@code fanout} children, down to {@code depth} levels below the parent,
+     * and the snapshots "s0", "s1", ... up to {@code snapshots}, taken as if by recursive snapshots of the parent.
+     * So fanout 10, depth 5 and 8 snapshots makes 111,110 file systems and 888,880 snapshots.
+     *
+     * <p>
+     * The space accounting is filled in with random sizes, from the given seed so that runs can be repeated,
+     * and adds up like in a real pool: the used space of a file system is what it references,
+     * plus what its snapshots and its children use.
+     *
+     * @return
+     *      The number of datasets created, snapshots included.
+     */
+    public synchronized int generate(String parent, int fanout, int depth, int snapshots, long seed) {
+        Dataset p = lookup(parent);
+        if (p==null || p.type!=ZFSType.FILESYSTEM.code)
+            throw new IllegalArgumentException("No such file system: "+parent);
+        long[] snapTxg = new long[snapshots];
+        long firstTxg = txg++;
+        for (int i=0; i<snapshots; i++)
+            snapTxg[i] = txg++;
+        Random random = new Random(seed);
+        long before = p.used;
+        int n = generate(p, fanout, depth, firstTxg, snapTxg, random);
+        addUsed(p.parent, p.used-before);
+        return n;
+    }
+
+    private int generate(Dataset parent, int fanout, int depth, long createTxg, long[] snapTxg, Random random) {
+        if (depth==0)
+            return 0;
+        if (parent.children==null)
+            parent.children = new ArrayList<Dataset>(fanout);
+        int n = 0;
+        for (int i=0; i<fanout; i++) {
+            String name = parent.name+"/f"+i;
+            if (datasets.containsKey(name))
+                throw new IllegalArgumentException(name+" already exists");
+            Dataset d = new Dataset(name, ZFSType.FILESYSTEM.code, parent.pool, parent, createTxg);
+            d.referenced = random.nextInt(1<<30);
+            d.used = d.referenced;
+            parent.children.add(d);
+            datasets.put(name, d);
+            n++;
+
+            if (snapTxg.length>0)
+                d.snapshots = new ArrayList<Dataset>(snapTxg.length);
+            for (int j=0; j<snapTxg.length; j++) {
+                Dataset s = new Dataset(name+"@s"+j, ZFSType.SNAPSHOT.code, d.pool, d, snapTxg[j]);
+                s.referenced = d.referenced;
+                s.used = random.nextInt(1+(int)(d.referenced/4));
+                d.used += s.used;
+                d.snapshots.add(s);
+                datasets.put(s.name, s);
+                n++;
+            }
+
+            n += generate(d, fanout, depth-1, createTxg, snapTxg, random);
+            parent.used += d.used;
+        }
+        return n;
+    }
+    public synchronized boolean exists(String name) {
+        return lookup(name)!=null;
+    }
+
+    /**
+     * Number of datasets, including snapshots and the top-level file systems of pools.
+     */
+    public synchronized int size() {
+        return datasets.size();
+    }
+
+    /**
+     * Removes all the pools. Handles that are still open keep working,
+     * but report the datasets as they were.
+     */
+    public synchronized void clear() {
+        for (Dataset d : datasets.values())
+            d.destroyed = true;
+        datasets.clear();
+        pools.clear();
+    }
+
+    /**
+     * Makes every call to the simulated libraries take at least the given time, to approximate the cost
+     * of the ioctls behind them. 0, the default, adds nothing.
+     */
+    public void setLatency(long nanos) {
+        latency = nanos;
+    }
+
+    /**
+     * Makes calls to the given function, like "zfs_open", take at least the given time,
+     * instead of what {@link #setLatency(long)} sets. A negative time removes the override.
+     */
+    public void setLatency(String function, long nanos) {
+        if (nanos<0)
+            latencies.remove(function);
+        else
+            latencies.put(function, nanos);
+    }
+
+    /*package*/ long getLatency(String function) {
+        if (!latencies.isEmpty()) {
+            Long l = latencies.get(function);
+            if (l!=null)
+                return l;
+        }
+        return latency;
+    }
+
+    /**
+     * Waits for the given time. Short waits spin, as sleeping is far less precise than the latencies simulated.
+     */
+    /*package*/ static void delay(long nanos) {
+        if (nanos<=0)
+            return;
+        long end = System.nanoTime()+nanos;
+        if (nanos>=1000000)
+            LockSupport.parkNanos(nanos);
+        while (System.nanoTime()-end<0)
+            ;   // spin
+    }
+
+    private static void check(String name, ErrorCode e) {
+        if (e!=null)
+            throw new IllegalArgumentException("Failed to change "+name+": "+e);
+    }
+
+    /*
+     * What the simulated libzfs calls. Failures are reported as the libzfs error code, null being success.
+     */
+
+    /*package*/ synchronized Dataset lookup(String name) {
+        return datasets.get(name);
+    }
+
+    /*package*/ synchronized Pool getPool(String name) {
+        return pools.get(name);
+    }
+
+    /*package*/ synchronized List<Pool> getPools() {
+        return new ArrayList<Pool>(pools.values());
+    }
+
+    /*package*/ synchronized List<Dataset> getChildren(Dataset d) {
+        return d.children==null ? Collections.<Dataset>emptyList() : new ArrayList<Dataset>(d.children);
+    }
+
+    /*package*/ synchronized List<Dataset> getSnapshots(Dataset d) {
+        return d.snapshots==null ? Collections.<Dataset>emptyList() : new ArrayList<Dataset>(d.snapshots);
+    }
+
+    /*package*/ synchronized ErrorCode create(String name, int type, Map<String,String> props) {
+        if (name.indexOf('@')>=0 || (type!=ZFSType.FILESYSTEM.code && type!=ZFSType.VOLUME.code))
+            return ErrorCode.EZFS_BADTYPE;
+        if (datasets.containsKey(name))
+            return ErrorCode.EZFS_EXISTS;
+        int idx = name.lastIndexOf('/');
+        if (idx<0)
+            return ErrorCode.EZFS_INVALIDNAME;
+        Dataset parent = datasets.get(name.substring(0,idx));
+        if (parent==null)
+            return ErrorCode.EZFS_NOENT;
+        if (parent.type!=ZFSType.FILESYSTEM.code)
+            return ErrorCode.EZFS_BADTYPE;
+
+        Dataset d = new Dataset(name, type, parent.pool, parent, txg++);
+        if (props!=null) {
+            for (Map.Entry<String,String> e : props.entrySet()) {
+                ErrorCode r = setProperty(d, e.getKey(), e.getValue());
+                if (r!=null)
+                    return r;
+            }
+        }
+        if (parent.children==null)
+            parent.children = new ArrayList<Dataset>(4);
+        parent.children.add(d);
+        datasets.put(name, d);
+        return null;
+    }
+
+    /*package*/ synchronized ErrorCode createAncestors(String name) {
+        List<String> missing = new ArrayList<String>();
+        for (int idx=name.lastIndexOf('/'); idx>0; idx=name.lastIndexOf('/',idx-1)) {
+            String a = name.substring(0,idx);
+            if (datasets.containsKey(a))
+                break;
+            missing.add(a);
+        }
+        for (int i=missing.size()-1; i>=0; i--) {
+            ErrorCode r = create(missing.get(i), ZFSType.FILESYSTEM.code, null);
+            if (r!=null)
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * @param name
+     *      "dataset@snapshot".
+     * @param recursive
+     *      Also snapshot all the descendants of the dataset.
+     */
+    /*package*/ synchronized ErrorCode snapshot(String name, boolean recursive) {
+        int idx = name.indexOf('@');
+        if (idx<=0 || idx==name.length()-1)
+            return ErrorCode.EZFS_INVALIDNAME;
+        Dataset fs = datasets.get(name.substring(0,idx));
+        if (fs==null || fs.isSnapshot())
+            return ErrorCode.EZFS_NOENT;
+        String snap = name.substring(idx);
+        long t = txg++;     // all snapshots of a recursive snapshot are taken in the same txg
+        List<Dataset> targets = new ArrayList<Dataset>();
+        collect(fs, recursive, targets);
+        for (Dataset d : targets) {
+            if (datasets.containsKey(d.name+snap))
+                return ErrorCode.EZFS_EXISTS;
+        }
+        for (Dataset d : targets) {
+            Dataset s = new Dataset(d.name+snap, ZFSType.SNAPSHOT.code, d.pool, d, t);
+            s.used = 0;
+            s.referenced = d.referenced;
+            if (d.snapshots==null)
+                d.snapshots = new ArrayList<Dataset>(4);
+            d.snapshots.add(s);
+            datasets.put(s.name, s);
+        }
+        return null;
+    }
+
+    private void collect(Dataset d, boolean recursive, List<Dataset> list) {
+        list.add(d);
+        if (recursive && d.children!=null) {
+            for (Dataset c : d.children)
+                collect(c, true, list);
+        }
+    }
+
+    /*package*/ synchronized ErrorCode destroy(Dataset d) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (d.parent==null)
+            return ErrorCode.EZFS_BADTYPE;      // the top-level file system goes away with the pool
+        if ((d.children!=null && !d.children.isEmpty()) || (d.snapshots!=null && !d.snapshots.isEmpty()))
+            return ErrorCode.EZFS_EXISTS;
+        if (d.isSnapshot())
+            d.parent.snapshots.remove(d);
+        else
+            d.parent.children.remove(d);
+        addUsed(d.parent, -d.used);
+        datasets.remove(d.name);
+        d.destroyed = true;
+        return null;
+    }
+
+    /**
+     * Destroys the snapshot of the given name of a dataset and of its descendants, those that have one.
+     */
+    /*package*/ synchronized ErrorCode destroySnapshots(Dataset d, String snapshot) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        List<Dataset> targets = new ArrayList<Dataset>();
+        collect(d, true, targets);
+        int n = 0;
+        for (Dataset t : targets) {
+            Dataset s = datasets.get(t.name+'@'+snapshot);
+            if (s!=null && destroy(s)==null)
+                n++;
+        }
+        return n==0 ? ErrorCode.EZFS_NOENT : null;
+    }
+
+    /**
+     * Destroys the given snapshots, all or none. Those that don't exist are ignored.
+     */
+    /*package*/ synchronized ErrorCode destroySnapshots(Collection<String> names) {
+        for (String name : names) {
+            Dataset s = datasets.get(name);
+            if (s!=null && !s.isSnapshot())
+                return ErrorCode.EZFS_BADTYPE;
+        }
+        for (String name : names) {
+            Dataset s = datasets.get(name);
+            if (s!=null)
+                destroy(s);
+        }
+        return null;
+    }
+
+    /**
+     * Renames a file system or a volume, along with its descendants and snapshots,
+     * or a snapshot, along with the snapshots of the same name of the descendants if recursive.
+     */
+    /*package*/ synchronized ErrorCode rename(Dataset d, String newName, boolean recursive) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (datasets.containsKey(newName))
+            return ErrorCode.EZFS_EXISTS;
+
+        if (d.isSnapshot()) {
+            String fs = d.parent.name;
+            if (!newName.startsWith(fs+'@') || newName.length()==fs.length()+1)
+                return ErrorCode.EZFS_INVALIDNAME;
+            String from = d.name.substring(fs.length()), to = newName.substring(fs.length());
+            List<Dataset> targets = new ArrayList<Dataset>();
+            collect(d.parent, recursive, targets);
+            for (Dataset t : targets) {
+                if (datasets.containsKey(t.name+from) && datasets.containsKey(t.name+to))
+                    return ErrorCode.EZFS_EXISTS;
+            }
+            for (Dataset t : targets) {
+                Dataset s = datasets.remove(t.name+from);
+                if (s!=null) {
+                    s.name = t.name+to;
+                    datasets.put(s.name, s);
+                }
+            }
+            return null;
+        }
+
+        if (d.parent==null)
+            return ErrorCode.EZFS_BADTYPE;      // a pool is renamed on import
+        int idx = newName.lastIndexOf('/');
+        if (newName.indexOf('@')>=0 || idx<0)
+            return ErrorCode.EZFS_INVALIDNAME;
+        Dataset parent = datasets.get(newName.substring(0,idx));
+        if (parent==null)
+            return ErrorCode.EZFS_NOENT;
+        if (parent.pool!=d.pool)
+            return ErrorCode.EZFS_CROSSTARGET;
+        if (parent.type!=ZFSType.FILESYSTEM.code)
+            return ErrorCode.EZFS_BADTYPE;
+        for (Dataset a=parent; a!=null; a=a.parent) {
+            if (a==d)
+                return ErrorCode.EZFS_INVALIDNAME;  // into itself
+        }
+
+        String old = d.name;
+        List<Dataset> moved = new ArrayList<Dataset>();
+        for (Dataset x : datasets.values()) {
+            if (x.name.equals(old) || x.name.startsWith(old+'/') || x.name.startsWith(old+'@'))
+                moved.add(x);
+        }
+        for (Dataset x : moved) {
+            datasets.remove(x.name);
+            x.name = newName+x.name.substring(old.length());
+            datasets.put(x.name, x);
+        }
+        if (parent!=d.parent) {
+            d.parent.children.remove(d);
+            addUsed(d.parent, -d.used);
+            if (parent.children==null)
+                parent.children = new ArrayList<Dataset>(4);
+            parent.children.add(d);
+            addUsed(parent, d.used);
+            d.parent = parent;
+        }
+        return null;
+    }
+
+    /**
+     * Reverts a file system or a volume to its newest snapshot.
+     */
+    /*package*/ synchronized ErrorCode rollback(Dataset d, Dataset snapshot) {
+        if (d.destroyed || snapshot.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (snapshot.parent!=d)
+            return ErrorCode.EZFS_BADTYPE;
+        if (d.snapshots.get(d.snapshots.size()-1)!=snapshot)
+            return ErrorCode.EZFS_EXISTS;   // "zfs rollback -r" destroys the newer ones first
+        addUsed(d, snapshot.referenced-d.referenced);
+        d.referenced = snapshot.referenced;
+        return null;
+    }
+
+    /**
+     * Creates a file system or a volume from a snapshot.
+     */
+    /*package*/ synchronized ErrorCode clone(Dataset snapshot, String name) {
+        if (snapshot.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (!snapshot.isSnapshot())
+            return ErrorCode.EZFS_BADTYPE;
+        ErrorCode r = create(name, snapshot.parent.type, null);
+        if (r!=null)
+            return r;
+        Dataset c = datasets.get(name);
+        if (c.props==null)
+            c.props = new HashMap<String,String>(4);
+        c.props.put("origin", snapshot.name);
+        c.referenced = snapshot.referenced;
+        return null;
+    }
+
+    /*package*/ synchronized ErrorCode setMounted(Dataset d, boolean mounted) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (d.type!=ZFSType.FILESYSTEM.code)
+            return ErrorCode.EZFS_BADTYPE;
+        d.mounted = mounted;
+        if (!mounted)
+            d.shared = false;
+        return null;
+    }
+
+    /*package*/ synchronized ErrorCode setShared(Dataset d, boolean shared) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (d.type!=ZFSType.FILESYSTEM.code)
+            return ErrorCode.EZFS_BADTYPE;
+        if (shared && !d.mounted)
+            return ErrorCode.EZFS_SHARENFSFAILED;
+        d.shared = shared;
+        return null;
+    }
+
+    /**
+     * First line of the simulated send streams, which is followed by the name of the dataset sent.
+     */
+    private static final String STREAM_MAGIC = "SIMZFS1";
+
+    /**
+     * Writes the stream of a snapshot, which lists the snapshots sent, one per line.
+     * Each line has the path of the dataset relative to the one sent ("." for itself), the name of the snapshot,
+     * its guid, the guid of the snapshot that it's incremental from (0 if none), and the referenced space.
+     *
+     * @param from
+     *      Name of the snapshot, without the dataset name, to send an incremental stream from. Null for a full stream.
+     * @param to
+     *      Name of the snapshot to send, without the dataset name.
+     * @param replicate
+     *      Also sends the descendants, like "zfs send -R".
+     * @param all
+     *      Sends the snapshots in between as well, like "zfs send -I".
+     */
+    /*package*/ synchronized ErrorCode send(Dataset d, String from, String to, boolean replicate, boolean all, StringBuilder out) {
+        if (d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (!datasets.containsKey(d.name+'@'+to) || (from!=null && !datasets.containsKey(d.name+'@'+from)))
+            return ErrorCode.EZFS_NOENT;
+        out.append(STREAM_MAGIC).append(' ').append(d.name).append('\n');
+        List<Dataset> targets = new ArrayList<Dataset>();
+        collect(d, replicate, targets);
+        for (Dataset t : targets) {
+            Dataset last = datasets.get(t.name+'@'+to);
+            if (last==null)
+                continue;
+            Dataset base = from==null ? null : datasets.get(t.name+'@'+from);
+            boolean started = base==null;
+            for (Dataset s : getSnapshots(t)) {
+                if (s==base) {
+                    started = true;
+                    continue;
+                }
+                if (!started || (!all && s!=last))
+                    continue;
+                out.append(t==d ? "." : t.name.substring(d.name.length())).append(' ')
+                   .append(s.name.substring(t.name.length()+1)).append(' ')
+                   .append(s.guid).append(' ').append(base==null ? 0 : base.guid).append(' ')
+                   .append(s.referenced).append('\n');
+                base = s;
+                if (s==last)
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the snapshots listed in a stream that {@link #send(Dataset, String, String, boolean, boolean, StringBuilder)} wrote.
+     *
+     * @param name
+     *      The file system to receive into, or with "@snapshot" to name the (only) snapshot received.
+     * @param prefix
+     *      Receive into the name of the dataset sent, minus the pool name, under the given file system, like "zfs receive -d".
+     * @param force
+     *      Rolls back the file systems to the snapshot that the stream is incremental from,
+     *      and receives full streams into existing file systems that have no snapshot.
+     */
+    /*package*/ synchronized ErrorCode receive(String name, String stream, boolean prefix, boolean dryRun, boolean force) {
+        String[] lines = stream.split("\n");
+        if (lines.length==0 || !lines[0].startsWith(STREAM_MAGIC+' '))
+            return ErrorCode.EZFS_BADSTREAM;
+        String snapName = null;
+        int at = name.indexOf('@');
+        if (at>=0) {
+            snapName = name.substring(at+1);
+            name = name.substring(0,at);
+        }
+        if (prefix) {
+            String sent = lines[0].substring(STREAM_MAGIC.length()+1);
+            int idx = sent.indexOf('/');
+            if (idx>=0)
+                name += sent.substring(idx);
+        }
+
+        // check everything first, so that a dry run or a failure changes nothing
+        Set<String> created = new HashSet<String>();
+        Map<String,Long> newest = new HashMap<String,Long>();
+        for (int i=1; i<lines.length; i++) {
+            String[] f = lines[i].split(" ");
+            if (f.length!=5)
+                return ErrorCode.EZFS_BADSTREAM;
+            String fs = f[0].equals(".") ? name : name+f[0];
+            String snap = fs+'@'+(snapName!=null && f[0].equals(".") ? snapName : f[1]);
+            long fromGuid = Long.parseLong(f[3]);
+            if (datasets.containsKey(snap))
+                return ErrorCode.EZFS_EXISTS;
+            Dataset d = datasets.get(fs);
+            Long last = newest.get(fs);
+            if (last==null && d!=null && d.snapshots!=null && !d.snapshots.isEmpty())
+                last = d.snapshots.get(d.snapshots.size()-1).guid;
+            if (fromGuid==0) {
+                if (last!=null || (d!=null && !force))
+                    return ErrorCode.EZFS_EXISTS;
+                if (d==null && !created.contains(fs)) {
+                    int idx = fs.lastIndexOf('/');
+                    if (idx<0)
+                        return ErrorCode.EZFS_INVALIDNAME;
+                    String parent = fs.substring(0,idx);
+                    if (!datasets.containsKey(parent) && !created.contains(parent))
+                        return ErrorCode.EZFS_NOENT;
+                    created.add(fs);
+                }
+            } else {
+                if (d==null && !created.contains(fs))
+                    return ErrorCode.EZFS_NOENT;
+                if (last==null || last!=fromGuid) {
+                    if (!force || d==null || findByGuid(d, fromGuid)==null)
+                        return ErrorCode.EZFS_BADRESTORE;
+                }
+            }
+            newest.put(fs, Long.parseLong(f[2]));
+        }
+        if (dryRun)
+            return null;
+
+        for (int i=1; i<lines.length; i++) {
+            String[] f = lines[i].split(" ");
+            String fs = f[0].equals(".") ? name : name+f[0];
+            String snap = fs+'@'+(snapName!=null && f[0].equals(".") ? snapName : f[1]);
+            Dataset d = datasets.get(fs);
+            if (d==null) {
+                create(fs, ZFSType.FILESYSTEM.code, null);
+                d = datasets.get(fs);
+            }
+            long fromGuid = Long.parseLong(f[3]);
+            if (fromGuid!=0) {
+                // with force, the snapshots after the base are discarded
+                List<Dataset> snapshots = getSnapshots(d);
+                for (int j=snapshots.size()-1; j>=0 && snapshots.get(j).guid!=fromGuid; j--)
+                    destroy(snapshots.get(j));
+            }
+            long referenced = Long.parseLong(f[4]);
+            addUsed(d, referenced-d.referenced);
+            d.referenced = referenced;
+            Dataset s = new Dataset(snap, ZFSType.SNAPSHOT.code, d.pool, d, txg++);
+            s.guid = Long.parseLong(f[2]);
+            s.referenced = referenced;
+            if (d.snapshots==null)
+                d.snapshots = new ArrayList<Dataset>(4);
+            d.snapshots.add(s);
+            datasets.put(s.name, s);
+        }
+        return null;
+    }
+
+    private Dataset findByGuid(Dataset d, long guid) {
+        for (Dataset s : getSnapshots(d)) {
+            if (s.guid==guid)
+                return s;
+        }
+        return null;
+    }
+
+    /*package*/ synchronized ErrorCode setProperty(Dataset d, String prop, String value) {
+        if (d==null || d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (prop.indexOf(':')>=0) {
+            if (d.userProps==null)
+                d.userProps = new LinkedHashMap<String,String>();
+            d.userProps.put(prop, value);
+            return null;
+        }
+        zfs_prop_t p = toProp(prop);
+        if (p==null)
+            return ErrorCode.EZFS_BADPROP;
+        try {
+            switch (p) {
+            case ZFS_PROP_USED:         d.used = Long.parseLong(value); return null;
+            case ZFS_PROP_REFERENCED:   d.referenced = Long.parseLong(value); return null;
+            case ZFS_PROP_QUOTA:        d.quota = parseSize(value); return null;
+            case ZFS_PROP_RESERVATION:  d.reservation = parseSize(value); return null;
+            case ZFS_PROP_VOLSIZE:      d.volsize = Long.parseLong(value); return null;
+            case ZFS_PROP_TYPE:
+            case ZFS_PROP_NAME:
+            case ZFS_PROP_CREATION:
+            case ZFS_PROP_CREATETXG:
+            case ZFS_PROP_AVAILABLE:
+            case ZFS_PROP_COMPRESSRATIO:
+            case ZFS_PROP_MOUNTED:
+                return ErrorCode.EZFS_PROPREADONLY;
+            default:
+                if (d.props==null)
+                    d.props = new HashMap<String,String>(4);
+                d.props.put(prop, value);
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return ErrorCode.EZFS_BADPROP;
+        }
+    }
+
+    private static long parseSize(String value) {
+        return value.equals("none") ? 0 : Long.parseLong(value);
+    }
+
+    /*package*/ synchronized ErrorCode inheritProperty(Dataset d, String prop) {
+        if (d==null || d.destroyed)
+            return ErrorCode.EZFS_NOENT;
+        if (prop.indexOf(':')>=0) {
+            if (d.userProps!=null)
+                d.userProps.remove(prop);
+        } else if (d.props!=null) {
+            d.props.remove(prop);
+        }
+        return null;
+    }
+
+    /**
+     * Formats a property the way "zfs get -p" does.
+     *
+     * @return null if the property doesn't apply.
+     */
+    /*package*/ synchronized String getProperty(Dataset d, zfs_prop_t p) {
+        switch (p) {
+        case ZFS_PROP_TYPE:
+            return d.type==ZFSType.FILESYSTEM.code ? "filesystem" : d.isSnapshot() ? "snapshot" : "volume";
+        case ZFS_PROP_NAME:
+            return d.name;
+        case ZFS_PROP_COMPRESSRATIO:
+            return "1.00x";
+        case ZFS_PROP_MOUNTED:
+            return d.type==ZFSType.FILESYSTEM.code ? (d.mounted ? "yes" : "no") : null;
+        case ZFS_PROP_MOUNTPOINT:
+            if (d.type!=ZFSType.FILESYSTEM.code)
+                return null;
+            String mp = inherited(d, "mountpoint");
+            return mp!=null ? mp : "/"+d.name;
+        case ZFS_PROP_VOLSIZE:
+            if (d.type!=ZFSType.VOLUME.code)
+                return null;
+            break;
+        case ZFS_PROP_QUOTA:
+        case ZFS_PROP_RESERVATION:
+            if (d.isSnapshot())
+                return null;
+            break;
+        default:
+        }
+        if (isNumeric(p))
+            return String.valueOf(getNumeric(d,p));
+        String v = inherited(d, propName(p));
+        return v!=null ? v : DEFAULTS.get(p);
+    }
+
+    private static String inherited(Dataset d, String name) {
+        for (; d!=null; d=d.parent) {
+            if (d.props!=null) {
+                String v = d.props.get(name);
+                if (v!=null)
+                    return v;
+            }
+        }
+        return null;
+    }
+
+    /*package*/ synchronized long getNumeric(Dataset d, zfs_prop_t p) {
+        switch (p) {
+        case ZFS_PROP_CREATION:     return d.creation;
+        case ZFS_PROP_CREATETXG:    return d.createTxg;
+        case ZFS_PROP_USED:         return d.used;
+        case ZFS_PROP_REFERENCED:   return d.referenced;
+        case ZFS_PROP_QUOTA:        return d.quota;
+        case ZFS_PROP_RESERVATION:  return d.reservation;
+        case ZFS_PROP_VOLSIZE:      return d.volsize;
+        case ZFS_PROP_AVAILABLE:
+            if (d.isSnapshot())
+                return 0;
+            long avail = d.pool.size-d.pool.root.used;
+            for (Dataset a=d; a!=null; a=a.parent) {
+                if (a.quota>0)
+                    avail = Math.min(avail, a.quota-a.used);
+            }
+            return Math.max(0,avail);
+        default:
+            String v = getProperty(d,p);
+            if (v==null)
+                return 0;
+            if (v.equals("on") || v.equals("yes"))
+                return 1;
+            try {
+                return Long.parseLong(v);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Collects the user properties of a dataset, including the inherited ones.
+     *
+     * @return
+     *      From the property name to its value and the name of the dataset it's set on.
+     */
+    /*package*/ synchronized Map<String,String[]> getUserProperties(Dataset d) {
+        Map<String,String[]> r = new TreeMap<String,String[]>();
+        for (Dataset a=d; a!=null; a=a.parent) {
+            if (a.userProps==null)
+                continue;
+            for (Map.Entry<String,String> e : a.userProps.entrySet()) {
+                if (!r.containsKey(e.getKey()))
+                    r.put(e.getKey(), new String[]{e.getValue(), a.name});
+            }
+        }
+        return r;
+    }
+
+    private static boolean isNumeric(zfs_prop_t p) {
+        switch (p) {
+        case ZFS_PROP_CREATION:
+        case ZFS_PROP_CREATETXG:
+        case ZFS_PROP_USED:
+        case ZFS_PROP_REFERENCED:
+        case ZFS_PROP_AVAILABLE:
+        case ZFS_PROP_QUOTA:
+        case ZFS_PROP_RESERVATION:
+        case ZFS_PROP_VOLSIZE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Name of the property as "zfs get" takes it, like "compression" for {@link zfs_prop_t#ZFS_PROP_COMPRESSION}.
+     */
+    /*package*/ static String propName(zfs_prop_t p) {
+        return p.name().substring("ZFS_PROP_".length()).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static zfs_prop_t toProp(String name) {
+        try {
+            return zfs_prop_t.valueOf("ZFS_PROP_"+name.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Values of the string properties that aren't set anywhere.
+     */
+    private static final Map<zfs_prop_t,String> DEFAULTS = new HashMap<zfs_prop_t,String>();
+
+    static {
+        String[] defaults = {
+            "ORIGIN", "-", "VOLBLOCKSIZE", "8192", "RECORDSIZE", "131072", "SHARENFS", "off",
+            "CHECKSUM", "on", "COMPRESSION", "off", "ATIME", "on", "DEVICES", "on", "EXEC", "on",
+            "SETUID", "on", "READONLY", "off", "ZONED", "off", "SNAPDIR", "hidden", "ACLMODE", "groupmask",
+            "ACLINHERIT", "restricted", "CANMOUNT", "on", "SHAREISCSI", "off", "XATTR", "on",
+            "NUMCLONES", "0", "COPIES", "1", "VERSION", "5", "UTF8ONLY", "off", "NORMALIZE", "none",
+            "CASE", "sensitive", "VSCAN", "off", "NBMAND", "off", "SHARESMB", "off",
+            "REFQUOTA", "0", "REFRESERVATION", "0",
+        };
+        for (int i=0; i<defaults.length; i+=2)
+            DEFAULTS.put(zfs_prop_t.valueOf("ZFS_PROP_"+defaults[i]), defaults[i+1]);
+    }
+}
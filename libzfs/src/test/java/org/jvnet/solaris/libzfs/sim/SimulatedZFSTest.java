@@ -0,0 +1,98 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.libzfs.sim;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.jvnet.solaris.libzfs.ErrorCode;
+import org.jvnet.solaris.libzfs.ZFSType;
+import org.jvnet.solaris.libzfs.jna.zfs_prop_t;
+import org.jvnet.solaris.libzfs.sim.SimulatedZFS.Dataset;
+
+/**
+ * Tests the state behind the simulated libzfs, without going through the binding.
+ */
+public class SimulatedZFSTest extends TestCase {
+    private final SimulatedZFS zfs = new SimulatedZFS();
+
+    public void testGenerate() {
+        zfs.createPool("tank", 1L<<40);
+        zfs.create("tank/a", ZFSType.FILESYSTEM);
+
+        assertEquals(3*(1+2)+9*(1+2), zfs.generate("tank/a", 3, 2, 2, 1));
+        assertEquals(2+36, zfs.size());
+        assertTrue(zfs.exists("tank/a/f2/f0@s1"));
+
+        // space adds up from the leaves to the top-level file system
+        Dataset a = zfs.lookup("tank/a");
+        long sum = 0;
+        for (Dataset c : zfs.getChildren(a))
+            sum += c.used;
+        assertEquals(sum, a.used);
+        assertEquals(a.used, zfs.lookup("tank").used);
+
+        Dataset leaf = zfs.lookup("tank/a/f1/f2");
+        long used = leaf.referenced;
+        for (Dataset s : zfs.getSnapshots(leaf))
+            used += s.used;
+        assertEquals(used, zfs.getNumeric(leaf, zfs_prop_t.ZFS_PROP_USED));
+
+        // generated with the same seed, the same tree
+        SimulatedZFS other = new SimulatedZFS();
+        other.createPool("tank", 1L<<40);
+        other.create("tank/a", ZFSType.FILESYSTEM);
+        other.generate("tank/a", 3, 2, 2, 1);
+        assertEquals(a.used, other.lookup("tank/a").used);
+    }
+
+    public void testDestroySnapshots() {
+        zfs.createPool("tank", 1L<<40);
+        zfs.create("tank/a", ZFSType.FILESYSTEM);
+        zfs.generate("tank/a", 2, 2, 3, 1);
+        long used = zfs.lookup("tank").used;
+        long freed = zfs.lookup("tank/a/f0@s0").used+zfs.lookup("tank/a/f0/f0@s0").used+zfs.lookup("tank/a/f0/f1@s0").used;
+
+        assertNull(zfs.destroySnapshots(zfs.lookup("tank/a/f0"), "s0"));
+        assertFalse(zfs.exists("tank/a/f0@s0"));
+        assertFalse(zfs.exists("tank/a/f0/f1@s0"));
+        assertTrue(zfs.exists("tank/a/f1@s0"));
+        assertEquals(used-freed, zfs.lookup("tank").used);
+        assertEquals(ErrorCode.EZFS_NOENT, zfs.destroySnapshots(zfs.lookup("tank/a/f0"), "s0"));
+
+        // all or nothing
+        assertNotNull(zfs.destroySnapshots(Arrays.asList("tank/a/f1@s1", "tank/a/f1")));
+        assertTrue(zfs.exists("tank/a/f1@s1"));
+        assertNull(zfs.destroySnapshots(Arrays.asList("tank/a/f1@s1", "tank/a/f1@nonexistent")));
+        assertFalse(zfs.exists("tank/a/f1@s1"));
+    }
+
+    public void testErrors() {
+        zfs.createPool("tank", 1L<<40);
+        assertEquals(ErrorCode.EZFS_NOENT, zfs.create("tank/a/b", ZFSType.FILESYSTEM.code, null));
+        zfs.create("tank/a/b", ZFSType.FILESYSTEM);
+        assertEquals(ErrorCode.EZFS_EXISTS, zfs.create("tank/a/b", ZFSType.FILESYSTEM.code, null));
+        assertEquals(ErrorCode.EZFS_EXISTS, zfs.destroy(zfs.lookup("tank/a")));
+        assertEquals(ErrorCode.EZFS_PROPREADONLY, zfs.setProperty(zfs.lookup("tank/a"), "creation", "0"));
+        assertEquals(ErrorCode.EZFS_BADPROP, zfs.setProperty(zfs.lookup("tank/a"), "nonexistent", "0"));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+package org.jvnet.solaris.nvlist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jvnet.solaris.nvlist.jna.NVListException;
+import org.jvnet.solaris.nvlist.jna.libnvpair;
+import org.jvnet.solaris.nvlist.jna.libnvpair.data_type_t;
+
+/**
+ * Tests {@link NVListDecoder} and {@link NVListEncoder} against a packed pool configuration.
+ * These don't need ZFS.
+ */
+public class NVListDecoderTest extends TestCase {
+    private ByteBuffer fixture() throws IOException {
+        InputStream in = getClass().getResourceAsStream("pool-config.xdr");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n=in.read(buf))>=0)
+                out.write(buf,0,n);
+            return ByteBuffer.wrap(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testDecode() throws Exception {
+        Map<String,Object> config = NVListDecoder.decode(fixture());
+
+        assertEquals(Arrays.asList("version", "name", "state", "txg", "pool_guid", "hostname",
+                "vdev_tree", "features_for_read", "errata", "readonly", "tags", "mask"),
+                new ArrayList<String>(config.keySet()));
+        assertEquals(5000L, config.get("version"));
+        assertEquals("tank", config.get("name"));
+        assertEquals(0xDEADBEEF12345678L, config.get("pool_guid"));
+        assertEquals(-1, config.get("errata"));
+        assertEquals(Boolean.FALSE, config.get("readonly"));
+        assertTrue(Arrays.equals(new String[] {"a", "bc"}, (String[])config.get("tags")));
+        assertTrue(Arrays.equals(new byte[] {1, 2, (byte)0xFF}, (byte[])config.get("mask")));
+
+        Map<?,?> tree = (Map<?,?>)config.get("vdev_tree");
+        assertEquals("root", tree.get("type"));
+        assertTrue(Arrays.equals(new long[] {1, 2, 3, 4, 5, 6, -1}, (long[])tree.get("vdev_stats")));
+        List<?> children = (List<?>)tree.get("children");
+        assertEquals(2, children.size());
+        assertEquals("/dev/dsk/c0t1d0s0", ((Map<?,?>)children.get(1)).get("path"));
+        assertEquals(Boolean.TRUE, ((Map<?,?>)config.get("features_for_read")).get("org.illumos:lz4_compress"));
+
+        try {
+            config.put("foo", "bar");
+            fail("the tree should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // as expected
+        }
+    }
+
+    public void testStreaming() throws Exception {
+        final StringBuilder events = new StringBuilder();
+        NVListDecoder.decode(fixture(), new NVListDecoder.Handler() {
+            public void pair(String name, data_type_t type, Object value) {
+                if (type==data_type_t.DATA_TYPE_STRING)
+                    events.append(name).append('=').append(value).append(' ');
+            }
+            public void startList(String name) {
+                events.append('{');
+            }
+            public void endList() {
+                events.append("} ");
+            }
+            public void startListArray(String name, int length) {
+                events.append(name).append('[').append(length);
+            }
+            public void endListArray() {
+                events.append("] ");
+            }
+        });
+        assertEquals("{name=tank hostname=host {type=root children[2"
+                + "{type=disk path=/dev/dsk/c0t0d0s0 } {type=disk path=/dev/dsk/c0t1d0s0 } ] } {} } ",
+                events.toString());
+    }
+
+    /**
+     * The encoder produces the same bytes, sizes of pairs in memory included.
+     */
+    public void testEncode() throws Exception {
+        NVListEncoder vdevTree = new NVListEncoder()
+                .put("type", "root").putUInt64("id", 0).putUInt64("guid", 42)
+                .put("children", new NVListEncoder[] {disk(0), disk(1)})
+                .putUInt64Array("vdev_stats", new long[] {1, 2, 3, 4, 5, 6, -1});
+        NVListEncoder config = new NVListEncoder()
+                .putUInt64("version", 5000).put("name", "tank").putUInt64("state", 0).putUInt64("txg", 123456)
+                .putUInt64("pool_guid", 0xDEADBEEF12345678L).put("hostname", "host")
+                .put("vdev_tree", vdevTree)
+                .put("features_for_read", new NVListEncoder()
+                        .put("com.delphix:hole_birth", true).put("org.illumos:lz4_compress", true))
+                .put("errata", -1)
+                .put("readonly", false)
+                .put("tags", new String[] {"a", "bc"})
+                .put("mask", new byte[] {1, 2, (byte)0xFF});
+
+        ByteBuffer expected = fixture();
+        ByteBuffer actual = config.pack();
+        expected.put(1, actual.get(1));     // the byte order of the packer
+        assertEquals(expected, actual);
+    }
+
+    public void testReplace() {
+        Map<String,Object> m = NVListDecoder.decode(new NVListEncoder().put("a", 1).put("b", 2).put("a", "x").pack());
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(m.keySet()));
+
+        m = NVListDecoder.decode(new NVListEncoder(libnvpair.NV_UNIQUE_NAME_TYPE).put("a", 1).put("a", "x").put("a", 2).pack());
+        assertEquals(2, m.get("a"));
+    }
+
+    public void testTruncated() throws Exception {
+        ByteBuffer b = fixture();
+        b.limit(b.limit()/2);
+        try {
+            NVListDecoder.decode(b);
+            fail();
+        } catch (NVListException e) {
+            // as expected
+        }
+    }
+
+    private static NVListEncoder disk(int id) {
+        return new NVListEncoder().put("type", "disk").putUInt64("id", id)
+                .put("path", "/dev/dsk/c0t"+id+"d0s0").putUInt64("whole_disk", 1);
+    }
+}